@@ -0,0 +1,45 @@
+package com.googlecode.gtalksms.cmd;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing of the user commands and of their arguments
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CommandBenchmark {
+    private static final String SMS = "sms:John Doe:Hello, are we still meeting at 10:30? Call me: 555-0100";
+
+    private Command mCommand;
+
+    @Setup
+    public void setup() {
+        mCommand = new Command(SMS, "user@example.com");
+    }
+
+    @Benchmark
+    public Command parse() {
+        return new Command(SMS, "user@example.com");
+    }
+
+    @Benchmark
+    public void getArgs(Blackhole bh) {
+        bh.consume(mCommand.getArg1());
+        bh.consume(mCommand.getAllArg2());
+    }
+
+    @Benchmark
+    public String getAllArg1() {
+        return mCommand.getAllArg1();
+    }
+}
@@ -0,0 +1,149 @@
+package com.googlecode.gtalksms.cmd;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Dispatch of a received message to its command, with the names and aliases of the
+ * 31 command classes registered by CommandManager.
+ * "legacy" is the previous dispatch: split and trim, HashMap of the handlers then scan of the aliases.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CommandDispatchBenchmark {
+    private static final String[][][] COMMANDS = {
+        { { "video" } },
+        { { "notification", "notif" } },
+        { { "applist", "apps" }, { "appfind" }, { "appstart", "start" } },
+        { { "logs", "log" } },
+        { { "tts", "say" }, { "tts-lang", "ttslang" }, { "tts-lang-list", "ttslanglist" },
+          { "tts-engine", "ttsengine" }, { "tts-engine-list", "ttsenginelist" } },
+        { { "toast" } },
+        { { "clipboard", "copy" } },
+        { { "camera", "photo" }, { "flash", "light" } },
+        { { "write", "w" }, { "wappend", "wa" }, { "wsend", "ws", "wl" } },
+        { { "battery", "batt" } },
+        { { "geo" }, { "where" } },
+        { { "phone", "p" } },
+        { { "contact" } },
+        { { "cmd" }, { "shell" } },
+        { { "http", "https" } },
+        { { "ring" }, { "ringmode" } },
+        { { "send" }, { "ls" }, { "rm" } },
+        { { "music", "zic" }, { "volume", "vol" } },
+        { { "mms", "m" } },
+        { { "sms", "s" }, { "reply", "r" }, { "findsms", "fs" }, { "markasread", "mar" }, { "chat", "c" }, { "delsms" } },
+        { { "exit", "quit" } },
+        { { "alias" } },
+        { { "settings", "set" } },
+        { { "bluetooth", "bt" } },
+        { { "wifi", "wlan" } },
+        { { "reboot" } },
+        { { "email", "e" }, { "emailfile", "ef" } },
+        { { "recipient", "re" } },
+        { { "sysinfo" }, { "telinfo" } },
+        { { "metrics" } },
+        { { "activate" }, { "deactivate" } },
+        { { "?", "help" } },
+    };
+
+    private CommandIndex mIndex;
+    private Map<String, CommandHandlerBase> mLegacyMap;
+    private String[] mLines;
+    private int mNext;
+
+    @Setup
+    public void setup() {
+        List<CommandHandlerBase> handlers = new ArrayList<CommandHandlerBase>();
+        List<String> lines = new ArrayList<String>();
+        mLegacyMap = new HashMap<String, CommandHandlerBase>();
+        for (String[][] handler : COMMANDS) {
+            Cmd[] cmds = new Cmd[handler.length];
+            for (int i = 0; i < handler.length; ++i) {
+                String[] alias = new String[handler[i].length - 1];
+                System.arraycopy(handler[i], 1, alias, 0, alias.length);
+                cmds[i] = new Cmd(handler[i][0], alias);
+            }
+            CommandHandlerBase h = new CommandHandlerBase(handler[0][0], cmds);
+            handlers.add(h);
+            for (Cmd c : cmds) {
+                mLegacyMap.put(c.getName(), h);
+                lines.add(" " + c.getName().toUpperCase() + " :John Doe:Hello, see you at 10:30");
+                for (String a : c.getAlias()) {
+                    mLegacyMap.put(a, h);
+                    lines.add(a + ":some argument");
+                }
+            }
+        }
+        mIndex = new CommandIndex(handlers);
+        mLines = lines.toArray(new String[lines.size()]);
+    }
+
+    private String nextLine() {
+        String line = mLines[mNext];
+        mNext = (mNext + 1) % mLines.length;
+        return line;
+    }
+
+    @Benchmark
+    public Cmd dispatch() {
+        String line = nextLine();
+        int sep = line.indexOf(':');
+        int start = 0;
+        int end = sep == -1 ? line.length() : sep;
+        while (start < end && line.charAt(start) <= ' ') {
+            ++start;
+        }
+        while (end > start && line.charAt(end - 1) <= ' ') {
+            --end;
+        }
+        CommandIndex.Entry e = mIndex.lookup(line, start, end);
+        return e == null ? null : e.getCmd();
+    }
+
+    @Benchmark
+    public Cmd legacy() {
+        String line = nextLine();
+        String command;
+        if (line.contains(":")) {
+            command = line.substring(0, line.indexOf(":")).trim();
+        } else {
+            command = line.trim();
+        }
+        command = command.toLowerCase();
+        CommandHandlerBase h = mLegacyMap.get(command);
+        if (h == null) {
+            return null;
+        }
+        for (Cmd c : h.getCommands()) {
+            if (c.getName().equals(command)) {
+                return c;
+            }
+        }
+        for (Cmd c : h.getCommands()) {
+            for (String a : c.getAlias()) {
+                if (a.equals(command.toLowerCase())) {
+                    return c;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Benchmark
+    public CommandIndex.Entry complete() {
+        return mIndex.complete("batte");
+    }
+}
@@ -0,0 +1,93 @@
+package com.googlecode.gtalksms.cmd.shellCmd;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A command of a /bin/sh session writing 10 MB to stdout and 10 MB to stderr at the same time, read by the ShellEngine.
+ * The sink checks that all the output arrives and reports the number of messages and the largest one
+ * ("maxMessageChars", the buffer of the command holds about as much at most, whatever the size of the output).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ShellEngineBenchmark {
+    private static final int SESSION = 1;
+    // 63 chars and the new line, 10 MB are whole lines
+    private static final String LINE = "0123456789abcdefghijklmnopqrstuvwxyz0123456789abcdefghijklmnopq";
+    private static final ShellSessions.ProcessFactory FACTORY = new ShellSessions.ProcessFactory() {
+        public Process start(int id) throws IOException {
+            return new ProcessBuilder("/bin/sh").start();
+        }
+    };
+
+    @Param({"10485760"})
+    public int mBytesPerStream;
+
+    private ShellEngine mEngine;
+    private ShellSessions mSessions;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+        public long messages;
+        public long maxMessageChars;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            messages = 0;
+            maxMessageChars = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        mEngine = new ShellEngine();
+        mSessions = new ShellSessions(mEngine);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mSessions.killAll();
+        mEngine.shutdown();
+    }
+
+    @Benchmark
+    public long bothStreams(final Counters counters) throws IOException, InterruptedException {
+        String write = "yes " + LINE + " | head -c " + mBytesPerStream;
+        final long[] chars = new long[1];
+        ShellOutput.Sink sink = new ShellOutput.Sink() {
+            public void send(String text) {
+                chars[0] += text.length();
+                counters.messages++;
+                counters.maxMessageChars = Math.max(counters.maxMessageChars, text.length());
+            }
+        };
+        ShellSessions.Command command = mSessions.execute(SESSION, write + " & " + write + " >&2 & wait", null,
+                FACTORY, sink, null);
+
+        int exitCode = command.waitFor(60000);
+        if (command.isRunning()) {
+            mSessions.kill(SESSION);
+            throw new IllegalStateException("The command is blocked");
+        }
+        // a cut last line of stdout is separated from the stderr output
+        long expected = 2L * mBytesPerStream + (mBytesPerStream % (LINE.length() + 1) == 0 ? 0 : 1);
+        if (exitCode != 0 || chars[0] != expected) {
+            throw new IllegalStateException("Exit code " + exitCode + ", " + chars[0] + " chars received");
+        }
+        return chars[0];
+    }
+}
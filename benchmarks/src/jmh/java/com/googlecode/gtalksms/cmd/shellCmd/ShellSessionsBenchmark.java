@@ -0,0 +1,68 @@
+package com.googlecode.gtalksms.cmd.shellCmd;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Latency of a short command with /bin/sh, until its output is sent:
+ * "spawn" starts a new shell per command as Shell did, "persistent" runs it in the long-lived shell of ShellSessions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ShellSessionsBenchmark {
+    private static final int SESSION = 1;
+    private static final int SPAWN_SESSION = 2;
+    private static final long TIMEOUT_MS = 10000;
+
+    @Param({"echo hello", "ls /"})
+    public String mCommand;
+
+    private ShellEngine mEngine;
+    private ShellSessions mSessions;
+    private final ShellSessions.ProcessFactory mFactory = new ShellSessions.ProcessFactory() {
+        public Process start(int id) throws IOException {
+            return new ProcessBuilder("/bin/sh").start();
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        mEngine = new ShellEngine();
+        mSessions = new ShellSessions(mEngine);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mSessions.killAll();
+        mEngine.shutdown();
+    }
+
+    @Benchmark
+    public int spawn() throws Exception {
+        // the next command starts a new shell
+        mSessions.kill(SPAWN_SESSION);
+        return mSessions.execute(SPAWN_SESSION, mCommand, null, mFactory, NULL_SINK, null).waitFor(TIMEOUT_MS);
+    }
+
+    @Benchmark
+    public int persistent() throws Exception {
+        return mSessions.execute(SESSION, mCommand, null, mFactory, NULL_SINK, null).waitFor(TIMEOUT_MS);
+    }
+
+    private static final ShellOutput.Sink NULL_SINK = new ShellOutput.Sink() {
+        public void send(String text) {
+        }
+    };
+}
@@ -0,0 +1,144 @@
+package com.googlecode.gtalksms.cmd.smsCmd;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.googlecode.gtalksms.FakeContext;
+import com.googlecode.gtalksms.SettingsManager;
+import com.googlecode.gtalksms.data.phone.Phone;
+import com.googlecode.gtalksms.tools.Tools;
+
+/**
+ * The SMS of a contact ("sms:bob", "findsms:bob:...") read from a fake provider costing a fixed latency per query:
+ * "batched" is SmsManager.getSms, two queries for all the phones,
+ * "perThread" is the SmsManager it replaced, a thread id query per phone and a query per thread.
+ * The provider queries and the calls are counted by the "queries" and "calls" counters, their ratio is the number
+ * of round-trips per call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SmsManagerBenchmark {
+    private static final int SMS_PER_THREAD = 50;
+
+    @Param({"1", "5"})
+    public int mPhones;
+
+    // a Binder round-trip and the SQLite query of the provider
+    @Param({"300"})
+    public int mLatencyMicros;
+
+    @Param({"batched", "perThread"})
+    public String mMode;
+
+    @Param({"", "Hello"})
+    public String mSearch;
+
+    private FakeSmsProvider mProvider;
+    private Context mContext;
+    private SettingsManager mSettings;
+    private SmsManager mSmsManager;
+    private ArrayList<Phone> mContactPhones;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+        public long queries;
+        public long calls;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            queries = 0;
+            calls = 0;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        mProvider = new FakeSmsProvider(mLatencyMicros);
+        mContactPhones = new ArrayList<Phone>();
+        long date = 1400000000000L;
+        for (int i = 0; i < mPhones; ++i) {
+            String number = "+3361234567" + i;
+            mContactPhones.add(new Phone("Bob", number));
+            for (int j = 0; j < SMS_PER_THREAD; ++j) {
+                mProvider.addSms(Integer.toString(i), number, "Hello " + j, date + 60000L * (j * mPhones + i), j % 2 + 1);
+            }
+        }
+        // other contacts
+        for (int i = 0; i < 20; ++i) {
+            mProvider.addSms(Integer.toString(100 + i), "+3369876543" + i, "Hello " + i, date + i, 1);
+        }
+        mContext = new FakeContext(mProvider);
+        mSettings = new SettingsManager();
+        mSettings.smsNumber = 5;
+        mSmsManager = new SmsManager(mSettings, mContext);
+    }
+
+    @Benchmark
+    public ArrayList<Sms> getSms(Counters counters) {
+        String search = mSearch.length() == 0 ? null : mSearch;
+        mProvider.resetQueryCount();
+        ArrayList<Sms> res = "batched".equals(mMode) ? mSmsManager.getSms(mContactPhones, search)
+                : getSmsPerThread(mContactPhones, search);
+        counters.queries += mProvider.getQueryCount();
+        counters.calls++;
+        return res;
+    }
+
+    /**
+     * SmsManager.getSms before the batched queries, then sorted by SmsCmd
+     */
+    private ArrayList<Sms> getSmsPerThread(ArrayList<Phone> phones, String search) {
+        ArrayList<Sms> res = new ArrayList<Sms>();
+        for (Phone phone : phones) {
+            Cursor c = Tools.query(mProvider, Uri.parse(FakeSmsProvider.THREADS_URI + "?recipient=" + phone.getCleanNumber()), null, null, null, null);
+            if (c != null) {
+                for (boolean hasData = c.moveToFirst(); hasData; hasData = c.moveToNext()) {
+                    String where = "thread_id = " + Tools.getInt(c, "_id");
+                    if (search != null) {
+                        where += " and body LIKE '%" + search.replace("'", "''") + "%'";
+                    }
+                    res.addAll(getAllSms(where));
+                }
+                c.close();
+            }
+        }
+        Collections.sort(res);
+        return res;
+    }
+
+    private ArrayList<Sms> getAllSms(String where) {
+        ArrayList<Sms> res = new ArrayList<Sms>();
+        Cursor c = Tools.query(mProvider, Uri.parse(FakeSmsProvider.SMS_URI), new String[] { "person", "address", "body", "date", "type" },
+                where, null, "date DESC limit " + mSettings.smsNumber);
+        if (c != null) {
+            String receiver = mContext.getString(0);
+            for (boolean hasData = c.moveToFirst(); hasData; hasData = c.moveToNext()) {
+                boolean isSent = Tools.getInt(c, "type") == 2;
+                String address = Tools.getString(c, "address");
+                Sms sms = new Sms(address, Tools.getString(c, "body"), Tools.getDateMilliSeconds(c, "date"), isSent ? address : receiver);
+                sms.setSender(isSent ? receiver : address);
+                res.add(sms);
+            }
+            c.close();
+        }
+        return res;
+    }
+}
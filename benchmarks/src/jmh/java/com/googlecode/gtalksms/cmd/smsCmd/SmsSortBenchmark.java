@@ -0,0 +1,48 @@
+package com.googlecode.gtalksms.cmd.smsCmd;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Sorting of SMS by date (Sms.compareTo), as done on the findsms / sms results
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SmsSortBenchmark {
+    @Param({"100", "1000"})
+    public int mSize;
+
+    private List<Sms> mSms;
+
+    @Setup
+    public void setup() {
+        // fixed seed, the runs must be comparable
+        Random random = new Random(42);
+        mSms = new ArrayList<Sms>(mSize);
+        long now = 1400000000000L;
+        for (int i = 0; i < mSize; ++i) {
+            mSms.add(new Sms("+3361234" + i, "Message " + i, new Date(now - random.nextInt(1000000000)), "me"));
+        }
+    }
+
+    @Benchmark
+    public List<Sms> sort() {
+        List<Sms> res = new ArrayList<Sms>(mSms);
+        Collections.sort(res);
+        return res;
+    }
+}
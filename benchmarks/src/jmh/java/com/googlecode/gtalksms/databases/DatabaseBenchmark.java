@@ -0,0 +1,144 @@
+package com.googlecode.gtalksms.databases;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import com.googlecode.gtalksms.FakeContext;
+import com.googlecode.gtalksms.cmd.smsCmd.Sms;
+
+/**
+ * 1000 alias lookups and 1000 upserts of the SMS tracking, with the cached and bound statements of Database
+ * against the queries built by concatenation and the ContentValues of the helpers they replaced.
+ * The databases run on an in-memory sqlite-jdbc database, see the android.database.sqlite stubs.
+ * One alias in ten doesn't exist, the SMS ids cycle over 100 rows so most upserts replace a row.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DatabaseBenchmark {
+    private static final int OPERATIONS = 1000;
+    private static final int ALIASES = 100;
+    private static final int SMS_ROWS = 100;
+
+    private String[] mAliasNames;
+    private Sms[] mSms;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        FakeContext ctx = new FakeContext(null);
+        new AliasDatabase(ctx);
+        new SMSDatabase(ctx);
+        for (int i = 0; i < ALIASES; ++i) {
+            AliasDatabase.putAlias("alias" + i, "+3361234" + (1000 + i), i % 2 == 0 ? "Contact " + i : null);
+        }
+        mAliasNames = new String[OPERATIONS];
+        for (int i = 0; i < OPERATIONS; ++i) {
+            // every tenth name is unknown, like a number passed to "sms"
+            mAliasNames[i] = i % 10 == 9 ? "unknown" + i : "alias" + (i % ALIASES);
+        }
+        mSms = new Sms[OPERATIONS];
+        for (int i = 0; i < OPERATIONS; ++i) {
+            mSms[i] = new Sms("+3361234" + (1000 + i), "Contact " + i, "Hello, it's message " + i, 1 + i % 3,
+                    "user@example.com", i % SMS_ROWS);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPERATIONS)
+    public void aliasLookup(Blackhole bh) {
+        for (String name : mAliasNames) {
+            String number = AliasDatabase.getNumber(name);
+            bh.consume(number != null ? number : name);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPERATIONS)
+    public void legacyAliasLookup(Blackhole bh) {
+        for (String name : mAliasNames) {
+            // AliasHelper.convertAliasToNumber before the statements: containsAlias() then getAlias()
+            if (!name.contains("'") && legacyContainsAlias(name)) {
+                bh.consume(legacyGetAlias(name)[1]);
+            } else {
+                bh.consume(name);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPERATIONS)
+    public void smsUpsert(Blackhole bh) {
+        for (Sms sms : mSms) {
+            bh.consume(SMSDatabase.putSMS(sms));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPERATIONS)
+    public void legacySmsUpsert(Blackhole bh) {
+        for (Sms sms : mSms) {
+            bh.consume(legacyAddSMS(sms));
+        }
+    }
+
+    private static boolean legacyContainsAlias(String aliasName) {
+        Cursor c = Database.databaseRO.query(DatabaseOpenHelper.ALIAS_TABLE_NAME, new String[] { "number" },
+                "aliasName='" + aliasName + "'", null, null, null, null);
+        boolean ret = c.getCount() == 1;
+        c.close();
+        return ret;
+    }
+
+    private static String[] legacyGetAlias(String aliasName) {
+        Cursor c = Database.databaseRO.query(DatabaseOpenHelper.ALIAS_TABLE_NAME,
+                new String[] { "aliasName", "number", "contactName" }, "aliasName='" + aliasName + "'", null, null, null, null);
+        c.moveToFirst();
+        String[] res = c.getString(2) == null
+                ? new String[] { c.getString(0), c.getString(1) }
+                : new String[] { c.getString(0), c.getString(1), c.getString(2) };
+        c.close();
+        return res;
+    }
+
+    /**
+     * SMSHelper.addSMS before the statements: containsSMS() then insert() or update()
+     */
+    private static boolean legacyAddSMS(Sms sms) {
+        int smsID = sms.getID();
+        ContentValues values = new ContentValues();
+        values.put("smsID", smsID);
+        values.put("phoneNumber", sms.getNumber());
+        values.put("name", sms.getTo().replace('\'', '\"'));
+        values.put("shortenedMessage", sms.getShortenedMessage().replace('\'', '\"'));
+        values.put("answerTo", sms.getAnswerTo() == null ? "unknown" : sms.getAnswerTo());
+        values.put("dIntents", sms.getDelIntents());
+        values.put("sIntents", sms.getSentIntents());
+        values.put("numParts", sms.getNumParts());
+        values.put("resSIntent", sms.getResSentIntent());
+        values.put("resDIntent", sms.getResDelIntent());
+        values.put("date", sms.getCreatedDate().getTime());
+
+        Cursor c = Database.databaseRO.query(DatabaseOpenHelper.SMS_TABLE_NAME, new String[] { "smsID" },
+                "smsID='" + smsID + "'", null, null, null, null);
+        boolean contains = c.getCount() == 1;
+        c.close();
+        if (contains) {
+            return Database.database.update(DatabaseOpenHelper.SMS_TABLE_NAME, values, "smsID='" + smsID + "'", null) == 1;
+        } else {
+            return Database.database.insert(DatabaseOpenHelper.SMS_TABLE_NAME, null, values) != -1;
+        }
+    }
+}
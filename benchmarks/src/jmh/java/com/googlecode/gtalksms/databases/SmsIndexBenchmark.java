@@ -0,0 +1,149 @@
+package com.googlecode.gtalksms.databases;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * findsms over a synthetic corpus of 100k SMS, on the SQLite of sqlite-jdbc.
+ * "index" runs the query and the ranking of SmsIndex on its FTS tables,
+ * "like" the previous "body LIKE '%term%'" selection on a copy of the provider table.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SmsIndexBenchmark {
+    private static final int LIMIT = 5;
+    private static final int THREADS = 500;
+    private static final int RARE_WORDS = 20000;
+    private static final String[] COMMON_WORDS = {
+        "ok", "hello", "thanks", "tomorrow", "call", "me", "when", "you", "are", "home", "see", "later",
+        "love", "meeting", "train", "late", "dinner", "tonight", "work", "yes", "no", "where", "good", "night"
+    };
+    private static final String SQL_LIKE = "SELECT _id, address, body, date, type FROM sms"
+            + " WHERE body LIKE ? ORDER BY date DESC LIMIT " + LIMIT;
+
+    @Param({"100000"})
+    public int mSize;
+
+    // a common word, a rare one, and a common phrase
+    @Param({"hello", "w1234", "meeting tomorrow"})
+    public String mSearch;
+
+    private Connection mConnection;
+    private PreparedStatement mIndexQuery;
+    private PreparedStatement mLikeQuery;
+    private long mNow;
+
+    @Setup(Level.Trial)
+    public void setup() throws SQLException {
+        mConnection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        Statement statement = mConnection.createStatement();
+        statement.execute(SmsIndex.META_TABLE_CREATE);
+        statement.execute(SmsIndex.TEXT_TABLE_CREATE_FTS4);
+        // columns of content://sms used by the selection
+        statement.execute("CREATE TABLE sms (_id INTEGER PRIMARY KEY, thread_id INTEGER, address TEXT, body TEXT, date INTEGER, type INTEGER)");
+        statement.close();
+
+        // fixed seed, the runs must be comparable
+        Random random = new Random(42);
+        mNow = 1400000000000L;
+        mConnection.setAutoCommit(false);
+        PreparedStatement putMeta = mConnection.prepareStatement(SmsIndex.SQL_PUT_META);
+        PreparedStatement putText = mConnection.prepareStatement(SmsIndex.SQL_PUT_TEXT);
+        PreparedStatement putSms = mConnection.prepareStatement("INSERT INTO sms VALUES (?, ?, ?, ?, ?, ?)");
+        StringBuilder body = new StringBuilder();
+        for (int id = 1; id <= mSize; ++id) {
+            body.setLength(0);
+            int words = 3 + random.nextInt(18);
+            for (int i = 0; i < words; ++i) {
+                if (i > 0) {
+                    body.append(' ');
+                }
+                if (random.nextInt(10) < 6) {
+                    body.append(COMMON_WORDS[random.nextInt(COMMON_WORDS.length)]);
+                } else {
+                    body.append('w').append(random.nextInt(RARE_WORDS));
+                }
+            }
+            int thread = random.nextInt(THREADS);
+            String address = "+3361234" + (1000 + thread);
+            // one SMS per minute, the ids grow with the dates as in the provider
+            long date = mNow - (mSize - id) * 60000L;
+            int type = 1 + random.nextInt(2);
+
+            putMeta.setLong(1, id);
+            putMeta.setLong(2, thread);
+            putMeta.setString(3, address);
+            putMeta.setLong(4, date);
+            putMeta.setInt(5, type);
+            putMeta.executeUpdate();
+            putText.setLong(1, id);
+            putText.setString(2, body.toString());
+            putText.setString(3, address);
+            putText.executeUpdate();
+            putSms.setLong(1, id);
+            putSms.setLong(2, thread);
+            putSms.setString(3, address);
+            putSms.setString(4, body.toString());
+            putSms.setLong(5, date);
+            putSms.setInt(6, type);
+            putSms.executeUpdate();
+        }
+        mConnection.commit();
+        putMeta.close();
+        putText.close();
+        putSms.close();
+
+        mIndexQuery = mConnection.prepareStatement(SmsIndex.getSearchSql(0));
+        mLikeQuery = mConnection.prepareStatement(SQL_LIKE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        mConnection.close();
+    }
+
+    @Benchmark
+    public List<SmsIndex.Hit> index() throws SQLException {
+        mIndexQuery.setString(1, SmsIndex.toMatchExpression(mSearch));
+        List<SmsIndex.Hit> hits = new ArrayList<SmsIndex.Hit>();
+        ResultSet rs = mIndexQuery.executeQuery();
+        while (rs.next()) {
+            hits.add(new SmsIndex.Hit(rs.getLong(1), rs.getString(2), rs.getString(3), rs.getLong(4), rs.getInt(5),
+                    SmsIndex.score(rs.getBytes(6))));
+        }
+        rs.close();
+        return SmsIndex.rank(hits, LIMIT, mNow);
+    }
+
+    @Benchmark
+    public List<SmsIndex.Hit> like() throws SQLException {
+        mLikeQuery.setString(1, "%" + mSearch + "%");
+        List<SmsIndex.Hit> hits = new ArrayList<SmsIndex.Hit>();
+        ResultSet rs = mLikeQuery.executeQuery();
+        while (rs.next()) {
+            hits.add(new SmsIndex.Hit(rs.getLong(1), rs.getString(2), rs.getString(3), rs.getLong(4), rs.getInt(5), 0));
+        }
+        rs.close();
+        return hits;
+    }
+}
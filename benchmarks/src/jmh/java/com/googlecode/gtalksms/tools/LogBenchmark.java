@@ -0,0 +1,97 @@
+package com.googlecode.gtalksms.tools;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.googlecode.gtalksms.SettingsManager;
+
+/**
+ * Cost per log call of Log, the ring buffer, against the Log it replaced, walking the stack on every call.
+ * "debug" enables the debug logs, w() logs in both cases.
+ * The system log is discarded by the android.util.Log stub, only the work done by the callers is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LogBenchmark {
+    private static final String APP_PACKAGE = "com.googlecode.gtalksms.";
+
+    @Param({"false", "true"})
+    public boolean mDebug;
+
+    private SettingsManager mSettings;
+    private int mCount;
+    private String mRoom = "bob_GTalkSMS_#1234_user_example.com_SMS_@conference.example.com";
+
+    @Setup
+    public void setup() {
+        mSettings = new SettingsManager();
+        mSettings.debugLog = mDebug;
+        Log.initialize(mSettings);
+        Log.setCallerSampling(0);
+    }
+
+    @Benchmark
+    public void debugConcat() {
+        Log.d("rejoinRooms: " + (++mCount) + "/16 rooms processed, " + mRoom);
+    }
+
+    @Benchmark
+    public void debugLazy() {
+        Log.d("rejoinRooms: %d/16 rooms processed, %s", ++mCount, mRoom);
+    }
+
+    @Benchmark
+    public void legacyDebugConcat() {
+        legacyD("rejoinRooms: " + (++mCount) + "/16 rooms processed, " + mRoom);
+    }
+
+    @Benchmark
+    public void warnConcat() {
+        Log.w("rejoinRooms: timeout while rejoining " + mRoom);
+    }
+
+    @Benchmark
+    public void legacyWarnConcat() {
+        legacyW("rejoinRooms: timeout while rejoining " + mRoom);
+    }
+
+    /**
+     * Log.d before the ring buffer
+     */
+    private void legacyD(String msg) {
+        if (mSettings.debugLog) {
+            android.util.Log.d(Tools.LOG_TAG, legacyCaller() + msg);
+        }
+    }
+
+    /**
+     * Log.w before the ring buffer
+     */
+    private static void legacyW(String msg) {
+        android.util.Log.w(Tools.LOG_TAG, legacyCaller() + msg);
+    }
+
+    private static String legacyCaller() {
+        try {
+            StackTraceElement[] stack = Thread.currentThread().getStackTrace();
+            for (StackTraceElement elem : stack) {
+                String c = elem.getClassName();
+                if (c.startsWith(APP_PACKAGE) && !c.equals(LogBenchmark.class.getName())) {
+                    return "[" + elem.getClassName().replace(APP_PACKAGE, "") + "@" + elem.getMethodName() + ":" + elem.getLineNumber() + "] ";
+                }
+            }
+        } catch (Exception e) {
+            // no caller
+        }
+        return "";
+    }
+}
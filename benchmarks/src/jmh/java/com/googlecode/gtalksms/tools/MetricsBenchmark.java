@@ -0,0 +1,56 @@
+package com.googlecode.gtalksms.tools;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Cost of the metrics on the instrumented paths, compared to reading the clock alone.
+ * Run with 4 threads to include the contention on the shared counters.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Threads(4)
+public class MetricsBenchmark {
+    private Metrics.Counter mCounter;
+    private Histogram mHistogram;
+
+    @Setup
+    public void setup() {
+        mCounter = Metrics.counter("bench.counter");
+        mHistogram = Metrics.histogram("bench.histogram");
+    }
+
+    @Benchmark
+    public long baselineNanoTime() {
+        return System.nanoTime();
+    }
+
+    @Benchmark
+    public void counterInc() {
+        mCounter.inc();
+    }
+
+    @Benchmark
+    public void counterLookupAndInc() {
+        Metrics.counter("bench.counter").inc();
+    }
+
+    @Benchmark
+    public void histogramRecord() {
+        mHistogram.record(1234);
+    }
+
+    @Benchmark
+    public void recordSince() {
+        Metrics.recordSince(mHistogram, Metrics.start());
+    }
+}
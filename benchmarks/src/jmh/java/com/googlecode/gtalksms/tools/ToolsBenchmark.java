@@ -0,0 +1,50 @@
+package com.googlecode.gtalksms.tools;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.googlecode.gtalksms.SettingsManager;
+
+/**
+ * Tools.shortenMessage and the lookups in the list settings
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ToolsBenchmark {
+    private static final String LONG_MESSAGE = "This is a rather long SMS message that will be shortened\nfor the notifications";
+
+    private ArrayStringSetting mSetting;
+
+    @Setup
+    public void setup() {
+        mSetting = new ArrayStringSetting("notifiedAddress", new SettingsManager());
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20; ++i) {
+            sb.append(i == 0 ? "" : "|").append("user").append(i).append("@example.com");
+        }
+        mSetting.set(sb.toString());
+    }
+
+    @Benchmark
+    public String shortenMessage() {
+        return Tools.shortenMessage(LONG_MESSAGE);
+    }
+
+    @Benchmark
+    public boolean settingContainsLast() {
+        return mSetting.contains("User19@Example.com");
+    }
+
+    @Benchmark
+    public boolean settingContainsMissing() {
+        return mSetting.contains("nobody@example.com");
+    }
+}
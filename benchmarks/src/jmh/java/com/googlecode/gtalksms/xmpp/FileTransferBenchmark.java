@@ -0,0 +1,250 @@
+package com.googlecode.gtalksms.xmpp;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Throughput of the FileTransferEngine: 8 files sent to 2 peers between two in-process endpoints,
+ * each with its own engine, through a loopback SOCKS5 proxy relaying the bytestreams as an XEP-0065 proxy.
+ * The endpoints connect with the SOCKS5 client of the JDK, the destination address is the stream digest.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FileTransferBenchmark {
+    private static final int FILES = 8;
+    private static final String[] PEERS = { "user@example.com/desktop", "user@example.com/laptop" };
+
+    @Param({"1048576", "8388608"})
+    public int mFileSize;
+
+    @Param({"1", "2"})
+    public int mMaxPerPeer;
+
+    private LoopbackSocks5Proxy mProxy;
+    private FileTransferEngine mSender;
+    private FileTransferEngine mReceiver;
+    private File mDir;
+    private File mSource;
+    private final AtomicInteger mStreamId = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        mProxy = new LoopbackSocks5Proxy();
+        mSender = new FileTransferEngine(FileTransferEngine.DEFAULT_THREADS, mMaxPerPeer);
+        mReceiver = new FileTransferEngine(FileTransferEngine.DEFAULT_THREADS, mMaxPerPeer);
+
+        mDir = File.createTempFile("transfer", "");
+        mDir.delete();
+        mDir.mkdirs();
+        mSource = new File(mDir, "source");
+        byte[] data = new byte[mFileSize];
+        // fixed seed, the runs must be comparable
+        new Random(42).nextBytes(data);
+        FileOutputStream out = new FileOutputStream(mSource);
+        out.write(data);
+        out.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mSender.shutdown();
+        mReceiver.shutdown();
+        mProxy.close();
+        File[] files = mDir.listFiles();
+        for (File f : files) {
+            f.delete();
+        }
+        mDir.delete();
+    }
+
+    @Benchmark
+    public long transfer() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(2 * FILES);
+        final AtomicInteger failed = new AtomicInteger();
+        FileTransferEngine.Listener listener = new FileTransferEngine.Listener() {
+            public void onStarted(FileTransferEngine.Task task) {
+            }
+
+            public void onProgress(FileTransferEngine.Task task) {
+            }
+
+            public void onCompleted(FileTransferEngine.Task task) {
+                done.countDown();
+            }
+
+            public void onFailed(FileTransferEngine.Task task, Exception e) {
+                failed.incrementAndGet();
+                done.countDown();
+            }
+        };
+
+        for (int i = 0; i < FILES; ++i) {
+            final String digest = "stream" + mStreamId.incrementAndGet();
+            final File destination = new File(mDir, "destination" + i);
+            String peer = PEERS[i % PEERS.length];
+
+            mSender.submit(new FileTransferEngine.Task(peer, mSource.getName(), mFileSize, new FileTransferEngine.Streams() {
+                public InputStream openInput() throws Exception {
+                    return new FileInputStream(mSource);
+                }
+
+                public OutputStream openOutput() throws Exception {
+                    return mProxy.connect(digest).getOutputStream();
+                }
+            }, listener));
+            mReceiver.submit(new FileTransferEngine.Task(peer, destination.getName(), mFileSize, new FileTransferEngine.Streams() {
+                public InputStream openInput() throws Exception {
+                    return mProxy.connect(digest).getInputStream();
+                }
+
+                public OutputStream openOutput() throws Exception {
+                    return new FileOutputStream(destination);
+                }
+            }, listener));
+        }
+
+        done.await();
+        if (failed.get() > 0) {
+            throw new IllegalStateException(failed.get() + " transfers failed");
+        }
+        return (long) FILES * mFileSize;
+    }
+
+    /**
+     * Minimal SOCKS5 proxy: no authentication, CONNECT to a domain name only.
+     * The two connections to the same domain (the stream digest) are relayed to each other.
+     */
+    static class LoopbackSocks5Proxy {
+        private final ServerSocket mServer;
+        private final ExecutorService mThreads = Executors.newCachedThreadPool();
+        private final Map<String, Socket> mWaiting = new HashMap<String, Socket>();
+
+        LoopbackSocks5Proxy() throws IOException {
+            mServer = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            mThreads.execute(new Runnable() {
+                public void run() {
+                    try {
+                        while (true) {
+                            final Socket s = mServer.accept();
+                            mThreads.execute(new Runnable() {
+                                public void run() {
+                                    accept(s);
+                                }
+                            });
+                        }
+                    } catch (IOException e) {
+                        // closed
+                    }
+                }
+            });
+        }
+
+        /**
+         * @return a socket connected through the proxy to the other end of the stream
+         */
+        Socket connect(String digest) throws IOException {
+            Socket s = new Socket(new Proxy(Proxy.Type.SOCKS, mServer.getLocalSocketAddress()));
+            s.connect(InetSocketAddress.createUnresolved(digest, 0));
+            return s;
+        }
+
+        void close() throws IOException {
+            mServer.close();
+            mThreads.shutdownNow();
+        }
+
+        private void accept(Socket s) {
+            try {
+                DataInputStream in = new DataInputStream(s.getInputStream());
+                OutputStream out = s.getOutputStream();
+                // greeting: version, methods
+                in.readByte();
+                in.skipBytes(in.readUnsignedByte());
+                out.write(new byte[] { 5, 0 });
+                // request: version, CONNECT, reserved, domain name, port
+                byte[] header = new byte[4];
+                in.readFully(header);
+                if (header[1] != 1 || header[3] != 3) {
+                    throw new IOException("Unsupported SOCKS5 request");
+                }
+                byte[] domain = new byte[in.readUnsignedByte()];
+                in.readFully(domain);
+                in.readUnsignedShort();
+                out.write(new byte[] { 5, 0, 0, 1, 0, 0, 0, 0, 0, 0 });
+                out.flush();
+
+                String digest = new String(domain, "US-ASCII");
+                Socket other;
+                synchronized (mWaiting) {
+                    other = mWaiting.remove(digest);
+                    if (other == null) {
+                        mWaiting.put(digest, s);
+                        return;
+                    }
+                }
+                relay(s, other);
+                relay(other, s);
+            } catch (IOException e) {
+                closeQuietly(s);
+            }
+        }
+
+        private void relay(final Socket from, final Socket to) {
+            mThreads.execute(new Runnable() {
+                public void run() {
+                    byte[] buffer = new byte[FileTransferEngine.BUFFER_SIZE];
+                    try {
+                        InputStream in = from.getInputStream();
+                        OutputStream out = to.getOutputStream();
+                        int read;
+                        while ((read = in.read(buffer)) != -1) {
+                            out.write(buffer, 0, read);
+                        }
+                        to.shutdownOutput();
+                    } catch (IOException e) {
+                        closeQuietly(from);
+                        closeQuietly(to);
+                    }
+                }
+            });
+        }
+
+        private static void closeQuietly(Socket s) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.googlecode.gtalksms.xmpp;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * LocalAddressDiscovery on fake interface lists of a phone: "wifi" on WiFi with mobile data and a VPN,
+ * "mobile" on mobile data only (CGNAT IPv4 and global IPv6), "hotspot" sharing its mobile data.
+ * "rank" ranks the addresses for every call, "cached" returns the addresses cached for the connectivity state.
+ * The setup checks the expected addresses of each list.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LocalAddressDiscoveryBenchmark {
+    @Param({"wifi", "mobile", "hotspot"})
+    public String mNetwork;
+
+    private List<LocalAddressDiscovery.Interface> mInterfaces;
+    private LocalAddressDiscovery mDiscovery;
+
+    @Setup(Level.Trial)
+    public void setup() throws UnknownHostException {
+        List<String> expected;
+        mInterfaces = new ArrayList<LocalAddressDiscovery.Interface>();
+        mInterfaces.add(newInterface("lo", true, true, "127.0.0.1", "::1"));
+        if ("wifi".equals(mNetwork)) {
+            mInterfaces.add(newInterface("rmnet_data0", true, false, "10.170.12.4", "2a01:cb00:1:2::42"));
+            mInterfaces.add(newInterface("tun0", true, false, "10.8.0.2"));
+            mInterfaces.add(newInterface("wlan0", true, false, "fe80::1c2d:3eff:fe4f:5a6b%3", "192.168.1.23",
+                    "2a01:e35:8b0:c40::17"));
+            mInterfaces.add(newInterface("p2p0", false, false, "192.168.49.1"));
+            expected = Arrays.asList("192.168.1.23", "2a01:e35:8b0:c40:0:0:0:17", "10.8.0.2", "2a01:cb00:1:2:0:0:0:42");
+        } else if ("mobile".equals(mNetwork)) {
+            mInterfaces.add(newInterface("rmnet_data0", true, false, "100.72.14.9", "2a01:cb00:1:2::42",
+                    "fe80::42%2"));
+            mInterfaces.add(newInterface("wlan0", false, false));
+            expected = Arrays.asList("2a01:cb00:1:2:0:0:0:42");
+        } else {
+            mInterfaces.add(newInterface("rmnet_data0", true, false, "10.170.12.4"));
+            mInterfaces.add(newInterface("swlan0", true, false, "192.168.43.1"));
+            mInterfaces.add(newInterface("rndis0", true, false, "192.168.42.129"));
+            expected = Arrays.asList("192.168.43.1", "192.168.42.129");
+        }
+
+        List<String> addresses = LocalAddressDiscovery.rank(mInterfaces);
+        if (!addresses.equals(expected)) {
+            throw new IllegalStateException(mNetwork + ": " + addresses + " instead of " + expected);
+        }
+
+        mDiscovery = new LocalAddressDiscovery(new LocalAddressDiscovery.Source() {
+            public List<LocalAddressDiscovery.Interface> getInterfaces() {
+                return mInterfaces;
+            }
+        });
+    }
+
+    private static LocalAddressDiscovery.Interface newInterface(String name, boolean up, boolean loopback,
+            String... addresses) throws UnknownHostException {
+        List<InetAddress> res = new ArrayList<InetAddress>();
+        for (String address : addresses) {
+            // a literal, no lookup
+            res.add(InetAddress.getByName(address));
+        }
+        return new LocalAddressDiscovery.Interface(name, up, loopback, res);
+    }
+
+    @Benchmark
+    public List<String> rank() {
+        return LocalAddressDiscovery.rank(mInterfaces);
+    }
+
+    @Benchmark
+    public List<String> cached() {
+        return mDiscovery.getAddresses("WIFI//CONNECTED");
+    }
+}
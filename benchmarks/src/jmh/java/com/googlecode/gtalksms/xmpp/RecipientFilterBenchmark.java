@@ -0,0 +1,41 @@
+package com.googlecode.gtalksms.xmpp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Hangout filtering of the notified addresses (XmppMultipleRecipientManager)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RecipientFilterBenchmark {
+    @Param({"4", "64"})
+    public int mResources;
+
+    private List<String> mAddresses;
+
+    @Setup
+    public void setup() {
+        mAddresses = new ArrayList<String>(mResources);
+        for (int i = 0; i < mResources; ++i) {
+            String bare = "user" + (i % 4) + "@example.com";
+            mAddresses.add(bare + (i % 3 == 0 ? "/messaging-" : "/desktop-") + i);
+        }
+    }
+
+    @Benchmark
+    public List<String> filterHangoutAddresses() {
+        return XmppMultipleRecipientManager.filterHangoutAddresses(mAddresses);
+    }
+}
@@ -0,0 +1,129 @@
+package com.googlecode.gtalksms.xmpp;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.smack.util.StringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.googlecode.gtalksms.SettingsManager;
+
+/**
+ * Recipients of a burst of 500 SMS notifications sent to a notified address connected with 200 resources
+ * (XmppMultipleRecipientManager).
+ * "legacy" computes them for each notification with the previous LinkedList filters,
+ * "cached" once, "churn" again after the presence changes received every 50 notifications.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RecipientSetBenchmark {
+    private static final String NOTIFIED_ADDRESS = "user@example.com";
+    private static final int NOTIFICATIONS = 500;
+
+    @Param({"200"})
+    public int mResources;
+
+    private List<Presence> mPresences;
+    private String[] mBlockedResourcePrefixes;
+
+    @Setup
+    public void setup() {
+        SettingsManager settings = new SettingsManager();
+        settings.getNotifiedAddresses().set(NOTIFIED_ADDRESS);
+        settings.getBlockedResourcePrefixes().set("android|MessagingA");
+        XmppMultipleRecipientManager.setSettingsManager(settings);
+        mBlockedResourcePrefixes = settings.getBlockedResourcePrefixes().getAll();
+
+        mPresences = new ArrayList<Presence>(mResources);
+        for (int i = 0; i < mResources; ++i) {
+            Presence p = new Presence(Presence.Type.available);
+            // no hangout resource, the filter would replace them all by the bare address
+            p.setFrom(NOTIFIED_ADDRESS + (i % 10 == 0 ? "/android" : "/desktop-") + i);
+            mPresences.add(p);
+        }
+    }
+
+    private int burst(int presenceChangeInterval) {
+        int sent = 0;
+        for (int i = 0; i < NOTIFICATIONS; ++i) {
+            if (presenceChangeInterval > 0 && i % presenceChangeInterval == 0) {
+                XmppMultipleRecipientManager.invalidate();
+            }
+            int generation = XmppMultipleRecipientManager.getGeneration();
+            List<String> toList = XmppMultipleRecipientManager.getCachedRecipients();
+            if (toList == null) {
+                toList = XmppMultipleRecipientManager.computeRecipients(mPresences, generation);
+            }
+            sent += toList.size();
+        }
+        return sent;
+    }
+
+    @Benchmark
+    public int cached() {
+        XmppMultipleRecipientManager.invalidate();
+        return burst(0);
+    }
+
+    @Benchmark
+    public int churn() {
+        return burst(50);
+    }
+
+    @Benchmark
+    public int legacy() {
+        int sent = 0;
+        for (int i = 0; i < NOTIFICATIONS; ++i) {
+            sent += legacyFilterHangoutAddresses(legacyAllowedAddresses()).size();
+        }
+        return sent;
+    }
+
+    private List<String> legacyAllowedAddresses() {
+        List<String> toList = new LinkedList<String>();
+        for (Presence p : mPresences) {
+            String toPresence = p.getFrom();
+            String toResource = StringUtils.parseResource(toPresence);
+            boolean found = false;
+            for (String blockedResourcePrefix : mBlockedResourcePrefixes) {
+                if (toResource.startsWith(blockedResourcePrefix)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                toList.add(toPresence);
+            }
+        }
+        return toList;
+    }
+
+    private static List<String> legacyFilterHangoutAddresses(List<String> toList) {
+        List<String> results = new LinkedList<String>();
+        for (String notifiedAddress : toList) {
+            if (StringUtils.parseResource(notifiedAddress).toLowerCase().startsWith("messaging")) {
+                String bareAddress = StringUtils.parseBareAddress(notifiedAddress);
+                if (!results.contains(bareAddress)) {
+                    results.add(bareAddress);
+                }
+            }
+        }
+        for (String notifiedAddress : toList) {
+            if (!results.contains(StringUtils.parseBareAddress(notifiedAddress))) {
+                results.add(notifiedAddress);
+            }
+        }
+        return results;
+    }
+}
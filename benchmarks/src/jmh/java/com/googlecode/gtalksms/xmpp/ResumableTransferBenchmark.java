@@ -0,0 +1,252 @@
+package com.googlecode.gtalksms.xmpp;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.googlecode.gtalksms.FakeContext;
+import com.googlecode.gtalksms.databases.TransferHelper;
+
+/**
+ * A file received with ChunkedFileOutputStream over a loopback connection killed at random offsets.
+ * After each kill the transfer is submitted again until the file is complete:
+ * "resume" continues after the last valid chunk of the manifest, the receiver sends the offset to the sender
+ * like the range of RangedFileTransfer, "restart" starts over like a sender that doesn't offer the range.
+ * The manifests are in the transfer tables of the app database.
+ * The bytes sent again are reported by the "resentBytes" counter, per transfer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ResumableTransferBenchmark {
+    private static final String PEER = "user@example.com/desktop";
+
+    @Param({"16777216"})
+    public int mFileSize;
+
+    @Param({"4"})
+    public int mKills;
+
+    @Param({"resume", "restart"})
+    public String mMode;
+
+    private ServerSocket mServer;
+    private FileTransferEngine mSender;
+    private FileTransferEngine mReceiver;
+    private File mDir;
+    private File mSource;
+    private byte[] mSourceHash;
+    private TransferManifest.Store mStore;
+    // fixed seed, the runs must be comparable
+    private final Random mRandom = new Random(42);
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+        public long resentBytes;
+        public long attempts;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            resentBytes = 0;
+            attempts = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        mServer = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mStore = TransferHelper.getTransferHelper(new FakeContext(null));
+        mSender = new FileTransferEngine();
+        mReceiver = new FileTransferEngine();
+
+        mDir = File.createTempFile("transfer", "");
+        mDir.delete();
+        mDir.mkdirs();
+        mSource = new File(mDir, "source");
+        byte[] data = new byte[mFileSize];
+        mRandom.nextBytes(data);
+        FileOutputStream out = new FileOutputStream(mSource);
+        out.write(data);
+        out.close();
+        mSourceHash = MessageDigest.getInstance("SHA-256").digest(data);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mSender.shutdown();
+        mReceiver.shutdown();
+        mServer.close();
+        File[] files = mDir.listFiles();
+        for (File f : files) {
+            f.delete();
+        }
+        mDir.delete();
+    }
+
+    @Benchmark
+    public long transfer(Counters counters) throws Exception {
+        final boolean resume = "resume".equals(mMode);
+        final File partial = new File(mDir, "destination.part");
+        partial.delete();
+        final String id = TransferManifest.getId(PEER, partial.getName(), mFileSize, false);
+        mStore.delete(id);
+
+        // the kills happen once the sender has sent these file offsets
+        final long[] kills = new long[mKills];
+        for (int i = 0; i < kills.length; ++i) {
+            kills[i] = 1 + (long) (mRandom.nextDouble() * (mFileSize - 1));
+        }
+        Arrays.sort(kills);
+
+        final long[] sent = new long[1];
+        final int[] nextKill = new int[1];
+        final AtomicBoolean completed = new AtomicBoolean();
+        while (!completed.get()) {
+            counters.attempts++;
+            final CountDownLatch done = new CountDownLatch(2);
+            FileTransferEngine.Listener senderListener = new AttemptListener(done, null);
+            FileTransferEngine.Listener receiverListener = new AttemptListener(done, completed);
+
+            mSender.submit(new FileTransferEngine.Task(PEER, mSource.getName(), mFileSize, new FileTransferEngine.ResumableStreams() {
+                private Socket mSocket;
+                private long mOffset;
+
+                public InputStream openInput() throws Exception {
+                    mSocket = mServer.accept();
+                    mOffset = new DataInputStream(mSocket.getInputStream()).readLong();
+                    FileInputStream in = new FileInputStream(mSource);
+                    in.getChannel().position(mOffset);
+                    return in;
+                }
+
+                public OutputStream openOutput() throws Exception {
+                    // counts the bytes sent and kills the connection at the next kill offset
+                    return new FilterOutputStream(mSocket.getOutputStream()) {
+                        private long mPosition = mOffset;
+
+                        @Override
+                        public void write(byte[] b, int off, int len) throws IOException {
+                            if (nextKill[0] < kills.length && mPosition + len >= kills[nextKill[0]]) {
+                                int count = (int) (kills[nextKill[0]] - mPosition);
+                                out.write(b, off, count);
+                                sent[0] += count;
+                                ++nextKill[0];
+                                mSocket.close();
+                                throw new IOException("Connection killed at " + (mPosition + count));
+                            }
+                            out.write(b, off, len);
+                            mPosition += len;
+                            sent[0] += len;
+                        }
+
+                        @Override
+                        public void close() throws IOException {
+                            mSocket.close();
+                        }
+                    };
+                }
+
+                public long getOffset() {
+                    return mOffset;
+                }
+            }, senderListener));
+
+            mReceiver.submit(new FileTransferEngine.Task(PEER, partial.getName(), mFileSize, new FileTransferEngine.ResumableStreams() {
+                private ChunkedFileOutputStream mOut;
+
+                public InputStream openInput() throws Exception {
+                    mOut = ChunkedFileOutputStream.open(partial, id, PEER, mFileSize, TransferManifest.DEFAULT_CHUNK_SIZE, resume, mStore);
+                    Socket socket = new Socket(mServer.getInetAddress(), mServer.getLocalPort());
+                    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                    out.writeLong(mOut.getOffset());
+                    out.flush();
+                    return socket.getInputStream();
+                }
+
+                public OutputStream openOutput() throws Exception {
+                    return mOut;
+                }
+
+                public long getOffset() {
+                    return mOut.getOffset();
+                }
+            }, receiverListener));
+
+            done.await();
+        }
+
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        InputStream in = new FileInputStream(partial);
+        byte[] buffer = new byte[FileTransferEngine.BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+        }
+        in.close();
+        if (!Arrays.equals(digest.digest(), mSourceHash)) {
+            throw new IllegalStateException("The received file differs from the source");
+        }
+        mStore.delete(id);
+
+        counters.resentBytes += sent[0] - mFileSize;
+        return sent[0];
+    }
+
+    private static class AttemptListener implements FileTransferEngine.Listener {
+        private final CountDownLatch mDone;
+        private final AtomicBoolean mCompleted;
+
+        /**
+         * @param completed set when the transfer completes, null for the sender
+         */
+        AttemptListener(CountDownLatch done, AtomicBoolean completed) {
+            mDone = done;
+            mCompleted = completed;
+        }
+
+        public void onStarted(FileTransferEngine.Task task) {
+        }
+
+        public void onProgress(FileTransferEngine.Task task) {
+        }
+
+        public void onCompleted(FileTransferEngine.Task task) {
+            if (mCompleted != null) {
+                mCompleted.set(true);
+            }
+            mDone.countDown();
+        }
+
+        public void onFailed(FileTransferEngine.Task task, Exception e) {
+            mDone.countDown();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.googlecode.gtalksms.xmpp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.jivesoftware.smackx.xhtmlim.XHTMLText;
+
+/**
+ * Rendering of a formatted reply (SMS with bold senders and italic dates) of 1 KB to 64 KB of text,
+ * the time per message must grow linearly with its size.
+ * The messages are memoized, so the rendering benchmarks build a new message each time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class XmppMsgBenchmark {
+    // chars of text of the message
+    @Param({"1024", "4096", "16384", "65536"})
+    public int mSize;
+
+    private int mSmsCount;
+    private XmppMsg mRendered;
+
+    @Setup
+    public void setup() {
+        // the number of SMS giving mSize chars
+        mSmsCount = 1;
+        while (build().length() < mSize) {
+            ++mSmsCount;
+        }
+        mRendered = build();
+        mRendered.generateXHTMLText();
+    }
+
+    private XmppMsg build() {
+        XmppMsg msg = new XmppMsg();
+        msg.setFont(new XmppFont("consolas", "red"));
+        for (int i = 0; i < mSmsCount; ++i) {
+            msg.appendBold("John Doe " + i);
+            msg.append(" - ");
+            msg.appendItalicLine("2014-05-12 10:" + i);
+            msg.appendLine("Hello <world> & friends, see you at 10:30?");
+        }
+        return msg;
+    }
+
+    @Benchmark
+    public XmppMsg buildOnly() {
+        return build();
+    }
+
+    @Benchmark
+    public String generateTxt() {
+        return build().generateTxt();
+    }
+
+    @Benchmark
+    public String generateFmtTxt() {
+        return build().generateFmtTxt();
+    }
+
+    @Benchmark
+    public XHTMLText generateXHTMLText() {
+        return build().generateXHTMLText();
+    }
+
+    @Benchmark
+    public XHTMLText generateXHTMLTextMemoized() {
+        return mRendered.generateXHTMLText();
+    }
+}
@@ -0,0 +1,13 @@
+package android.content;
+
+public final class ComponentName {
+    private final String mPackage;
+
+    public ComponentName(Context pkg, Class<?> cls) {
+        mPackage = pkg.getPackageName();
+    }
+
+    public String getPackageName() {
+        return mPackage;
+    }
+}
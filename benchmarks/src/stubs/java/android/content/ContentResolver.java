@@ -0,0 +1,24 @@
+package android.content;
+
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+
+public abstract class ContentResolver {
+    public abstract Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder);
+
+    public Uri insert(Uri url, ContentValues values) {
+        return null;
+    }
+
+    public int update(Uri uri, ContentValues values, String where, String[] selectionArgs) {
+        return 0;
+    }
+
+    public int delete(Uri url, String where, String[] selectionArgs) {
+        return 0;
+    }
+
+    public void registerContentObserver(Uri uri, boolean notifyForDescendents, ContentObserver observer) {
+    }
+}
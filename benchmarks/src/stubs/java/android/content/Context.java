@@ -0,0 +1,26 @@
+package android.content;
+
+import java.io.File;
+
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+
+public abstract class Context {
+    public abstract Context getApplicationContext();
+
+    public abstract ContentResolver getContentResolver();
+
+    public abstract PackageManager getPackageManager();
+
+    public abstract String getPackageName();
+
+    public abstract Resources getResources();
+
+    public abstract String getString(int resId);
+
+    public abstract File getFilesDir();
+
+    public abstract ComponentName startService(Intent service);
+
+    public abstract void startActivity(Intent intent);
+}
@@ -0,0 +1,41 @@
+package android.content;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.net.Uri;
+import android.os.Parcelable;
+
+public class Intent {
+    public static final String ACTION_VIEW = "android.intent.action.VIEW";
+    public static final int FLAG_ACTIVITY_NEW_TASK = 0x10000000;
+
+    private final Map<String, Object> mExtras = new HashMap<String, Object>();
+
+    public Intent(String action) {
+    }
+
+    public Intent(String action, Uri uri) {
+    }
+
+    public Intent(String action, Uri uri, Context packageContext, Class<?> cls) {
+    }
+
+    public Intent setClass(Context packageContext, Class<?> cls) {
+        return this;
+    }
+
+    public Intent setFlags(int flags) {
+        return this;
+    }
+
+    public Intent putExtra(String name, String value) {
+        mExtras.put(name, value);
+        return this;
+    }
+
+    public Intent putExtra(String name, Parcelable value) {
+        mExtras.put(name, value);
+        return this;
+    }
+}
@@ -0,0 +1,13 @@
+package android.content.pm;
+
+public abstract class PackageManager {
+    public static final int SIGNATURE_MATCH = 0;
+
+    public static class NameNotFoundException extends Exception {
+        private static final long serialVersionUID = 1L;
+    }
+
+    public abstract PackageInfo getPackageInfo(String packageName, int flags) throws NameNotFoundException;
+
+    public abstract int checkSignatures(String pkg1, String pkg2);
+}
@@ -0,0 +1,11 @@
+package android.content.res;
+
+import java.util.Locale;
+
+public final class Configuration {
+    public Locale locale;
+
+    public void setToDefaults() {
+        locale = null;
+    }
+}
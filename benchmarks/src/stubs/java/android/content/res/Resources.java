@@ -0,0 +1,9 @@
+package android.content.res;
+
+import android.util.DisplayMetrics;
+
+public abstract class Resources {
+    public abstract void updateConfiguration(Configuration config, DisplayMetrics metrics);
+
+    public abstract DisplayMetrics getDisplayMetrics();
+}
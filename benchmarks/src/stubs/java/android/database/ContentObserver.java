@@ -0,0 +1,11 @@
+package android.database;
+
+import android.os.Handler;
+
+public abstract class ContentObserver {
+    public ContentObserver(Handler handler) {
+    }
+
+    public void onChange(boolean selfChange) {
+    }
+}
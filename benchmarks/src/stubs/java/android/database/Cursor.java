@@ -0,0 +1,37 @@
+package android.database;
+
+public interface Cursor {
+    int FIELD_TYPE_NULL = 0;
+    int FIELD_TYPE_INTEGER = 1;
+    int FIELD_TYPE_FLOAT = 2;
+    int FIELD_TYPE_STRING = 3;
+    int FIELD_TYPE_BLOB = 4;
+
+    int getCount();
+
+    boolean moveToFirst();
+
+    boolean moveToNext();
+
+    boolean moveToLast();
+
+    boolean moveToPrevious();
+
+    void close();
+
+    String[] getColumnNames();
+
+    int getColumnIndex(String columnName);
+
+    int getType(int columnIndex);
+
+    byte[] getBlob(int columnIndex);
+
+    String getString(int columnIndex);
+
+    int getInt(int columnIndex);
+
+    long getLong(int columnIndex);
+
+    float getFloat(int columnIndex);
+}
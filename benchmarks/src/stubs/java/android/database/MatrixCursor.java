@@ -0,0 +1,101 @@
+package android.database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Rows held in memory
+ */
+public class MatrixCursor implements Cursor {
+    private final String[] mColumns;
+    private final List<Object[]> mRows = new ArrayList<Object[]>();
+    private int mPosition = -1;
+
+    public MatrixCursor(String[] columnNames) {
+        mColumns = columnNames;
+    }
+
+    public void addRow(Object[] columnValues) {
+        mRows.add(columnValues);
+    }
+
+    public int getCount() {
+        return mRows.size();
+    }
+
+    public boolean moveToFirst() {
+        return moveTo(0);
+    }
+
+    public boolean moveToNext() {
+        return moveTo(mPosition + 1);
+    }
+
+    public boolean moveToLast() {
+        return moveTo(mRows.size() - 1);
+    }
+
+    public boolean moveToPrevious() {
+        return moveTo(mPosition - 1);
+    }
+
+    private boolean moveTo(int position) {
+        mPosition = Math.max(-1, Math.min(position, mRows.size()));
+        return mPosition >= 0 && mPosition < mRows.size();
+    }
+
+    public void close() {
+    }
+
+    public String[] getColumnNames() {
+        return mColumns;
+    }
+
+    public int getColumnIndex(String columnName) {
+        return Arrays.asList(mColumns).indexOf(columnName);
+    }
+
+    public int getType(int columnIndex) {
+        Object value = mRows.get(mPosition)[columnIndex];
+        if (value == null) {
+            return FIELD_TYPE_NULL;
+        } else if (value instanceof Long || value instanceof Integer) {
+            return FIELD_TYPE_INTEGER;
+        } else if (value instanceof Number) {
+            return FIELD_TYPE_FLOAT;
+        } else if (value instanceof byte[]) {
+            return FIELD_TYPE_BLOB;
+        }
+        return FIELD_TYPE_STRING;
+    }
+
+    public byte[] getBlob(int columnIndex) {
+        return (byte[]) mRows.get(mPosition)[columnIndex];
+    }
+
+    public String getString(int columnIndex) {
+        Object value = mRows.get(mPosition)[columnIndex];
+        return value == null ? null : value.toString();
+    }
+
+    public int getInt(int columnIndex) {
+        return (int) getLong(columnIndex);
+    }
+
+    public long getLong(int columnIndex) {
+        Object value = mRows.get(mPosition)[columnIndex];
+        if (value == null) {
+            return 0;
+        }
+        return value instanceof Number ? ((Number) value).longValue() : Long.parseLong(value.toString());
+    }
+
+    public float getFloat(int columnIndex) {
+        Object value = mRows.get(mPosition)[columnIndex];
+        if (value == null) {
+            return 0;
+        }
+        return value instanceof Number ? ((Number) value).floatValue() : Float.parseFloat(value.toString());
+    }
+}
@@ -0,0 +1,223 @@
+package android.database.sqlite;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+/**
+ * An in-memory database of sqlite-jdbc.
+ * Like on Android, rawQuery(), query(), insert(), update() and delete() compile their SQL on every call,
+ * compileStatement() once.
+ */
+public final class SQLiteDatabase {
+    public interface CursorFactory {
+    }
+
+    private final Connection mConnection;
+    private int mTransactionDepth;
+    private boolean mTransactionSuccessful;
+
+    private SQLiteDatabase(Connection connection) {
+        mConnection = connection;
+    }
+
+    public static SQLiteDatabase create(CursorFactory factory) {
+        try {
+            return new SQLiteDatabase(DriverManager.getConnection("jdbc:sqlite::memory:"));
+        } catch (SQLException e) {
+            throw new SQLiteException("open failed", e);
+        }
+    }
+
+    public SQLiteStatement compileStatement(String sql) {
+        try {
+            return new SQLiteStatement(mConnection.prepareStatement(sql));
+        } catch (SQLException e) {
+            throw new SQLiteException(sql, e);
+        }
+    }
+
+    public void execSQL(String sql) {
+        try {
+            PreparedStatement statement = mConnection.prepareStatement(sql);
+            try {
+                statement.execute();
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw new SQLiteException(sql, e);
+        }
+    }
+
+    public Cursor rawQuery(String sql, String[] selectionArgs) {
+        try {
+            PreparedStatement statement = mConnection.prepareStatement(sql);
+            try {
+                bind(statement, selectionArgs);
+                ResultSet rs = statement.executeQuery();
+                ResultSetMetaData meta = rs.getMetaData();
+                String[] columns = new String[meta.getColumnCount()];
+                for (int i = 0; i < columns.length; ++i) {
+                    columns[i] = meta.getColumnLabel(i + 1);
+                }
+                MatrixCursor cursor = new MatrixCursor(columns);
+                while (rs.next()) {
+                    Object[] row = new Object[columns.length];
+                    for (int i = 0; i < columns.length; ++i) {
+                        row[i] = rs.getObject(i + 1);
+                    }
+                    cursor.addRow(row);
+                }
+                rs.close();
+                return cursor;
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw new SQLiteException(sql, e);
+        }
+    }
+
+    public Cursor query(String table, String[] columns, String selection, String[] selectionArgs, String groupBy,
+            String having, String orderBy) {
+        StringBuilder sql = new StringBuilder("SELECT ");
+        if (columns == null) {
+            sql.append('*');
+        } else {
+            for (int i = 0; i < columns.length; ++i) {
+                sql.append(i == 0 ? "" : ", ").append(columns[i]);
+            }
+        }
+        sql.append(" FROM ").append(table);
+        if (selection != null) {
+            sql.append(" WHERE ").append(selection);
+        }
+        if (groupBy != null) {
+            sql.append(" GROUP BY ").append(groupBy);
+        }
+        if (having != null) {
+            sql.append(" HAVING ").append(having);
+        }
+        if (orderBy != null) {
+            sql.append(" ORDER BY ").append(orderBy);
+        }
+        return rawQuery(sql.toString(), selectionArgs);
+    }
+
+    public long insert(String table, String nullColumnHack, ContentValues values) {
+        List<String> keys = new ArrayList<String>(values.keySet());
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+        StringBuilder params = new StringBuilder();
+        for (int i = 0; i < keys.size(); ++i) {
+            sql.append(i == 0 ? "" : ", ").append(keys.get(i));
+            params.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(") VALUES (").append(params).append(')');
+        SQLiteStatement statement = compileStatement(sql.toString());
+        try {
+            bind(statement, values, keys);
+            return statement.executeInsert();
+        } finally {
+            statement.close();
+        }
+    }
+
+    public int update(String table, ContentValues values, String whereClause, String[] whereArgs) {
+        List<String> keys = new ArrayList<String>(values.keySet());
+        StringBuilder sql = new StringBuilder("UPDATE ").append(table).append(" SET ");
+        for (int i = 0; i < keys.size(); ++i) {
+            sql.append(i == 0 ? "" : ", ").append(keys.get(i)).append(" = ?");
+        }
+        if (whereClause != null) {
+            sql.append(" WHERE ").append(whereClause);
+        }
+        return executeUpdateDelete(sql.toString(), values, keys, whereArgs);
+    }
+
+    public int delete(String table, String whereClause, String[] whereArgs) {
+        String sql = "DELETE FROM " + table + (whereClause == null ? "" : " WHERE " + whereClause);
+        return executeUpdateDelete(sql, null, new ArrayList<String>(), whereArgs);
+    }
+
+    public void beginTransaction() {
+        try {
+            if (mTransactionDepth++ == 0) {
+                mConnection.setAutoCommit(false);
+                mTransactionSuccessful = false;
+            }
+        } catch (SQLException e) {
+            throw new SQLiteException("begin failed", e);
+        }
+    }
+
+    public void setTransactionSuccessful() {
+        mTransactionSuccessful = true;
+    }
+
+    public void endTransaction() {
+        try {
+            if (--mTransactionDepth == 0) {
+                if (mTransactionSuccessful) {
+                    mConnection.commit();
+                } else {
+                    mConnection.rollback();
+                }
+                mConnection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new SQLiteException("end failed", e);
+        }
+    }
+
+    private int executeUpdateDelete(String sql, ContentValues values, List<String> keys, String[] whereArgs) {
+        try {
+            PreparedStatement statement = mConnection.prepareStatement(sql);
+            try {
+                for (int i = 0; i < keys.size(); ++i) {
+                    statement.setObject(i + 1, values.get(keys.get(i)));
+                }
+                if (whereArgs != null) {
+                    for (int i = 0; i < whereArgs.length; ++i) {
+                        statement.setString(keys.size() + i + 1, whereArgs[i]);
+                    }
+                }
+                return statement.executeUpdate();
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw new SQLiteException(sql, e);
+        }
+    }
+
+    private static void bind(PreparedStatement statement, String[] args) throws SQLException {
+        if (args != null) {
+            for (int i = 0; i < args.length; ++i) {
+                statement.setString(i + 1, args[i]);
+            }
+        }
+    }
+
+    private static void bind(SQLiteStatement statement, ContentValues values, List<String> keys) {
+        for (int i = 0; i < keys.size(); ++i) {
+            Object value = values.get(keys.get(i));
+            if (value == null) {
+                statement.bindNull(i + 1);
+            } else if (value instanceof Number) {
+                statement.bindLong(i + 1, ((Number) value).longValue());
+            } else {
+                statement.bindString(i + 1, value.toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package android.database.sqlite;
+
+public class SQLiteDoneException extends SQLiteException {
+    public SQLiteDoneException(String error) {
+        super(error);
+    }
+}
@@ -0,0 +1,11 @@
+package android.database.sqlite;
+
+public class SQLiteException extends RuntimeException {
+    public SQLiteException(String error) {
+        super(error);
+    }
+
+    public SQLiteException(String error, Throwable cause) {
+        super(error, cause);
+    }
+}
@@ -0,0 +1,32 @@
+package android.database.sqlite;
+
+import android.content.Context;
+
+/**
+ * Opens a new in-memory database, created by onCreate
+ */
+public abstract class SQLiteOpenHelper {
+    private SQLiteDatabase mDatabase;
+
+    public SQLiteOpenHelper(Context context, String name, SQLiteDatabase.CursorFactory factory, int version) {
+    }
+
+    public synchronized SQLiteDatabase getWritableDatabase() {
+        if (mDatabase == null) {
+            mDatabase = SQLiteDatabase.create(null);
+            onCreate(mDatabase);
+        }
+        return mDatabase;
+    }
+
+    public SQLiteDatabase getReadableDatabase() {
+        return getWritableDatabase();
+    }
+
+    public abstract void onCreate(SQLiteDatabase db);
+
+    public abstract void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion);
+
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    }
+}
@@ -0,0 +1,113 @@
+package android.database.sqlite;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+
+/**
+ * A compiled statement on a JDBC prepared statement
+ */
+public final class SQLiteStatement {
+    private final PreparedStatement mStatement;
+
+    SQLiteStatement(PreparedStatement statement) {
+        mStatement = statement;
+    }
+
+    public void bindNull(int index) {
+        try {
+            mStatement.setNull(index, Types.NULL);
+        } catch (SQLException e) {
+            throw new SQLiteException("bind failed", e);
+        }
+    }
+
+    public void bindLong(int index, long value) {
+        try {
+            mStatement.setLong(index, value);
+        } catch (SQLException e) {
+            throw new SQLiteException("bind failed", e);
+        }
+    }
+
+    public void bindString(int index, String value) {
+        try {
+            mStatement.setString(index, value);
+        } catch (SQLException e) {
+            throw new SQLiteException("bind failed", e);
+        }
+    }
+
+    public void clearBindings() {
+        try {
+            mStatement.clearParameters();
+        } catch (SQLException e) {
+            throw new SQLiteException("clear failed", e);
+        }
+    }
+
+    public void execute() {
+        try {
+            mStatement.executeUpdate();
+        } catch (SQLException e) {
+            throw new SQLiteException("execute failed", e);
+        }
+    }
+
+    public void close() {
+        try {
+            mStatement.close();
+        } catch (SQLException e) {
+            // already closed
+        }
+    }
+
+    public long executeInsert() {
+        try {
+            mStatement.executeUpdate();
+            Statement statement = mStatement.getConnection().createStatement();
+            try {
+                ResultSet rs = statement.executeQuery("SELECT last_insert_rowid()");
+                return rs.next() ? rs.getLong(1) : -1;
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            return -1;
+        }
+    }
+
+    public String simpleQueryForString() {
+        try {
+            ResultSet rs = mStatement.executeQuery();
+            try {
+                if (!rs.next()) {
+                    throw new SQLiteDoneException("no row");
+                }
+                return rs.getString(1);
+            } finally {
+                rs.close();
+            }
+        } catch (SQLException e) {
+            throw new SQLiteException("query failed", e);
+        }
+    }
+
+    public long simpleQueryForLong() {
+        try {
+            ResultSet rs = mStatement.executeQuery();
+            try {
+                if (!rs.next()) {
+                    throw new SQLiteDoneException("no row");
+                }
+                return rs.getLong(1);
+            } finally {
+                rs.close();
+            }
+        } catch (SQLException e) {
+            throw new SQLiteException("query failed", e);
+        }
+    }
+}
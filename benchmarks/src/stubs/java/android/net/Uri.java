@@ -0,0 +1,47 @@
+package android.net;
+
+/**
+ * JVM implementation keeping the string of the URI, the fake providers tell the URIs apart with it
+ */
+public abstract class Uri {
+    public static Uri parse(String uriString) {
+        return new StringUri(uriString);
+    }
+
+    public static Uri withAppendedPath(Uri baseUri, String pathSegment) {
+        return parse(baseUri + "/" + pathSegment);
+    }
+
+    public static String encode(String s) {
+        return s;
+    }
+
+    public abstract String getAuthority();
+
+    private static class StringUri extends Uri {
+        private final String mUri;
+
+        StringUri(String uri) {
+            mUri = uri;
+        }
+
+        @Override
+        public String getAuthority() {
+            int start = mUri.indexOf("://");
+            if (start == -1) {
+                return null;
+            }
+            start += 3;
+            int end = start;
+            while (end < mUri.length() && "/?#".indexOf(mUri.charAt(end)) == -1) {
+                ++end;
+            }
+            return mUri.substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return mUri;
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package android.os;
+
+public final class Parcel {
+    public void writeString(String val) {
+    }
+
+    public String readString() {
+        return null;
+    }
+}
@@ -0,0 +1,39 @@
+package android.os;
+
+public class PowerManager {
+    public static final int PARTIAL_WAKE_LOCK = 1;
+
+    public WakeLock newWakeLock(int levelAndFlags, String tag) {
+        return new WakeLock();
+    }
+
+    /**
+     * Counts the references, held while the count is positive
+     */
+    public static class WakeLock {
+        private boolean mRefCounted = true;
+        private int mCount;
+
+        WakeLock() {
+        }
+
+        public synchronized void setReferenceCounted(boolean value) {
+            mRefCounted = value;
+        }
+
+        public synchronized void acquire() {
+            mCount = mRefCounted ? mCount + 1 : 1;
+        }
+
+        public synchronized void release() {
+            mCount = mRefCounted ? mCount - 1 : 0;
+            if (mCount < 0) {
+                throw new RuntimeException("WakeLock under-locked");
+            }
+        }
+
+        public synchronized boolean isHeld() {
+            return mCount > 0;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package android.provider;
+
+import android.net.Uri;
+
+public final class ContactsContract {
+    public static final Uri AUTHORITY_URI = Uri.parse("content://com.android.contacts");
+
+    public static final class PhoneLookup {
+        public static final Uri CONTENT_FILTER_URI = Uri.withAppendedPath(AUTHORITY_URI, "phone_lookup");
+        public static final String DISPLAY_NAME = "display_name";
+    }
+
+    public static final class CommonDataKinds {
+        public static final class Phone {
+            public static final int TYPE_MOBILE = 2;
+        }
+    }
+}
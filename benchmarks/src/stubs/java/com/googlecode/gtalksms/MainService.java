@@ -0,0 +1,15 @@
+package com.googlecode.gtalksms;
+
+import android.content.Intent;
+
+/**
+ * Replaces the service, only the members referenced by the benchmarked classes exist
+ */
+public class MainService {
+    public final static String ACTION_SEND = "com.googlecode.gtalksms.action.SEND";
+    public static final String ACTION_XMPP_MESSAGE_RECEIVED = "com.googlecode.gtalksms.action.XMPP.MESSAGE_RECEIVED";
+
+    public static boolean sendToServiceHandler(Intent intent) {
+        return false;
+    }
+}
@@ -0,0 +1,10 @@
+package com.googlecode.gtalksms;
+
+/**
+ * Replaces the generated resources, only the referenced ids exist
+ */
+public final class R {
+    public static final class string {
+        public static final int chat_me = 1;
+    }
+}
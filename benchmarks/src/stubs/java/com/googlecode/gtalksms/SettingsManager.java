@@ -0,0 +1,25 @@
+package com.googlecode.gtalksms;
+
+import java.util.Locale;
+
+import com.googlecode.gtalksms.tools.ArrayStringSetting;
+
+/**
+ * In-memory settings, only the members referenced by the benchmarked classes exist
+ */
+public class SettingsManager {
+    public Locale locale = Locale.US;
+    public boolean debugLog = false;
+    public int smsNumber = 5;
+
+    private final ArrayStringSetting _notifiedAddresses = new ArrayStringSetting("notifiedAddress", this);
+    private final ArrayStringSetting _blockedResourcePrefixes = new ArrayStringSetting("blockedResourcePrefixes", this);
+
+    public ArrayStringSetting getBlockedResourcePrefixes() { return _blockedResourcePrefixes; }
+
+    public ArrayStringSetting getNotifiedAddresses() { return _notifiedAddresses; }
+
+    public String saveSetting(String key, String value) {
+        return value;
+    }
+}
@@ -0,0 +1,11 @@
+package com.googlecode.gtalksms;
+
+import com.googlecode.gtalksms.xmpp.XmppConnectionChangeListener;
+
+/**
+ * Replaces the connection manager, only the members referenced by the benchmarked classes exist
+ */
+public class XmppManager {
+    public void registerConnectionChangeListener(XmppConnectionChangeListener listener) {
+    }
+}
@@ -0,0 +1,25 @@
+package com.googlecode.gtalksms.cmd;
+
+/**
+ * Replaces the command description, only the name and the aliases exist
+ */
+public class Cmd {
+    private final String mName;
+    private final String[] mAlias;
+
+    Cmd(String name, String... alias) {
+        mName = name.toLowerCase();
+        mAlias = new String[alias.length];
+        for (int i = 0; i < alias.length; ++i) {
+            mAlias[i] = alias[i].toLowerCase();
+        }
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public String[] getAlias() {
+        return mAlias;
+    }
+}
@@ -0,0 +1,23 @@
+package com.googlecode.gtalksms.cmd;
+
+/**
+ * Replaces the command handlers, only the registered commands exist
+ */
+public class CommandHandlerBase {
+    private final String mName;
+    private final Cmd[] mCommands;
+
+    CommandHandlerBase(String name, Cmd... commands) {
+        mName = name;
+        mCommands = commands;
+    }
+
+    public Cmd[] getCommands() {
+        return mCommands;
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
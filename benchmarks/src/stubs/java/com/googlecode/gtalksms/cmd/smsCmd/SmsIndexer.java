@@ -0,0 +1,18 @@
+package com.googlecode.gtalksms.cmd.smsCmd;
+
+import android.content.Context;
+
+/**
+ * Replaces the SMS indexer, the index is never ready and the searches query the provider
+ */
+public class SmsIndexer {
+    private static final SmsIndexer sInstance = new SmsIndexer();
+
+    public static SmsIndexer getInstance(Context ctx) {
+        return sInstance;
+    }
+
+    public boolean isReady() {
+        return false;
+    }
+}
@@ -0,0 +1,12 @@
+package com.googlecode.gtalksms.data.contacts;
+
+import android.content.Context;
+
+/**
+ * Replaces the contacts access, the numbers have no contact
+ */
+public class ContactsManager {
+    public static String getContactName(Context ctx, String phoneNumber) {
+        return phoneNumber;
+    }
+}
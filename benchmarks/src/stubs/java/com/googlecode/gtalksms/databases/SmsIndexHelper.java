@@ -0,0 +1,21 @@
+package com.googlecode.gtalksms.databases;
+
+import java.util.Collections;
+import java.util.List;
+
+import android.content.Context;
+
+/**
+ * Replaces the helper of the SMS index, the index is empty
+ */
+public class SmsIndexHelper {
+    private static final SmsIndexHelper sInstance = new SmsIndexHelper();
+
+    public static SmsIndexHelper getSmsIndexHelper(Context ctx) {
+        return sInstance;
+    }
+
+    public List<SmsIndex.Hit> search(String query, List<String> threadIds, int limit) {
+        return Collections.emptyList();
+    }
+}
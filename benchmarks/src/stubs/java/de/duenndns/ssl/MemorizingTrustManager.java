@@ -0,0 +1,14 @@
+package de.duenndns.ssl;
+
+import javax.net.ssl.X509TrustManager;
+
+import android.content.Context;
+
+/**
+ * No trust manager, the default ones of the JVM are used
+ */
+public class MemorizingTrustManager {
+    public static X509TrustManager[] getInstanceList(Context c) {
+        return null;
+    }
+}
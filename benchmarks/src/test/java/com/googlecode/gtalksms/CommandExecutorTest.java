@@ -0,0 +1,189 @@
+package com.googlecode.gtalksms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.os.PowerManager;
+
+public class CommandExecutorTest {
+    private static final long SLOW_COMMAND_MS = 2000;
+
+    // the keys of the invocations, the handlers in the service
+    private final Object mSmsHandler = new Object();
+    private final Object mBatteryHandler = new Object();
+
+    private PowerManager.WakeLock mWakeLock;
+    private CommandExecutor mExecutor;
+
+    @Before
+    public void setUp() {
+        mWakeLock = new PowerManager().newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "test");
+        mExecutor = new CommandExecutor(mWakeLock);
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdown();
+        mExecutor.awaitTermination(SLOW_COMMAND_MS * 2);
+    }
+
+    /**
+     * Sleeps like a slow "findsms", counts down started once running
+     */
+    private static Runnable sleep(final long ms, final CountDownLatch started) {
+        return new Runnable() {
+            public void run() {
+                started.countDown();
+                try {
+                    Thread.sleep(ms);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    @Test
+    public void aSlowCommandDoesNotDelayBatt() throws InterruptedException {
+        CountDownLatch findSmsStarted = new CountDownLatch(1);
+        mExecutor.execute(mSmsHandler, sleep(SLOW_COMMAND_MS, findSmsStarted));
+        assertTrue(findSmsStarted.await(1, TimeUnit.SECONDS));
+
+        final CountDownLatch battReplied = new CountDownLatch(1);
+        final long queued = System.nanoTime();
+        final AtomicLong replyMs = new AtomicLong();
+        mExecutor.execute(mBatteryHandler, new Runnable() {
+            public void run() {
+                replyMs.set(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - queued));
+                battReplied.countDown();
+            }
+        });
+
+        assertTrue(battReplied.await(SLOW_COMMAND_MS / 4, TimeUnit.MILLISECONDS));
+        assertTrue("batt replied after " + replyMs.get() + "ms", replyMs.get() < SLOW_COMMAND_MS / 4);
+    }
+
+    @Test
+    public void theInvocationsOfAHandlerAreSerialized() throws InterruptedException {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final StringBuffer order = new StringBuffer();
+        final CountDownLatch done = new CountDownLatch(5);
+        for (int i = 0; i < 5; ++i) {
+            final int index = i;
+            mExecutor.execute(mSmsHandler, new Runnable() {
+                public void run() {
+                    int count = running.incrementAndGet();
+                    maxRunning.set(Math.max(maxRunning.get(), count));
+                    order.append(index);
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, maxRunning.get());
+        assertEquals("01234", order.toString());
+    }
+
+    @Test
+    public void aFailedInvocationRunsTheNextOne() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        mExecutor.execute(mSmsHandler, new Runnable() {
+            public void run() {
+                throw new IllegalStateException("command failed");
+            }
+        });
+        mExecutor.execute(mSmsHandler, new Runnable() {
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void releasesTheWakeLockOnceIdle() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(2);
+        Runnable task = new Runnable() {
+            public void run() {
+                done.countDown();
+            }
+        };
+        mExecutor.execute(mSmsHandler, task);
+        mExecutor.execute(mBatteryHandler, task);
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+
+        long deadline = System.currentTimeMillis() + 1000;
+        while (mWakeLock.isHeld() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertFalse(mWakeLock.isHeld());
+        assertEquals(0, mExecutor.getPendingCount());
+    }
+
+    @Test
+    public void shutdownWaitsForTheRunningInvocations() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch returned = new CountDownLatch(1);
+        final Runnable slow = sleep(SLOW_COMMAND_MS, started);
+        mExecutor.execute(mSmsHandler, new Runnable() {
+            public void run() {
+                slow.run();
+                returned.countDown();
+            }
+        });
+        mExecutor.execute(mSmsHandler, sleep(SLOW_COMMAND_MS, new CountDownLatch(1)));
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+
+        // the running invocation is interrupted, the queued one is dropped
+        mExecutor.shutdown();
+        assertTrue(mExecutor.awaitTermination(SLOW_COMMAND_MS / 4));
+        assertEquals(0, returned.getCount());
+        assertFalse(mWakeLock.isHeld());
+    }
+
+    @Test
+    public void awaitTerminationIsBounded() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        mExecutor.execute(mSmsHandler, new Runnable() {
+            public void run() {
+                started.countDown();
+                // ignores the interrupts, like a blocking provider query
+                while (true) {
+                    try {
+                        release.await();
+                        return;
+                    } catch (InterruptedException e) {
+                        // keeps waiting
+                    }
+                }
+            }
+        });
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+
+        mExecutor.shutdown();
+        long start = System.nanoTime();
+        assertFalse(mExecutor.awaitTermination(100));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < SLOW_COMMAND_MS);
+        release.countDown();
+        assertTrue(mExecutor.awaitTermination(1000));
+    }
+}
@@ -0,0 +1,65 @@
+package com.googlecode.gtalksms;
+
+import java.io.File;
+
+import android.content.ComponentName;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+
+/**
+ * Context of the tests and the benchmarks, with a fake provider and the resource ids as strings
+ */
+public class FakeContext extends Context {
+    private final ContentResolver mResolver;
+
+    public FakeContext(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    @Override
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    @Override
+    public ContentResolver getContentResolver() {
+        return mResolver;
+    }
+
+    @Override
+    public PackageManager getPackageManager() {
+        return null;
+    }
+
+    @Override
+    public String getPackageName() {
+        return "com.googlecode.gtalksms";
+    }
+
+    @Override
+    public Resources getResources() {
+        return null;
+    }
+
+    @Override
+    public String getString(int resId) {
+        return "string/" + resId;
+    }
+
+    @Override
+    public File getFilesDir() {
+        return new File(System.getProperty("java.io.tmpdir"));
+    }
+
+    @Override
+    public ComponentName startService(Intent service) {
+        return null;
+    }
+
+    @Override
+    public void startActivity(Intent intent) {
+    }
+}
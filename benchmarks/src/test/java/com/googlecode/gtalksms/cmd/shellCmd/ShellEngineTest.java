@@ -0,0 +1,107 @@
+package com.googlecode.gtalksms.cmd.shellCmd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ShellEngineTest {
+    private static final long TIMEOUT_MS = 20000;
+
+    // a single reader: a process holding it alone must not wait for a second one
+    private final ShellEngine mEngine = new ShellEngine(1);
+
+    @After
+    public void tearDown() {
+        mEngine.shutdown();
+    }
+
+    private static class RecordingHandler implements ShellEngine.Handler {
+        final CountDownLatch mEnded = new CountDownLatch(1);
+        final StringBuilder mOut = new StringBuilder();
+        final StringBuilder mErr = new StringBuilder();
+
+        public synchronized void onOutput(String out, String err) {
+            mOut.append(out);
+            mErr.append(err);
+        }
+
+        public void onEnd() {
+            mEnded.countDown();
+        }
+
+        synchronized String getOut() {
+            return mOut.toString();
+        }
+
+        synchronized String getErr() {
+            return mErr.toString();
+        }
+    }
+
+    private static Process start(String script) throws IOException {
+        return new ProcessBuilder("/bin/sh", "-c", script).start();
+    }
+
+    @Test
+    public void readsBothStreamsOfAProcessWithASingleReader() throws Exception {
+        // more than a pipe holds on each stream, written at the same time
+        String write = "i=0; while [ $i -lt 2000 ]; do echo 0123456789012345678901234567890123456789$i; i=$((i+1)); done";
+        RecordingHandler first = new RecordingHandler();
+        RecordingHandler second = new RecordingHandler();
+        Process process = start("(" + write + ") & (" + write + ") >&2 & wait");
+        mEngine.read(process, first);
+        Process next = start("echo done; echo failed >&2; exit 4");
+        mEngine.read(next, second);
+
+        assertTrue(first.mEnded.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(0, process.waitFor());
+        assertEquals(2000, first.getOut().split("\n").length);
+        assertEquals(first.getOut(), first.getErr());
+        assertTrue(first.getOut().endsWith("01234567890123456789012345678901234567891999\n"));
+
+        // the next process waited for the reader
+        assertTrue(second.mEnded.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(4, next.waitFor());
+        assertEquals("done\n", second.getOut());
+        assertEquals("failed\n", second.getErr());
+    }
+
+    @Test
+    public void readsTheOutputWrittenJustBeforeTheExit() throws Exception {
+        RecordingHandler handler = new RecordingHandler();
+        mEngine.read(start("printf out; printf err >&2"), handler);
+
+        assertTrue(handler.mEnded.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals("out", handler.getOut());
+        assertEquals("err", handler.getErr());
+    }
+
+    @Test
+    public void aStoppedReaderIsReleased() throws Exception {
+        // the child keeps the pipes open, whatever happens to the shell
+        Process process = start("sleep 30 & echo started; sleep 30");
+        try {
+            RecordingHandler stopped = new RecordingHandler();
+            ShellEngine.Reader reader = mEngine.read(process, stopped);
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (!stopped.getOut().contains("started") && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            reader.stop();
+            assertTrue(stopped.mEnded.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+            RecordingHandler next = new RecordingHandler();
+            mEngine.read(start("echo next"), next);
+            assertTrue(next.mEnded.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            assertEquals("next\n", next.getOut());
+        } finally {
+            process.destroy();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.googlecode.gtalksms.cmd.shellCmd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ShellSessionsTest {
+    private static final int SESSION = 1;
+    private static final long TIMEOUT_MS = 20000;
+    private static final int BYTES_PER_STREAM = 10 * 1024 * 1024;
+    // 63 chars and the new line, 10 MB are whole lines
+    private static final String LINE = "0123456789abcdefghijklmnopqrstuvwxyz0123456789abcdefghijklmnopq";
+
+    private final ShellEngine mEngine = new ShellEngine();
+    private final ShellSessions mSessions = new ShellSessions(mEngine);
+    private final ShellSessions.ProcessFactory mFactory = new ShellSessions.ProcessFactory() {
+        public Process start(int id) throws IOException {
+            return new ProcessBuilder("/bin/sh").start();
+        }
+    };
+
+    @After
+    public void tearDown() {
+        mSessions.killAll();
+        mEngine.shutdown();
+    }
+
+    /**
+     * Counts the output, the messages are sent one at a time
+     */
+    private static class RecordingSink implements ShellOutput.Sink {
+        final StringBuilder mOutput = new StringBuilder();
+        long mChars;
+        long mLines;
+        int mMaxMessageChars;
+        // keeps only the start of a large output
+        private final int mMaxKeptChars;
+
+        RecordingSink(int maxKeptChars) {
+            mMaxKeptChars = maxKeptChars;
+        }
+
+        public synchronized void send(String text) {
+            mChars += text.length();
+            for (int i = 0; i < text.length(); ++i) {
+                if (text.charAt(i) == '\n') {
+                    mLines++;
+                }
+            }
+            mMaxMessageChars = Math.max(mMaxMessageChars, text.length());
+            if (mOutput.length() < mMaxKeptChars) {
+                mOutput.append(text);
+            }
+        }
+    }
+
+    private ShellSessions.Command execute(int id, String command, ShellOutput.Sink sink) throws IOException {
+        return mSessions.execute(id, command, null, mFactory, sink, null);
+    }
+
+    private void check(String command, String expected, int exitCode) throws Exception {
+        RecordingSink sink = new RecordingSink(Integer.MAX_VALUE);
+        int code = execute(SESSION, command, sink).waitFor(TIMEOUT_MS);
+        assertEquals(command, exitCode, code);
+        if (expected != null) {
+            synchronized (sink) {
+                assertEquals(command, expected, sink.mOutput.toString());
+            }
+        }
+    }
+
+    @Test
+    public void runsTheCommandsInTheSameShell() throws Exception {
+        check("echo out; echo err >&2", "out\nerr\n", 0);
+        check("printf partial", "partial", 0);
+        check("printf out; printf err >&2", "out\nerr", 0);
+        check("cd /tmp", "", 0);
+        check("pwd", "/tmp\n", 0);
+        check("false", "", 1);
+        check("echo 'quoted' \"twice\"", "quoted twice\n", 0);
+        assertEquals(1, mSessions.getSessionCount());
+    }
+
+    @Test
+    public void survivesTheErrorsOfTheCommands() throws Exception {
+        check("cd /tmp", "", 0);
+        // a syntax error doesn't end the shell
+        check("echo \"", null, 2);
+        check("pwd", "/tmp\n", 0);
+        // neither does a command reading its input
+        check("cat", "", 0);
+        // the shell has exited, the next command starts a new one
+        check("exit 3", "", -1);
+        check("pwd", null, 0);
+    }
+
+    @Test
+    public void readsTenMegabytesFromEachStream() throws Exception {
+        String write = "yes " + LINE + " | head -c " + BYTES_PER_STREAM;
+        RecordingSink sink = new RecordingSink(0);
+        ShellSessions.Command command = execute(SESSION, write + " & " + write + " >&2 & wait", sink);
+
+        assertEquals(0, command.waitFor(60000));
+        synchronized (sink) {
+            assertEquals(2L * BYTES_PER_STREAM, sink.mChars);
+            assertEquals(2L * BYTES_PER_STREAM / (LINE.length() + 1), sink.mLines);
+            // the messages stay near the size threshold of ShellOutput, whatever the size of the output
+            assertTrue("message of " + sink.mMaxMessageChars + " chars",
+                    sink.mMaxMessageChars <= ShellOutput.MAX_MESSAGE_CHARS
+                    + 2 * (ShellEngine.READ_BYTES + ShellSessions.MAX_LINE_CHARS));
+        }
+        // the shell is still usable
+        check("echo next", "next\n", 0);
+    }
+
+    @Test
+    public void aKilledSessionReleasesItsReader() throws Exception {
+        ShellEngine engine = new ShellEngine(1);
+        ShellSessions sessions = new ShellSessions(engine);
+        try {
+            // the child keeps the pipes of the shell open
+            ShellSessions.Command command = sessions.execute(SESSION, "sleep 30 & sleep 30", null, mFactory,
+                    new RecordingSink(0), null);
+            sessions.kill(SESSION);
+            assertEquals(-1, command.waitFor(TIMEOUT_MS));
+            assertFalse(command.isRunning());
+
+            RecordingSink sink = new RecordingSink(Integer.MAX_VALUE);
+            assertEquals(0, sessions.execute(SESSION + 1, "echo next", null, mFactory, sink, null).waitFor(TIMEOUT_MS));
+            synchronized (sink) {
+                assertEquals("next\n", sink.mOutput.toString());
+            }
+        } finally {
+            sessions.killAll();
+            engine.shutdown();
+        }
+    }
+}
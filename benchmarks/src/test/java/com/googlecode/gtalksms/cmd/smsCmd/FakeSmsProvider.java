@@ -0,0 +1,260 @@
+package com.googlecode.gtalksms.cmd.smsCmd;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+
+/**
+ * content://sms and content://mms-sms/threadID in memory, counts the queries.
+ * Understands the selections of SmsManager and the per-thread selections of the SmsManager it replaced.
+ * Each query can cost a fixed latency, the round-trip to the provider process.
+ */
+public class FakeSmsProvider extends ContentResolver {
+    public static final String SMS_URI = "content://sms";
+    public static final String THREADS_URI = "content://mms-sms/threadID";
+
+    private static final Pattern THREAD_ID = Pattern.compile("thread_id = (\\d+)");
+    private static final Pattern LIKE_LITERAL = Pattern.compile("body LIKE '%(.*)%'");
+    private static final Pattern LIMIT = Pattern.compile("limit (\\d+)");
+
+    private static class Row {
+        final String mId;
+        final String mThreadId;
+        final String mAddress;
+        final String mBody;
+        final long mDate;
+        final int mType;
+
+        Row(String id, String threadId, String address, String body, long date, int type) {
+            mId = id;
+            mThreadId = threadId;
+            mAddress = address;
+            mBody = body;
+            mDate = date;
+            mType = type;
+        }
+
+        Object get(String column) {
+            if ("_id".equals(column)) {
+                return mId;
+            } else if ("thread_id".equals(column)) {
+                return mThreadId;
+            } else if ("address".equals(column)) {
+                return mAddress;
+            } else if ("body".equals(column)) {
+                return mBody;
+            } else if ("date".equals(column)) {
+                return Long.toString(mDate);
+            } else if ("type".equals(column)) {
+                return Integer.toString(mType);
+            }
+            return null;
+        }
+    }
+
+    private final List<Row> mRows = new ArrayList<Row>();
+    private final long mLatencyNanos;
+    private int mQueryCount;
+
+    /**
+     * @param latencyMicros the time taken by each query
+     */
+    public FakeSmsProvider(long latencyMicros) {
+        mLatencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+    }
+
+    /**
+     * @param type 1 for a received SMS, 2 for a sent one
+     */
+    public void addSms(String threadId, String address, String body, long date, int type) {
+        mRows.add(new Row(Integer.toString(mRows.size() + 1), threadId, address, body, date, type));
+    }
+
+    public int getQueryCount() {
+        return mQueryCount;
+    }
+
+    public void resetQueryCount() {
+        mQueryCount = 0;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        ++mQueryCount;
+        if (mLatencyNanos > 0) {
+            long end = System.nanoTime() + mLatencyNanos;
+            while (System.nanoTime() < end) {
+                // spins, the parks are too coarse for a few hundred microseconds
+            }
+        }
+
+        String u = uri.toString();
+        if (u.startsWith(THREADS_URI + "?recipient=")) {
+            String recipient = u.substring(u.indexOf('=') + 1);
+            Set<String> threadIds = new LinkedHashSet<String>();
+            for (Row row : mRows) {
+                if (row.mAddress.equals(recipient)) {
+                    threadIds.add(row.mThreadId);
+                }
+            }
+            List<Object[]> rows = new ArrayList<Object[]>();
+            for (String threadId : threadIds) {
+                rows.add(new Object[] { threadId });
+            }
+            return new FakeCursor(new String[] { "_id" }, rows);
+        } else if (!u.equals(SMS_URI)) {
+            throw new UnsupportedOperationException(u);
+        }
+
+        List<Row> matches = new ArrayList<Row>();
+        for (Row row : mRows) {
+            if (matches(row, selection, selectionArgs)) {
+                matches.add(row);
+            }
+        }
+        if (sortOrder != null && sortOrder.startsWith("date DESC")) {
+            Collections.sort(matches, new Comparator<Row>() {
+                public int compare(Row a, Row b) {
+                    return a.mDate < b.mDate ? 1 : (a.mDate == b.mDate ? 0 : -1);
+                }
+            });
+            Matcher m = LIMIT.matcher(sortOrder);
+            if (m.find()) {
+                int limit = Integer.parseInt(m.group(1));
+                if (matches.size() > limit) {
+                    matches = matches.subList(0, limit);
+                }
+            }
+        }
+
+        List<Object[]> rows = new ArrayList<Object[]>();
+        for (Row row : matches) {
+            Object[] values = new Object[projection.length];
+            for (int i = 0; i < projection.length; ++i) {
+                values[i] = row.get(projection[i]);
+            }
+            rows.add(values);
+        }
+        return new FakeCursor(projection, rows);
+    }
+
+    private static boolean matches(Row row, String selection, String[] args) {
+        if (selection == null) {
+            return true;
+        }
+        if (selection.startsWith("PHONE_NUMBERS_EQUAL(address, ?)")) {
+            return Arrays.asList(args).contains(row.mAddress);
+        }
+        if (selection.startsWith("thread_id IN (")) {
+            int count = selection.length() - selection.replace("?", "").length();
+            boolean search = selection.contains("body LIKE ?");
+            int threads = search ? count - 1 : count;
+            if (!Arrays.asList(args).subList(0, threads).contains(row.mThreadId)) {
+                return false;
+            }
+            return !search || like(row.mBody, args[threads]);
+        }
+        if (selection.equals("body LIKE ?")) {
+            return like(row.mBody, args[0]);
+        }
+        Matcher thread = THREAD_ID.matcher(selection);
+        if (thread.lookingAt()) {
+            if (!row.mThreadId.equals(thread.group(1))) {
+                return false;
+            }
+            Matcher like = LIKE_LITERAL.matcher(selection);
+            return !like.find() || row.mBody.contains(like.group(1).replace("''", "'"));
+        }
+        throw new UnsupportedOperationException(selection);
+    }
+
+    private static boolean like(String body, String pattern) {
+        return body.contains(pattern.substring(1, pattern.length() - 1));
+    }
+
+    /**
+     * The rows of a query, all values are strings
+     */
+    static class FakeCursor implements Cursor {
+        private final String[] mColumns;
+        private final List<Object[]> mRows;
+        private int mPosition = -1;
+
+        FakeCursor(String[] columns, List<Object[]> rows) {
+            mColumns = columns;
+            mRows = rows;
+        }
+
+        public int getCount() {
+            return mRows.size();
+        }
+
+        public boolean moveToFirst() {
+            return moveTo(0);
+        }
+
+        public boolean moveToNext() {
+            return moveTo(mPosition + 1);
+        }
+
+        public boolean moveToLast() {
+            return moveTo(mRows.size() - 1);
+        }
+
+        public boolean moveToPrevious() {
+            return moveTo(mPosition - 1);
+        }
+
+        private boolean moveTo(int position) {
+            mPosition = Math.max(-1, Math.min(position, mRows.size()));
+            return mPosition >= 0 && mPosition < mRows.size();
+        }
+
+        public void close() {
+        }
+
+        public String[] getColumnNames() {
+            return mColumns;
+        }
+
+        public int getColumnIndex(String columnName) {
+            return Arrays.asList(mColumns).indexOf(columnName);
+        }
+
+        public int getType(int columnIndex) {
+            return mRows.get(mPosition)[columnIndex] == null ? FIELD_TYPE_NULL : FIELD_TYPE_STRING;
+        }
+
+        public byte[] getBlob(int columnIndex) {
+            throw new UnsupportedOperationException();
+        }
+
+        public String getString(int columnIndex) {
+            Object value = mRows.get(mPosition)[columnIndex];
+            return value == null ? null : value.toString();
+        }
+
+        public int getInt(int columnIndex) {
+            return Integer.parseInt(getString(columnIndex));
+        }
+
+        public long getLong(int columnIndex) {
+            return Long.parseLong(getString(columnIndex));
+        }
+
+        public float getFloat(int columnIndex) {
+            return Float.parseFloat(getString(columnIndex));
+        }
+    }
+}
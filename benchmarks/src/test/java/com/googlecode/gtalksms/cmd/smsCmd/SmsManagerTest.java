@@ -0,0 +1,86 @@
+package com.googlecode.gtalksms.cmd.smsCmd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.gtalksms.FakeContext;
+import com.googlecode.gtalksms.SettingsManager;
+import com.googlecode.gtalksms.data.phone.Phone;
+
+public class SmsManagerTest {
+    private FakeSmsProvider mProvider;
+    private SettingsManager mSettings;
+    private SmsManager mSmsManager;
+    private ArrayList<Phone> mBobPhones;
+
+    @Before
+    public void setUp() {
+        mProvider = new FakeSmsProvider(0);
+        mBobPhones = new ArrayList<Phone>();
+        // one thread per number of Bob, 4 SMS per thread
+        for (int i = 0; i < 5; ++i) {
+            String number = "+3360000000" + i;
+            mBobPhones.add(new Phone("Bob", number));
+            for (int j = 0; j < 4; ++j) {
+                mProvider.addSms(Integer.toString(i), number, "Hello " + i + "-" + j, 1000 * j + i, j % 2 + 1);
+            }
+        }
+        mProvider.addSms("9", "+33699999999", "Hello from Alice", 5000, 1);
+
+        mSettings = new SettingsManager();
+        mSettings.smsNumber = 100;
+        mSmsManager = new SmsManager(mSettings, new FakeContext(mProvider));
+    }
+
+    @Test
+    public void queriesTheProviderTwiceForAllThePhones() {
+        ArrayList<Sms> sms = mSmsManager.getSms(mBobPhones);
+        assertEquals(2, mProvider.getQueryCount());
+        assertEquals(20, sms.size());
+        for (Sms s : sms) {
+            assertTrue(s.getMessage().startsWith("Hello "));
+            assertTrue(!s.getMessage().contains("Alice"));
+        }
+    }
+
+    @Test
+    public void returnsTheSmsByAscendingDate() {
+        ArrayList<Sms> sms = mSmsManager.getSms(mBobPhones);
+        for (int i = 1; i < sms.size(); ++i) {
+            assertTrue(sms.get(i - 1).getDate().getTime() <= sms.get(i).getDate().getTime());
+        }
+    }
+
+    @Test
+    public void limitsTheSmsOfAllTheThreadsTogether() {
+        mSettings.smsNumber = 3;
+        ArrayList<Sms> sms = mSmsManager.getSms(mBobPhones);
+        assertEquals(3, sms.size());
+        // the newest of all the threads
+        assertEquals("Hello 2-3", sms.get(0).getMessage());
+        assertEquals("Hello 3-3", sms.get(1).getMessage());
+        assertEquals("Hello 4-3", sms.get(2).getMessage());
+    }
+
+    @Test
+    public void bindsTheSearch() {
+        mProvider.addSms("0", "+33600000000", "It's 'quoted'", 9000, 1);
+        ArrayList<Sms> sms = mSmsManager.getSms(mBobPhones, "It's 'quoted'");
+        assertEquals(2, mProvider.getQueryCount());
+        assertEquals(1, sms.size());
+        assertEquals("It's 'quoted'", sms.get(0).getMessage());
+    }
+
+    @Test
+    public void stopsAfterOneQueryWithoutThread() {
+        ArrayList<Phone> phones = new ArrayList<Phone>();
+        phones.add(new Phone("Carol", "+33611111111"));
+        assertEquals(0, mSmsManager.getSms(phones).size());
+        assertEquals(1, mProvider.getQueryCount());
+    }
+}
@@ -0,0 +1,141 @@
+package com.googlecode.gtalksms.data.contacts;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ContactNameCacheTest {
+
+    /**
+     * Contacts in memory, counts the lookups
+     */
+    private static class FakeLookup implements ContactNameCache.NameLookup {
+        final Map<String, String> mNames = new HashMap<String, String>();
+        int mCount;
+
+        public String lookup(String phoneNumber) {
+            ++mCount;
+            return mNames.get(phoneNumber);
+        }
+    }
+
+    private FakeLookup mLookup;
+    private ContactNameCache mCache;
+
+    @Before
+    public void setUp() {
+        mLookup = new FakeLookup();
+        mLookup.mNames.put("+33600000001", "Alice");
+        mLookup.mNames.put("+33600000002", "Bob");
+        mCache = new ContactNameCache(mLookup, 2);
+    }
+
+    @Test
+    public void cachesTheNames() {
+        assertEquals("Alice", mCache.getName("+33600000001"));
+        assertEquals("Alice", mCache.getName("+33600000001"));
+        assertEquals(1, mLookup.mCount);
+        assertEquals(1, mCache.getHits());
+        assertEquals(1, mCache.getMisses());
+    }
+
+    @Test
+    public void cachesTheNumbersWithoutContact() {
+        assertNull(mCache.getName("+33600000009"));
+        assertNull(mCache.getName("+33600000009"));
+        assertEquals(1, mLookup.mCount);
+    }
+
+    @Test
+    public void sharesTheEntryOfTheFormattedNumbers() {
+        mLookup.mNames.put("+33 6 00-00-00-03", "Carol");
+        assertEquals("Carol", mCache.getName("+33 6 00-00-00-03"));
+        // same clean number, not looked up again
+        assertEquals("Carol", mCache.getName("+33600000003"));
+        assertEquals(1, mLookup.mCount);
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedName() {
+        mLookup.mNames.put("+33600000003", "Carol");
+        mCache.getName("+33600000001");
+        mCache.getName("+33600000002");
+        // Alice becomes the most recently used, Bob is evicted
+        mCache.getName("+33600000001");
+        mCache.getName("+33600000003");
+        assertEquals(2, mCache.size());
+        assertEquals(3, mLookup.mCount);
+
+        mCache.getName("+33600000001");
+        assertEquals(3, mLookup.mCount);
+        mCache.getName("+33600000002");
+        assertEquals(4, mLookup.mCount);
+    }
+
+    @Test
+    public void clearForgetsTheNames() {
+        mCache.getName("+33600000001");
+        mLookup.mNames.put("+33600000001", "Alice Smith");
+        mCache.clear();
+        assertEquals(0, mCache.size());
+        assertEquals("Alice Smith", mCache.getName("+33600000001"));
+        assertEquals(2, mLookup.mCount);
+    }
+
+    @Test
+    public void doesNotCacheANameLookedUpBeforeAClear() {
+        // the contact is renamed while its old name is looked up: the observer clears the cache
+        // between the miss and the put
+        ContactNameCache.NameLookup lookup = new ContactNameCache.NameLookup() {
+            private boolean mRenamed;
+
+            public String lookup(String phoneNumber) {
+                ++mLookup.mCount;
+                if (mRenamed) {
+                    return "Alice Smith";
+                }
+                mRenamed = true;
+                mCache.clear();
+                return "Alice";
+            }
+        };
+        mCache = new ContactNameCache(lookup, 2);
+
+        assertEquals("Alice", mCache.getName("+33600000001"));
+        assertEquals(0, mCache.size());
+        assertEquals("Alice Smith", mCache.getName("+33600000001"));
+        assertEquals("Alice Smith", mCache.getName("+33600000001"));
+        assertEquals(2, mLookup.mCount);
+    }
+
+    @Test
+    public void doesNotCacheTheFailedLookups() {
+        ContactNameCache.NameLookup lookup = new ContactNameCache.NameLookup() {
+            private boolean mFailed;
+
+            public String lookup(String phoneNumber) {
+                if (!mFailed) {
+                    mFailed = true;
+                    throw new IllegalStateException("provider unavailable");
+                }
+                return "Alice";
+            }
+        };
+        mCache = new ContactNameCache(lookup, 2);
+
+        try {
+            mCache.getName("+33600000001");
+            fail();
+        } catch (IllegalStateException e) {
+            // forwarded to the caller
+        }
+        assertEquals(0, mCache.size());
+        assertEquals("Alice", mCache.getName("+33600000001"));
+    }
+}
@@ -0,0 +1,84 @@
+package com.googlecode.gtalksms.databases;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.gtalksms.FakeContext;
+import com.googlecode.gtalksms.cmd.smsCmd.Sms;
+
+public class SMSDatabaseTest {
+    private static final int ID = 42;
+
+    @Before
+    public void setUp() {
+        FakeContext ctx = new FakeContext(null);
+        new SMSDatabase(ctx);
+        new AliasDatabase(ctx);
+    }
+
+    @After
+    public void tearDown() {
+        SMSDatabase.deleteSMS(ID);
+        AliasDatabase.deleteAlias("o'brien");
+    }
+
+    private static Sms find(int id) {
+        for (Sms sms : SMSDatabase.getFullDatabase()) {
+            if (sms.getID() == id) {
+                return sms;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void keepsTheQuotes() {
+        Sms sms = new Sms("+33612341234", "Dan O'Brien", "it's \"fine\"", 2, "user@example.com", ID);
+        assertTrue(SMSDatabase.putSMS(sms));
+
+        Sms stored = find(ID);
+        assertEquals("Dan O'Brien", stored.getTo());
+        assertEquals("it's \"fine\"", stored.getShortenedMessage());
+    }
+
+    @Test
+    public void readsBackTheResultsAndTheDate() {
+        Sms sms = new Sms("+33612341234", "Dan", "hello", 3, "user@example.com", ID);
+        sms.setResSentIntent(1);
+        sms.setSentIntentTrue(0);
+        assertTrue(SMSDatabase.putSMS(sms));
+
+        Sms stored = find(ID);
+        assertEquals(3, stored.getNumParts());
+        assertEquals("XOO", stored.getSentIntents());
+        assertEquals(1, stored.getResSentIntent());
+        assertEquals(-1, stored.getResDelIntent());
+        assertEquals(sms.getCreatedDate(), stored.getCreatedDate());
+    }
+
+    @Test
+    public void replacesTheSmsWithTheSameId() {
+        assertTrue(SMSDatabase.putSMS(new Sms("+33612341234", "Dan", "first", 1, null, ID)));
+        assertTrue(SMSDatabase.putSMS(new Sms("+33612341234", "Dan", "second", 1, null, ID)));
+
+        assertTrue(SMSDatabase.containsSMS(ID));
+        assertEquals("second", find(ID).getShortenedMessage());
+        assertEquals("unknown", find(ID).getAnswerTo());
+        assertTrue(SMSDatabase.deleteSMS(ID));
+        assertFalse(SMSDatabase.containsSMS(ID));
+    }
+
+    @Test
+    public void findsAnAliasWithAQuote() {
+        assertTrue(AliasDatabase.putAlias("o'brien", "+33612341234", null));
+        assertEquals("+33612341234", AliasDatabase.getNumber("o'brien"));
+        assertEquals(2, AliasDatabase.getAlias("o'brien").length);
+        assertNull(AliasDatabase.getNumber("o'"));
+    }
+}
@@ -0,0 +1,127 @@
+package com.googlecode.gtalksms.databases;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.gtalksms.FakeContext;
+
+/**
+ * Runs the queries of the SMS index on the SQLite of sqlite-jdbc, like the FTS4 tables of the device
+ */
+public class SmsIndexTest {
+    private static final long DAY_MS = 24 * 60 * 60 * 1000L;
+    private static final long NOW = 1400000000000L;
+    private static final int RECEIVED = 1;
+    private static final int SENT = 2;
+    // ids far from the ones of the other tests sharing the database
+    private static final long FIRST_ID = 900000;
+
+    private final List<Long> mIds = new ArrayList<Long>();
+
+    @Before
+    public void setUp() {
+        new SmsIndexDatabase(new FakeContext(null));
+    }
+
+    @After
+    public void tearDown() {
+        for (long id : mIds) {
+            SmsIndexDatabase.deleteSms(id);
+        }
+    }
+
+    private long put(long threadId, String address, long ageDays, int type, String body) {
+        long id = FIRST_ID + mIds.size();
+        SmsIndexDatabase.putSms(id, threadId, address, NOW - ageDays * DAY_MS, type, body);
+        mIds.add(id);
+        return id;
+    }
+
+    private static List<String> search(String text, int limit, String... threadIds) {
+        List<String> res = new ArrayList<String>();
+        List<SmsIndex.Hit> hits = SmsIndexDatabase.search(SmsIndex.toMatchExpression(text), Arrays.asList(threadIds));
+        for (SmsIndex.Hit hit : SmsIndex.rank(hits, limit, NOW)) {
+            res.add(hit.getBody());
+        }
+        return res;
+    }
+
+    @Test
+    public void buildsTheMatchExpression() {
+        assertEquals("meeting* at 5pm*", SmsIndex.toMatchExpression("Meeting at 5PM"));
+        // the quotes and the operators of FTS are dropped, the lower case words aren't operators
+        assertEquals("foo* bar* near* 2 baz*", SmsIndex.toMatchExpression("\"foo\" -bar NEAR/2 baz*"));
+        assertEquals("caf\u00e9*", SmsIndex.toMatchExpression("caf\u00e9"));
+        assertEquals("a b c d e f g h", SmsIndex.toMatchExpression("a b c d e f g h i j"));
+        assertNull(SmsIndex.toMatchExpression(" ?! "));
+        assertNull(SmsIndex.toMatchExpression(null));
+    }
+
+    @Test
+    public void findsTheSmsContainingAllTheTerms() {
+        put(1, "+33611111111", 1, RECEIVED, "Meeting tomorrow at the station");
+        put(1, "+33611111111", 2, SENT, "No meeting today");
+        put(2, "+33622222222", 3, RECEIVED, "tomorrow is fine");
+
+        assertEquals(Collections.singletonList("Meeting tomorrow at the station"), search("meeting TOMORROW", 10));
+        // the terms of 3 characters and more are prefixes
+        assertEquals(Arrays.asList("Meeting tomorrow at the station", "No meeting today"), search("meet", 10));
+        assertEquals(Collections.<String>emptyList(), search("meetings", 10));
+    }
+
+    @Test
+    public void ranksTheRecentSmsFirst() {
+        put(1, "+33611111111", 700, RECEIVED, "dinner tonight?");
+        put(1, "+33611111111", 1, RECEIVED, "dinner tonight?");
+        put(1, "+33611111111", 30, SENT, "dinner tonight?");
+
+        List<SmsIndex.Hit> hits = SmsIndex.rank(SmsIndexDatabase.search("dinner*", new ArrayList<String>()), 10, NOW);
+        assertEquals(3, hits.size());
+        assertEquals(NOW - DAY_MS, hits.get(0).getDate());
+        assertEquals(NOW - 30 * DAY_MS, hits.get(1).getDate());
+        assertEquals(SENT, hits.get(1).getType());
+        assertEquals(NOW - 700 * DAY_MS, hits.get(2).getDate());
+        assertTrue(hits.get(0).getScore() > hits.get(2).getScore() * 2);
+        assertEquals(1, search("dinner", 1).size());
+    }
+
+    @Test
+    public void ranksTheBodiesBeforeTheAddresses() {
+        put(1, "+33611111111", 1, RECEIVED, "call 0611111111 back");
+        put(3, "0611111111", 0, RECEIVED, "where are you");
+
+        assertEquals(Arrays.asList("call 0611111111 back", "where are you"), search("0611111111", 10));
+    }
+
+    @Test
+    public void searchesTheGivenThreads() {
+        put(1, "+33611111111", 1, RECEIVED, "train is late");
+        put(2, "+33622222222", 2, RECEIVED, "my train is late too");
+        put(3, "+33633333333", 3, RECEIVED, "no train today");
+
+        assertEquals(Arrays.asList("train is late", "no train today"), search("train", 10, "1", "3"));
+        assertEquals(3, search("train", 10).size());
+    }
+
+    @Test
+    public void forgetsTheDeletedAndReplacedSms() {
+        long id = put(1, "+33611111111", 1, RECEIVED, "old text");
+        put(1, "+33611111111", 1, RECEIVED, "other text");
+        SmsIndexDatabase.putSms(id, 1, "+33611111111", NOW, RECEIVED, "new body");
+
+        assertEquals(Collections.singletonList("new body"), search("new", 10));
+        assertEquals(Collections.singletonList("other text"), search("text", 10));
+        SmsIndexDatabase.deleteSms(id);
+        assertEquals(Collections.<String>emptyList(), search("new", 10));
+    }
+}
@@ -0,0 +1,254 @@
+package com.googlecode.gtalksms.files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smackx.xhtmlim.XHTMLManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClientOfflineMessagesJournalTest {
+    private static final Date ALL = new Date(0);
+
+    private File mDir;
+    private ClientOfflineMessagesJournal mJournal;
+
+    /**
+     * Collects the bodies of the replayed messages, refuses them after a count
+     */
+    private static class Collector implements ClientOfflineMessagesJournal.ReplayHandler {
+        final List<String> mBodies = new ArrayList<String>();
+        final List<Message> mMessages = new ArrayList<Message>();
+        private final int mMax;
+
+        Collector(int max) {
+            mMax = max;
+        }
+
+        public boolean replay(Message msg) {
+            if (mBodies.size() == mMax) {
+                return false;
+            }
+            mBodies.add(msg.getBody());
+            mMessages.add(msg);
+            return true;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("journal", "");
+        mDir.delete();
+        mJournal = new ClientOfflineMessagesJournal(mDir);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mJournal.close();
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    private static Message newMessage(String body) {
+        Message msg = new Message("user@example.com", Message.Type.chat);
+        msg.setBody(body);
+        return msg;
+    }
+
+    private List<String> replayAll() throws IOException {
+        Collector collector = new Collector(Integer.MAX_VALUE);
+        mJournal.replay(collector, ALL);
+        return collector.mBodies;
+    }
+
+    private void reopen() throws IOException {
+        mJournal.close();
+        mJournal = new ClientOfflineMessagesJournal(mDir);
+    }
+
+    private File getSegment(int index) {
+        String[] names = mDir.list();
+        List<Long> segments = new ArrayList<Long>();
+        for (String name : names) {
+            if (name.endsWith(".seg")) {
+                segments.add(Long.parseLong(name.substring(0, name.length() - 4)));
+            }
+        }
+        Collections.sort(segments);
+        return new File(mDir, segments.get(index) + ".seg");
+    }
+
+    private int getSegmentCount() {
+        int res = 0;
+        for (String name : mDir.list()) {
+            if (name.endsWith(".seg")) {
+                ++res;
+            }
+        }
+        return res;
+    }
+
+    private static void truncate(File f, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void replaysTheMessagesInOrder() throws IOException {
+        mJournal.append(newMessage("1"));
+        mJournal.append(Arrays.asList(newMessage("2"), newMessage("3")));
+        mJournal.append(newMessage("4"));
+
+        assertEquals(Arrays.asList("1", "2", "3", "4"), replayAll());
+        assertTrue(mJournal.isEmpty());
+        assertEquals(0, replayAll().size());
+    }
+
+    @Test
+    public void keepsTheXhtmlBody() throws IOException {
+        Message msg = newMessage("bold");
+        XHTMLManager.addBody(msg, "<body><b>bold</b></body>");
+        mJournal.append(msg);
+        reopen();
+
+        Collector collector = new Collector(Integer.MAX_VALUE);
+        mJournal.replay(collector, ALL);
+        Message replayed = collector.mMessages.get(0);
+        assertEquals("user@example.com", replayed.getTo());
+        assertEquals(Message.Type.chat, replayed.getType());
+        assertEquals(Arrays.asList("<body><b>bold</b></body>"), XHTMLManager.getBodies(replayed));
+    }
+
+    @Test
+    public void resumesAStoppedReplay() throws IOException {
+        for (int i = 0; i < 5; ++i) {
+            mJournal.append(newMessage(Integer.toString(i)));
+        }
+        Collector collector = new Collector(2);
+        assertEquals(2, mJournal.replay(collector, ALL));
+        reopen();
+        assertEquals(Arrays.asList("2", "3", "4"), replayAll());
+    }
+
+    @Test
+    public void recoversASegmentTruncatedMidRecord() throws IOException {
+        mJournal.append(newMessage("first"));
+        mJournal.append(newMessage("second"));
+        mJournal.sync();
+        long valid = getSegment(0).length();
+        mJournal.append(newMessage("lost in the crash"));
+        mJournal.close();
+
+        // the crash leaves the header and a part of the payload of the last record
+        long end = getSegment(0).length();
+        truncate(getSegment(0), valid + (end - valid) / 2);
+        mJournal = new ClientOfflineMessagesJournal(mDir);
+        assertEquals(valid, getSegment(0).length());
+
+        // the records appended after the recovery follow the last valid record
+        mJournal.append(newMessage("third"));
+        reopen();
+        assertEquals(Arrays.asList("first", "second", "third"), replayAll());
+    }
+
+    @Test
+    public void recoversASegmentTruncatedMidHeader() throws IOException {
+        mJournal.append(newMessage("first"));
+        mJournal.sync();
+        long valid = getSegment(0).length();
+        mJournal.append(newMessage("lost in the crash"));
+        mJournal.close();
+
+        truncate(getSegment(0), valid + 3);
+        mJournal = new ClientOfflineMessagesJournal(mDir);
+        mJournal.append(newMessage("second"));
+        reopen();
+        assertEquals(Arrays.asList("first", "second"), replayAll());
+    }
+
+    @Test
+    public void dropsACorruptedRecord() throws IOException {
+        mJournal.append(newMessage("first"));
+        mJournal.sync();
+        long valid = getSegment(0).length();
+        mJournal.append(newMessage("corrupted"));
+        mJournal.close();
+
+        // a byte of the payload flipped, the CRC doesn't match
+        RandomAccessFile raf = new RandomAccessFile(getSegment(0), "rw");
+        raf.seek(raf.length() - 1);
+        int last = raf.read();
+        raf.seek(raf.length() - 1);
+        raf.write(last ^ 0xFF);
+        raf.close();
+
+        mJournal = new ClientOfflineMessagesJournal(mDir);
+        assertEquals(valid, getSegment(0).length());
+        assertEquals(Arrays.asList("first"), replayAll());
+    }
+
+    @Test
+    public void compactsTheAcknowledgedSegments() throws IOException {
+        char[] body = new char[1000];
+        Arrays.fill(body, 'x');
+        List<Message> batch = new ArrayList<Message>();
+        for (int i = 0; i < 1000; ++i) {
+            batch.add(newMessage(i + new String(body)));
+        }
+        mJournal.append(batch);
+        assertTrue(getSegmentCount() > 1);
+
+        assertEquals(1000, replayAll().size());
+        assertEquals(1, getSegmentCount());
+        assertEquals(0, mJournal.getPendingSize());
+        assertTrue(mJournal.isEmpty());
+    }
+
+    @Test
+    public void dropsTheSegmentsOlderThanTheRetention() throws IOException {
+        char[] body = new char[1000];
+        Arrays.fill(body, 'x');
+        List<Message> batch = new ArrayList<Message>();
+        for (int i = 0; i < 300; ++i) {
+            batch.add(newMessage("old" + new String(body)));
+        }
+        mJournal.append(batch);
+        mJournal.append(newMessage("new"));
+        int segments = getSegmentCount();
+        assertTrue(segments > 1);
+        long tenDaysAgo = System.currentTimeMillis() - 10 * 24 * 3600 * 1000L;
+        for (int i = 0; i < segments - 1; ++i) {
+            getSegment(i).setLastModified(tenDaysAgo);
+        }
+
+        mJournal.deleteOlderThan(new Date(System.currentTimeMillis() - 7 * 24 * 3600 * 1000L));
+        assertEquals(1, getSegmentCount());
+        List<String> bodies = replayAll();
+        assertFalse(bodies.isEmpty());
+        assertEquals("new", bodies.get(bodies.size() - 1));
+        for (String b : bodies.subList(0, bodies.size() - 1)) {
+            assertTrue(b.startsWith("old"));
+        }
+    }
+}
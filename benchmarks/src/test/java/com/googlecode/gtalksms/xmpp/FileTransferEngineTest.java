@@ -0,0 +1,192 @@
+package com.googlecode.gtalksms.xmpp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class FileTransferEngineTest {
+    private static final long INACTIVITY_TIMEOUT_MS = 200;
+    private static final long TIMEOUT_MS = 5000;
+
+    private final FileTransferEngine mEngine = new FileTransferEngine(2, 2, INACTIVITY_TIMEOUT_MS);
+
+    @After
+    public void tearDown() {
+        mEngine.shutdown();
+    }
+
+    /**
+     * Sends the first bytes then blocks like a bytestream whose peer is gone, until it is closed
+     */
+    private static class StalledInputStream extends InputStream {
+        private final byte[] mHead;
+        private int mPosition;
+        private boolean mClosed;
+
+        StalledInputStream(byte[] head) {
+            mHead = head;
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (mPosition < mHead.length) {
+                int count = Math.min(len, mHead.length - mPosition);
+                System.arraycopy(mHead, mPosition, b, off, count);
+                mPosition += count;
+                return count;
+            }
+            while (!mClosed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new IOException("interrupted");
+                }
+            }
+            // like the in-band bytestreams, a closed stream ends
+            return -1;
+        }
+
+        @Override
+        public synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
+    }
+
+    private static class RecordingListener implements FileTransferEngine.Listener {
+        final CountDownLatch mDone = new CountDownLatch(1);
+        volatile boolean mStarted;
+        volatile boolean mCompleted;
+        volatile Exception mError;
+
+        public void onStarted(FileTransferEngine.Task task) {
+            mStarted = true;
+        }
+
+        public void onProgress(FileTransferEngine.Task task) {
+        }
+
+        public void onCompleted(FileTransferEngine.Task task) {
+            mCompleted = true;
+            mDone.countDown();
+        }
+
+        public void onFailed(FileTransferEngine.Task task, Exception e) {
+            mError = e;
+            mDone.countDown();
+        }
+    }
+
+    private FileTransferEngine.Task submit(final InputStream in, final OutputStream out, long size, RecordingListener listener) {
+        FileTransferEngine.Task task = new FileTransferEngine.Task("peer@example.com/phone", "file.bin", size,
+                new FileTransferEngine.Streams() {
+            public InputStream openInput() {
+                return in;
+            }
+
+            public OutputStream openOutput() {
+                return out;
+            }
+        }, listener);
+        mEngine.submit(task);
+        return task;
+    }
+
+    @Test
+    public void copiesTheFile() throws Exception {
+        byte[] data = new byte[100 * 1024];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte) i;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RecordingListener listener = new RecordingListener();
+        FileTransferEngine.Task task = submit(new ByteArrayInputStream(data), out, data.length, listener);
+
+        assertTrue(listener.mDone.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertNull(listener.mError);
+        assertTrue(listener.mCompleted);
+        assertEquals(100, task.getPercent());
+        assertArrayEquals(data, out.toByteArray());
+    }
+
+    @Test
+    public void failsAStalledTransferOfKnownSize() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        FileTransferEngine.Task task = submit(new StalledInputStream(new byte[1000]), new ByteArrayOutputStream(), 5000, listener);
+
+        long start = System.nanoTime();
+        assertTrue(listener.mDone.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(listener.mStarted);
+        assertTrue("failed with " + listener.mError, listener.mError instanceof SocketTimeoutException);
+        assertTrue("failed after " + elapsedMs + "ms", elapsedMs >= INACTIVITY_TIMEOUT_MS - 50);
+        assertEquals(1000, task.getTransferred());
+    }
+
+    @Test
+    public void doesNotCompleteAStalledTransferOfUnknownSize() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        submit(new StalledInputStream(new byte[1000]), new ByteArrayOutputStream(), -1, listener);
+
+        assertTrue(listener.mDone.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue("failed with " + listener.mError, listener.mError instanceof SocketTimeoutException);
+    }
+
+    @Test
+    public void keepsASlowTransferRunning() throws Exception {
+        final int chunks = 6;
+        InputStream slow = new InputStream() {
+            private int mCount;
+
+            @Override
+            public int read() throws IOException {
+                if (mCount == chunks) {
+                    return -1;
+                }
+                try {
+                    // slower than the inactivity timeout in total, but a byte in each period
+                    Thread.sleep(INACTIVITY_TIMEOUT_MS / 2);
+                } catch (InterruptedException e) {
+                    throw new IOException("interrupted");
+                }
+                return mCount++;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                // returns the available byte, like a socket
+                int read = read();
+                if (read == -1) {
+                    return -1;
+                }
+                b[off] = (byte) read;
+                return 1;
+            }
+        };
+        RecordingListener listener = new RecordingListener();
+        submit(slow, new ByteArrayOutputStream(), chunks, listener);
+
+        assertTrue(listener.mDone.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertNull(listener.mError);
+        assertTrue(listener.mCompleted);
+    }
+}
@@ -0,0 +1,206 @@
+package com.googlecode.gtalksms.xmpp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.gtalksms.FakeContext;
+import com.googlecode.gtalksms.databases.TransferHelper;
+
+/**
+ * The bookkeeping of the sends to resume by XmppFileManager.resendInterruptedFiles() and the manifest
+ * of the received chunks, on the transfer tables of the app database
+ */
+public class InterruptedSendsTest {
+    private static final String TO = "bob@example.com/phone";
+    private static final int CHUNK_SIZE = 1024;
+
+    private TransferHelper mStore;
+    private final List<File> mFiles = new ArrayList<File>();
+
+    @Before
+    public void setUp() {
+        mStore = TransferHelper.getTransferHelper(new FakeContext(null));
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : mFiles) {
+            file.delete();
+        }
+    }
+
+    private File newFile(byte[] content) throws IOException {
+        File file = File.createTempFile("gtalksms", ".bin");
+        mFiles.add(file);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static List<String> getIds(List<TransferManifest> manifests) {
+        List<String> res = new ArrayList<String>();
+        for (TransferManifest manifest : manifests) {
+            res.add(manifest.getId());
+        }
+        return res;
+    }
+
+    private boolean isStored(TransferManifest manifest) {
+        return getIds(mStore.loadOutgoing()).contains(manifest.getId());
+    }
+
+    @Test
+    public void anInterruptedSendIsTakenOnce() throws Exception {
+        InterruptedSends sends = new InterruptedSends(mStore);
+        TransferManifest manifest = InterruptedSends.newManifest(newFile(new byte[100]), TO);
+        sends.submitted(manifest);
+        sends.started(manifest);
+        sends.failed(manifest, true);
+
+        List<TransferManifest> taken = sends.take();
+        assertEquals(1, taken.size());
+        assertEquals(manifest.getId(), taken.get(0).getId());
+        assertTrue(sends.take().isEmpty());
+        // kept until the next attempt ends
+        assertTrue(isStored(manifest));
+
+        sends.submitted(manifest);
+        sends.completed(manifest);
+        assertFalse(isStored(manifest));
+    }
+
+    @Test
+    public void aSendStillInTheEngineIsNotTaken() throws Exception {
+        InterruptedSends sends = new InterruptedSends(mStore);
+        TransferManifest manifest = InterruptedSends.newManifest(newFile(new byte[100]), TO);
+        sends.submitted(manifest);
+        sends.started(manifest);
+        // sent again by the user while the first attempt runs
+        sends.submitted(manifest);
+        sends.failed(manifest, true);
+        assertTrue(sends.take().isEmpty());
+
+        sends.failed(manifest, true);
+        assertEquals(1, sends.take().size());
+    }
+
+    @Test
+    public void aSendNeverStartedIsForgotten() throws Exception {
+        InterruptedSends sends = new InterruptedSends(mStore);
+        TransferManifest manifest = InterruptedSends.newManifest(newFile(new byte[100]), TO);
+        sends.submitted(manifest);
+        sends.started(manifest);
+        sends.failed(manifest, true);
+        assertEquals(1, sends.take().size());
+
+        // the next attempt is refused
+        sends.submitted(manifest);
+        sends.failed(manifest, false);
+        assertTrue(sends.take().isEmpty());
+        assertFalse(isStored(manifest));
+    }
+
+    @Test
+    public void aFailedSendIsKeptWhileAnotherOneIsPending() throws Exception {
+        InterruptedSends sends = new InterruptedSends(mStore);
+        TransferManifest manifest = InterruptedSends.newManifest(newFile(new byte[100]), TO);
+        sends.submitted(manifest);
+        sends.started(manifest);
+        sends.submitted(manifest);
+        sends.failed(manifest, false);
+        assertTrue(isStored(manifest));
+
+        sends.failed(manifest, true);
+        assertEquals(1, sends.take().size());
+    }
+
+    @Test
+    public void aChangedFileIsForgotten() throws Exception {
+        InterruptedSends sends = new InterruptedSends(mStore);
+        File file = newFile(new byte[100]);
+        TransferManifest manifest = InterruptedSends.newManifest(file, TO);
+        sends.submitted(manifest);
+        sends.started(manifest);
+        sends.failed(manifest, true);
+
+        newFile(new byte[0]).renameTo(file);
+        assertTrue(sends.take().isEmpty());
+        assertFalse(isStored(manifest));
+    }
+
+    @Test
+    public void theInterruptedSendsSurviveARestart() throws Exception {
+        InterruptedSends sends = new InterruptedSends(mStore);
+        TransferManifest manifest = InterruptedSends.newManifest(newFile(new byte[100]), TO);
+        sends.submitted(manifest);
+        sends.started(manifest);
+        // the service is killed during the send
+
+        List<TransferManifest> taken = new InterruptedSends(mStore).take();
+        assertTrue(getIds(taken).contains(manifest.getId()));
+        for (TransferManifest m : taken) {
+            mStore.delete(m.getId());
+        }
+    }
+
+    @Test
+    public void theReceivedChunksAreCheckedOnResume() throws Exception {
+        byte[] content = new byte[5 * CHUNK_SIZE + 100];
+        new Random(42).nextBytes(content);
+        File file = newFile(new byte[0]);
+        String id = TransferManifest.getId("alice@example.com", file.getName(), content.length, false);
+
+        ChunkedFileOutputStream out = ChunkedFileOutputStream.open(file, id, "alice@example.com", content.length,
+                CHUNK_SIZE, true, mStore);
+        assertEquals(0, out.getOffset());
+        // interrupted in the middle of the fourth chunk
+        out.write(content, 0, 3 * CHUNK_SIZE + 500);
+        out.close();
+
+        out = ChunkedFileOutputStream.open(file, id, "alice@example.com", content.length, CHUNK_SIZE, true, mStore);
+        assertEquals(3 * CHUNK_SIZE, out.getOffset());
+        out.close();
+
+        // the second chunk is corrupted on disk: the transfer continues from there
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(3 * CHUNK_SIZE);
+        raf.seek(CHUNK_SIZE + 10);
+        raf.write(~content[CHUNK_SIZE + 10]);
+        raf.close();
+        out = ChunkedFileOutputStream.open(file, id, "alice@example.com", content.length, CHUNK_SIZE, true, mStore);
+        assertEquals(CHUNK_SIZE, out.getOffset());
+        out.write(content, CHUNK_SIZE, content.length - CHUNK_SIZE);
+        out.close();
+
+        byte[] received = new byte[content.length];
+        raf = new RandomAccessFile(file, "r");
+        raf.readFully(received);
+        raf.close();
+        assertArrayEquals(content, received);
+        assertEquals(6, mStore.load(id).getChunkCount());
+
+        // without the range the transfer starts over
+        out = ChunkedFileOutputStream.open(file, id, "alice@example.com", content.length, CHUNK_SIZE, false, mStore);
+        assertEquals(0, out.getOffset());
+        out.close();
+        mStore.delete(id);
+    }
+}
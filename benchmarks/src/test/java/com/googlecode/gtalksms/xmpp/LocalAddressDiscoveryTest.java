@@ -0,0 +1,139 @@
+package com.googlecode.gtalksms.xmpp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class LocalAddressDiscoveryTest {
+
+    private static LocalAddressDiscovery.Interface newInterface(String name, boolean up, boolean loopback,
+            String... addresses) throws UnknownHostException {
+        List<InetAddress> res = new ArrayList<InetAddress>();
+        for (String address : addresses) {
+            // a literal, no lookup
+            res.add(InetAddress.getByName(address));
+        }
+        return new LocalAddressDiscovery.Interface(name, up, loopback, res);
+    }
+
+    private static int reach(String address, int link) throws UnknownHostException {
+        return LocalAddressDiscovery.getReachability(InetAddress.getByName(address), link);
+    }
+
+    @Test
+    public void ranksWifiBeforeVpnBeforeMobile() throws UnknownHostException {
+        List<LocalAddressDiscovery.Interface> interfaces = Arrays.asList(
+                newInterface("lo", true, true, "127.0.0.1", "::1"),
+                newInterface("rmnet_data0", true, false, "10.170.12.4", "2a01:cb00:1:2::42"),
+                newInterface("tun0", true, false, "10.8.0.2"),
+                newInterface("wlan0", true, false, "fe80::1c2d:3eff:fe4f:5a6b%3", "192.168.1.23", "2a01:e35:8b0:c40::17"),
+                newInterface("p2p0", false, false, "192.168.49.1"));
+
+        // the private IPv4 of the operator and the interfaces down are dropped
+        assertEquals(Arrays.asList("192.168.1.23", "2a01:e35:8b0:c40:0:0:0:17", "10.8.0.2", "2a01:cb00:1:2:0:0:0:42"),
+                LocalAddressDiscovery.rank(interfaces));
+    }
+
+    @Test
+    public void advertisesOnlyTheGlobalIPv6BehindACarrierGradeNat() throws UnknownHostException {
+        List<LocalAddressDiscovery.Interface> interfaces = Arrays.asList(
+                newInterface("lo", true, true, "127.0.0.1"),
+                newInterface("rmnet_data0", true, false, "100.72.14.9", "2a01:cb00:1:2::42", "fe80::42%2"),
+                newInterface("wlan0", false, false));
+
+        assertEquals(Collections.singletonList("2a01:cb00:1:2:0:0:0:42"), LocalAddressDiscovery.rank(interfaces));
+
+        // IPv4 only: nothing the peer can reach, it uses the proxies
+        interfaces = Collections.singletonList(newInterface("rmnet_data0", true, false, "100.72.14.9"));
+        assertEquals(Collections.<String>emptyList(), LocalAddressDiscovery.rank(interfaces));
+    }
+
+    @Test
+    public void advertisesTheTetheringAddressesOfAHotspot() throws UnknownHostException {
+        List<LocalAddressDiscovery.Interface> interfaces = Arrays.asList(
+                newInterface("rmnet_data0", true, false, "10.170.12.4"),
+                newInterface("swlan0", true, false, "192.168.43.1"),
+                newInterface("rndis0", true, false, "192.168.42.129"));
+
+        assertEquals(Arrays.asList("192.168.43.1", "192.168.42.129"), LocalAddressDiscovery.rank(interfaces));
+    }
+
+    @Test
+    public void keepsTheBestAddresses() throws UnknownHostException {
+        List<LocalAddressDiscovery.Interface> interfaces = Arrays.asList(
+                newInterface("tun0", true, false, "10.8.0.2"),
+                newInterface("eth0", true, false, "192.168.1.2", "192.168.1.3"),
+                newInterface("wlan0", true, false, "192.168.1.2", "192.168.2.5", "2a01:e35:8b0:c40::17"));
+
+        List<String> addresses = LocalAddressDiscovery.rank(interfaces);
+        assertEquals(LocalAddressDiscovery.MAX_ADDRESSES, addresses.size());
+        // the address of two interfaces is advertised once
+        assertEquals(Arrays.asList("192.168.1.2", "192.168.1.3", "192.168.2.5", "2a01:e35:8b0:c40:0:0:0:17"), addresses);
+    }
+
+    @Test
+    public void getsTheLinkTypeFromTheInterfaceName() {
+        assertEquals(LocalAddressDiscovery.LINK_LAN, LocalAddressDiscovery.getLinkType("wlan0"));
+        assertEquals(LocalAddressDiscovery.LINK_LAN, LocalAddressDiscovery.getLinkType("eth0"));
+        assertEquals(LocalAddressDiscovery.LINK_TETHER, LocalAddressDiscovery.getLinkType("swlan0"));
+        assertEquals(LocalAddressDiscovery.LINK_TETHER, LocalAddressDiscovery.getLinkType("ap0"));
+        assertEquals(LocalAddressDiscovery.LINK_TETHER, LocalAddressDiscovery.getLinkType("rndis0"));
+        assertEquals(LocalAddressDiscovery.LINK_VPN, LocalAddressDiscovery.getLinkType("tun0"));
+        assertEquals(LocalAddressDiscovery.LINK_MOBILE, LocalAddressDiscovery.getLinkType("rmnet_data0"));
+        assertEquals(LocalAddressDiscovery.LINK_MOBILE, LocalAddressDiscovery.getLinkType("v4-rmnet_data0"));
+        assertEquals(LocalAddressDiscovery.LINK_OTHER, LocalAddressDiscovery.getLinkType("dummy0"));
+    }
+
+    @Test
+    public void getsTheReachability() throws UnknownHostException {
+        int wifi = LocalAddressDiscovery.LINK_LAN;
+        int mobile = LocalAddressDiscovery.LINK_MOBILE;
+        assertEquals(LocalAddressDiscovery.REACH_GLOBAL, reach("82.64.1.2", mobile));
+        assertEquals(LocalAddressDiscovery.REACH_GLOBAL, reach("2a01:cb00:1:2::42", mobile));
+        assertEquals(LocalAddressDiscovery.REACH_PRIVATE, reach("192.168.1.23", wifi));
+        assertEquals(LocalAddressDiscovery.REACH_PRIVATE, reach("172.16.0.4", LocalAddressDiscovery.LINK_VPN));
+        assertEquals(LocalAddressDiscovery.REACH_PRIVATE, reach("fd12:3456::1", wifi));
+        assertEquals(LocalAddressDiscovery.REACH_NONE, reach("10.170.12.4", mobile));
+        assertEquals(LocalAddressDiscovery.REACH_NONE, reach("100.64.0.1", wifi));
+        assertEquals(LocalAddressDiscovery.REACH_NONE, reach("100.127.255.254", mobile));
+        // just outside of the carrier-grade NAT range
+        assertEquals(LocalAddressDiscovery.REACH_GLOBAL, reach("100.128.0.1", mobile));
+        assertEquals(LocalAddressDiscovery.REACH_NONE, reach("fe80::42", wifi));
+        assertEquals(LocalAddressDiscovery.REACH_NONE, reach("169.254.10.1", wifi));
+        assertEquals(LocalAddressDiscovery.REACH_NONE, reach("127.0.0.1", wifi));
+        assertEquals(LocalAddressDiscovery.REACH_NONE, reach("0.0.0.0", wifi));
+        assertEquals(LocalAddressDiscovery.REACH_NONE, reach("224.0.0.251", wifi));
+    }
+
+    @Test
+    public void cachesTheAddressesForTheConnectivityState() throws UnknownHostException {
+        final List<LocalAddressDiscovery.Interface> interfaces = new ArrayList<LocalAddressDiscovery.Interface>();
+        interfaces.add(newInterface("wlan0", true, false, "192.168.1.23"));
+        final int[] calls = new int[1];
+        LocalAddressDiscovery discovery = new LocalAddressDiscovery(new LocalAddressDiscovery.Source() {
+            public List<LocalAddressDiscovery.Interface> getInterfaces() {
+                calls[0]++;
+                return interfaces;
+            }
+        });
+
+        List<String> addresses = discovery.getAddresses("WIFI//CONNECTED");
+        assertSame(addresses, discovery.getAddresses("WIFI//CONNECTED"));
+        assertEquals(1, calls[0]);
+
+        interfaces.set(0, newInterface("rmnet_data0", true, false, "2a01:cb00:1:2::42"));
+        assertEquals(Collections.singletonList("2a01:cb00:1:2:0:0:0:42"), discovery.getAddresses("MOBILE//CONNECTED"));
+        discovery.invalidate();
+        assertNotSame(addresses, discovery.getAddresses("MOBILE//CONNECTED"));
+        assertEquals(3, calls[0]);
+    }
+}
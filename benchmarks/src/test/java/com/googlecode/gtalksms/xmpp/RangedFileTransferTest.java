@@ -0,0 +1,264 @@
+package com.googlecode.gtalksms.xmpp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.ConnectionConfiguration;
+import org.jivesoftware.smack.SmackConfiguration;
+import org.jivesoftware.smack.tcp.XMPPTCPConnection;
+import org.jivesoftware.smackx.filetransfer.FileTransferNegotiator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.gtalksms.FakeContext;
+import com.googlecode.gtalksms.databases.TransferHelper;
+
+/**
+ * Sends a file between two clients of a stand-in server and kills the connection of the sender at random offsets:
+ * each new offer is answered with the offset of the valid chunks received, the file is only sent once
+ * but for the chunks interrupted
+ */
+public class RangedFileTransferTest {
+    private static final long TIMEOUT_MS = 10000;
+    private static final int REPLY_TIMEOUT_MS = 5000;
+    private static final long INACTIVITY_TIMEOUT_MS = 1000;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int FILE_SIZE = 16 * CHUNK_SIZE + 1234;
+    private static final int KILLS = 4;
+    // bytes flushed by the sender but lost with its connection, a block of the in-band bytestream
+    private static final int IN_FLIGHT = 4096;
+
+    private StandInXmppServer mServer;
+    private final List<XMPPTCPConnection> mConnections = new ArrayList<XMPPTCPConnection>();
+    private final FileTransferEngine mEngine = new FileTransferEngine(2, 2, INACTIVITY_TIMEOUT_MS);
+    private final int mReplyTimeout = SmackConfiguration.getDefaultPacketReplyTimeout();
+    private final boolean mIbbOnly = FileTransferNegotiator.IBB_ONLY;
+    private final List<File> mFiles = new ArrayList<File>();
+
+    // the results of the transfers of the receiver: the task completed or the exception
+    private final BlockingQueue<Object> mReceived = new LinkedBlockingQueue<Object>();
+    private final List<Long> mOffsets = new ArrayList<Long>();
+
+    @Before
+    public void setUp() throws Exception {
+        SmackConfiguration.setDefaultPacketReplyTimeout(REPLY_TIMEOUT_MS);
+        // the stand-in server has no SOCKS5 proxy
+        FileTransferNegotiator.IBB_ONLY = true;
+        mServer = new StandInXmppServer();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        SmackConfiguration.setDefaultPacketReplyTimeout(mReplyTimeout);
+        FileTransferNegotiator.IBB_ONLY = mIbbOnly;
+        for (XMPPTCPConnection connection : mConnections) {
+            if (connection.isConnected()) {
+                connection.disconnect();
+            }
+        }
+        mEngine.shutdown();
+        mServer.close();
+        for (File file : mFiles) {
+            file.delete();
+        }
+    }
+
+    private XMPPTCPConnection connect(String user, String resource) throws Exception {
+        ConnectionConfiguration conf = new ConnectionConfiguration("127.0.0.1", mServer.getPort(), StandInXmppServer.DOMAIN);
+        conf.setSecurityMode(ConnectionConfiguration.SecurityMode.disabled);
+        conf.setRosterLoadedAtLogin(false);
+        conf.setReconnectionAllowed(false);
+        conf.setSendPresence(false);
+        XMPPTCPConnection connection = new XMPPTCPConnection(conf);
+        connection.connect();
+        connection.login(user, "secret", resource);
+        mConnections.add(connection);
+        return connection;
+    }
+
+    /**
+     * Receives the offers like XmppFileManager: the partial file continues after its valid chunks
+     */
+    private void receiveTo(XMPPTCPConnection connection, final File partial) {
+        final TransferManifest.Store store = TransferHelper.getTransferHelper(new FakeContext(null));
+        new RangedFileTransfer(connection, new RangedFileTransfer.OfferListener() {
+            public void onOffer(final RangedFileTransfer.Offer offer) {
+                final String id = TransferManifest.getId("alice@" + StandInXmppServer.DOMAIN, offer.getName(), offer.getSize(), false);
+                FileTransferEngine.ResumableStreams streams = new FileTransferEngine.ResumableStreams() {
+                    private ChunkedFileOutputStream mOut;
+
+                    public InputStream openInput() throws Exception {
+                        mOut = ChunkedFileOutputStream.open(partial, id, offer.getFrom(), offer.getSize(), CHUNK_SIZE,
+                                offer.isRanged(), store);
+                        synchronized (mOffsets) {
+                            mOffsets.add(mOut.getOffset());
+                        }
+                        return offer.accept(mOut.getOffset(), TIMEOUT_MS);
+                    }
+
+                    public OutputStream openOutput() throws Exception {
+                        return mOut;
+                    }
+
+                    public long getOffset() {
+                        return mOut.getOffset();
+                    }
+                };
+                mEngine.submit(new FileTransferEngine.Task(offer.getFrom(), offer.getName(), offer.getSize(), streams,
+                        new FileTransferEngine.Listener() {
+                            public void onStarted(FileTransferEngine.Task task) {
+                            }
+
+                            public void onProgress(FileTransferEngine.Task task) {
+                            }
+
+                            public void onCompleted(FileTransferEngine.Task task) {
+                                store.delete(id);
+                                mReceived.add(task);
+                            }
+
+                            public void onFailed(FileTransferEngine.Task task, Exception e) {
+                                mReceived.add(e);
+                            }
+                        }));
+            }
+        });
+    }
+
+    /**
+     * Kills the connection of the sender once the bytes written reach the offset
+     */
+    private class KillingOutputStream extends OutputStream {
+        private final OutputStream mOut;
+        private final String mJid;
+        private long mRemaining;
+        private long mWritten;
+
+        KillingOutputStream(OutputStream out, String jid, long killAfter) {
+            mOut = out;
+            mJid = jid;
+            mRemaining = killAfter;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len >= mRemaining) {
+                mOut.write(b, off, (int) mRemaining);
+                mOut.flush();
+                mWritten += mRemaining;
+                mServer.dropConnection(mJid);
+                throw new IOException("Killed");
+            }
+            mOut.write(b, off, len);
+            mRemaining -= len;
+            mWritten += len;
+        }
+
+        long getWritten() {
+            return mWritten;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mOut.close();
+        }
+    }
+
+    private File newFile(byte[] content) throws IOException {
+        File file = File.createTempFile("gtalksms", ".part");
+        mFiles.add(file);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.write(content);
+        } finally {
+            raf.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void aKilledSendResumesFromTheLastValidChunk() throws Exception {
+        byte[] content = new byte[FILE_SIZE];
+        Random random = new Random(20261018);
+        random.nextBytes(content);
+        File partial = newFile(new byte[0]);
+        receiveTo(connect("bob", "receiver"), partial);
+
+        long sent = 0;
+        int attempts = 0;
+        Object result = null;
+        while (!(result instanceof FileTransferEngine.Task)) {
+            assertTrue("Too many attempts: " + mOffsets + ", last " + result, attempts <= KILLS);
+            XMPPTCPConnection connection = connect("alice", "sender");
+            RangedFileTransfer.Accepted accepted = new RangedFileTransfer(connection, new RangedFileTransfer.OfferListener() {
+                public void onOffer(RangedFileTransfer.Offer offer) {
+                }
+            })
+                    .offer("bob@" + StandInXmppServer.DOMAIN + "/receiver", "photo.jpg", FILE_SIZE, "test", TIMEOUT_MS);
+            long offset = accepted.getOffset();
+            assertEquals(0, offset % CHUNK_SIZE);
+
+            // the last attempt is not killed
+            long killAfter = attempts < KILLS ? 1 + random.nextInt((int) (FILE_SIZE - offset - 1)) : Long.MAX_VALUE;
+            KillingOutputStream out = new KillingOutputStream(accepted.getOutputStream(), connection.getUser(), killAfter);
+            InputStream in = new ByteArrayInputStream(content, (int) offset, (int) (FILE_SIZE - offset));
+            byte[] buffer = new byte[FileTransferEngine.BUFFER_SIZE];
+            int read;
+            try {
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+                out.close();
+            } catch (IOException e) {
+                // killed, the connection is lost
+            }
+            sent += out.getWritten();
+            ++attempts;
+            // the receiver gives up once its bytestream is inactive
+            result = mReceived.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            assertTrue("No end of the transfer received", result != null);
+        }
+
+        assertEquals(KILLS + 1, attempts);
+        assertEquals(KILLS + 1, mOffsets.size());
+        assertEquals(0, (long) mOffsets.get(0));
+        for (int i = 1; i < mOffsets.size(); ++i) {
+            assertTrue(mOffsets.toString(), mOffsets.get(i) >= mOffsets.get(i - 1));
+        }
+        // only the chunks interrupted are sent again
+        long resent = sent - FILE_SIZE;
+        assertTrue("Resent " + resent + " bytes", resent <= KILLS * (CHUNK_SIZE + FileTransferEngine.BUFFER_SIZE + IN_FLIGHT));
+
+        byte[] received = new byte[FILE_SIZE];
+        RandomAccessFile raf = new RandomAccessFile(partial, "r");
+        try {
+            assertEquals(FILE_SIZE, raf.length());
+            raf.readFully(received);
+        } finally {
+            raf.close();
+        }
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        assertArrayEquals(digest.digest(content), digest.digest(received));
+    }
+}
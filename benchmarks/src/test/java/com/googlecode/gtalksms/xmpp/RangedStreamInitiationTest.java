@@ -0,0 +1,120 @@
+package com.googlecode.gtalksms.xmpp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smackx.bytestreams.ibb.InBandBytestreamManager;
+import org.jivesoftware.smackx.bytestreams.socks5.Socks5BytestreamManager;
+import org.jivesoftware.smackx.si.packet.StreamInitiation;
+import org.jivesoftware.smackx.xdata.Form;
+import org.junit.Test;
+import org.kxml2.io.KXmlParser;
+import org.xmlpull.v1.XmlPullParser;
+
+/**
+ * The offers and the answers of XEP-0096 through RangedStreamInitiation and its provider
+ */
+public class RangedStreamInitiationTest {
+    private static final List<String> METHODS = Arrays.asList(Socks5BytestreamManager.NAMESPACE,
+            InBandBytestreamManager.NAMESPACE);
+
+    private static RangedStreamInitiation parse(CharSequence xml) throws Exception {
+        XmlPullParser parser = new KXmlParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        parser.setInput(new StringReader(xml.toString()));
+        parser.nextTag();
+        return (RangedStreamInitiation) new RangedStreamInitiation.Provider().parseIQ(parser);
+    }
+
+    @Test
+    public void theOfferIsRanged() throws Exception {
+        RangedStreamInitiation offer = new RangedStreamInitiation();
+        offer.setType(IQ.Type.SET);
+        offer.setSessionID("jsi_1");
+        offer.setMimeType("image/png");
+        StreamInitiation.File file = new StreamInitiation.File("photo.png", 123456);
+        file.setDesc("Sending you: photo.png");
+        file.setRanged(true);
+        offer.setFile(file);
+        offer.setFeatureNegotiationForm(RangedFileTransfer.newStreamMethodForm(Form.TYPE_FORM, METHODS));
+
+        RangedStreamInitiation parsed = parse(offer.getChildElementXML());
+        assertEquals("jsi_1", parsed.getSessionID());
+        assertEquals("image/png", parsed.getMimeType());
+        assertEquals("photo.png", parsed.getFile().getName());
+        assertEquals(123456, parsed.getFile().getSize());
+        assertEquals("Sending you: photo.png", parsed.getFile().getDesc());
+        assertTrue(parsed.getFile().isRanged());
+        assertEquals(0, parsed.getOffset());
+        assertEquals(METHODS, RangedFileTransfer.getStreamMethods(parsed.getFeatureNegotiationForm(), true));
+    }
+
+    @Test
+    public void theAnswerKeepsItsOffset() throws Exception {
+        RangedStreamInitiation answer = new RangedStreamInitiation();
+        answer.setType(IQ.Type.RESULT);
+        answer.setOffset(786432);
+        answer.setFeatureNegotiationForm(RangedFileTransfer.newStreamMethodForm(Form.TYPE_SUBMIT, METHODS));
+
+        String xml = answer.getChildElementXML();
+        assertTrue(xml, xml.contains("<range offset=\"786432\"/>"));
+        RangedStreamInitiation parsed = parse(xml);
+        assertEquals(786432, parsed.getOffset());
+        assertEquals(-1, parsed.getLength());
+        assertNull(parsed.getFile());
+        assertEquals(METHODS, RangedFileTransfer.getStreamMethods(parsed.getFeatureNegotiationForm(), false));
+    }
+
+    @Test
+    public void anAnswerWithoutRangeStartsAtTheBeginning() throws Exception {
+        // the answer of Smack and of the receivers without range support
+        RangedStreamInitiation parsed = parse("<si xmlns='http://jabber.org/protocol/si'>"
+                + "<feature xmlns='http://jabber.org/protocol/feature-neg'><x xmlns='jabber:x:data' type='submit'>"
+                + "<field var='stream-method'><value>http://jabber.org/protocol/ibb</value></field></x></feature></si>");
+        assertEquals(0, parsed.getOffset());
+        assertEquals(-1, parsed.getLength());
+        assertEquals(Arrays.asList(InBandBytestreamManager.NAMESPACE),
+                RangedFileTransfer.selectStreamMethods(RangedFileTransfer.getStreamMethods(parsed.getFeatureNegotiationForm(), false)));
+
+        // without offset the answer is the one of Smack
+        RangedStreamInitiation answer = new RangedStreamInitiation();
+        answer.setType(IQ.Type.RESULT);
+        assertFalse(answer.getChildElementXML(), answer.getChildElementXML().contains("<file"));
+    }
+
+    @Test
+    public void readsTheOfferOfTheSpecification() throws Exception {
+        // the ranged offer and its answer of XEP-0096
+        RangedStreamInitiation offer = parse("<si xmlns='http://jabber.org/protocol/si' id='a0' mime-type='text/plain'"
+                + " profile='http://jabber.org/protocol/si/profile/file-transfer'>"
+                + "<file xmlns='http://jabber.org/protocol/si/profile/file-transfer' name='test.txt' size='1022'"
+                + " hash='552da749930852c69ae5d2141d3766b1' date='1969-07-21T02:56:15Z'>"
+                + "<desc>This is a test. If this were a real file...</desc><range/></file>"
+                + "<feature xmlns='http://jabber.org/protocol/feature-neg'><x xmlns='jabber:x:data' type='form'>"
+                + "<field var='stream-method' type='list-single'>"
+                + "<option><value>http://jabber.org/protocol/bytestreams</value></option>"
+                + "<option><value>jabber:iq:oob</value></option>"
+                + "<option><value>http://jabber.org/protocol/ibb</value></option></field></x></feature></si>");
+        assertEquals("test.txt", offer.getFile().getName());
+        assertEquals(1022, offer.getFile().getSize());
+        assertEquals("552da749930852c69ae5d2141d3766b1", offer.getFile().getHash());
+        assertEquals("This is a test. If this were a real file...", offer.getFile().getDesc());
+        assertTrue(offer.getFile().isRanged());
+        assertEquals(METHODS, RangedFileTransfer.selectStreamMethods(
+                RangedFileTransfer.getStreamMethods(offer.getFeatureNegotiationForm(), true)));
+
+        RangedStreamInitiation answer = parse("<si xmlns='http://jabber.org/protocol/si'>"
+                + "<file xmlns='http://jabber.org/protocol/si/profile/file-transfer'><range offset='252' length='770'/></file>"
+                + "<feature xmlns='http://jabber.org/protocol/feature-neg'><x xmlns='jabber:x:data' type='submit'>"
+                + "<field var='stream-method'><value>http://jabber.org/protocol/bytestreams</value></field></x></feature></si>");
+        assertEquals(252, answer.getOffset());
+        assertEquals(770, answer.getLength());
+    }
+}
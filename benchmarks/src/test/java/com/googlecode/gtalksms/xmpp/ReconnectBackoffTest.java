@@ -0,0 +1,145 @@
+package com.googlecode.gtalksms.xmpp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReconnectBackoffTest {
+    private static final long BASE = ReconnectBackoff.DEFAULT_BASE_DELAY;
+    private static final long MAX = ReconnectBackoff.DEFAULT_MAX_DELAY;
+    private static final long STABLE = ReconnectBackoff.DEFAULT_STABLE_PERIOD;
+
+    /**
+     * Time only moves when the test advances it
+     */
+    private static class VirtualClock implements ReconnectBackoff.Clock {
+        long mNow = 1000;
+
+        public long now() {
+            return mNow;
+        }
+    }
+
+    private VirtualClock mClock;
+    private ReconnectBackoff mBackoff;
+
+    @Before
+    public void setUp() {
+        mClock = new VirtualClock();
+        mBackoff = newBackoff(42);
+    }
+
+    private ReconnectBackoff newBackoff(long seed) {
+        return new ReconnectBackoff(BASE, MAX, STABLE, new Random(seed), mClock);
+    }
+
+    /**
+     * Drives the backoff like XmppManager while the network is down until the given time:
+     * schedules an attempt, sleeps its delay, the attempt fails until the network is back
+     * @return the delays of the attempts, the last one connected
+     */
+    private List<Long> reconnect(ReconnectBackoff backoff, long networkBackAt) {
+        List<Long> delays = new ArrayList<Long>();
+        while (true) {
+            long delay = backoff.nextDelay();
+            delays.add(delay);
+            mClock.mNow += delay;
+            if (mClock.mNow >= networkBackAt) {
+                backoff.onConnected();
+                return delays;
+            }
+        }
+    }
+
+    @Test
+    public void theDelaysStayWithinTheBounds() {
+        long previous = BASE;
+        for (int i = 0; i < 100; ++i) {
+            long delay = mBackoff.nextDelay();
+            assertTrue("delay " + delay, delay >= BASE);
+            assertTrue("delay " + delay, delay <= Math.min(MAX, previous * 3));
+            previous = delay;
+        }
+        assertEquals(100, mBackoff.getAttempt());
+    }
+
+    @Test
+    public void reachesTheMaxDelayDuringALongOutage() {
+        List<Long> delays = reconnect(mBackoff, mClock.mNow + 60 * 60 * 1000);
+        long longest = 0;
+        for (long delay : delays) {
+            longest = Math.max(longest, delay);
+        }
+        // decorrelated jitter: the delays get close to the cap but never above it
+        assertTrue(longest <= MAX);
+        assertTrue(longest > MAX / 2);
+        // an hour of outage costs a few dozen attempts, not the 720 of a fixed 5 s retry
+        assertTrue(delays.size() + " attempts", delays.size() < 60);
+    }
+
+    @Test
+    public void theScheduleIsDeterministic() {
+        List<Long> first = reconnect(newBackoff(7), mClock.mNow + 10 * 60 * 1000);
+        mClock.mNow = 1000;
+        List<Long> second = reconnect(newBackoff(7), mClock.mNow + 10 * 60 * 1000);
+        assertEquals(first, second);
+    }
+
+    @Test
+    public void keepsBackingOffWhileTheLinkFlaps() {
+        // 10 minutes of outage, the delays grow
+        reconnect(mBackoff, mClock.mNow + 10 * 60 * 1000);
+        long lastOfOutage = mBackoff.nextDelay();
+        mClock.mNow += lastOfOutage;
+        mBackoff.onConnected();
+
+        // the connection drops 10 s after each reconnection: no fast retries after a flap
+        for (int flap = 0; flap < 10; ++flap) {
+            mClock.mNow += 10 * 1000;
+            long delay = mBackoff.nextDelay();
+            assertTrue("flap " + flap + " retried in " + delay + "ms", delay > 3 * BASE);
+            mClock.mNow += delay;
+            mBackoff.onConnected();
+            assertEquals(0, mBackoff.getAttempt());
+        }
+    }
+
+    @Test
+    public void startsAgainFromTheBaseDelayAfterAStableConnection() {
+        reconnect(mBackoff, mClock.mNow + 10 * 60 * 1000);
+
+        mClock.mNow += STABLE;
+        long delay = mBackoff.nextDelay();
+        assertTrue(delay >= BASE && delay <= 3 * BASE);
+        assertEquals(1, mBackoff.getAttempt());
+    }
+
+    @Test
+    public void startsAgainFromTheBaseDelayWhenTheNetworkIsBack() {
+        reconnect(mBackoff, mClock.mNow + 10 * 60 * 1000);
+        mClock.mNow += 10 * 1000;
+        assertTrue(mBackoff.nextDelay() > 3 * BASE);
+
+        // the connectivity receiver reports the network: the service reconnects at once,
+        // if that fails the retries are short again
+        mBackoff.onNetworkAvailable();
+        long delay = mBackoff.nextDelay();
+        assertTrue(delay >= BASE && delay <= 3 * BASE);
+        assertEquals(2, mBackoff.getAttempt());
+    }
+
+    @Test
+    public void resetForgetsTheFlaps() {
+        reconnect(mBackoff, mClock.mNow + 10 * 60 * 1000);
+        mClock.mNow += 1000;
+        mBackoff.reset();
+        long delay = mBackoff.nextDelay();
+        assertTrue(delay >= BASE && delay <= 3 * BASE);
+    }
+}
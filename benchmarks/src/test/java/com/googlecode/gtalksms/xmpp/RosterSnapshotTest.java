@@ -0,0 +1,203 @@
+package com.googlecode.gtalksms.xmpp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RosterSnapshotTest {
+    private static final int ROSTER_SIZE = 1000;
+    // XmppBuddies.MIN_BROADCAST_INTERVAL_MS
+    private static final long BROADCAST_INTERVAL_MS = 500;
+
+    private RosterSnapshot.Builder mBuilder;
+    // virtual time of the replay, in ms
+    private long mNow = 10000;
+    private int mBroadcasts;
+    private final Set<String> mBroadcastIds = new HashSet<String>();
+    // the runs posted to the scheduler, and their due times
+    private final List<Runnable> mPosted = new ArrayList<Runnable>();
+    private final List<Long> mDue = new ArrayList<Long>();
+    private BroadcastThrottle mThrottle;
+
+    @Before
+    public void setUp() {
+        mBuilder = new RosterSnapshot.Builder();
+        // like XmppBuddies, on the virtual time of the replay
+        mThrottle = new BroadcastThrottle(BROADCAST_INTERVAL_MS, new Runnable() {
+            public void run() {
+                if (mBuilder.hasChanges()) {
+                    broadcast();
+                }
+            }
+        }, new BroadcastThrottle.Scheduler() {
+            public boolean postDelayed(Runnable action, long delayMs) {
+                mPosted.add(action);
+                mDue.add(mNow + delayMs);
+                return true;
+            }
+        }, new ReconnectBackoff.Clock() {
+            public long now() {
+                return mNow;
+            }
+        });
+    }
+
+    private static String jid(int i) {
+        return "friend" + i + "@example.com";
+    }
+
+    /**
+     * XmppBuddies.scheduleBroadcast(), then the runs due at the current time
+     */
+    private void maybeBroadcast() {
+        mThrottle.schedule();
+        // a single run is pending at a time
+        assertTrue(mPosted.size() <= 1);
+        List<Runnable> due = new ArrayList<Runnable>();
+        for (int i = 0; i < mDue.size();) {
+            if (mDue.get(i) <= mNow) {
+                mDue.remove(i);
+                due.add(mPosted.remove(i));
+            } else {
+                ++i;
+            }
+        }
+        for (Runnable run : due) {
+            run.run();
+        }
+    }
+
+    private void broadcast() {
+        long version = mBuilder.getSnapshot().getVersion();
+        RosterSnapshot snapshot = mBuilder.publish();
+        assertEquals(version + 1, snapshot.getVersion());
+        for (String id : snapshot.getChangedIds()) {
+            mBroadcastIds.add(id);
+        }
+        mBroadcasts++;
+    }
+
+    /**
+     * XmppBuddies.retrieveFriendList(): the entries and their presences in one batch
+     */
+    private void loadRoster() {
+        mBuilder.clear();
+        for (int i = 0; i < ROSTER_SIZE; ++i) {
+            mBuilder.setEntry(jid(i), "Friend " + i);
+            if (i % 2 == 0) {
+                mBuilder.setPresence(jid(i) + "/phone", XmppFriend.ONLINE, "mobile");
+            }
+        }
+        maybeBroadcast();
+    }
+
+    @Test
+    public void replaysA1000EntryRoster() {
+        loadRoster();
+        assertEquals(1, mBroadcasts);
+        assertEquals(ROSTER_SIZE, mBroadcastIds.size());
+        assertEquals(ROSTER_SIZE, mBuilder.getSnapshot().size());
+
+        // the presences of every resource arrive after the roster, one per ms
+        mBroadcastIds.clear();
+        for (int i = 0; i < ROSTER_SIZE; ++i) {
+            mNow++;
+            mBuilder.setPresence(jid(i) + "/laptop", i % 3 == 0 ? XmppFriend.AWAY : XmppFriend.ONLINE, "at work");
+            maybeBroadcast();
+            mNow++;
+            mBuilder.setPresence(jid(i) + "/laptop", i % 3 == 0 ? XmppFriend.AWAY : XmppFriend.ONLINE, "at work");
+            maybeBroadcast();
+        }
+        mNow += BROADCAST_INTERVAL_MS;
+        maybeBroadcast();
+
+        // 1 broadcast for the roster, 4 for 2 s of presences, one per friend and presence before
+        assertEquals(5, mBroadcasts);
+        assertEquals(ROSTER_SIZE, mBroadcastIds.size());
+        assertFalse(mBuilder.hasChanges());
+
+        RosterSnapshot snapshot = mBuilder.getSnapshot();
+        assertEquals(5, snapshot.getVersion());
+        assertEquals(ROSTER_SIZE, snapshot.size());
+        XmppFriend friend = snapshot.get(jid(3));
+        assertEquals("Friend 3", friend.mName);
+        assertEquals(XmppFriend.AWAY, friend.mState);
+        assertEquals(1, friend.mLocations.size());
+        // the first resource in JID order gives the state
+        friend = snapshot.get(jid(4));
+        assertEquals(2, friend.mLocations.size());
+        assertEquals(XmppFriend.ONLINE, friend.mState);
+        assertEquals("at work", friend.mStatus);
+    }
+
+    @Test
+    public void anIdenticalPresenceIsNotAChange() {
+        mBuilder.setEntry(jid(1), "Friend 1");
+        mBuilder.setPresence(jid(1) + "/phone", XmppFriend.ONLINE, "hi");
+        RosterSnapshot snapshot = mBuilder.publish();
+
+        mBuilder.setPresence(jid(1) + "/phone", XmppFriend.ONLINE, "hi");
+        mBuilder.setEntry(jid(1), "Friend 1");
+        assertFalse(mBuilder.hasChanges());
+        assertSame(snapshot, mBuilder.publish());
+    }
+
+    @Test
+    public void anOfflinePresenceWithoutResourceClearsTheResources() {
+        mBuilder.setEntry(jid(1), "Friend 1");
+        mBuilder.setPresence(jid(1) + "/phone", XmppFriend.ONLINE, "");
+        mBuilder.setPresence(jid(1) + "/laptop", XmppFriend.BUSY, "");
+        assertEquals(2, mBuilder.publish().get(jid(1)).mLocations.size());
+
+        mBuilder.setPresence(jid(1) + "/phone", XmppFriend.OFFLINE, "");
+        XmppFriend friend = mBuilder.publish().get(jid(1));
+        assertEquals(XmppFriend.BUSY, friend.mState);
+
+        mBuilder.setPresence(jid(1), XmppFriend.OFFLINE, "gone");
+        friend = mBuilder.publish().get(jid(1));
+        assertEquals(XmppFriend.OFFLINE, friend.mState);
+        assertEquals("gone", friend.mStatus);
+        assertTrue(friend.mLocations.isEmpty());
+    }
+
+    @Test
+    public void theSnapshotsAreImmutable() {
+        mBuilder.setEntry(jid(1), "Friend 1");
+        mBuilder.setEntry(jid(2), "Friend 2");
+        RosterSnapshot first = mBuilder.publish();
+
+        mBuilder.removeEntry(jid(1));
+        mBuilder.setEntry(jid(2), "Renamed");
+        RosterSnapshot second = mBuilder.publish();
+
+        assertEquals(2, first.size());
+        assertEquals("Friend 2", first.get(jid(2)).mName);
+        assertNull(second.get(jid(1)));
+        assertEquals("Renamed", second.get(jid(2)).mName);
+        assertArrayEquals(new String[] { jid(1), jid(2) }, second.getChangedIds());
+    }
+
+    @Test
+    public void aReloadReportsTheRemovedEntries() {
+        loadRoster();
+        mBuilder.clear();
+        for (int i = 0; i < ROSTER_SIZE - 1; ++i) {
+            mBuilder.setEntry(jid(i), "Friend " + i);
+        }
+        RosterSnapshot snapshot = mBuilder.publish();
+        assertEquals(ROSTER_SIZE - 1, snapshot.size());
+        assertNull(snapshot.get(jid(ROSTER_SIZE - 1)));
+        assertEquals(ROSTER_SIZE, snapshot.getChangedIds().length);
+    }
+}
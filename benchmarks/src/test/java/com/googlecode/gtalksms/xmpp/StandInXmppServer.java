@@ -0,0 +1,301 @@
+package com.googlecode.gtalksms.xmpp;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Minimal in-process XMPP server for the tests: SASL PLAIN accepting any password, resource binding,
+ * a result for every other IQ. The stanzas addressed to another connected client are routed to it,
+ * the other chat messages are queued for the test, which can send stanzas to the last connected client
+ * and drop the TCP connections.
+ */
+public class StandInXmppServer {
+    public static final String DOMAIN = "example.com";
+    public static final String FULL_JID = "user@" + DOMAIN + "/test";
+
+    private static final Pattern ID = Pattern.compile("\\sid=[\"']([^\"']*)[\"']");
+    private static final Pattern TYPE = Pattern.compile("\\stype=[\"']([^\"']*)[\"']");
+    private static final Pattern TO = Pattern.compile("\\sto=[\"']([^\"']*)[\"']");
+    private static final Pattern FROM = Pattern.compile("\\sfrom=[\"']([^\"']*)[\"']");
+    private static final Pattern RESOURCE = Pattern.compile("<resource>([^<]*)</resource>");
+
+    private final ServerSocket mServer;
+    private final Thread mThread;
+    private final BlockingQueue<String> mMessages = new LinkedBlockingQueue<String>();
+    private final AtomicInteger mIqCount = new AtomicInteger();
+    private volatile String mErrorNamespace;
+    private volatile String mErrorCondition;
+    private volatile Socket mClient;
+    // the bound clients, by full JID
+    private final Map<String, Socket> mClients = new ConcurrentHashMap<String, Socket>();
+
+    public StandInXmppServer() throws IOException {
+        mServer = new ServerSocket(0, 5, InetAddress.getByName("127.0.0.1"));
+        mThread = new Thread(new Runnable() {
+            public void run() {
+                while (!mServer.isClosed()) {
+                    try {
+                        final Socket client = mServer.accept();
+                        mClient = client;
+                        Thread thread = new Thread(new Runnable() {
+                            public void run() {
+                                try {
+                                    serve(client);
+                                } catch (IOException e) {
+                                    // dropped by the test or closed
+                                }
+                            }
+                        }, "StandInXmppServer.Client");
+                        thread.setDaemon(true);
+                        thread.start();
+                    } catch (IOException e) {
+                        // closed
+                    }
+                }
+            }
+        }, "StandInXmppServer");
+        mThread.start();
+    }
+
+    public int getPort() {
+        return mServer.getLocalPort();
+    }
+
+    /**
+     * @return the next chat message received from the client, null after the timeout
+     */
+    public String takeMessage(long timeoutMs) throws InterruptedException {
+        return mMessages.poll(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Answers the IQs of the namespace with an error of the condition, never if the condition is null,
+     * or with a result again if the namespace is null
+     */
+    public void setIqError(String namespace, String condition) {
+        mErrorNamespace = namespace;
+        mErrorCondition = condition;
+    }
+
+    /**
+     * @return the number of IQ requests received from the client
+     */
+    public int getIqCount() {
+        return mIqCount.get();
+    }
+
+    public void send(String xml) throws IOException {
+        write(mClient, xml);
+    }
+
+    /**
+     * Closes the TCP connection of the last connected client without closing the XML stream, like a lost network
+     */
+    public void dropConnection() throws IOException {
+        drop(mClient);
+    }
+
+    /**
+     * Closes the TCP connection of the client bound to the full JID
+     */
+    public void dropConnection(String fullJid) throws IOException {
+        drop(mClients.get(fullJid));
+    }
+
+    private static void drop(Socket client) throws IOException {
+        if (client != null && !client.isClosed()) {
+            client.setSoLinger(true, 0);
+            client.close();
+        }
+    }
+
+    public void close() throws IOException, InterruptedException {
+        mServer.close();
+        dropConnection();
+        for (Socket client : new ArrayList<Socket>(mClients.values())) {
+            drop(client);
+        }
+        mThread.join(1000);
+    }
+
+    private static synchronized void write(Socket client, String xml) throws IOException {
+        OutputStream out = client.getOutputStream();
+        out.write(xml.getBytes("UTF-8"));
+        out.flush();
+    }
+
+    private void serve(Socket client) throws IOException {
+        try {
+            serve(client, new InputStreamReader(client.getInputStream(), "UTF-8"));
+        } finally {
+            for (Map.Entry<String, Socket> entry : mClients.entrySet()) {
+                if (entry.getValue() == client) {
+                    mClients.remove(entry.getKey(), client);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket client, Reader in) throws IOException {
+        StringBuilder buffer = new StringBuilder();
+        boolean authenticated = false;
+        String user = "user";
+        String jid = FULL_JID;
+        char[] chunk = new char[4096];
+        int count;
+        while ((count = in.read(chunk)) != -1) {
+            buffer.append(chunk, 0, count);
+            String element;
+            while ((element = nextElement(buffer)) != null) {
+                if (element.startsWith("<stream:stream")) {
+                    write(client, "<stream:stream xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams'"
+                            + " from='" + DOMAIN + "' id='s" + System.nanoTime() + "' version='1.0'><stream:features>"
+                            + (authenticated
+                                ? "<bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'/><session xmlns='urn:ietf:params:xml:ns:xmpp-session'/>"
+                                : "<mechanisms xmlns='urn:ietf:params:xml:ns:xmpp-sasl'><mechanism>PLAIN</mechanism></mechanisms>")
+                            + "</stream:features>");
+                } else if (element.startsWith("<auth")) {
+                    authenticated = true;
+                    user = getUser(element, user);
+                    write(client, "<success xmlns='urn:ietf:params:xml:ns:xmpp-sasl'/>");
+                } else if (element.startsWith("<iq") && element.contains("urn:ietf:params:xml:ns:xmpp-bind")) {
+                    Matcher resource = RESOURCE.matcher(element);
+                    jid = user + "@" + DOMAIN + "/" + (resource.find() ? resource.group(1) : "test");
+                    mClients.put(jid, client);
+                    write(client, "<iq type='result' id='" + attribute(ID, element) + "'><bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'><jid>"
+                            + jid + "</jid></bind></iq>");
+                } else if (route(jid, element)) {
+                    continue;
+                } else if (element.startsWith("<iq")) {
+                    onIq(client, jid, element);
+                } else if (element.startsWith("<message")) {
+                    mMessages.add(element);
+                } else if (element.startsWith("</stream:stream")) {
+                    client.close();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Forwards the stanza to the client bound to its destination, from the sender
+     * @return false if the destination is not a connected client
+     */
+    private boolean route(String from, String element) throws IOException {
+        String to = element.startsWith("<iq") || element.startsWith("<message") || element.startsWith("<presence")
+                ? attribute(TO, element) : null;
+        Socket client = to == null ? null : mClients.get(to);
+        if (client == null) {
+            return false;
+        }
+        if (attribute(FROM, element) == null) {
+            String name = element.substring(1).split("[\\s>/]")[0];
+            element = "<" + name + " from='" + from + "'" + element.substring(name.length() + 1);
+        }
+        try {
+            write(client, element);
+        } catch (IOException e) {
+            // dropped, the sender times out
+        }
+        return true;
+    }
+
+    /**
+     * @return the user of the SASL PLAIN authentication
+     */
+    private static String getUser(String auth, String defaultUser) {
+        try {
+            String[] credentials = new String(Base64.getDecoder().decode(
+                    auth.substring(auth.indexOf('>') + 1, auth.lastIndexOf('<')).trim()), "UTF-8").split("\0");
+            return credentials.length > 1 && credentials[1].length() > 0 ? credentials[1] : defaultUser;
+        } catch (IOException e) {
+            return defaultUser;
+        } catch (RuntimeException e) {
+            return defaultUser;
+        }
+    }
+
+    private void onIq(Socket client, String jid, String iq) throws IOException {
+        String type = attribute(TYPE, iq);
+        if ("result".equals(type) || "error".equals(type)) {
+            return;
+        }
+        mIqCount.incrementAndGet();
+        String id = attribute(ID, iq);
+        // Smack only takes a reply from the address of the request
+        String to = attribute(TO, iq);
+        String from = to == null ? "" : " from='" + to + "'";
+        String errorNamespace = mErrorNamespace;
+        if (errorNamespace != null && iq.contains(errorNamespace)) {
+            if (mErrorCondition == null) {
+                return;
+            }
+            write(client, "<iq type='error' id='" + id + "'" + from + " to='" + jid + "'><error type='cancel'><"
+                    + mErrorCondition + " xmlns='urn:ietf:params:xml:ns:xmpp-stanzas'/></error></iq>");
+        } else {
+            write(client, "<iq type='result' id='" + id + "'" + from + " to='" + jid + "'/>");
+        }
+    }
+
+    public static String attribute(Pattern pattern, String element) {
+        Matcher m = pattern.matcher(element.substring(0, element.indexOf('>')));
+        return m.find() ? m.group(1) : null;
+    }
+
+    public static String getId(String element) {
+        return attribute(ID, element);
+    }
+
+    /**
+     * Removes and returns the next complete top level element (or stream tag) of the buffer
+     */
+    private static String nextElement(StringBuilder buffer) {
+        int start = buffer.indexOf("<");
+        if (start < 0) {
+            return null;
+        }
+        if (buffer.indexOf("<?", start) == start) {
+            int end = buffer.indexOf("?>", start);
+            if (end < 0) {
+                return null;
+            }
+            buffer.delete(0, end + 2);
+            return nextElement(buffer);
+        }
+        int tagEnd = buffer.indexOf(">", start);
+        if (tagEnd < 0) {
+            return null;
+        }
+        String tag = buffer.substring(start, tagEnd + 1);
+        int end;
+        if (tag.startsWith("<stream:stream") || tag.startsWith("</") || tag.endsWith("/>")) {
+            end = tagEnd + 1;
+        } else {
+            String name = tag.substring(1).split("[\\s>/]")[0];
+            int close = buffer.indexOf("</" + name + ">", tagEnd);
+            if (close < 0) {
+                return null;
+            }
+            end = close + name.length() + 3;
+        }
+        String res = buffer.substring(start, end);
+        buffer.delete(0, end);
+        return res;
+    }
+}
@@ -0,0 +1,192 @@
+package com.googlecode.gtalksms.xmpp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.AbstractConnectionListener;
+import org.jivesoftware.smack.ConnectionConfiguration;
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.filter.PacketIDFilter;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.tcp.XMPPTCPConnection;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.gtalksms.XmppManager;
+import com.googlecode.gtalksms.tools.Metrics;
+
+/**
+ * Drops the TCP connection of a stand-in server in the middle of a conversation,
+ * only the messages that a contact answering the receipts didn't acknowledge are sent again
+ */
+public class XmppDeliveryReceiptsTest {
+    private static final long TIMEOUT_MS = 5000;
+    private static final String BOB = "bob@" + StandInXmppServer.DOMAIN;
+    private static final String ALICE = "alice@" + StandInXmppServer.DOMAIN;
+
+    private StandInXmppServer mServer;
+    private XMPPTCPConnection mConnection;
+    private final CountDownLatch mClosedOnError = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new StandInXmppServer();
+        ConnectionConfiguration conf = new ConnectionConfiguration("127.0.0.1", mServer.getPort(), StandInXmppServer.DOMAIN);
+        conf.setSecurityMode(ConnectionConfiguration.SecurityMode.disabled);
+        conf.setRosterLoadedAtLogin(false);
+        conf.setReconnectionAllowed(false);
+        mConnection = new XMPPTCPConnection(conf);
+
+        final List<XmppConnectionChangeListener> listeners = new ArrayList<XmppConnectionChangeListener>();
+        XmppDeliveryReceipts.getInstance().registerListener(new XmppManager() {
+            @Override
+            public void registerConnectionChangeListener(XmppConnectionChangeListener listener) {
+                listeners.add(listener);
+            }
+        });
+        mConnection.connect();
+        for (XmppConnectionChangeListener listener : listeners) {
+            listener.newConnection(mConnection);
+        }
+        mConnection.addConnectionListener(new AbstractConnectionListener() {
+            @Override
+            public void connectionClosedOnError(Exception e) {
+                mClosedOnError.countDown();
+            }
+        });
+        mConnection.login("user", "secret", "test");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mConnection.isConnected()) {
+            mConnection.disconnect();
+        }
+        mServer.close();
+    }
+
+    private void send(String to, String body) throws Exception {
+        Message msg = new Message(to, Message.Type.chat);
+        msg.setBody(body);
+        mConnection.sendPacket(msg);
+    }
+
+    /**
+     * @return the next chat message with a body received by the server, the receipts are skipped
+     */
+    private String takeMessage() throws InterruptedException {
+        while (true) {
+            String msg = mServer.takeMessage(TIMEOUT_MS);
+            assertNotNull("no message", msg);
+            if (msg.contains("<body>")) {
+                return msg;
+            }
+        }
+    }
+
+    /**
+     * A message from the contact requesting a receipt, the contact advertises the receipts
+     */
+    private void requestReceipt(String from, String id) throws Exception {
+        mServer.send("<message from='" + from + "/phone' to='" + StandInXmppServer.FULL_JID + "' type='chat' id='" + id + "'>"
+                + "<body>hi</body><request xmlns='urn:xmpp:receipts'/></message>");
+    }
+
+    private void sendReceipt(String from, String id) throws Exception {
+        mServer.send("<message from='" + from + "/phone' to='" + StandInXmppServer.FULL_JID + "' id='r" + id + "'>"
+                + "<received xmlns='urn:xmpp:receipts' id='" + id + "'/></message>");
+    }
+
+    /**
+     * Waits until the client has processed the stanzas sent so far, the listeners are called in order
+     */
+    private void sync() throws Exception {
+        final String id = "sync" + System.nanoTime();
+        final CountDownLatch received = new CountDownLatch(1);
+        PacketListener listener = new PacketListener() {
+            public void processPacket(Packet packet) {
+                received.countDown();
+            }
+        };
+        mConnection.addPacketListener(listener, new PacketIDFilter(id));
+        mServer.send("<message from='server@" + StandInXmppServer.DOMAIN + "' to='" + StandInXmppServer.FULL_JID
+                + "' type='headline' id='" + id + "'/>");
+        assertTrue(received.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        mConnection.removePacketListener(listener);
+    }
+
+    /**
+     * Sends the message, the server acknowledges it on behalf of the contact
+     */
+    private void sendAndAck(String to, String body) throws Exception {
+        send(to, body);
+        sendReceipt(to, StandInXmppServer.getId(takeMessage()));
+        sync();
+    }
+
+    private static List<String> bodies(List<Message> messages) {
+        List<String> res = new ArrayList<String>();
+        for (Message msg : messages) {
+            res.add(msg.getBody());
+        }
+        return res;
+    }
+
+    @Test
+    public void requeuesOnlyTheUnackedMessagesOfTheContactsAnsweringTheReceipts() throws Exception {
+        XmppDeliveryReceipts receipts = XmppDeliveryReceipts.getInstance();
+        receipts.takeUnacked(Long.MAX_VALUE);
+        Metrics.Counter acked = Metrics.counter("xmpp.acked");
+        long ackedBefore = acked.get();
+
+        // bob requests receipts and acknowledges the messages
+        requestReceipt(BOB, "b1");
+        // alice requests receipts but never sends one
+        requestReceipt(ALICE, "a1");
+        sync();
+        sendAndAck(BOB, "first");
+        // bob is known to answer, the next messages are kept until acknowledged
+        sendAndAck(BOB, "delivered");
+        assertEquals(ackedBefore + 1, acked.get());
+
+        // the network is lost before bob's client received the next message
+        send(BOB, "lost");
+        send(ALICE, "to alice");
+        takeMessage();
+        takeMessage();
+        mServer.dropConnection();
+        assertTrue(mClosedOnError.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        // alice may have received it without answering, it isn't sent twice
+        List<Message> unacked = receipts.takeUnacked(60 * 1000);
+        assertEquals(1, unacked.size());
+        assertEquals("lost", unacked.get(0).getBody());
+        assertEquals(BOB, unacked.get(0).getTo());
+        assertEquals(0, receipts.takeUnacked(60 * 1000).size());
+    }
+
+    @Test
+    public void doesNotKeepTheMessagesOfAContactThatNeverAcked() throws Exception {
+        XmppDeliveryReceipts receipts = XmppDeliveryReceipts.getInstance();
+        receipts.takeUnacked(Long.MAX_VALUE);
+
+        requestReceipt("carol@" + StandInXmppServer.DOMAIN, "c1");
+        sync();
+        send("carol@" + StandInXmppServer.DOMAIN, "first");
+        send("carol@" + StandInXmppServer.DOMAIN, "second");
+        takeMessage();
+        takeMessage();
+        mServer.dropConnection();
+        assertTrue(mClosedOnError.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        assertEquals(new ArrayList<String>(), bodies(receipts.takeUnacked(60 * 1000)));
+    }
+}
@@ -0,0 +1,109 @@
+package com.googlecode.gtalksms.xmpp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class XmppMucRejoinerTest {
+    private static final int THREADS = 4;
+    private static final long TIMEOUT_MS = 300;
+    // like the 1 s sleep of Openfire, shorter than the timeout of a room
+    private static final long SLOW_MS = 150;
+
+    private final CountDownLatch mNeverAnswered = new CountDownLatch(1);
+    private final Set<String> mRejoined = Collections.synchronizedSet(new HashSet<String>());
+
+    @After
+    public void tearDown() {
+        mNeverAnswered.countDown();
+    }
+
+    /**
+     * The rooms named "slow..." take SLOW_MS, "silent..." never answer, "deaf..." never answer and ignore
+     * the interrupts, the others answer at once
+     */
+    private final XmppMucRejoiner.Rejoin<String> mRejoin = new XmppMucRejoiner.Rejoin<String>() {
+        public void rejoin(String room) {
+            if (room.startsWith("slow")) {
+                sleep(SLOW_MS);
+            } else if (room.startsWith("silent")) {
+                sleep(Long.MAX_VALUE);
+                return;
+            } else if (room.startsWith("deaf")) {
+                while (mNeverAnswered.getCount() > 0) {
+                    try {
+                        mNeverAnswered.await();
+                    } catch (InterruptedException e) {
+                        // ignored
+                    }
+                }
+                return;
+            }
+            mRejoined.add(room);
+        }
+    };
+
+    private static boolean sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+            return true;
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    @Test
+    public void theQueuedRoomsAreNotTimedOut() throws InterruptedException {
+        // 40 rooms on 4 threads, each slower than a tenth of the timeout: far longer than the timeout in total
+        List<String> rooms = new ArrayList<String>();
+        for (int i = 0; i < 40; ++i) {
+            rooms.add("slow" + i);
+        }
+
+        long start = System.nanoTime();
+        List<String> timedOut = new XmppMucRejoiner(THREADS, TIMEOUT_MS).run(rooms, mRejoin);
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(Collections.<String>emptyList(), timedOut);
+        assertEquals(40, mRejoined.size());
+        assertTrue("rejoined in " + elapsedMs + "ms", elapsedMs >= 10 * SLOW_MS && elapsedMs > TIMEOUT_MS);
+    }
+
+    @Test
+    public void theRoomsThatNeverAnswerTimeOutAlone() throws InterruptedException {
+        List<String> rooms = new ArrayList<String>();
+        rooms.add("silent0");
+        rooms.add("deaf0");
+        rooms.add("silent1");
+        rooms.add("deaf1");
+        for (int i = 0; i < 12; ++i) {
+            rooms.add((i % 2 == 0 ? "slow" : "fast") + i);
+        }
+
+        long start = System.nanoTime();
+        List<String> timedOut = new XmppMucRejoiner(THREADS, TIMEOUT_MS).run(rooms, mRejoin);
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // all the threads were held by the rooms that never answer, the rooms after them ran once they timed out
+        assertEquals(new HashSet<String>(rooms.subList(0, 4)), new HashSet<String>(timedOut));
+        assertEquals(12, mRejoined.size());
+        // the deaf rooms don't hold their threads, the 6 slow rooms run 4 at a time after the timeout
+        assertTrue("rejoined in " + elapsedMs + "ms", elapsedMs < TIMEOUT_MS + 4 * SLOW_MS);
+    }
+
+    @Test
+    public void nothingToRejoin() throws InterruptedException {
+        assertEquals(Collections.<String>emptyList(),
+                new XmppMucRejoiner(THREADS, TIMEOUT_MS).run(new ArrayList<String>(), mRejoin));
+    }
+}
@@ -0,0 +1,124 @@
+package com.googlecode.gtalksms.xmpp;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jivesoftware.smack.ConnectionConfiguration;
+import org.jivesoftware.smack.SmackConfiguration;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.XMPPError;
+import org.jivesoftware.smack.tcp.XMPPTCPConnection;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.gtalksms.XmppManager;
+
+/**
+ * Sends the messages without destination to the resources of a stand-in server: they are sent one by one
+ * when the multiple recipients message fails, only a refusal of the server is kept until the next connection
+ */
+public class XmppMultipleRecipientManagerTest {
+    private static final long TIMEOUT_MS = 5000;
+    private static final int REPLY_TIMEOUT_MS = 300;
+    // the disco#info and disco#items requests looking for a multiple recipients service
+    private static final String DISCO = "http://jabber.org/protocol/disco#";
+    private static final List<String> RESOURCES = Arrays.asList(
+            "bob@" + StandInXmppServer.DOMAIN + "/laptop", "bob@" + StandInXmppServer.DOMAIN + "/desktop");
+
+    private StandInXmppServer mServer;
+    private XMPPTCPConnection mConnection;
+    private final int mReplyTimeout = SmackConfiguration.getDefaultPacketReplyTimeout();
+    private final List<XmppConnectionChangeListener> mListeners = new ArrayList<XmppConnectionChangeListener>();
+
+    @Before
+    public void setUp() throws Exception {
+        SmackConfiguration.setDefaultPacketReplyTimeout(REPLY_TIMEOUT_MS);
+        mServer = new StandInXmppServer();
+        XmppMultipleRecipientManager.registerListener(new XmppManager() {
+            @Override
+            public void registerConnectionChangeListener(XmppConnectionChangeListener listener) {
+                mListeners.add(listener);
+            }
+        });
+        mConnection = connect();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        SmackConfiguration.setDefaultPacketReplyTimeout(mReplyTimeout);
+        if (mConnection.isConnected()) {
+            mConnection.disconnect();
+        }
+        mServer.close();
+    }
+
+    private XMPPTCPConnection connect() throws Exception {
+        ConnectionConfiguration conf = new ConnectionConfiguration("127.0.0.1", mServer.getPort(), StandInXmppServer.DOMAIN);
+        conf.setSecurityMode(ConnectionConfiguration.SecurityMode.disabled);
+        conf.setRosterLoadedAtLogin(false);
+        conf.setReconnectionAllowed(false);
+        XMPPTCPConnection connection = new XMPPTCPConnection(conf);
+        connection.connect();
+        for (XmppConnectionChangeListener listener : mListeners) {
+            listener.newConnection(connection);
+        }
+        connection.login("user", "secret", "test");
+        return connection;
+    }
+
+    private static Message newMessage(String body) {
+        Message msg = new Message();
+        msg.setType(Message.Type.chat);
+        msg.setBody(body);
+        return msg;
+    }
+
+    private void assertReceivedOneByOne(String body) throws InterruptedException {
+        for (String resource : RESOURCES) {
+            String message = mServer.takeMessage(TIMEOUT_MS);
+            assertNotNull(message);
+            assertTrue(message, message.contains(resource) && message.contains(body));
+        }
+        assertNull(mServer.takeMessage(100));
+    }
+
+    @Test
+    public void aServerNotAnsweringIsAskedAgain() throws Exception {
+        // no answer to the service discovery
+        mServer.setIqError(DISCO, null);
+
+        assertTrue(XmppMultipleRecipientManager.send(mConnection, newMessage("first"), RESOURCES));
+        assertReceivedOneByOne("first");
+        assertFalse(XmppMultipleRecipientManager.isMultipleRecipientsUnsupported());
+
+        int iqCount = mServer.getIqCount();
+        assertTrue(XmppMultipleRecipientManager.send(mConnection, newMessage("second"), RESOURCES));
+        assertReceivedOneByOne("second");
+        assertTrue(mServer.getIqCount() > iqCount);
+    }
+
+    @Test
+    public void aLostConnectionIsNotKept() throws Exception {
+        mConnection.disconnect();
+
+        assertFalse(XmppMultipleRecipientManager.send(mConnection, newMessage("lost"), RESOURCES));
+        assertFalse(XmppMultipleRecipientManager.isMultipleRecipientsUnsupported());
+        assertNull(mServer.takeMessage(100));
+    }
+
+    @Test
+    public void onlyTheRefusalsOfTheServerAreKept() {
+        assertTrue(XmppMultipleRecipientManager.isUnsupported(new XMPPError(XMPPError.Condition.feature_not_implemented)));
+        assertTrue(XmppMultipleRecipientManager.isUnsupported(new XMPPError(XMPPError.Condition.service_unavailable)));
+        assertFalse(XmppMultipleRecipientManager.isUnsupported(new XMPPError(XMPPError.Condition.internal_server_error)));
+        assertFalse(XmppMultipleRecipientManager.isUnsupported(new XMPPError(XMPPError.Condition.remote_server_timeout)));
+        assertFalse(XmppMultipleRecipientManager.isUnsupported(null));
+    }
+}
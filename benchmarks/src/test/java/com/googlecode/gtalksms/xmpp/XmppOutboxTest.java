@@ -0,0 +1,127 @@
+package com.googlecode.gtalksms.xmpp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import android.os.PowerManager;
+
+import com.googlecode.gtalksms.tools.Metrics;
+import com.googlecode.gtalksms.tools.TokenBucket;
+
+public class XmppOutboxTest {
+    private static final long TIMEOUT_MS = 5000;
+
+    /**
+     * Records the sent messages, the first one blocks until the gate is opened
+     */
+    private static class BlockingTransport implements XmppOutbox.Transport {
+        final CountDownLatch mFirstTaken = new CountDownLatch(1);
+        final CountDownLatch mGate = new CountDownLatch(1);
+        final List<String> mSent = new ArrayList<String>();
+
+        public boolean isConnected() {
+            return true;
+        }
+
+        public void send(XmppMsg msg, String to) {
+            mFirstTaken.countDown();
+            try {
+                mGate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (this) {
+                mSent.add(msg.generateTxt().trim());
+                notifyAll();
+            }
+        }
+
+        synchronized List<String> awaitSent(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (mSent.size() < count && System.currentTimeMillis() < deadline) {
+                wait(10);
+            }
+            return new ArrayList<String>(mSent);
+        }
+    }
+
+    @Test
+    public void theNotificationsAreQueuedWhenTheQueueIsFull() throws Exception {
+        Metrics.Counter rejected = Metrics.counter("xmpp.outbox.rejected");
+        Metrics.Counter overflow = Metrics.counter("xmpp.outbox.overflow");
+        long rejectedBefore = rejected.get();
+        long overflowBefore = overflow.get();
+
+        BlockingTransport transport = new BlockingTransport();
+        XmppOutbox outbox = new XmppOutbox(transport, 2, new TokenBucket(1000, 100), null);
+        assertTrue(outbox.offer(new XmppMsg("sending"), null, true, 0));
+        assertTrue(transport.mFirstTaken.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        // the sender is busy, the queue of the default recipient fills up
+        assertTrue(outbox.offer(new XmppMsg("1"), null, true, 0));
+        assertTrue(outbox.offer(new XmppMsg("2"), null, true, 0));
+        assertFalse(outbox.offer(new XmppMsg("dropped"), null, true, 0));
+        assertEquals(rejectedBefore + 1, rejected.get());
+
+        outbox.add(new XmppMsg("SMS from Alice"), null, true);
+        assertEquals(overflowBefore + 1, overflow.get());
+        assertEquals(3, outbox.getPendingCount());
+
+        transport.mGate.countDown();
+        assertEquals(Arrays.asList("sending", "1", "2", "SMS from Alice"), transport.awaitSent(4));
+    }
+
+    @Test
+    public void theNotificationsAreCoalescedWithTheQueuedMessages() throws Exception {
+        BlockingTransport transport = new BlockingTransport();
+        transport.mGate.countDown();
+        XmppOutbox outbox = new XmppOutbox(transport, 2, new TokenBucket(1000, 100), null);
+        assertTrue(outbox.offer(new XmppMsg("battery 15%"), null, false, 0));
+        outbox.add(new XmppMsg("SMS from Bob"), null, false);
+
+        assertEquals(Arrays.asList("battery 15%\nSMS from Bob"), transport.awaitSent(1));
+    }
+
+    private static boolean awaitReleased(PowerManager.WakeLock wakeLock) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (wakeLock.isHeld() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        return !wakeLock.isHeld();
+    }
+
+    @Test
+    public void theWakeLockIsHeldUntilTheLastMessageIsSent() throws Exception {
+        PowerManager.WakeLock wakeLock = new PowerManager().newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "Outbox");
+        BlockingTransport transport = new BlockingTransport();
+        XmppOutbox outbox = new XmppOutbox(transport, 2, new TokenBucket(1000, 100), wakeLock);
+
+        // the caller may release its own wake lock as soon as the message is queued
+        outbox.add(new XmppMsg("SMS from Alice"), null, true);
+        assertTrue(wakeLock.isHeld());
+        assertTrue(transport.mFirstTaken.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        // nothing queued, the message is being sent
+        assertEquals(0, outbox.getPendingCount());
+        assertTrue(wakeLock.isHeld());
+
+        outbox.add(new XmppMsg("SMS from Bob"), null, true);
+        transport.mGate.countDown();
+        assertEquals(Arrays.asList("SMS from Alice", "SMS from Bob"), transport.awaitSent(2));
+        assertTrue(awaitReleased(wakeLock));
+
+        // acquired once again by the next message, released once
+        outbox.add(new XmppMsg("SMS from Carol"), null, true);
+        assertTrue(wakeLock.isHeld());
+        assertEquals(Arrays.asList("SMS from Alice", "SMS from Bob", "SMS from Carol"), transport.awaitSent(3));
+        assertTrue(awaitReleased(wakeLock));
+    }
+}
@@ -0,0 +1,208 @@
+package com.googlecode.gtalksms.xmpp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.gtalksms.FakeContext;
+import com.googlecode.gtalksms.tools.Metrics;
+
+/**
+ * Connects through XmppSocketFactory and TimedSSLContext to an in-process TLS echo server,
+ * the TLS is started on the connected socket like the STARTTLS of Smack
+ */
+public class XmppSocketFactoryTest {
+    private static final char[] PASSWORD = "changeit".toCharArray();
+
+    private ServerSocket mServer;
+    private Thread mServerThread;
+    private SSLContext mClientContext;
+
+    private static KeyStore loadKeyStore() throws Exception {
+        KeyStore ks = KeyStore.getInstance("PKCS12");
+        InputStream in = XmppSocketFactoryTest.class.getResourceAsStream("/tls-test.p12");
+        try {
+            ks.load(in, PASSWORD);
+        } finally {
+            in.close();
+        }
+        return ks;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        KeyStore ks = loadKeyStore();
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, PASSWORD);
+        SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(kmf.getKeyManagers(), null, null);
+        final SSLSocketFactory serverFactory = serverContext.getSocketFactory();
+
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(ks);
+        SSLContext sc = SSLContext.getInstance("TLS");
+        sc.init(null, tmf.getTrustManagers(), null);
+        mClientContext = new TimedSSLContext(sc);
+
+        mServer = new ServerSocket(0);
+        mServerThread = new Thread(new Runnable() {
+            public void run() {
+                while (!mServer.isClosed()) {
+                    try {
+                        Socket plain = mServer.accept();
+                        SSLSocket s = (SSLSocket) serverFactory.createSocket(plain, null, plain.getPort(), true);
+                        // session ids, the resumption of TLS 1.3 doesn't keep the creation time
+                        s.setEnabledProtocols(new String[] { "TLSv1.2" });
+                        s.setUseClientMode(false);
+                        echo(s);
+                    } catch (IOException e) {
+                        // closed by the test
+                    }
+                }
+            }
+        }, "TlsEchoServer");
+        mServerThread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close();
+        mServerThread.join(1000);
+    }
+
+    private static void echo(SSLSocket s) throws IOException {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "UTF-8"));
+            OutputStream out = s.getOutputStream();
+            String line = in.readLine();
+            if (line != null) {
+                out.write((line + "\n").getBytes("UTF-8"));
+                out.flush();
+            }
+        } finally {
+            s.close();
+        }
+    }
+
+    /**
+     * Connects, starts the TLS and returns the echo of the line
+     */
+    private String roundTrip(XmppSocketFactory factory, String line) throws IOException {
+        Socket plain = factory.createSocket("localhost", mServer.getLocalPort());
+        SSLSocket s = (SSLSocket) mClientContext.getSocketFactory().createSocket(plain, "localhost", mServer.getLocalPort(), true);
+        try {
+            s.startHandshake();
+            PrintWriter out = new PrintWriter(s.getOutputStream());
+            out.print(line + "\n");
+            out.flush();
+            return new BufferedReader(new InputStreamReader(s.getInputStream(), "UTF-8")).readLine();
+        } finally {
+            s.close();
+        }
+    }
+
+    /**
+     * The handshake listeners run on their own thread
+     */
+    private static void awaitCount(Metrics.Counter counter, long expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (counter.get() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, counter.get());
+    }
+
+    @Test
+    public void resumesTheTlsSessionOnReconnection() throws Exception {
+        Metrics.Counter full = Metrics.counter("tls.handshake.full");
+        Metrics.Counter resumed = Metrics.counter("tls.handshake.resumed");
+        long fullBefore = full.get();
+        long resumedBefore = resumed.get();
+
+        XmppSocketFactory factory = new XmppSocketFactory();
+        for (int i = 0; i < 3; ++i) {
+            assertEquals("ping " + i, roundTrip(factory, "ping " + i));
+        }
+
+        awaitCount(full, fullBefore + 1);
+        awaitCount(resumed, resumedBefore + 2);
+    }
+
+    @Test
+    public void connectsToThePrefetchedAddresses() throws Exception {
+        XmppConnectionWarmup warmup = XmppConnectionWarmup.getInstance(new FakeContext(null));
+        warmup.clearAddresses();
+        warmup.prefetch("localhost", "example.com");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (warmup.getCachedAddresses("localhost") == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNotNull(warmup.getCachedAddresses("localhost"));
+
+        assertEquals("hello", roundTrip(new XmppSocketFactory(warmup), "hello"));
+    }
+
+    @Test
+    public void anUnresponsiveServerFailsWithinTheConnectTimeout() throws IOException {
+        // a listener that never accepts: once its backlog is full, the SYNs get no answer
+        ServerSocket silent = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        List<Socket> backlog = new ArrayList<Socket>();
+        try {
+            boolean full = false;
+            for (int i = 0; i < 16 && !full; ++i) {
+                Socket s = new Socket();
+                try {
+                    s.connect(silent.getLocalSocketAddress(), 200);
+                    backlog.add(s);
+                } catch (SocketTimeoutException e) {
+                    s.close();
+                    full = true;
+                }
+            }
+            assumeTrue("the backlog of the listener never filled", full);
+
+            XmppSocketFactory factory = new XmppSocketFactory(null, 300);
+            long start = System.nanoTime();
+            try {
+                factory.createSocket("127.0.0.1", silent.getLocalPort()).close();
+                fail("connected to a full backlog");
+            } catch (SocketTimeoutException e) {
+                // no answer
+            }
+            long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue("failed after " + elapsedMs + "ms", elapsedMs >= 250 && elapsedMs < 3000);
+        } finally {
+            for (Socket s : backlog) {
+                s.close();
+            }
+            silent.close();
+        }
+    }
+}
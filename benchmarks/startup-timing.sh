@@ -0,0 +1,52 @@
+#!/bin/sh
+# On-device startup timing: time from MainService.onCreate() to the first XMPP connection,
+# with the command handlers activated on demand (lazy) and all activated when the service connects (eager).
+# Needs an installed and configured GTalkSMS, and adb with root access (emulator or userdebug build)
+# as MainService isn't exported.
+#     benchmarks/startup-timing.sh [runs per mode, default 10]
+set -e
+
+RUNS=${1:-10}
+PKG=com.googlecode.gtalksms
+SERVICE=$PKG/.MainService
+ACTION=$PKG.action
+
+adb root > /dev/null
+adb wait-for-device
+
+# sets the setting through the "set" command of the service
+set_mode() {
+    adb shell am startservice -n $SERVICE -a $ACTION.COMMAND \
+        --es cmd set --es args "eagerCommandActivation:$1" > /dev/null
+    sleep 2
+}
+
+# starts a new process and prints the time to connect, in ms
+run_once() {
+    adb shell am force-stop $PKG
+    adb logcat -c
+    adb shell am startservice -n $SERVICE -a $ACTION.CONNECT > /dev/null
+    for i in $(seq 1 120); do
+        ms=$(adb logcat -d -s gtalksms:I | sed -n 's/.*Service connected in \([0-9]*\) ms.*/\1/p' | head -n 1)
+        if [ -n "$ms" ]; then
+            echo "$ms"
+            return
+        fi
+        sleep 1
+    done
+    echo "timeout" >&2
+    exit 1
+}
+
+for mode in lazy eager; do
+    if [ $mode = eager ]; then set_mode true; else set_mode false; fi
+    times=""
+    for run in $(seq 1 "$RUNS"); do
+        times="$times $(run_once)"
+    done
+    echo $times | tr ' ' '\n' | sort -n | awk -v mode=$mode '
+        { t[NR] = $1; sum += $1 }
+        END { printf "%s: runs=%d min=%d median=%d mean=%.0f max=%d ms\n", mode, NR, t[1], t[int((NR + 1) / 2)], sum / NR, t[NR] }'
+done
+
+set_mode false
@@ -0,0 +1,169 @@
+package com.googlecode.gtalksms;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.PowerManager;
+
+import com.googlecode.gtalksms.tools.Log;
+
+/**
+ * Runs the user commands on a bounded pool of worker threads.
+ *
+ * The service thread is kept as the priority lane: it only handles the
+ * connection management, the outgoing messages and the notifications, so they are
+ * never queued behind a slow command like "findsms" or "ls".
+ *
+ * The invocations are serialized per key (the CommandHandlerBase instance),
+ * as the handlers keep state between their invocations and are not thread-safe.
+ * Invocations of different handlers run concurrently, the recipient of each one
+ * is held by its own Command.
+ */
+public class CommandExecutor {
+    private static final int POOL_SIZE = 3;
+    private static final long KEEP_ALIVE_SEC = 60;
+
+    private final ThreadPoolExecutor mPool;
+    // Invocations per key, the head of each queue is the running one
+    private final Map<Object, ArrayDeque<Runnable>> mQueues = new HashMap<Object, ArrayDeque<Runnable>>();
+    private final PowerManager.WakeLock mWakeLock;
+
+    /**
+     * @param wakeLock held while at least one invocation is pending, may be null
+     */
+    public CommandExecutor(PowerManager.WakeLock wakeLock) {
+        mWakeLock = wakeLock;
+        if (mWakeLock != null) {
+            mWakeLock.setReferenceCounted(true);
+        }
+
+        mPool = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, KEEP_ALIVE_SEC, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "GTalkSMS.Command-" + mCount.getAndIncrement());
+                // keep the service thread ahead of the commands
+                t.setPriority(Thread.NORM_PRIORITY - 1);
+                return t;
+            }
+        });
+        mPool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues the task, it runs once all the previous tasks with the same key are done
+     */
+    public void execute(final Object key, final Runnable task) {
+        if (mPool.isShutdown()) {
+            Log.w("CommandExecutor is shut down, dropping task");
+            return;
+        }
+        if (mWakeLock != null) {
+            mWakeLock.acquire();
+        }
+
+        Runnable wrapper = new Runnable() {
+            public void run() {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    Log.e("CommandExecutor task failed", e);
+                } finally {
+                    scheduleNext(key);
+                    if (mWakeLock != null) {
+                        mWakeLock.release();
+                    }
+                }
+            }
+        };
+
+        synchronized (mQueues) {
+            ArrayDeque<Runnable> queue = mQueues.get(key);
+            if (queue == null) {
+                queue = new ArrayDeque<Runnable>();
+                mQueues.put(key, queue);
+                queue.add(wrapper);
+                try {
+                    mPool.execute(wrapper);
+                } catch (RejectedExecutionException e) {
+                    // shut down since the check above
+                    Log.w("CommandExecutor is shut down, dropping task");
+                    mQueues.remove(key);
+                    if (mWakeLock != null) {
+                        mWakeLock.release();
+                    }
+                }
+            } else {
+                queue.add(wrapper);
+            }
+        }
+    }
+
+    /**
+     * @return the number of invocations queued or running
+     */
+    public int getPendingCount() {
+        int res = 0;
+        synchronized (mQueues) {
+            for (ArrayDeque<Runnable> queue : mQueues.values()) {
+                res += queue.size();
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Interrupts the running invocations and drops the pending ones
+     */
+    public void shutdown() {
+        synchronized (mQueues) {
+            for (ArrayDeque<Runnable> queue : mQueues.values()) {
+                // the running invocation releases its own wake lock
+                for (int i = 1; i < queue.size() && mWakeLock != null; ++i) {
+                    mWakeLock.release();
+                }
+            }
+            mQueues.clear();
+        }
+        for (int i = mPool.shutdownNow().size(); i > 0 && mWakeLock != null; --i) {
+            mWakeLock.release();
+        }
+    }
+
+    /**
+     * Waits for the invocations interrupted by shutdown() to return
+     * @return false if some are still running after the timeout
+     */
+    public boolean awaitTermination(long timeoutMs) {
+        try {
+            return mPool.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void scheduleNext(Object key) {
+        synchronized (mQueues) {
+            ArrayDeque<Runnable> queue = mQueues.get(key);
+            if (queue == null) {
+                // shutdown
+                return;
+            }
+            queue.poll();
+            if (queue.isEmpty()) {
+                mQueues.remove(key);
+            } else {
+                mPool.execute(queue.peek());
+            }
+        }
+    }
+}
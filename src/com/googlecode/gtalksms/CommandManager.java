@@ -10,6 +10,7 @@ import com.googlecode.gtalksms.cmd.ClipboardCmd;
 import com.googlecode.gtalksms.cmd.Cmd;
 import com.googlecode.gtalksms.cmd.CommandActivationCmd;
 import com.googlecode.gtalksms.cmd.CommandHandlerBase;
+import com.googlecode.gtalksms.cmd.CommandIndex;
 import com.googlecode.gtalksms.cmd.ContactCmd;
 import com.googlecode.gtalksms.cmd.ExitCmd;
 import com.googlecode.gtalksms.cmd.FileCmd;
@@ -18,6 +19,7 @@ import com.googlecode.gtalksms.cmd.HelpCmd;
 import com.googlecode.gtalksms.cmd.KeyboardCmd;
 import com.googlecode.gtalksms.cmd.LogsCmd;
 import com.googlecode.gtalksms.cmd.MailCmd;
+import com.googlecode.gtalksms.cmd.MetricsCmd;
 import com.googlecode.gtalksms.cmd.MmsCmd;
 import com.googlecode.gtalksms.cmd.MusicCmd;
 import com.googlecode.gtalksms.cmd.NotificationsCmd;
@@ -35,9 +37,11 @@ import com.googlecode.gtalksms.cmd.VideoCmd;
 import com.googlecode.gtalksms.cmd.WifiCmd;
 import com.googlecode.gtalksms.tools.Log;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -78,6 +82,7 @@ public class CommandManager {
         RecipientCmd.class,
         // used for debugging
         SystemCmd.class,
+        MetricsCmd.class,
         // help & command activation commands need to be registered as last
         CommandActivationCmd.class,
         HelpCmd.class,
@@ -85,6 +90,7 @@ public class CommandManager {
 
     private final Map<String, CommandHandlerBase> mCommandHandlersMap = Collections.synchronizedMap(new HashMap<String, CommandHandlerBase>());
     private final Set<CommandHandlerBase> mCommandHandlersSet = Collections.synchronizedSet(new HashSet<CommandHandlerBase>());
+    private volatile CommandIndex mCommandIndex = new CommandIndex(new ArrayList<CommandHandlerBase>());
 
     public Map<String, CommandHandlerBase> getCommandHandlersMap() {
         return mCommandHandlersMap;
@@ -100,16 +106,22 @@ public class CommandManager {
     }
 
     public CommandHandlerBase getCommandHandler(String cmd) {
-        if (mCommandHandlersMap.containsKey(cmd)) {
-            return mCommandHandlersMap.get(cmd);
-        }
-        return null;
+        CommandIndex.Entry entry = mCommandIndex.lookup(cmd);
+        return entry == null ? null : entry.getHandler();
+    }
+
+    /**
+     * @return the index of the command names and aliases, built by setupCommands()
+     */
+    public CommandIndex getCommandIndex() {
+        return mCommandIndex;
     }
 
     /**
      * Instantiate all the commands via reflection
      */
     public void setupCommands(MainService mainService) {
+        List<CommandHandlerBase> handlers = new ArrayList<CommandHandlerBase>();
         for (Class<?> commandClass : sCommands) {
             try {
                 CommandHandlerBase cmd = (CommandHandlerBase) commandClass.getConstructor(MainService.class).newInstance(mainService);
@@ -122,11 +134,13 @@ public class CommandManager {
                     }
                 }
                 mCommandHandlersSet.add(cmd);
+                handlers.add(cmd);
             } catch (Exception e) {
                 // Should not happen.
                 Log.e("Failed to register command " + commandClass.getName(), e);
             }
         }
+        mCommandIndex = new CommandIndex(handlers);
     }
 
     /**
@@ -153,6 +167,21 @@ public class CommandManager {
         }
     }
 
+    /**
+     * Deactivate the commands activated on demand that haven't been used for idleMs
+     */
+    public void deactivateIdleCommands(long idleMs) {
+        synchronized (mCommandHandlersSet) {
+            for (CommandHandlerBase c : mCommandHandlersSet) {
+                try {
+                    c.deactivateIfIdle(idleMs);
+                } catch (Exception e) {
+                    Log.e("Failed to deactivate idle command", e);
+                }
+            }
+        }
+    }
+
     /**
      * Update and refresh the activation status of the command
      */
@@ -22,11 +22,12 @@ import android.os.Message;
 import android.os.PowerManager;
 import android.support.v4.app.NotificationCompat;
 
-import com.googlecode.gtalksms.cmd.Cmd;
 import com.googlecode.gtalksms.cmd.CommandHandlerBase;
+import com.googlecode.gtalksms.cmd.CommandIndex;
 import com.googlecode.gtalksms.cmd.RecipientCmd;
 
 import com.googlecode.gtalksms.data.contacts.ContactsManager;
+import com.googlecode.gtalksms.databases.StatementTimer;
 import com.googlecode.gtalksms.panels.MainActivity;
 import com.googlecode.gtalksms.receivers.NetworkConnectivityReceiver;
 import com.googlecode.gtalksms.receivers.PublicIntentReceiver;
@@ -34,9 +35,10 @@ import com.googlecode.gtalksms.receivers.StorageLowReceiver;
 import com.googlecode.gtalksms.services.KeyboardInputMethodService;
 import com.googlecode.gtalksms.tools.CrashedStartCounter;
 import com.googlecode.gtalksms.tools.DisplayToast;
+import com.googlecode.gtalksms.tools.Histogram;
 import com.googlecode.gtalksms.tools.Log;
+import com.googlecode.gtalksms.tools.Metrics;
 import com.googlecode.gtalksms.tools.Tools;
-import com.googlecode.gtalksms.xmpp.XmppBuddies;
 import com.googlecode.gtalksms.xmpp.XmppMsg;
 import com.googlecode.gtalksms.xmpp.XmppMuc;
 import com.googlecode.gtalksms.xmpp.XmppStatus;
@@ -64,7 +66,7 @@ public class MainService extends Service {
 
     // A list of intent actions that the XmppManager broadcasts.
     public static final String ACTION_XMPP_MESSAGE_RECEIVED = "com.googlecode.gtalksms.action.XMPP.MESSAGE_RECEIVED";
-    public static final String ACTION_XMPP_PRESENCE_CHANGED = "com.googlecode.gtalksms.action.XMPP.PRESENCE_CHANGED";
+    public static final String ACTION_XMPP_ROSTER_CHANGED = "com.googlecode.gtalksms.action.XMPP.ROSTER_CHANGED";
     public static final String ACTION_XMPP_CONNECTION_CHANGED = "com.googlecode.gtalksms.action.XMPP.CONNECTION_CHANGED";
 
     public static final String SERVICE_THREAD_NAME = Tools.APP_NAME + ".Service";
@@ -91,14 +93,27 @@ public class MainService extends Service {
     private static PowerManager.WakeLock sWl;
     private static PendingIntent sPendingIntentLaunchApplication = null;
     private static PendingIntent sPendingIntentStopRinging = null;
+    private static final Histogram sCommandWaitTime = Metrics.histogram("cmd.wait");
+    private static final Metrics.Counter sCommandErrors = Metrics.counter("cmd.errors");
+    private static final Histogram sConnectTime = Metrics.histogram("service.connect");
+    // the handlers activated on demand are deactivated when they haven't been used for a while
+    private static final long IDLE_COMMANDS_CHECK_MS = 1000 * 60 * 5;
+    private static final long IDLE_COMMANDS_TIMEOUT_MS = 1000 * 60 * 15;
+    // how long a command waits for room in the outbox
+    private static final long SEND_QUEUE_TIMEOUT_MS = 1000 * 10;
+    // how long onDestroy() waits for the running commands, it runs on the main thread
+    private static final long COMMAND_SHUTDOWN_TIMEOUT_MS = 1000 * 3;
 
     // This is the object that receives interactions from clients. See
     // RemoteService for a more complete example.
     private final IBinder mBinder = new LocalBinder();
 
     private CommandManager mCommandManager;
+    private CommandExecutor mCommandExecutor;
 
     private long mHandlerThreadId;
+    // start of the service, until its first connection
+    private long mCreateTime;
 
     private static Context sUiContext;
 
@@ -111,6 +126,15 @@ public class MainService extends Service {
     private static volatile Looper sServiceLooper;
     private static volatile ServiceHandler sServiceHandler;
 
+    private final Runnable mDeactivateIdleCommands = new Runnable() {
+        public void run() {
+            if (mCommandManager != null) {
+                mCommandManager.deactivateIdleCommands(IDLE_COMMANDS_TIMEOUT_MS);
+            }
+            sDelayedDisconnectHandler.postDelayed(this, IDLE_COMMANDS_CHECK_MS);
+        }
+    };
+
     private final class ServiceHandler extends Handler {
         public ServiceHandler(Looper looper) {
             super(looper);
@@ -210,6 +234,8 @@ public class MainService extends Service {
                 // notification that a network is available.
                 sXmppMgr.xmppRequestStateChange(XmppManager.WAITING_FOR_NETWORK);
             } else if (connected && (initialState == XmppManager.WAITING_TO_CONNECT || initialState == XmppManager.WAITING_FOR_NETWORK)) {
+                // Don't wait for the scheduled retry, the network is back
+                sXmppMgr.onNetworkAvailable();
                 sXmppMgr.xmppRequestStateChange(XmppManager.CONNECTED);
             } else if (networkChanged && initialState == XmppManager.CONNECTED) {
                 // The network has changed (WiFi <-> GSM switch) and we are connected, reconnect now
@@ -238,7 +264,7 @@ public class MainService extends Service {
             if (xmppMsg == null) {
                 xmppMsg = new XmppMsg(intent.getStringExtra("message"));
             }
-            sXmppMgr.send(xmppMsg, intent.getStringExtra("to"));
+            send(xmppMsg, intent.getStringExtra("to"));
         } else if (action.equals(ACTION_XMPP_MESSAGE_RECEIVED)) {
             maybeAcquireWakeLock();
             String message = intent.getStringExtra("message");
@@ -264,7 +290,7 @@ public class MainService extends Service {
                 msg.appendBold(getString(R.string.chat_sms_from, name));
                 msg.append(message);
                 Log.i("Sending message form " + number + " via chat");
-                sXmppMgr.send(msg, null);
+                send(msg, null);
                 RecipientCmd.setLastRecipient(number);
             }
             // Forward the incoming SMS message to an MUC
@@ -281,7 +307,7 @@ public class MainService extends Service {
                     msg.appendBold(getString(R.string.chat_sms_from, name));
                     msg.append(message);
                     Log.w("Sending message from " + number + " via MUC failed, message will be send as chat message");
-                    sXmppMgr.send(msg, null);
+                    send(msg, null);
                 }
             }
             sWl.release(); 
@@ -342,12 +368,6 @@ public class MainService extends Service {
         return sXmppMgr == null ? null : sXmppMgr.getPingManger();
     }
 
-    public void updateBuddies() {
-        if (sXmppMgr != null) {
-            XmppBuddies.getInstance(this).retrieveFriendList();
-        }
-    }
-
     /**
      * Class for clients to access. Because we know this service always runs in
      * the same process as its clients, we don't need to deal with IPC.
@@ -367,6 +387,7 @@ public class MainService extends Service {
     public void onCreate() {
         super.onCreate();
         sIntance = this;
+        mCreateTime = Metrics.start();
 
         NetworkConnectivityReceiver.setLastActiveNetworkName(this);
         
@@ -397,6 +418,9 @@ public class MainService extends Service {
         sPendingIntentLaunchApplication = PendingIntent.getActivity(this, 0, new Intent(this, MainActivity.class), 0);
         sNotificationManager = (NotificationManager)getSystemService(Context.NOTIFICATION_SERVICE);
         mCommandManager = new CommandManager();
+        mCommandExecutor = new CommandExecutor(sPm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, Tools.APP_NAME + " Commands"));
+        registerMetrics();
+        sDelayedDisconnectHandler.postDelayed(mDeactivateIdleCommands, IDLE_COMMANDS_CHECK_MS);
         
         Log.i("onCreate(): service thread created - IsRunning is set to true");
         IsRunning = true;
@@ -468,8 +492,24 @@ public class MainService extends Service {
         // All data must be cleaned, because onDestroy can be call without releasing the current object
         // It's due to BIND_AUTO_CREATE used for Service Binder
         // http://developer.android.com/reference/android/content/Context.html#stopService(android.content.Intent)
+        sDelayedDisconnectHandler.removeCallbacks(mDeactivateIdleCommands);
+        Metrics.unregisterGauge("cmd.pending");
+        StatementTimer.setListener(null);
+        if (mCommandExecutor != null) {
+            mCommandExecutor.shutdown();
+        }
         if (mCommandManager != null) {
+            // stops the ringing, the shells... the running commands return sooner
             mCommandManager.stopCommands();
+        }
+        if (mCommandExecutor != null) {
+            // the handlers are only deactivated once their commands have returned
+            if (!mCommandExecutor.awaitTermination(COMMAND_SHUTDOWN_TIMEOUT_MS)) {
+                Log.w("MainService onDestroy(): commands still running after " + COMMAND_SHUTDOWN_TIMEOUT_MS + "ms");
+            }
+            mCommandExecutor = null;
+        }
+        if (mCommandManager != null) {
             mCommandManager.cleanupCommands();
             mCommandManager = null;
         }
@@ -503,10 +543,32 @@ public class MainService extends Service {
      *            is used
      */
     public void send(XmppMsg msg, String to) {
+        send(msg, to, false);
+    }
+
+    /**
+     * Queues an XmppMsg on the outbox of the XmppManager, the message can be reused
+     * 
+     * @param msg
+     * @param to
+     *            - the receiving jid. if null the default notification address
+     *            is used
+     * @param separate
+     *            - true if the message must not be merged with the adjacent ones
+     * @return false if the message has been dropped, too many messages are waiting for this recipient
+     */
+    public boolean send(XmppMsg msg, String to, boolean separate) {
         if (sXmppMgr != null) {
-            sXmppMgr.send(msg, to);
+            if (Thread.currentThread().getId() == mHandlerThreadId) {
+                // the service thread sends the notifications (incoming SMS, ACTION_SEND...),
+                // it can't wait for room in the outbox and they are never dropped
+                sXmppMgr.queueNotification(msg, to, separate);
+                return true;
+            }
+            return sXmppMgr.queue(msg, to, separate, SEND_QUEUE_TIMEOUT_MS);
         } else {
             Log.w("MainService send XmppMsg: _xmppMgr == null");
+            return false;
         }
     }
 
@@ -567,44 +629,97 @@ public class MainService extends Service {
         sXmppMgr = XmppManager.getInstance(this);
     }
 
+    /**
+     * Queues the command on the command executor, the service thread
+     * doesn't wait for its completion
+     */
     private void executeCommand(String cmd, String args, String answerTo) {
         assert (cmd != null);
         cmd = cmd.toLowerCase();
 
-        CommandHandlerBase exec = mCommandManager.getCommandHandler(cmd);
-        if (exec != null) {
-            Log.d("MainService executing command: \"" + cmd + ":" + Tools.shortenMessage(args) + "\"");
-            try {
-                Cmd execCmd = exec.getCommand(cmd);
-                if (execCmd != null && execCmd.isActive()) {
-                    exec.execute(cmd, args == null ? "" : args, answerTo);
-                } else {
-                    send(getString(R.string.chat_command_disabled), answerTo);
-                }
-            } catch (Exception e) {
-                String error = cmd + ":" + args + " Exception: " + e.getLocalizedMessage();
-                String chatError = getString(R.string.chat_error, error);
-
-                Log.e("executeCommand() Exception", e);
-
-                // Display the user detailed information about the exception if debugLog is enabled
-                if (sSettingsMgr.debugLog) {
-                    XmppMsg msg = new XmppMsg();
-                    msg.appendBoldLine(chatError);
-                    msg.append(Tools.STMArrayToString(e.getStackTrace()));
-                    send(msg, answerTo);
-                } else {
-                    send(chatError, answerTo);
-                }
-            }
+        CommandIndex index = mCommandManager.getCommandIndex();
+        CommandIndex.Entry entry = index.lookup(cmd);
+        if (entry != null) {
+            executeCommand(entry, args, answerTo);
         } else if (cmd.equals("stop")) {
             send(getString(R.string.chat_stop_actions), answerTo);
             mCommandManager.stopCommands();
         } else {
-            send(getString(R.string.chat_error_unknown_cmd, cmd), answerTo);
+            CommandIndex.Entry suggestion = index.complete(cmd);
+            if (suggestion != null) {
+                send(getString(R.string.chat_error_unknown_cmd_suggestion, cmd, suggestion.getCmd().getName()), answerTo);
+            } else {
+                send(getString(R.string.chat_error_unknown_cmd, cmd), answerTo);
+            }
+        }
+    }
+
+    private void executeCommand(CommandIndex.Entry entry, String args, String answerTo) {
+        if (entry.getCmd().isActive()) {
+            final CommandHandlerBase exec = entry.getHandler();
+            final String fCmd = entry.getName();
+            final String fArgs = args == null ? "" : args;
+            final String fAnswerTo = answerTo;
+            final long queued = Metrics.start();
+            mCommandExecutor.execute(exec, new Runnable() {
+                public void run() {
+                    Metrics.recordSince(sCommandWaitTime, queued);
+                    runCommand(exec, fCmd, fArgs, fAnswerTo);
+                }
+            });
+        } else {
+            send(getString(R.string.chat_command_disabled), answerTo);
         }
     }
 
+    /**
+     * Runs the command on the current (executor) thread
+     */
+    private void runCommand(CommandHandlerBase exec, String cmd, String args, String answerTo) {
+        Log.d("MainService executing command: \"" + cmd + ":" + Tools.shortenMessage(args) + "\"");
+        long start = Metrics.start();
+        try {
+            exec.execute(cmd, args, answerTo);
+        } catch (Exception e) {
+            sCommandErrors.inc();
+            String error = cmd + ":" + args + " Exception: " + e.getLocalizedMessage();
+            String chatError = getString(R.string.chat_error, error);
+
+            Log.e("executeCommand() Exception", e);
+
+            // Display the user detailed information about the exception if debugLog is enabled
+            if (sSettingsMgr.debugLog) {
+                XmppMsg msg = new XmppMsg();
+                msg.appendBoldLine(chatError);
+                msg.append(Tools.STMArrayToString(e.getStackTrace()));
+                send(msg, answerTo);
+            } else {
+                send(chatError, answerTo);
+            }
+        } finally {
+            Metrics.recordSince(Metrics.histogram("cmd." + cmd), start);
+        }
+    }
+
+    /**
+     * Gauges reading the service state and timing of the database statements
+     */
+    private void registerMetrics() {
+        Metrics.registerGauge("cmd.pending", new Metrics.Gauge() {
+            public long getValue() {
+                CommandExecutor executor = mCommandExecutor;
+                return executor == null ? 0 : executor.getPendingCount();
+            }
+        });
+        StatementTimer.setListener(new StatementTimer.Listener() {
+            private final Histogram mStatementTime = Metrics.histogram("db.statement");
+
+            public void onStatement(String sql, long durationNs) {
+                mStatementTime.record(durationNs / 1000);
+            }
+        });
+    }
+
     private int getImageStatus(int color) {
         String index = sSettingsMgr.displayIconIndex;
         int res = 0;
@@ -654,6 +769,13 @@ public class MainService extends Service {
     
     /** Updates the status about the service state (and the status bar) */
     private void onConnectionStatusChanged(int oldStatus, int status) {
+        if (status == XmppManager.CONNECTED && mCreateTime != 0) {
+            Metrics.recordSince(sConnectTime, mCreateTime);
+            // read by benchmarks/startup-timing.sh
+            Log.i("Service connected in %d ms, %s command activation", (System.nanoTime() - mCreateTime) / 1000000,
+                    sSettingsMgr.eagerCommandActivation ? "eager" : "lazy");
+            mCreateTime = 0;
+        }
         if (sSettingsMgr.showStatusIcon) {
             NotificationCompat.Builder builder = new NotificationCompat.Builder(this);
             builder.setWhen(System.currentTimeMillis());
@@ -697,19 +819,25 @@ public class MainService extends Service {
      * @param commandLine
      */
     private void handleCommandFromXMPP(String commandLine, String from) {
-        String command;
-        String args;
+        // Split the command and args from the commandLine String,
+        // the trimmed command name is looked up in place
+        int sep = commandLine.indexOf(':');
+        int start = 0;
+        int end = sep == -1 ? commandLine.length() : sep;
+        while (start < end && commandLine.charAt(start) <= ' ') {
+            ++start;
+        }
+        while (end > start && commandLine.charAt(end - 1) <= ' ') {
+            --end;
+        }
+        String args = sep == -1 ? "" : commandLine.substring(sep + 1);
 
-        // Split the command and args from the commandLine String and trim these
-        if (commandLine.contains(":")) {
-            command = commandLine.substring(0, commandLine.indexOf(":")).trim();
-            args = commandLine.substring(commandLine.indexOf(":") + 1);
+        CommandIndex.Entry entry = mCommandManager.getCommandIndex().lookup(commandLine, start, end);
+        if (entry != null) {
+            executeCommand(entry, args, from);
         } else {
-            command = commandLine.trim();
-            args = "";
+            executeCommand(commandLine.substring(start, end), args, from);
         }
-
-        executeCommand(command, args, from);
     }
 
     private int updateListenersToCurrentState(int currentState) {
@@ -146,6 +146,8 @@ public class SettingsManager {
     
     // app settings
     public boolean debugLog;
+    // activates all the command handlers when the service connects, to compare the startup times
+    public boolean eagerCommandActivation;
     public String displayIconIndex;
     
     // auto start and stop settings
@@ -422,6 +424,7 @@ public class SettingsManager {
         smsReplySeparate = getBoolean("smsReplySeparate", false);
         _connectOnMainScreenStartup = getBoolean("connectOnMainscreenShow", false);
         debugLog = getBoolean("debugLog", false);
+        eagerCommandActivation = getBoolean("eagerCommandActivation", false);
         
         // auto start and stop settings
         startOnBoot = getBoolean("startOnBoot", false);
@@ -1,8 +1,5 @@
 package com.googlecode.gtalksms;
 
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -34,14 +31,19 @@ import org.jivesoftware.smackx.xhtmlim.XHTMLManager;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Handler;
+import android.os.PowerManager;
 
+import com.googlecode.gtalksms.tools.Histogram;
 import com.googlecode.gtalksms.tools.Log;
+import com.googlecode.gtalksms.tools.Metrics;
 import com.googlecode.gtalksms.tools.StringFmt;
 import com.googlecode.gtalksms.tools.Tools;
 import com.googlecode.gtalksms.xmpp.ChatPacketListener;
 import com.googlecode.gtalksms.xmpp.ClientOfflineMessages;
+import com.googlecode.gtalksms.xmpp.ReconnectBackoff;
 import com.googlecode.gtalksms.xmpp.XmppBuddies;
 import com.googlecode.gtalksms.xmpp.XmppConnectionChangeListener;
+import com.googlecode.gtalksms.xmpp.XmppConnectionWarmup;
 import com.googlecode.gtalksms.xmpp.XmppDeliveryReceipts;
 import com.googlecode.gtalksms.xmpp.XmppEntityCapsCache;
 import com.googlecode.gtalksms.xmpp.XmppFileManager;
@@ -50,14 +52,11 @@ import com.googlecode.gtalksms.xmpp.XmppMsg;
 import com.googlecode.gtalksms.xmpp.XmppMuc;
 import com.googlecode.gtalksms.xmpp.XmppMultipleRecipientManager;
 import com.googlecode.gtalksms.xmpp.XmppOfflineMessages;
+import com.googlecode.gtalksms.xmpp.XmppOutbox;
 import com.googlecode.gtalksms.xmpp.XmppPresenceStatus;
 import com.googlecode.gtalksms.xmpp.XmppSocketFactory;
 import com.googlecode.gtalksms.xmpp.XmppStatus;
 
-import javax.net.ssl.SSLContext;
-
-import de.duenndns.ssl.MemorizingTrustManager;
-
 public class XmppManager {
 
     public static final int DISCONNECTED = 1;
@@ -73,12 +72,22 @@ public class XmppManager {
     public static final int WAITING_FOR_NETWORK = 6;
     
     private static XmppManager sXmppManager = null;
-    private static int sReusedConnectionCount = 0;
-    private static int sNewConnectionCount = 0;
+    private static final Metrics.Counter sReusedConnectionCount = Metrics.counter("xmpp.connection.reused");
+    private static final Metrics.Counter sNewConnectionCount = Metrics.counter("xmpp.connection.new");
+    private static final Metrics.Counter sReconnectCount = Metrics.counter("xmpp.reconnect");
+    private static final Metrics.Counter sReconnectSucceededCount = Metrics.counter("xmpp.reconnect.succeeded");
+    private static final Metrics.Counter sReconnectFailedCount = Metrics.counter("xmpp.reconnect.failed");
+    private static final Histogram sReconnectDelay = Metrics.histogram("xmpp.reconnect.delay");
+    private static final Histogram sOutageTime = Metrics.histogram("xmpp.reconnect.outage");
+    private static final Metrics.Counter sRequeuedCount = Metrics.counter("xmpp.sent.requeued");
+    private static final Metrics.Counter sSentCount = Metrics.counter("xmpp.sent");
+    private static final Metrics.Counter sSendFailedCount = Metrics.counter("xmpp.sent.failed");
+    private static final Metrics.Counter sOfflineCount = Metrics.counter("xmpp.sent.offline");
+    private static final Histogram sSendTime = Metrics.histogram("xmpp.send");
     private static ConnectionConfiguration sConnectionConfiguration = null;
 
     // Indicates the current state of the service (disconnected/connecting/connected)
-    private int mStatus = DISCONNECTED;
+    private volatile int mStatus = DISCONNECTED;
 
     // Indicates the current action associated to the status (connect, identify, wait X seconds,...)
     private String mStatusAction = "";
@@ -86,7 +95,7 @@ public class XmppManager {
     private long mLastPing = new Date().getTime();
 
     private final List<XmppConnectionChangeListener> mConnectionChangeListeners;
-    private XMPPConnection mConnection = null;
+    private volatile XMPPConnection mConnection = null;
 	private PacketListener mPacketListener = null;
     private PingManager mPingManager = null;
     private ConnectionListener mConnectionListener = null;    
@@ -97,9 +106,13 @@ public class XmppManager {
     private final XmppStatus mXmppStatus;
     private final XmppPresenceStatus mXmppPresenceStatus;
     private final XmppDeliveryReceipts mXmppDeliveryReceipts;
+    private final XmppConnectionWarmup mWarmup;
+    private final XmppOutbox mOutbox;
 
-    // Our current retry attempt, plus a runnable and handler to implement retry
-    private int mCurrentRetryCount = 0;
+    // Delays of the retry attempts, plus a runnable and handler to implement retry
+    private final ReconnectBackoff mBackoff = new ReconnectBackoff();
+    // start of the current outage, 0 when connected
+    private long mOutageStart = 0;
     private final Runnable mReconnectRunnable = new Runnable() {
         public void run() {
             Log.i("attempting reconnection by issuing intent " + MainService.ACTION_CONNECT);
@@ -107,7 +120,7 @@ public class XmppManager {
         }
     };
 
-    private Handler mReconnectHandler;
+    private final Handler mReconnectHandler;
 
     private final SettingsManager mSettings;
     private final Context mContext;
@@ -131,6 +144,23 @@ public class XmppManager {
         mXmppFileMgr = XmppFileManager.getInstance(context);
         mXmppMuc = XmppMuc.getInstance(context);
         mClientOfflineMessages = ClientOfflineMessages.getInstance(context);
+        mWarmup = XmppConnectionWarmup.getInstance(context);
+        // held while messages are queued, the callers release their own wake lock once their messages are queued
+        PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        mOutbox = new XmppOutbox(new XmppOutbox.Transport() {
+            public boolean isConnected() {
+                return XmppManager.this.isConnected();
+            }
+
+            public void send(XmppMsg msg, String to) {
+                XmppManager.this.send(msg, to);
+            }
+        }, pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, Tools.APP_NAME + " Outbox"));
+        Metrics.registerGauge("xmpp.outbox.pending", new Metrics.Gauge() {
+            public long getValue() {
+                return mOutbox.getPendingCount();
+            }
+        });
         mXmppStatus = XmppStatus.getInstance(context);
         mXmppPresenceStatus = XmppPresenceStatus.getInstance(context);
         mXmppBuddies.registerListener(this);
@@ -140,10 +170,9 @@ public class XmppManager {
         mXmppPresenceStatus.registerListener(this);
         mXmppDeliveryReceipts.registerListener(this);
         XmppLocalS5BProxyManager.getInstance(context).registerListener(this);
-        sReusedConnectionCount = 0;
-        sNewConnectionCount = 0;
         XmppEntityCapsCache.enableEntityCapsCache(context);
         XmppMultipleRecipientManager.setSettingsManager(mSettings);
+        XmppMultipleRecipientManager.registerListener(this);
 
         // Smack Settings
         SmackConfiguration.setDefaultPacketReplyTimeout(20 * 1000);
@@ -204,6 +233,8 @@ public class XmppManager {
         cleanupConnection();
         updateStatus(DISCONNECTED, "");
         mConnection = null;
+        mBackoff.reset();
+        mOutageStart = 0;
     }
     
     /**
@@ -325,6 +356,7 @@ public class XmppManager {
     }
 
     private void restartConnection() {
+        requeueUnackedMessages();
         cleanupConnection();
         mConnection = null;
         start(XmppManager.CONNECTED);
@@ -335,14 +367,23 @@ public class XmppManager {
     }
 
     private void maybeStartReconnect(String status) {
+        requeueUnackedMessages();
         cleanupConnection();
 
-        // a simple linear back off strategy with 5 min max
-        // + 100ms to avoid post delayed issue
-        int timeout = mCurrentRetryCount < 20 ? 5000 * mCurrentRetryCount + 100 : 1000 * 60 * 5;
-        updateStatus(WAITING_TO_CONNECT, status + "\n" + "Attempt #" + mCurrentRetryCount + " in " + timeout / 1000 + "s");
-        Log.i("maybeStartReconnect scheduling retry in " + timeout + "ms. Retry #" + mCurrentRetryCount);
-        mReconnectHandler = new Handler(MainService.getServiceLooper());
+        if (mBackoff.getAttempt() > 0) {
+            sReconnectFailedCount.inc();
+        }
+        if (mOutageStart == 0) {
+            mOutageStart = Metrics.start();
+        }
+
+        long timeout = mBackoff.nextDelay();
+        int attempt = mBackoff.getAttempt();
+        updateStatus(WAITING_TO_CONNECT, status + "\n" + "Attempt #" + attempt + " in " + timeout / 1000 + "s");
+        sReconnectCount.inc();
+        sReconnectDelay.record(timeout * 1000);
+        Log.i("maybeStartReconnect scheduling retry in " + timeout + "ms. Retry #" + attempt);
+        mWarmup.prefetch(mSettings.manuallySpecifyServerSettings ? mSettings.serverHost.trim() : null, mSettings.serviceName);
         if (!mReconnectHandler.postDelayed(mReconnectRunnable, timeout)) {
             Log.w("maybeStartReconnect fails to post delayed job, reconnecting in 5s.");
             try {
@@ -350,7 +391,29 @@ public class XmppManager {
             } catch (InterruptedException e) {}
             Tools.startSvcIntent(mContext, MainService.ACTION_CONNECT);
         }
-        mCurrentRetryCount++;
+    }
+
+    /**
+     * The connection is lost: the messages sent since the previous ping and not acknowledged
+     * by a delivery receipt may have been lost with it, they are sent again once reconnected
+     */
+    private void requeueUnackedMessages() {
+        List<Message> unacked = mXmppDeliveryReceipts.takeUnacked(mSettings.pingIntervalInSec * 1000L);
+        for (Message msg : unacked) {
+            mClientOfflineMessages.addOfflineMessage(msg);
+        }
+        if (unacked.size() > 0) {
+            sRequeuedCount.add(unacked.size());
+            Log.i("requeueUnackedMessages " + unacked.size() + " messages will be sent again");
+        }
+    }
+
+    /**
+     * Called when a network is connected, the next retry delays start again from the shortest one
+     */
+    public void onNetworkAvailable() {
+        mBackoff.onNetworkAvailable();
+        mWarmup.clearAddresses();
     }
     
 
@@ -388,7 +451,7 @@ public class XmppManager {
                 // connection failure
                 return;
             }                  
-            sNewConnectionCount++;
+            sNewConnectionCount.inc();
         } else {
             // reuse the old connection settings
             connection = mConnection;
@@ -400,7 +463,7 @@ public class XmppManager {
                 // connection failure
                 return;
             }
-            sReusedConnectionCount++;
+            sReusedConnectionCount.inc();
         }
         // this code is only executed if we have an connection established
         onConnectionEstablished(connection);
@@ -479,7 +542,14 @@ public class XmppManager {
             Tools.send((mContext.getString(R.string.chat_welcome, Tools.getVersionName(mContext))), null, mContext);
         }
         
-        mCurrentRetryCount = 0;
+        if (mBackoff.getAttempt() > 0) {
+            sReconnectSucceededCount.inc();
+        }
+        if (mOutageStart != 0) {
+            Metrics.recordSince(sOutageTime, mOutageStart);
+            mOutageStart = 0;
+        }
+        mBackoff.onConnected();
         Date now = new Date();
         updateStatus(CONNECTED, String.format("%tF  %tT", now, now));
     }
@@ -593,18 +663,10 @@ public class XmppManager {
             conf = new ConnectionConfiguration(settings.serviceName);
         }
         sConnectionConfiguration = conf;
-        conf.setSocketFactory(new XmppSocketFactory());
+        conf.setSocketFactory(new XmppSocketFactory(mWarmup));
         conf.setLegacySessionDisabled(false);
-
-        try {
-            SSLContext sc = SSLContext.getInstance("TLS");
-            sc.init(null, MemorizingTrustManager.getInstanceList(mContext), new SecureRandom());
-            conf.setCustomSSLContext(sc);
-        } catch (NoSuchAlgorithmException e) {
-            throw new IllegalStateException(e);
-        } catch (KeyManagementException e) {
-            throw new IllegalStateException(e);
-        }
+        // the same context for all the connections, to resume the TLS session after a drop
+        conf.setCustomSSLContext(mWarmup.getSSLContext());
 
         switch (settings.xmppSecurityModeInt) {
         case SettingsManager.XMPPSecurityOptional:
@@ -642,13 +704,41 @@ public class XmppManager {
     }
     
     public boolean getTLSStatus() {
-        return mConnection != null && mConnection.isSecureConnection();
+        XMPPConnection connection = mConnection;
+        return connection != null && connection.isSecureConnection();
     }
     
     public boolean getCompressionStatus() {
-        return mConnection != null && mConnection.isUsingCompression();
+        XMPPConnection connection = mConnection;
+        return connection != null && connection.isUsingCompression();
     }
     
+    /**
+     * Queues a XMPP Message, sent by the outbox thread in the order of the queued messages
+     * This method is thread safe.
+     * 
+     * @param message - can be reused by the caller
+     * @param to - the receiving JID - if null the default notification address will be used
+     * @param separate - true if the message must not be merged with the adjacent ones
+     * @param timeoutMs - how long to wait when too many messages are queued for this recipient
+     * @return false if the message has been dropped because too many messages are queued
+     */
+    public boolean queue(XmppMsg message, String to, boolean separate, long timeoutMs) {
+        return mOutbox.offer(message, to, separate, timeoutMs);
+    }
+
+    /**
+     * Queues a XMPP Message without waiting, it is never dropped, even when too many messages are queued
+     * This method is thread safe.
+     * 
+     * @param message - can be reused by the caller
+     * @param to - the receiving JID - if null the default notification address will be used
+     * @param separate - true if the message must not be merged with the adjacent ones
+     */
+    public void queueNotification(XmppMsg message, String to, boolean separate) {
+        mOutbox.add(message, to, separate);
+    }
+
     /**
      * Sends a XMPP Message, but only if we are connected
      * This method is thread safe.
@@ -658,6 +748,15 @@ public class XmppManager {
      * @return true, if we were connected and the message was handled over to the connection - otherwise false
      */
     public boolean send(XmppMsg message, String to) {
+        long start = Metrics.start();
+        try {
+            return sendMessage(message, to);
+        } finally {
+            Metrics.recordSince(sSendTime, start);
+        }
+    }
+
+    private boolean sendMessage(XmppMsg message, String to) {
         if (to == null) {
             Log.i("Sending message \"" + message.toShortString() + "\"");
         } else {
@@ -681,12 +780,15 @@ public class XmppManager {
             msg.setBody(message.generateTxt());
         }
 
+        // read once, restartConnection() can replace it while the outbox thread sends
+        XMPPConnection connection = mConnection;
+
         // add an XTHML Body either when
         // - we don't know the recipient
         // - we know that the recipient is able to read XHTML-IM
         // - we are disconnected and therefore send the message later
         try {
-            if ((to == null) || (mConnection != null && (XHTMLManager.isServiceEnabled(mConnection, to) || !mConnection.isConnected()))) {
+            if ((to == null) || (connection != null && (XHTMLManager.isServiceEnabled(connection, to) || !connection.isConnected()))) {
                 String xhtmlBody = message.generateXHTMLText().toString();
                 XHTMLManager.addBody(msg, xhtmlBody);
             }
@@ -697,43 +799,60 @@ public class XmppManager {
         // determine the type of the message, groupchat or chat
         msg.setType(muc == null ? Message.Type.chat : Message.Type.groupchat);
 
-        if (isConnected()) {
+        if (connection != null && connection.isConnected() && mStatus == CONNECTED) {
             // Message has no destination information send to all known resources
             if (muc == null && to == null) {
-               return XmppMultipleRecipientManager.send(mConnection, msg);
+                if (!XmppMultipleRecipientManager.send(connection, msg)) {
+                    // the connection was lost while sending
+                    sSendFailedCount.inc();
+                    return addOfflineMessage(msg, message);
+                }
 
             // Message has a known destination information
             // And we have set the to-address before
             } else if (muc == null) {
                 try {
-                    mConnection.sendPacket(msg);
+                    connection.sendPacket(msg);
                 } catch (SmackException.NotConnectedException e) {
                     Log.e("Send message error. Ex:" + e.getMessage());
-                    return false;
+                    sSendFailedCount.inc();
+                    return addOfflineMessage(msg, message);
                 }
             // Message is for a known MUC
             } else {
                 try {
                     muc.sendMessage(msg);
+                } catch (SmackException.NotConnectedException e) {
+                    Log.e("Send message MUC error. Ex:" + e.getMessage());
+                    sSendFailedCount.inc();
+                    return addOfflineMessage(msg, message);
                 } catch (Exception e) {
                     Log.e("Send message MUC error. Ex:" + e.getMessage());
+                    sSendFailedCount.inc();
                     return false;
                 }
             }
+            sSentCount.inc();
             return true;
         } else {
-            boolean result = mClientOfflineMessages.addOfflineMessage(msg);
-            Log.d("Adding message: \"" + message.toShortString() + "\" to offline queue, because we are not connected. Status=" + statusString());
-            return result;
+            return addOfflineMessage(msg, message);
         }
     }
+
+    private boolean addOfflineMessage(Message msg, XmppMsg message) {
+        sOfflineCount.inc();
+        boolean result = mClientOfflineMessages.addOfflineMessage(msg);
+        Log.d("Adding message: \"" + message.toShortString() + "\" to offline queue, because we are not connected. Status=" + statusString());
+        return result;
+    }
     
     boolean isConnected() {
         return isXmppConnected() && mStatus == CONNECTED;
     }
     
     boolean isXmppConnected() {
-        return mConnection != null && mConnection.isConnected();
+        XMPPConnection connection = mConnection;
+        return connection != null && connection.isConnected();
     }
     
     public PingManager getPingManger() {
@@ -745,11 +864,11 @@ public class XmppManager {
     }
     
     public static int getNewConnectionCount() {
-        return sNewConnectionCount;
+        return (int) sNewConnectionCount.get();
     }
     
     public static int getReusedConnectionCount() {
-        return sReusedConnectionCount;
+        return (int) sReusedConnectionCount.get();
     }
 
     public static String statusAsString(int state) {
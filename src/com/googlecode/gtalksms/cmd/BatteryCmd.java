@@ -60,6 +60,12 @@ public class BatteryCmd extends CommandHandlerBase {
         super(mainService, CommandHandlerBase.TYPE_SYSTEM, "Battery", new Cmd("battery", "batt"));
     }
 
+    @Override
+    protected boolean isActivatedOnDemand() {
+        // the battery receiver updates the presence status
+        return false;
+    }
+
     protected void onCommandActivated() {
         sXmppPresenceStatus = XmppPresenceStatus.getInstance(sContext);
         sLastKnownPowerSource = "NotInitialized";
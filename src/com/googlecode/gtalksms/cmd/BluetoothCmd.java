@@ -67,7 +67,7 @@ public class BluetoothCmd extends CommandHandlerBase {
     
     private void addBroadcastReceiver() {
         IntentFilter filter = new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED);
-        BroadcastReceiver br = new BluetoothStateReceiver(sMainService, mAnswerTo);
+        BroadcastReceiver br = new BluetoothStateReceiver(sMainService, getAnswerTo());
         sContext.registerReceiver(br, filter);
     }
     
@@ -35,6 +35,12 @@ public class CallCmd extends CommandHandlerBase {
         super(mainService, CommandHandlerBase.TYPE_CONTACTS, "Phone", new Cmd("phone", "p"));
     }
 
+    @Override
+    protected boolean isActivatedOnDemand() {
+        // the phone listener notifies the incoming calls
+        return false;
+    }
+
     @Override
     protected void onCommandActivated() {
         mPhoneMgr = new PhoneManager(sContext);
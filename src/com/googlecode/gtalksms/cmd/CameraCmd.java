@@ -247,14 +247,14 @@ public class CameraCmd extends CommandHandlerBase {
             
             switch (pCallbackMethod) {
                 case XMPP_CALLBACK:
-                    pictureCallback = new XMPPTransferCallback(mRepository, sContext, mAnswerTo);
+                    pictureCallback = new XMPPTransferCallback(mRepository, sContext, getAnswerTo());
                     break;
                 case EMAIL_CALLBACK:
                     pictureCallback = new EmailCallback(mRepository, sContext, mEmailReceiving);
                     break;
                 case VOID_CALLBACK:
                 default:
-                    pictureCallback = new VoidCallback(mRepository, sContext, mAnswerTo);
+                    pictureCallback = new VoidCallback(mRepository, sContext, getAnswerTo());
             }
             
             mStreamVolume = mAudioManager.getStreamVolume(AudioManager.STREAM_SYSTEM);
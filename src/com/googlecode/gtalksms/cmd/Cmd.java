@@ -2,8 +2,12 @@ package com.googlecode.gtalksms.cmd;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.preference.PreferenceManager;
 
 import com.googlecode.gtalksms.R;
@@ -60,6 +64,22 @@ public class Cmd {
     private final ArrayList<SubCmd> mSubCmds;
     private static Context sContext;
     private boolean mDefaultActivationValue;
+    private final String mPrefKey;
+    // snapshot of the "cmd_" preference, updated by sPrefsListener
+    private volatile boolean mActive;
+
+    // all the commands by preference key, to update their activation state when the preferences change
+    private static final Map<String, Cmd> sCmdsByKey = new ConcurrentHashMap<String, Cmd>();
+    private static SharedPreferences sPrefs;
+    // SharedPreferences only keeps a weak reference to its listeners
+    private static final OnSharedPreferenceChangeListener sPrefsListener = new OnSharedPreferenceChangeListener() {
+        public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+            Cmd cmd = sCmdsByKey.get(key);
+            if (cmd != null) {
+                cmd.loadActive(prefs);
+            }
+        }
+    };
 
     // Default status
     public final static boolean ENABLED = true;
@@ -77,14 +97,25 @@ public class Cmd {
             mAlias[i] = alias[i].toLowerCase();
         }
         mSubCmds = new ArrayList<SubCmd>();
+        mPrefKey = "cmd_" + mName;
+        mActive = defaultActivationValue;
+        sCmdsByKey.put(mPrefKey, this);
+        if (sPrefs != null) {
+            loadActive(sPrefs);
+        }
+    }
+
+    private void loadActive(SharedPreferences prefs) {
+        mActive = prefs.getBoolean(mPrefKey, mDefaultActivationValue);
     }
 
     public boolean isActive() {
-        return PreferenceManager.getDefaultSharedPreferences(sContext).getBoolean("cmd_" + mName, mDefaultActivationValue);
+        return mActive;
     }
 
     public void setActive(boolean val) {
-        PreferenceManager.getDefaultSharedPreferences(sContext).edit().putBoolean("cmd_" + mName, val).commit();
+        mActive = val;
+        sPrefs.edit().putBoolean(mPrefKey, val).apply();
     }
 
     public void AddSubCmd(String name, int resHelp) {
@@ -97,6 +128,14 @@ public class Cmd {
     
     public static void setContext(Context c) {
         sContext = c;
+        if (sPrefs != null) {
+            sPrefs.unregisterOnSharedPreferenceChangeListener(sPrefsListener);
+        }
+        sPrefs = PreferenceManager.getDefaultSharedPreferences(c);
+        sPrefs.registerOnSharedPreferenceChangeListener(sPrefsListener);
+        for (Cmd cmd : sCmdsByKey.values()) {
+            cmd.loadActive(sPrefs);
+        }
     }
     
     private static String getString(int id, Object... args) {
@@ -14,6 +14,8 @@ import com.googlecode.gtalksms.R;
 import com.googlecode.gtalksms.SettingsManager;
 import com.googlecode.gtalksms.cmd.Cmd.SubCmd;
 import com.googlecode.gtalksms.data.contacts.ResolvedContact;
+import com.googlecode.gtalksms.tools.Histogram;
+import com.googlecode.gtalksms.tools.Metrics;
 import com.googlecode.gtalksms.xmpp.XmppMsg;
 
 public abstract class CommandHandlerBase {
@@ -26,15 +28,26 @@ public abstract class CommandHandlerBase {
     static final int TYPE_MEDIA = 6;
     public static final int TYPE_INTERNAL = 7;
     
+    private static final Histogram sActivationTime = Metrics.histogram("cmd.activation");
+
+    // Set by the first constructor, on the service thread before any command runs, read only afterwards
     static SettingsManager sSettingsMgr;
     static Context sContext;
     static MainService sMainService = null;
     final HashMap<String,Cmd> mCommandMap;
+    // names and aliases, lower case
+    private final HashMap<String,Cmd> mNameMap;
     final int mCmdType;
-    String mAnswerTo;
+    // The invocation running on the current thread, the invocations of different handlers run concurrently
+    private final ThreadLocal<Command> mInvocation = new ThreadLocal<Command>();
+    // The last invocation, answered by the messages sent after execute() returned, e.g. the output of a shell
+    private volatile Command mLastInvocation;
     
     private boolean mIsActivated;
     private final String mName;
+    private volatile long mLastUsed;
+    // invocations in execute(), guarded by this
+    private int mRunning;
 
     CommandHandlerBase(MainService mainService, int cmdType, String name, Cmd... commands) {
         if (sMainService == null) {
@@ -45,11 +58,15 @@ public abstract class CommandHandlerBase {
         }
         
         mCommandMap = new HashMap<String, Cmd>();
+        mNameMap = new HashMap<String, Cmd>();
         for (Cmd c : commands) {
             mCommandMap.put(c.getName().toLowerCase(), c);
+            for (String a : c.getAlias()) {
+                mNameMap.put(a, c);
+            }
         }
+        mNameMap.putAll(mCommandMap);
         mCmdType = cmdType;
-        mAnswerTo = null;
         mName = name;
         
         initializeSubCommands();
@@ -80,10 +97,12 @@ public abstract class CommandHandlerBase {
      * GTalkSMS to be active (meaning connected) and if the command is
      * activated
      */
-    public final void activate() {
+    public final synchronized void activate() {
         mIsActivated = true;
         Log.i("Activating command " + mName);
+        long start = Metrics.start();
         onCommandActivated();
+        Metrics.recordSince(sActivationTime, start);
     }
 
     /**
@@ -91,13 +110,13 @@ public abstract class CommandHandlerBase {
      * Common actions are: unregister broadcast receivers etc.
      * Usually issued on the stop of the MainService
      */
-    public final void deactivate() {
+    public final synchronized void deactivate() {
         mIsActivated = false;
         Log.i("Deactivating command " + mName);
         onCommandDeactivated();
     }
 
-    public boolean updateAndReturnStatus() {
+    public synchronized boolean updateAndReturnStatus() {
         boolean atLeastOneCommandActive = false;
         for (Cmd c : mCommandMap.values()) {
             if (c.isActive()) {
@@ -105,7 +124,7 @@ public abstract class CommandHandlerBase {
             }
         }
         
-        if (atLeastOneCommandActive && !mIsActivated) {
+        if (atLeastOneCommandActive && !mIsActivated && !isLazy()) {
             activate();
         } else if (!atLeastOneCommandActive && mIsActivated) {
             deactivate();
@@ -115,6 +134,54 @@ public abstract class CommandHandlerBase {
         return mIsActivated;
     }
 
+    /**
+     * Handlers activated on demand are only activated by their first command,
+     * the others when the service connects (e.g. they register receivers to notify the user)
+     */
+    protected boolean isActivatedOnDemand() {
+        return true;
+    }
+
+    /**
+     * The eagerCommandActivation setting activates all the handlers when the service connects
+     */
+    private boolean isLazy() {
+        return isActivatedOnDemand() && !sSettingsMgr.eagerCommandActivation;
+    }
+
+    /**
+     * The handler is busy while one of its commands runs,
+     * override it when the handler still works after its last command returned, e.g. a running shell
+     */
+    protected boolean isBusy() {
+        return false;
+    }
+
+    /**
+     * Deactivates the handler if it's activated on demand, no command runs
+     * and it hasn't been used for idleMs since the end of its last command
+     * @return true if the handler has been deactivated
+     */
+    public synchronized boolean deactivateIfIdle(long idleMs) {
+        if (mIsActivated && isLazy() && mRunning == 0 && !isBusy() && System.currentTimeMillis() - mLastUsed > idleMs) {
+            deactivate();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the JID of the current invocation, of the last one outside of execute(),
+     * null for the default notification address
+     */
+    String getAnswerTo() {
+        Command invocation = mInvocation.get();
+        if (invocation == null) {
+            invocation = mLastInvocation;
+        }
+        return invocation == null ? null : invocation.getReplyTo();
+    }
+
     String getString(int id, Object... args) {
         return sContext.getString(id, args);
     }
@@ -135,17 +202,27 @@ public abstract class CommandHandlerBase {
     }    
     
     void send(String message) {
-        send(message, mAnswerTo);
+        send(message, getAnswerTo());
     }
     
     void send(XmppMsg message) {
-        send(message, mAnswerTo);
+        send(message, getAnswerTo());
     }
     
     void sendAndClear(XmppMsg message) {
-        send(message, mAnswerTo);
+        send(message, getAnswerTo());
         message.clear();
     }
+
+    /**
+     * Sends a message that is not merged with the adjacent ones
+     * @return false if the message has been dropped because too many messages are waiting to be sent
+     */
+    boolean sendSeparateAndClear(XmppMsg message) {
+        boolean res = sMainService.send(message, getAnswerTo(), true);
+        message.clear();
+        return res;
+    }
     
     void send(String message, String to) {
         sMainService.send(message, to);
@@ -161,7 +238,7 @@ public abstract class CommandHandlerBase {
      * @param e
      */
     void send(Exception e) {
-        send("Exception: " + e.toString(), mAnswerTo);
+        send("Exception: " + e.toString(), getAnswerTo());
         Log.i("Exception", e);
     }
 
@@ -170,21 +247,7 @@ public abstract class CommandHandlerBase {
     }   
     
     public Cmd getCommand(String name) {
-        Cmd cmd = mCommandMap.get(name.toLowerCase());
-        
-        if (cmd != null) {
-            return cmd;
-        }
-        
-        for (Cmd c : mCommandMap.values()) {
-            for (String a : c.getAlias()) {
-                if (a.equals(name.toLowerCase())) {
-                    return c;
-                }
-            }
-        }
-        
-        return null;
+        return mNameMap.get(name.toLowerCase());
     }
 
     boolean isMatchingCmd(Command command, String ref) {
@@ -215,8 +278,24 @@ public abstract class CommandHandlerBase {
      * @param answerTo
      */
     public final void execute(String cmd, String args, String answerTo) {
-        this.mAnswerTo = answerTo;
-        execute(new Command(cmd, args, answerTo));
+        synchronized (this) {
+            if (!mIsActivated) {
+                activate();
+            }
+            mRunning++;
+        }
+        Command invocation = new Command(cmd, args, answerTo);
+        mLastInvocation = invocation;
+        mInvocation.set(invocation);
+        try {
+            execute(invocation);
+        } finally {
+            mInvocation.remove();
+            synchronized (this) {
+                mRunning--;
+                mLastUsed = System.currentTimeMillis();
+            }
+        }
     }
 
     /**
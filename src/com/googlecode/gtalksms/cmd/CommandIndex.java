@@ -0,0 +1,165 @@
+package com.googlecode.gtalksms.cmd;
+
+import java.util.Arrays;
+
+/**
+ * Immutable dispatch index of the command names and aliases.
+ * A trie on the lower case names: lookups work on a slice of the received message,
+ * without substring nor toLowerCase, and a prefix shared by a single command can be completed.
+ */
+public class CommandIndex {
+
+    /**
+     * A command name or alias, with its command and handler
+     */
+    public static class Entry {
+        private final String mName;
+        private final Cmd mCmd;
+        private final CommandHandlerBase mHandler;
+
+        Entry(String name, Cmd cmd, CommandHandlerBase handler) {
+            mName = name;
+            mCmd = cmd;
+            mHandler = handler;
+        }
+
+        /**
+         * @return the lower case name or alias matched
+         */
+        public String getName() {
+            return mName;
+        }
+
+        public Cmd getCmd() {
+            return mCmd;
+        }
+
+        public CommandHandlerBase getHandler() {
+            return mHandler;
+        }
+    }
+
+    private static class Node {
+        char[] mKeys = new char[0];
+        Node[] mChildren = new Node[0];
+        // the name ending at this node
+        Entry mEntry;
+        // the single command of the subtree, null if there are several
+        Entry mUnique;
+        boolean mShared;
+
+        Node child(char c) {
+            int i = Arrays.binarySearch(mKeys, c);
+            return i < 0 ? null : mChildren[i];
+        }
+
+        Node addChild(char c) {
+            int i = Arrays.binarySearch(mKeys, c);
+            if (i >= 0) {
+                return mChildren[i];
+            }
+            i = -i - 1;
+            char[] keys = new char[mKeys.length + 1];
+            Node[] children = new Node[mChildren.length + 1];
+            System.arraycopy(mKeys, 0, keys, 0, i);
+            System.arraycopy(mChildren, 0, children, 0, i);
+            System.arraycopy(mKeys, i, keys, i + 1, mKeys.length - i);
+            System.arraycopy(mChildren, i, children, i + 1, mChildren.length - i);
+            keys[i] = c;
+            children[i] = new Node();
+            mKeys = keys;
+            mChildren = children;
+            return children[i];
+        }
+
+        void addToSubtree(Entry e) {
+            if (mShared) {
+                return;
+            }
+            if (mUnique == null) {
+                mUnique = e;
+            } else if (mUnique.mCmd != e.mCmd) {
+                mUnique = null;
+                mShared = true;
+            }
+        }
+    }
+
+    private final Node mRoot = new Node();
+    private int mSize;
+
+    /**
+     * Builds the index of the given handlers, the first handler registering a name wins
+     */
+    public CommandIndex(Iterable<CommandHandlerBase> handlers) {
+        for (CommandHandlerBase handler : handlers) {
+            for (Cmd cmd : handler.getCommands()) {
+                add(cmd.getName(), cmd, handler);
+                for (String alias : cmd.getAlias()) {
+                    add(alias, cmd, handler);
+                }
+            }
+        }
+    }
+
+    private void add(String name, Cmd cmd, CommandHandlerBase handler) {
+        name = name.toLowerCase();
+        Node node = mRoot;
+        for (int i = 0; i < name.length(); ++i) {
+            node = node.addChild(name.charAt(i));
+        }
+        if (node.mEntry != null) {
+            return;
+        }
+        Entry e = new Entry(name, cmd, handler);
+        node.mEntry = e;
+        ++mSize;
+
+        node = mRoot;
+        for (int i = 0; i < name.length(); ++i) {
+            node = node.child(name.charAt(i));
+            node.addToSubtree(e);
+        }
+    }
+
+    private Node find(CharSequence s, int start, int end) {
+        Node node = mRoot;
+        for (int i = start; i < end && node != null; ++i) {
+            node = node.child(Character.toLowerCase(s.charAt(i)));
+        }
+        return node;
+    }
+
+    /**
+     * @return the entry of the name or alias between start and end, case insensitive, or null
+     */
+    public Entry lookup(CharSequence s, int start, int end) {
+        Node node = find(s, start, end);
+        return node == null ? null : node.mEntry;
+    }
+
+    public Entry lookup(String name) {
+        return lookup(name, 0, name.length());
+    }
+
+    /**
+     * @return the command starting with the given prefix if there is only one, or null
+     */
+    public Entry complete(CharSequence prefix) {
+        if (prefix.length() == 0) {
+            return null;
+        }
+        Node node = find(prefix, 0, prefix.length());
+        if (node == null) {
+            return null;
+        }
+        return node.mEntry != null ? node.mEntry : node.mUnique;
+    }
+
+    /**
+     * @return the number of names and aliases
+     */
+    public int size() {
+        return mSize;
+    }
+}
@@ -4,21 +4,13 @@ import java.io.File;
 import java.io.FileFilter;
 import java.util.Arrays;
 
-import org.jivesoftware.smackx.filetransfer.FileTransfer;
-import org.jivesoftware.smackx.filetransfer.FileTransferManager;
-import org.jivesoftware.smackx.filetransfer.OutgoingFileTransfer;
-
 import com.googlecode.gtalksms.MainService;
 import com.googlecode.gtalksms.R;
 import com.googlecode.gtalksms.databases.KeyValueHelper;
-import com.googlecode.gtalksms.tools.Log;
-import com.googlecode.gtalksms.tools.Tools;
 import com.googlecode.gtalksms.xmpp.XmppFileManager;
 import com.googlecode.gtalksms.xmpp.XmppMsg;
 
 public class FileCmd extends CommandHandlerBase {
-    private static final int MAX_CYCLES = 30;
-    
     private File mLandingDir;
     private File mSendDir;  // where the files come from if send:filename is given
     private KeyValueHelper mKeyValueHelper;
@@ -81,58 +73,9 @@ public class FileCmd extends CommandHandlerBase {
         }
     }
     
-    class SendFileThread extends Thread {
-        
-        private final File mFile;
-        
-        public SendFileThread(File file) {
-            this.mFile = file;
-        }
-        
-        public void run() {
-            FileTransferManager fileTransferManager = XmppFileManager.getInstance(sContext).getFileTransferManager();
-            OutgoingFileTransfer transfer = fileTransferManager.createOutgoingFileTransfer(mAnswerTo);
-
-            try {
-                transfer.sendFile(mFile, getString(R.string.chat_file_sending, mFile.getAbsolutePath(), mAnswerTo));
-                send(R.string.chat_file_transfer_started, mFile.getAbsolutePath(), transfer.getFileSize() / 1024);
-                
-                // We allow 30s before that status go to in progress
-                int currentCycle = 0;
-                while (!transfer.isDone()) {
-                    if (transfer.getStatus() == FileTransfer.Status.refused) {
-                        send(R.string.chat_file_transfer_refused);
-                        return;
-                    } else if (transfer.getStatus() == FileTransfer.Status.error) {
-                        send(mXmppFileManager.returnAndLogError(transfer));
-                        return;
-                    } else if (transfer.getStatus() == FileTransfer.Status.negotiating_transfer) {
-                        // user has not accepted the transfer yet reset the cycle count
-                        currentCycle = 0; 
-                    } else if (transfer.getStatus() != FileTransfer.Status.in_progress) {
-                        // there is still not transfer going on
-                        currentCycle++;
-                    }
-                    
-                    if (currentCycle > MAX_CYCLES) {
-                        send(mXmppFileManager.returnAndLogError(transfer));
-                        break;
-                    }
-                    Thread.sleep(1000);
-                }
-            } catch (Exception ex) {
-                Log.e("Cannot send the file because an error occurred during the process.", ex);
-                send(R.string.chat_file_transfer_error, ex.getMessage());
-            }
-        }
-    }
-    
     private void sendFile(File file) {
-        SendFileThread t = new SendFileThread(file);
-        // we don't want this thread to block the shutdown
-        t.setDaemon(true);
-        t.setName("sendFileThread:" + file.getName());
-        t.start();
+        // the transfer runs in background and answers to the current recipient, even if the next commands don't
+        mXmppFileManager.sendFile(file, getAnswerTo());
     }
     
     private void ls(String args) {
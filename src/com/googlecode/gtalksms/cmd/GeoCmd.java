@@ -60,7 +60,7 @@ public class GeoCmd extends CommandHandlerBase {
     void startLocatingPhone() {
         Intent intent = new Intent(sContext, LocationService.class);
         intent.setAction(LocationService.START_SERVICE);
-        intent.putExtra("to", this.mAnswerTo);
+        intent.putExtra("to", getAnswerTo());
         sContext.startService(intent);
     }
 
@@ -0,0 +1,73 @@
+package com.googlecode.gtalksms.cmd;
+
+import java.util.Locale;
+import java.util.Map;
+
+import com.googlecode.gtalksms.MainService;
+import com.googlecode.gtalksms.tools.Histogram;
+import com.googlecode.gtalksms.tools.Metrics;
+import com.googlecode.gtalksms.xmpp.XmppMsg;
+
+/**
+ * Dumps the runtime metrics: "metrics" lists them, "metrics:reset" clears the counters and histograms
+ */
+public class MetricsCmd extends CommandHandlerBase {
+
+    public MetricsCmd(MainService mainService) {
+        super(mainService, CommandHandlerBase.TYPE_INTERNAL, "Metrics", new Cmd("metrics"));
+    }
+
+    @Override
+    protected void execute(Command cmd) {
+        if (cmd.getArg1().equalsIgnoreCase("reset")) {
+            Metrics.reset();
+            send("Metrics reset");
+            return;
+        }
+
+        XmppMsg res = new XmppMsg();
+        long elapsed = (System.currentTimeMillis() - Metrics.getResetTime()) / 1000;
+        res.appendItalicLine("Since " + elapsed + "s");
+
+        res.appendBoldLine("Counters");
+        for (Map.Entry<String, Long> e : Metrics.getCounters().entrySet()) {
+            res.appendLine(e.getKey() + ": " + e.getValue());
+        }
+
+        res.appendBoldLine("Gauges");
+        for (Map.Entry<String, Long> e : Metrics.getGauges().entrySet()) {
+            res.appendLine(e.getKey() + ": " + e.getValue());
+        }
+
+        res.appendBoldLine("Latencies (ms) count / mean / p50 / p90 / p99 / max");
+        for (Map.Entry<String, Histogram.Snapshot> e : Metrics.getHistograms().entrySet()) {
+            Histogram.Snapshot s = e.getValue();
+            if (s.count == 0) {
+                continue;
+            }
+            res.appendLine(e.getKey() + ": " + s.count
+                    + " / " + toMs(s.getMean())
+                    + " / " + toMs(s.getValueAtPercentile(50))
+                    + " / " + toMs(s.getValueAtPercentile(90))
+                    + " / " + toMs(s.getValueAtPercentile(99))
+                    + " / " + toMs(s.max));
+        }
+        send(res);
+    }
+
+    private static String toMs(long us) {
+        return String.format(Locale.US, "%.1f", us / 1000.0);
+    }
+
+    @Override
+    protected void onCommandActivated() {
+    }
+
+    @Override
+    protected void onCommandDeactivated() {
+    }
+
+    @Override
+    protected void initializeSubCommands() {
+    }
+}
@@ -54,18 +54,18 @@ public class MmsCmd extends CommandHandlerBase {
         if (sSettingsMgr.smsReplySeparate) {
             if (preMsg != null) {
                 message.appendBold(preMsg);
-                sendAndClear(message);
+                sendSeparateAndClear(message);
             }
             for (Mms mms : mmsList) {
                 appendMms(message, mms);
-                sendAndClear(message);
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {}
+                if (!sendSeparateAndClear(message)) {
+                    // the outbox is full, the remaining messages would be dropped too
+                    return;
+                }
             }
             if (postMsg != null) {
                 message.appendItalicLine(postMsg);
-                sendAndClear(message);
+                sendSeparateAndClear(message);
             }
         } else {
             if (preMsg != null) {
@@ -8,9 +8,10 @@ import com.googlecode.gtalksms.databases.KeyValueHelper;
 
 public class RecipientCmd extends CommandHandlerBase {
 
-    private static String sLastRecipientNumber = null;
-    private static String sLastRecipientName = null;
-    private static RecipientCmd sRecipientCmd;
+    // set by the threads of SetLastRecipientRunnable, read by the commands
+    private static volatile String sLastRecipientNumber = null;
+    private static volatile String sLastRecipientName = null;
+    private static volatile RecipientCmd sRecipientCmd;
 
     private SetLastRecipientRunnable setLastRecipientRunnable;
     private KeyValueHelper mKeyValueHelper;
@@ -19,6 +20,12 @@ public class RecipientCmd extends CommandHandlerBase {
         super(mainService, CommandHandlerBase.TYPE_MESSAGE, "Recipient", new Cmd("recipient", "re"));
     }
 
+    @Override
+    protected boolean isActivatedOnDemand() {
+        // the last recipient is set by the incoming SMS and calls
+        return false;
+    }
+
     @Override
     protected void onCommandActivated() {
         mKeyValueHelper = KeyValueHelper.getKeyValueHelper(sContext);
@@ -73,7 +80,6 @@ public class RecipientCmd extends CommandHandlerBase {
      * @param silentAndUpdate If true, don't sent a message to the user and don't update the KV-DB
      */
     public synchronized void setLastRecipientNow(String phoneNumber, boolean silentAndUpdate) {
-        mAnswerTo = null;
         if (sLastRecipientNumber == null || !phoneNumber.equals(sLastRecipientNumber)) {
             sLastRecipientNumber = phoneNumber;
             sLastRecipientName = ContactsManager.getContactName(sContext, phoneNumber);
@@ -33,6 +33,11 @@ public class RingCmd extends CommandHandlerBase {
         mVibrator = (Vibrator) sMainService.getSystemService(Context.VIBRATOR_SERVICE);
     }
 
+    @Override
+    protected boolean isBusy() {
+        return mMediaPlayer != null;
+    }
+
     @Override
     protected void onCommandDeactivated() {
         stop();
@@ -77,6 +77,16 @@ public class ShellCmd extends CommandHandlerBase {
         mShells.put(0, new Shell(0, this, sContext));
     }
 
+    @Override
+    protected boolean isBusy() {
+        for (Shell s : mShells.values()) {
+            if (s.isRunning()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     protected void onCommandDeactivated() {
         for (Shell s : mShells.values()){
@@ -19,6 +19,7 @@ import com.googlecode.gtalksms.R;
 import com.googlecode.gtalksms.cmd.smsCmd.DeliveredIntentReceiver;
 import com.googlecode.gtalksms.cmd.smsCmd.SentIntentReceiver;
 import com.googlecode.gtalksms.cmd.smsCmd.Sms;
+import com.googlecode.gtalksms.cmd.smsCmd.SmsIndexer;
 import com.googlecode.gtalksms.cmd.smsCmd.SmsManager;
 import com.googlecode.gtalksms.data.contacts.Contact;
 import com.googlecode.gtalksms.data.contacts.ContactsManager;
@@ -32,6 +33,8 @@ import com.googlecode.gtalksms.xmpp.XmppMsg;
 import com.googlecode.gtalksms.xmpp.XmppMuc;
 
 public class SmsCmd extends CommandHandlerBase {
+    // The static fields are guarded by the lock of SmsCmd.class, the commands run on the executor threads
+    // and the receivers on the main thread
     private static boolean sSentIntentReceiverRegistered = false;
     private static boolean sDelIntentReceiverRegistered = false;
     private static BroadcastReceiver sSentSmsReceiver = null;
@@ -53,6 +56,12 @@ public class SmsCmd extends CommandHandlerBase {
                 new Cmd("findsms", "fs"), new Cmd("markasread", "mar"), new Cmd("chat", "c"), new Cmd("delsms"));
     }
 
+    @Override
+    protected boolean isActivatedOnDemand() {
+        // the receivers notify the sent and delivered SMS
+        return false;
+    }
+
     @Override
     protected void onCommandActivated() {
         mSmsManager = new SmsManager(sSettingsMgr, sContext);
@@ -60,22 +69,25 @@ public class SmsCmd extends CommandHandlerBase {
         mAliasHelper = AliasHelper.getAliasHelper(sContext);
         mKeyValueHelper = KeyValueHelper.getKeyValueHelper(sContext);
         mContactsResolver = ContactsResolver.getInstance(sContext);
+        SmsIndexer.getInstance(sContext).start();
 
-        restoreSmsInformation();
+        synchronized (SmsCmd.class) {
+            restoreSmsInformation();
 
-        if (sSettingsMgr.notifySmsSent && !sSentIntentReceiverRegistered) {
-            if (sSentSmsReceiver == null) {
-                sSentSmsReceiver = new SentIntentReceiver(sMainService, mSmsMap, mSmsHelper);
+            if (sSettingsMgr.notifySmsSent && !sSentIntentReceiverRegistered) {
+                if (sSentSmsReceiver == null) {
+                    sSentSmsReceiver = new SentIntentReceiver(sMainService, mSmsMap, mSmsHelper);
+                }
+                sMainService.registerReceiver(sSentSmsReceiver, new IntentFilter(MainService.ACTION_SMS_SENT));
+                sSentIntentReceiverRegistered = true;
             }
-            sMainService.registerReceiver(sSentSmsReceiver, new IntentFilter(MainService.ACTION_SMS_SENT));
-            sSentIntentReceiverRegistered = true;
-        }
-        if (sSettingsMgr.notifySmsDelivered && !sDelIntentReceiverRegistered) {
-            if (sDeliveredSmsReceiver == null) {
-                sDeliveredSmsReceiver = new DeliveredIntentReceiver(sMainService, mSmsMap, mSmsHelper);
+            if (sSettingsMgr.notifySmsDelivered && !sDelIntentReceiverRegistered) {
+                if (sDeliveredSmsReceiver == null) {
+                    sDeliveredSmsReceiver = new DeliveredIntentReceiver(sMainService, mSmsMap, mSmsHelper);
+                }
+                sMainService.registerReceiver(sDeliveredSmsReceiver, new IntentFilter(MainService.ACTION_SMS_DELIVERED));
+                sDelIntentReceiverRegistered = true;
             }
-            sMainService.registerReceiver(sDeliveredSmsReceiver, new IntentFilter(MainService.ACTION_SMS_DELIVERED));
-            sDelIntentReceiverRegistered = true;
         }
     }
 
@@ -86,14 +98,17 @@ public class SmsCmd extends CommandHandlerBase {
         mAliasHelper = null;
         mKeyValueHelper = null;
         mContactsResolver = null;
+        SmsIndexer.getInstance(sContext).stop();
 
-        if (sSentSmsReceiver != null && sSentIntentReceiverRegistered) {
-            sContext.unregisterReceiver(sSentSmsReceiver);
-            sSentIntentReceiverRegistered = false;
-        }
-        if (sDeliveredSmsReceiver != null && sDelIntentReceiverRegistered) {
-            sContext.unregisterReceiver(sDeliveredSmsReceiver);
-            sDelIntentReceiverRegistered = false;
+        synchronized (SmsCmd.class) {
+            if (sSentSmsReceiver != null && sSentIntentReceiverRegistered) {
+                sContext.unregisterReceiver(sSentSmsReceiver);
+                sSentIntentReceiverRegistered = false;
+            }
+            if (sDeliveredSmsReceiver != null && sDelIntentReceiverRegistered) {
+                sContext.unregisterReceiver(sDeliveredSmsReceiver);
+                sDelIntentReceiverRegistered = false;
+            }
         }
     }
 
@@ -114,7 +129,11 @@ public class SmsCmd extends CommandHandlerBase {
                 readLastSMS();
             }
         } else if (isMatchingCmd(c, "findsms")) {
-            searchSMS(arg2, mAliasHelper.convertAliasToNumber(arg1));
+            if (arg2.length() > 0) {
+                searchSMS(arg2, mAliasHelper.convertAliasToNumber(arg1));
+            } else {
+                searchAllSMS(arg1);
+            }
         } else if (isMatchingCmd(c, "markasread")) {
             if (arg1.length() > 0) {
                 markSmsAsRead(arg1);
@@ -268,7 +287,6 @@ public class SmsCmd extends CommandHandlerBase {
 
             for (Contact contact : contacts) {
                 ArrayList<Sms> smsList = mSmsManager.getSms(ContactsManager.getPhones(sContext, contact.ids), message);
-                Collections.sort(smsList);
 
                 if (smsList.size() > 0) {
                     sendSmsListOnXmpp(smsList, contact.name, null);
@@ -281,6 +299,22 @@ public class SmsCmd extends CommandHandlerBase {
         }
     }
 
+    /**
+     * Search for SMS Mesages of all the contacts and sends them back to the user
+     * 
+     * @param message
+     */
+    private void searchAllSMS(String message) {
+        send(R.string.chat_sms_search_start);
+        ArrayList<Sms> smsList = mSmsManager.getLastSms(message);
+
+        if (smsList.size() > 0) {
+            sendSmsListOnXmpp(smsList, null, null);
+        } else {
+            send(R.string.chat_no_match_for, message);
+        }
+    }
+
     /**
      * Appends an SMS to an XmppMsg with formatting does not send the XmppMsg!
      * 
@@ -371,7 +405,6 @@ public class SmsCmd extends CommandHandlerBase {
             for (Contact contact : contacts) {
                 // Looking for conversations for all phone numbers of the contact
                 ArrayList<Sms> smsList = mSmsManager.getSms(ContactsManager.getPhones(sContext, contact.ids));
-                Collections.sort(smsList);
 
                 if (smsList.size() > 0) {
                     hasMatch = true;
@@ -393,7 +426,6 @@ public class SmsCmd extends CommandHandlerBase {
     /** reads unread SMS from all contacts */
     private void readUnreadSMS() {
         ArrayList<Sms> smsList = mSmsManager.getLastUnreadSms();
-        Collections.sort(smsList);
 
         XmppMsg allSms = new XmppMsg();
 
@@ -408,7 +440,6 @@ public class SmsCmd extends CommandHandlerBase {
     /** reads last (count) SMS from all contacts */
     private void readLastSMS() {
         ArrayList<Sms> smsList = mSmsManager.getLastSms();
-        Collections.sort(smsList);
 
         if (smsList.size() > 0) {
             sendSmsListOnXmpp(smsList, null, null);
@@ -423,18 +454,18 @@ public class SmsCmd extends CommandHandlerBase {
         if (sSettingsMgr.smsReplySeparate) {
             if (preMsg != null) {
                 message.appendBold(preMsg);
-                sendAndClear(message);
+                sendSeparateAndClear(message);
             }
             for (Sms sms : smsList) {
                 appendSMS(message, sms);
-                sendAndClear(message);
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {}
+                if (!sendSeparateAndClear(message)) {
+                    // the outbox is full, the remaining messages would be dropped too
+                    return;
+                }
             }
             if (postMsg != null) {
                 message.appendItalicLine(postMsg);
-                sendAndClear(message);
+                sendSeparateAndClear(message);
             }
         } else {
             if (preMsg != null) {
@@ -474,9 +505,13 @@ public class SmsCmd extends CommandHandlerBase {
 
         if (sSettingsMgr.notifySmsSentDelivered) {
             String shortenedMessage = Tools.shortenMessage(message);
-            Integer smsID = getSmsID();
-            Sms s = new Sms(phoneNumber, toName, shortenedMessage, messages.size(), mAnswerTo, smsID);
-            mSmsMap.put(smsID, s);
+            Integer smsID;
+            Sms s;
+            synchronized (SmsCmd.class) {
+                smsID = getSmsID();
+                s = new Sms(phoneNumber, toName, shortenedMessage, messages.size(), getAnswerTo(), smsID);
+                mSmsMap.put(smsID, s);
+            }
             mSmsHelper.addSMS(s);
             if (sSettingsMgr.notifySmsSent) {
                 Log.i("SmsCmd sendSMSByPhoneNumber() - creating SentPendingIntents");
@@ -491,6 +526,7 @@ public class SmsCmd extends CommandHandlerBase {
         smsManager.sendMultipartTextMessage(phoneNumber, null, messages, sentPendingIntents, deliveredPendingIntents);
         RecipientCmd.setLastRecipient(phoneNumber);
         mSmsManager.addSmsToSentBox(message, phoneNumber);
+        SmsIndexer.notifySmsChanged();
     }
 
     private ArrayList<PendingIntent> createSPendingIntents(int size, int smsID) {
@@ -523,16 +559,16 @@ public class SmsCmd extends CommandHandlerBase {
 
     /**
      * Restores the SMS information from the database Creates the smsMap object and fills it if there are any old SMS
-     * from the database
+     * from the database. Called with the lock of SmsCmd.class held
      */
     private void restoreSmsInformation() {
         if (sSmsID == null) {
             sSmsID = mKeyValueHelper.getIntegerValue(KeyValueHelper.KEY_SMS_ID);
             // This is the first time the method was called, init the values
             if (sSmsID == null) {
-                mKeyValueHelper.addKey(KeyValueHelper.KEY_SMS_ID, "0");
-                mKeyValueHelper.addKey(KeyValueHelper.KEY_SINTENT, "0");
-                mKeyValueHelper.addKey(KeyValueHelper.KEY_DINTENT, "0");
+                mKeyValueHelper.addKeys(KeyValueHelper.KEY_SMS_ID, "0",
+                        KeyValueHelper.KEY_SINTENT, "0",
+                        KeyValueHelper.KEY_DINTENT, "0");
                 sSmsID = 0;
             }
             mSmsMap = Collections.synchronizedMap(new HashMap<Integer, Sms>());
@@ -544,6 +580,9 @@ public class SmsCmd extends CommandHandlerBase {
         }
     }
 
+    /**
+     * Called with the lock of SmsCmd.class held
+     */
     private Integer getSmsID() {
         int res = sSmsID;
         sSmsID++;
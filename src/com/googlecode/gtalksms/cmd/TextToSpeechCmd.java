@@ -29,6 +29,12 @@ public class TextToSpeechCmd extends CommandHandlerBase implements OnInitListene
                 new Cmd("tts-engine-list", Cmd.DISABLED, "ttsenginelist"));
     }
 
+    @Override
+    protected boolean isActivatedOnDemand() {
+        // the engine is initialized asynchronously, it wouldn't be ready for the first command
+        return false;
+    }
+
     @Override
     protected void onCommandActivated() {
         mLocale = Locale.getDefault();
@@ -1,10 +1,6 @@
 package com.googlecode.gtalksms.cmd.shellCmd;
 
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.Date;
+import java.io.IOException;
 
 import android.content.Context;
 
@@ -16,102 +12,23 @@ import com.googlecode.gtalksms.tools.Tools;
 import com.googlecode.gtalksms.xmpp.XmppFont;
 import com.googlecode.gtalksms.xmpp.XmppMsg;
 
+/**
+ * A console running one command at a time, its output is streamed to the chat or the room of the console.
+ * The commands of a console run in the same long-lived shell, kept by the ShellSessions shared by the consoles.
+ */
 public class Shell {
-    class ShellThread implements Runnable {
-        boolean mStop = false;
-        
-        public void stop() {
-            mStop = true;
-        }
-        
-        public void run() {
-            mResults.append(mCurrentCommand);
-            mResults.append(Tools.LineSep);
-            
-            Process myproc;
-            
-            try { 
-                if (!RootTools.askRootAccess()) {
-                    mResults.append(mContext.getString(R.string.chat_error_root)).append(Tools.LineSep);
-                    myproc = Runtime.getRuntime().exec(new String[] {"/system/bin/sh", "-c", mCurrentCommand});
-                } else {
-                    myproc = Runtime.getRuntime().exec("su");
+    private static final ShellEngine sEngine = new ShellEngine();
+    private static final ShellSessions sSessions = new ShellSessions(sEngine);
 
-                    DataOutputStream os = new DataOutputStream(myproc.getOutputStream());
-                    os.writeBytes(mCurrentCommand + "\n");
-                    os.writeBytes("exit\n");
-                    os.flush();
-                    os.close();
-                }
-    
-                readStream(myproc.getInputStream());
-                readStream(myproc.getErrorStream());
-                
-                if (!mStop) {
-                    sendResults();
-                }
-            }
-            catch (InterruptedException ex) {
-                sendMessage(mCurrentCommand + " killed.");
-            }
-            catch (Exception ex) {
-                Log.w("Shell command error", ex);
-            }
-            
-            mThread = null;
-            mShellThread = null;
-            mCurrentCommand = null;
-        }
-        
-        /**
-         * Reads the given InputStream and sends a XmppMsg every 5000 chars
-         * or every 10 seconds, whatever comes first.
-         * If we happen to encounter an InputStream that never stops, like from
-         * "tail -f" or "logcat" without the "-d" option, the method will never 
-         * return. See executeCommand on how we handle this.
-         * 
-         * @param is
-         * @throws Exception
-         */
-        void readStream(InputStream is) throws Exception {
-            String line;
-            Date start = new Date();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(is));
-            
-            while ((line = reader.readLine()) != null && !mStop) {
-                mResults.append(line);
-                mResults.append(Tools.LineSep);
-                
-                Date end = new Date();
-                if ((end.getTime() - start.getTime()) / 1000 > 10 || mResults.length() > 5000 ) {
-                    start = end;
-                    int last = mResults.lastIndexOf("\n");
-                    if (last != -1) {
-                        XmppMsg msg = new XmppMsg(_font);
-                        msg.append(mResults.substring(0, last + 1));
-                        mCmdBase.send(mShellId, msg);
-                        // fastest way to empty a StringBuilder
-                        mResults.setLength(0);
-                    }
-                }
-            }
-        }
-    }
-    
     // Id to identify the console/room (0 for main chat windows)
     private final int mShellId;
     
-    // Execution thread
-    private Thread mThread;
-    private ShellThread mShellThread;
+    // Running or last command
+    private volatile ShellSessions.Command mCommand;
     
-    // Buffered results
-    private StringBuilder mResults = new StringBuilder();
+    // Root access, asked by the first command
+    private Boolean mRoot;
     
-    // Command
-    // TODO an array ?
-    private String mCurrentCommand;
-
     // Reference to shell command manager to manage results
     private final ShellCmd mCmdBase;
     
@@ -122,6 +39,13 @@ public class Shell {
     // TODO allow modifications ?
     private final XmppFont _font = new XmppFont("consolas", "red");
 
+    private final ShellSessions.ProcessFactory mFactory = new ShellSessions.ProcessFactory() {
+        public Process start(int id) throws IOException {
+            Log.d("Starting " + (mRoot ? "root " : "") + "shell " + id);
+            return new ProcessBuilder(mRoot ? "su" : "/system/bin/sh").start();
+        }
+    };
+
     public Shell(int id, ShellCmd cmdBase, Context context) {
         mShellId = id;
         mCmdBase = cmdBase;
@@ -130,43 +54,57 @@ public class Shell {
        
     /**
      * Executes a given command, if the previous command is still running, it's
-     * thread will be stopped.
+     * shell will be killed and a new one started.
+     * If the command never ends, like "tail -f" or "logcat" without the "-d" option,
+     * its output is sent until the next command or the stop of the shell.
      * 
      * @param shellCmd
      */
-    public void executeCommand(String shellCmd) {
-        // check if the previous Command Thread still exists
-        if (mThread != null && mThread.isAlive()) {
-            mShellThread.stop();
-            mResults = new StringBuilder();
+    public void executeCommand(final String shellCmd) {
+        if (mRoot == null) {
+            mRoot = RootTools.askRootAccess();
+        }
+
+        StringBuilder header = new StringBuilder();
+        header.append(shellCmd).append(Tools.LineSep);
+        if (!mRoot) {
+            header.append(mContext.getString(R.string.chat_error_root)).append(Tools.LineSep);
+        }
+        try {
+            mCommand = sSessions.execute(mShellId, shellCmd, header.toString(), mFactory, new ShellOutput.Sink() {
+                public void send(String text) {
+                    XmppMsg msg = new XmppMsg(_font);
+                    msg.append(text);
+                    mCmdBase.send(mShellId, msg);
+                }
+            }, new ShellSessions.Listener() {
+                public void onFinished(ShellSessions.Command command, int exitCode, boolean killed) {
+                    if (killed) {
+                        sendMessage(command.getText() + " killed.");
+                    }
+                }
+            });
+        } catch (Exception ex) {
+            Log.w("Shell command error", ex);
+            sendMessage(mContext.getString(R.string.chat_shell_error_access, mShellId, ex.getLocalizedMessage()));
         }
-        mCurrentCommand = shellCmd;
-        mShellThread = new ShellThread();
-        mThread = new Thread(mShellThread);
-        mThread.start();
-    }
-    
-    private void sendResults() {
-        XmppMsg msg = new XmppMsg(_font);
-        msg.append(mResults.toString());
-        mCmdBase.send(mShellId, msg);
-        mResults = new StringBuilder();
     }
     
     private void sendMessage(String msg) {
         mCmdBase.send(mShellId, msg);
     }
 
+    public boolean isRunning() {
+        ShellSessions.Command command = mCommand;
+        return command != null && command.isRunning();
+    }
+
+    /**
+     * Kills the shell of the console and its running command
+     */
     public void stop() {
-        try {
-            if (mThread != null && mThread.isAlive()) {
-                mShellThread.stop();
-                mThread.join(1000);
-            }
-            mThread = null;
-            mShellThread = null;
-        } catch (Exception e) {
-            Log.d("Error while stopping shell " + mShellId + ": " + e.getMessage());
-        }
+        Log.d("Stopping shell " + mShellId);
+        sSessions.kill(mShellId);
+        mCommand = null;
     }
 }
@@ -0,0 +1,282 @@
+package com.googlecode.gtalksms.cmd.shellCmd;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.googlecode.gtalksms.tools.Log;
+
+/**
+ * Reads the shell processes: the stdout and the stderr of a process are read by a single reader of a shared,
+ * bounded pool, the output is passed to the Handler of the process, the ShellSessions.
+ *
+ * The reader only reads the bytes available on each stream and waits a little when there are none, a process
+ * writing to both streams never blocks on a full pipe while the other one is read. A process holds one reader
+ * while it runs, for its two streams: the processes started once the pool is full wait in the queue and are
+ * read as soon as a reader is free. A stopped reader is released at its next check, even if the children
+ * of its process still hold the pipes.
+ */
+public class ShellEngine {
+    public static final int DEFAULT_READERS = 8;
+    private static final long KEEP_ALIVE_SEC = 30;
+    static final int READ_BYTES = 8192;
+    // the reader of a quiet process checks its streams less and less often, up to MAX_POLL_MS
+    static final long MIN_POLL_MS = 1;
+    static final long MAX_POLL_MS = 200;
+
+    /**
+     * Receives the output of a process, called from its reader
+     */
+    interface Handler {
+        /**
+         * @param out the chars read from stdout, may be empty
+         * @param err the chars read from stderr, may be empty: they are read after out, what was written
+         *            to stderr before the last char of out is passed with out at the latest
+         */
+        void onOutput(String out, String err);
+
+        /**
+         * Called once, when the process has ended and all its output is passed, or when the reader is stopped
+         */
+        void onEnd();
+    }
+
+    private final ThreadPoolExecutor mReaders;
+    private final ScheduledExecutorService mTimer;
+
+    public ShellEngine() {
+        this(DEFAULT_READERS);
+    }
+
+    /**
+     * @param readers the maximum number of processes read at once
+     */
+    public ShellEngine(int readers) {
+        mReaders = new ThreadPoolExecutor(readers, readers, KEEP_ALIVE_SEC, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), newThreadFactory("GTalkSMS.ShellReader-"));
+        mReaders.allowCoreThreadTimeOut(true);
+        mTimer = Executors.newSingleThreadScheduledExecutor(newThreadFactory("GTalkSMS.ShellFlush-"));
+    }
+
+    private static ThreadFactory newThreadFactory(final String prefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, prefix + mCount.getAndIncrement());
+                // a command that never ends must not block the shutdown
+                t.setDaemon(true);
+                t.setPriority(Thread.NORM_PRIORITY - 1);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Reads the stdout and the stderr of the process on a reader of the pool
+     */
+    Reader read(Process process, Handler handler) {
+        Reader reader = new Reader(process, handler);
+        mReaders.execute(reader);
+        return reader;
+    }
+
+    /**
+     * @return the timer of the delayed sends
+     */
+    ScheduledExecutorService getTimer() {
+        return mTimer;
+    }
+
+    /**
+     * Stops the readers and the timer, the running processes are not destroyed
+     */
+    public void shutdown() {
+        mReaders.shutdownNow();
+        mTimer.shutdownNow();
+    }
+
+    /**
+     * Reads the two streams of a process without blocking on any of them, until the process has ended
+     * and nothing is left to read
+     */
+    static class Reader implements Runnable {
+        private final Process mProcess;
+        private final Handler mHandler;
+        private final Stream mOut;
+        private final Stream mErr;
+        private final Object mLock = new Object();
+        // guarded by mLock
+        private long mPollMs = MIN_POLL_MS;
+        private boolean mWoken;
+        private volatile boolean mStopped;
+
+        Reader(Process process, Handler handler) {
+            mProcess = process;
+            mHandler = handler;
+            mOut = new Stream(process.getInputStream());
+            mErr = new Stream(process.getErrorStream());
+        }
+
+        /**
+         * Checks the streams at once, for a process about to write
+         */
+        void wake() {
+            synchronized (mLock) {
+                mPollMs = MIN_POLL_MS;
+                mWoken = true;
+                mLock.notify();
+            }
+        }
+
+        /**
+         * Stops reading, the output not read yet is dropped
+         */
+        void stop() {
+            mStopped = true;
+            wake();
+        }
+
+        public void run() {
+            try {
+                boolean exited = false;
+                while (!mStopped) {
+                    // stdout first: the stderr read next holds what was written before it
+                    boolean read = mOut.read(mOut.available()) > 0;
+                    // a large output of stderr is passed in pieces, the last one with out
+                    int errAvailable = mErr.available();
+                    while (errAvailable > 0) {
+                        int count = mErr.read(errAvailable);
+                        if (count == 0) {
+                            break;
+                        }
+                        read = true;
+                        errAvailable -= count;
+                        if (errAvailable > 0) {
+                            mHandler.onOutput("", mErr.take());
+                        }
+                    }
+                    if (read) {
+                        mHandler.onOutput(mOut.take(), mErr.take());
+                        synchronized (mLock) {
+                            mPollMs = MIN_POLL_MS;
+                        }
+                    } else if (exited) {
+                        // nothing more after the exit, the last output was read by the check following it
+                        break;
+                    } else if (!(exited = hasExited(mProcess))) {
+                        await();
+                    }
+                }
+            } catch (IOException e) {
+                // destroyed process or closed stream
+                if (!mStopped) {
+                    Log.w("Shell stream error", e);
+                }
+            } catch (InterruptedException e) {
+                // the engine is shut down
+            } finally {
+                mOut.close();
+                mErr.close();
+                mHandler.onEnd();
+            }
+        }
+
+        private void await() throws InterruptedException {
+            synchronized (mLock) {
+                if (!mWoken) {
+                    long pollMs = mPollMs;
+                    mPollMs = Math.min(pollMs * 2, MAX_POLL_MS);
+                    mLock.wait(pollMs);
+                }
+                mWoken = false;
+            }
+        }
+    }
+
+    private static boolean hasExited(Process process) {
+        try {
+            process.exitValue();
+            return true;
+        } catch (IllegalThreadStateException e) {
+            return false;
+        }
+    }
+
+    /**
+     * A stream of a process and its output not passed yet, read by a single reader
+     */
+    private static class Stream {
+        private final InputStream mIn;
+        private final CharsetDecoder mDecoder = Charset.defaultCharset().newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        // the bytes of a char cut by a read are kept for the next one
+        private final ByteBuffer mBytes = ByteBuffer.allocate(READ_BYTES);
+        private final CharBuffer mChars = CharBuffer.allocate(READ_BYTES);
+        private final StringBuilder mPending = new StringBuilder();
+
+        Stream(InputStream in) {
+            mIn = in;
+        }
+
+        int available() throws IOException {
+            return mIn.available();
+        }
+
+        /**
+         * Reads up to READ_BYTES of the available bytes, never blocks
+         * @param available the number of available bytes
+         * @return the number of bytes read
+         */
+        int read(int available) throws IOException {
+            if (available <= 0) {
+                return 0;
+            }
+            int read = mIn.read(mBytes.array(), mBytes.position(), Math.min(available, mBytes.remaining()));
+            if (read <= 0) {
+                return 0;
+            }
+            mBytes.position(mBytes.position() + read);
+            mBytes.flip();
+            CoderResult result;
+            do {
+                result = mDecoder.decode(mBytes, mChars, false);
+                mChars.flip();
+                mPending.append(mChars);
+                mChars.clear();
+            } while (result.isOverflow());
+            mBytes.compact();
+            return read;
+        }
+
+        /**
+         * @return the chars read since the last call
+         */
+        String take() {
+            String res = mPending.toString();
+            mPending.setLength(0);
+            return res;
+        }
+
+        void close() {
+            try {
+                mIn.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+}
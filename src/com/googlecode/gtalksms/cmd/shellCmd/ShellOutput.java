@@ -0,0 +1,174 @@
+package com.googlecode.gtalksms.cmd.shellCmd;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.googlecode.gtalksms.tools.Metrics;
+
+/**
+ * Output of a shell session, buffered between the readers of the process and the messages sent to the user.
+ *
+ * The buffer is sent as a message:
+ * - once the output pauses for IDLE_MS, an interactive command answers at once,
+ * - once it holds the output of about TARGET_INTERVAL_MS at the current rate, a verbose command
+ *   sends a message per second instead of one per line,
+ * - at the latest MAX_DELAY_MS after its oldest output.
+ *
+ * The reader reaching the size threshold sends the message itself and stops reading meanwhile: a process writing
+ * faster than the messages are sent blocks on its pipe, the buffer never holds much more than MAX_MESSAGE_CHARS.
+ */
+public class ShellOutput {
+    static final int MIN_MESSAGE_CHARS = 1024;
+    static final int MAX_MESSAGE_CHARS = 16 * 1024;
+    static final long IDLE_MS = 300;
+    static final long MAX_DELAY_MS = 2000;
+    static final long TARGET_INTERVAL_MS = 1000;
+    // weight of the last message in the output rate
+    private static final double RATE_WEIGHT = 0.3;
+
+    private static final Metrics.Counter sCharsCount = Metrics.counter("shell.output.chars");
+    private static final Metrics.Counter sMessagesCount = Metrics.counter("shell.output.messages");
+
+    /**
+     * Receives the messages, called by a single thread at a time in the order of the output
+     */
+    public interface Sink {
+        void send(String text);
+    }
+
+    private final Sink mSink;
+    private final ScheduledExecutorService mTimer;
+    // held while a message is taken from the buffer and sent, the messages keep the order of the output
+    private final Object mSendLock = new Object();
+    private final StringBuilder mBuffer = new StringBuilder();
+    private final Runnable mTimerTask = new Runnable() {
+        public void run() {
+            onTimer();
+        }
+    };
+    // times of the oldest and of the newest buffered output
+    private long mFirstAppend;
+    private long mLastAppend;
+    private long mLastSend;
+    // output rate in chars per ms, 0 until the first message
+    private double mRate;
+    private int mThreshold = MIN_MESSAGE_CHARS;
+    private boolean mTimerScheduled;
+    private boolean mClosed;
+
+    /**
+     * @param timer runs the delayed sends, shared by the sessions
+     */
+    public ShellOutput(Sink sink, ScheduledExecutorService timer) {
+        mSink = sink;
+        mTimer = timer;
+        mLastSend = now();
+    }
+
+    /**
+     * Adds output, the caller sends the message if the buffer has reached the threshold
+     */
+    public void append(String text) {
+        boolean send;
+        synchronized (this) {
+            if (mClosed || text.length() == 0) {
+                return;
+            }
+            long now = now();
+            if (mBuffer.length() == 0) {
+                mFirstAppend = now;
+            }
+            mBuffer.append(text);
+            mLastAppend = now;
+            send = mBuffer.length() >= mThreshold;
+            if (!send) {
+                schedule(IDLE_MS);
+            }
+        }
+        if (send) {
+            send();
+        }
+    }
+
+    /**
+     * Sends the remaining output, the next appends are ignored
+     */
+    public void close() {
+        send();
+        synchronized (this) {
+            mClosed = true;
+        }
+    }
+
+    /**
+     * @return the number of buffered chars
+     */
+    public synchronized int getBufferedCount() {
+        return mBuffer.length();
+    }
+
+    private void send() {
+        synchronized (mSendLock) {
+            String text;
+            synchronized (this) {
+                text = take(now());
+            }
+            if (text != null) {
+                sCharsCount.add(text.length());
+                sMessagesCount.inc();
+                mSink.send(text);
+            }
+        }
+    }
+
+    /**
+     * Empties the buffer and adapts the threshold to the output rate, called with the lock held
+     * @return the buffered output or null if there is none
+     */
+    private String take(long now) {
+        if (mBuffer.length() == 0) {
+            return null;
+        }
+        String res = mBuffer.toString();
+        mBuffer.setLength(0);
+        if (mBuffer.capacity() > 2 * MAX_MESSAGE_CHARS) {
+            mBuffer.trimToSize();
+        }
+
+        double rate = (double) res.length() / Math.max(1, now - mLastSend);
+        mRate = mRate == 0 ? rate : RATE_WEIGHT * rate + (1 - RATE_WEIGHT) * mRate;
+        mThreshold = (int) Math.max(MIN_MESSAGE_CHARS, Math.min(MAX_MESSAGE_CHARS, mRate * TARGET_INTERVAL_MS));
+        mLastSend = now;
+        return res;
+    }
+
+    /**
+     * Called with the lock held
+     */
+    private void schedule(long delay) {
+        if (!mTimerScheduled && !mTimer.isShutdown()) {
+            mTimerScheduled = true;
+            mTimer.schedule(mTimerTask, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void onTimer() {
+        synchronized (this) {
+            mTimerScheduled = false;
+            if (mBuffer.length() == 0) {
+                return;
+            }
+            long now = now();
+            long due = Math.min(mLastAppend + IDLE_MS, mFirstAppend + MAX_DELAY_MS);
+            if (now < due) {
+                schedule(due - now);
+                return;
+            }
+        }
+        send();
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+}
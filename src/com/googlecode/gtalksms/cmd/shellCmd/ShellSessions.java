@@ -0,0 +1,407 @@
+package com.googlecode.gtalksms.cmd.shellCmd;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.googlecode.gtalksms.tools.Log;
+
+/**
+ * Keeps a long-lived shell per session id and runs the commands of the session in it, one at a time.
+ * The start of the process (and the su request of a root shell) is paid once per session instead of once
+ * per command, and the shell keeps its state between the commands, the current directory for example.
+ *
+ * A command is written as "command eval '...' </dev/null" followed by a printf of a sentinel unique
+ * to the command and of its exit code, the output before the sentinel is the output of the command.
+ * The stdout and the stderr of the shell are read by a single reader of the ShellEngine, the lines written
+ * to stderr before the sentinel are output by the command too.
+ *
+ * A session whose shell has died is started again by its next command. The sessions idle for IDLE_TIMEOUT_MS
+ * are closed, and the least recently used one when MAX_SESSIONS are open.
+ */
+public class ShellSessions {
+    public static final int MAX_SESSIONS = 4;
+    public static final long IDLE_TIMEOUT_MS = 10 * 60 * 1000;
+    private static final long EVICTION_PERIOD_MS = 60 * 1000;
+    // a longer line is passed in pieces
+    static final int MAX_LINE_CHARS = 4096;
+
+    /**
+     * Starts the shell of a session, its stdout and its stderr are read separately
+     */
+    public interface ProcessFactory {
+        Process start(int id) throws IOException;
+    }
+
+    /**
+     * End of a command, called from a reader thread or from the thread killing the session
+     */
+    public interface Listener {
+        /**
+         * @param exitCode the exit code of the command, -1 if the shell has died or was killed
+         * @param killed true if the session was killed
+         */
+        void onFinished(Command command, int exitCode, boolean killed);
+    }
+
+    /**
+     * A command sent to a session
+     */
+    public static class Command {
+        private final String mText;
+        private final ShellOutput mOutput;
+        private final Listener mListener;
+        private final AtomicBoolean mFinished = new AtomicBoolean();
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile int mExitCode = -1;
+        // start of the line of the exit code
+        private String mSentinel;
+
+        Command(String text, ShellOutput output, Listener listener) {
+            mText = text;
+            mOutput = output;
+            mListener = listener;
+        }
+
+        public String getText() {
+            return mText;
+        }
+
+        public boolean isRunning() {
+            return !mFinished.get();
+        }
+
+        /**
+         * @return the exit code, -1 if the command is still running after the timeout
+         */
+        public int waitFor(long timeoutMs) throws InterruptedException {
+            return mDone.await(timeoutMs, TimeUnit.MILLISECONDS) ? mExitCode : -1;
+        }
+
+        private void finish(int exitCode, boolean killed) {
+            if (!mFinished.compareAndSet(false, true)) {
+                return;
+            }
+            mExitCode = exitCode;
+            mOutput.close();
+            mDone.countDown();
+            if (mListener != null) {
+                mListener.onFinished(this, exitCode, killed);
+            }
+        }
+    }
+
+    private final ShellEngine mEngine;
+    // in access order, the first one is the least recently used
+    private final Map<Integer, Session> mSessions = new LinkedHashMap<Integer, Session>(MAX_SESSIONS * 2, 0.75f, true);
+    private final SecureRandom mRandom = new SecureRandom();
+    private boolean mEvictionScheduled;
+
+    /**
+     * @param engine provides the readers and the timer of the sessions
+     */
+    public ShellSessions(ShellEngine engine) {
+        mEngine = engine;
+    }
+
+    /**
+     * Runs the command in the shell of the session, it's started if needed.
+     * If the session is running a command, its shell is killed and a new one is started.
+     * @param header the first output of the command, may be null
+     * @param factory starts the shell if the session has none
+     * @param sink receives the output
+     * @param listener notified when the command has ended and its output is sent, may be null
+     */
+    public Command execute(int id, String text, String header, ProcessFactory factory, ShellOutput.Sink sink,
+            Listener listener) throws IOException {
+        Command command = new Command(text, new ShellOutput(sink, mEngine.getTimer()), listener);
+        if (header != null) {
+            command.mOutput.append(header);
+        }
+
+        Session session;
+        synchronized (this) {
+            session = mSessions.get(id);
+            if (session != null && (session.mDead || session.mCurrent != null)) {
+                session = null;
+            }
+        }
+        if (session == null) {
+            // out of the lock, su may wait for the user
+            kill(id);
+            session = new Session(id, factory.start(id));
+            List<Session> evicted = new ArrayList<Session>();
+            synchronized (this) {
+                while (mSessions.size() >= MAX_SESSIONS) {
+                    Iterator<Session> it = mSessions.values().iterator();
+                    evicted.add(it.next());
+                    it.remove();
+                }
+                mSessions.put(id, session);
+                scheduleEviction();
+            }
+            for (Session s : evicted) {
+                Log.d("Closing the least recently used shell " + s.mId);
+                s.kill();
+            }
+            session.start();
+        }
+        session.run(command);
+        return command;
+    }
+
+    /**
+     * Kills the shell of the session, its running command ends at once
+     */
+    public void kill(int id) {
+        Session session;
+        synchronized (this) {
+            session = mSessions.remove(id);
+        }
+        if (session != null) {
+            session.kill();
+        }
+    }
+
+    /**
+     * Kills all the shells
+     */
+    public void killAll() {
+        List<Session> sessions;
+        synchronized (this) {
+            sessions = new ArrayList<Session>(mSessions.values());
+            mSessions.clear();
+        }
+        for (Session s : sessions) {
+            s.kill();
+        }
+    }
+
+    /**
+     * @return the number of open sessions
+     */
+    public synchronized int getSessionCount() {
+        return mSessions.size();
+    }
+
+    /**
+     * Called with the lock held
+     */
+    private void scheduleEviction() {
+        if (!mEvictionScheduled && !mSessions.isEmpty()) {
+            mEvictionScheduled = true;
+            mEngine.getTimer().schedule(new Runnable() {
+                public void run() {
+                    evictIdleSessions();
+                }
+            }, EVICTION_PERIOD_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void evictIdleSessions() {
+        List<Session> evicted = new ArrayList<Session>();
+        synchronized (this) {
+            mEvictionScheduled = false;
+            long now = System.currentTimeMillis();
+            Iterator<Session> it = mSessions.values().iterator();
+            while (it.hasNext()) {
+                Session s = it.next();
+                if (s.mCurrent == null && now - s.mLastUsed > IDLE_TIMEOUT_MS) {
+                    evicted.add(s);
+                    it.remove();
+                }
+            }
+            scheduleEviction();
+        }
+        for (Session s : evicted) {
+            Log.d("Closing the idle shell " + s.mId);
+            s.kill();
+        }
+    }
+
+    private static String quote(String text) {
+        return "'" + text.replace("'", "'\\''") + "'";
+    }
+
+    /**
+     * A shell and its reader, the fields are guarded by the lock of ShellSessions,
+     * the output not passed yet is only used by the reader
+     */
+    private class Session implements ShellEngine.Handler {
+        private final int mId;
+        private final Process mProcess;
+        private final Writer mInput;
+        private final String mToken;
+        private int mCount;
+        private Command mCurrent;
+        private long mLastUsed = System.currentTimeMillis();
+        private volatile ShellEngine.Reader mReader;
+        private volatile boolean mDead;
+        private volatile boolean mKilled;
+        private final StringBuilder mOut = new StringBuilder();
+        private final StringBuilder mErr = new StringBuilder();
+        // the new line ending the last line of stdout is held, see onOutput()
+        private boolean mHeldNewLine;
+        // the output of the command ends with a new line or is empty
+        private boolean mLineEnded = true;
+
+        Session(int id, Process process) {
+            mId = id;
+            mProcess = process;
+            mInput = new OutputStreamWriter(process.getOutputStream());
+            mToken = "__GTALKSMS_" + Long.toHexString(mRandom.nextLong() & Long.MAX_VALUE) + "_";
+        }
+
+        void start() {
+            mReader = mEngine.read(mProcess, this);
+        }
+
+        void run(Command command) throws IOException {
+            synchronized (ShellSessions.this) {
+                command.mSentinel = mToken + (++mCount) + "__ ";
+                mCurrent = command;
+                mLastUsed = System.currentTimeMillis();
+            }
+            try {
+                write("command eval " + quote(command.mText) + " </dev/null\n"
+                        + "printf '\\n%s%d\\n' '" + command.mSentinel + "' $?\n");
+                mReader.wake();
+            } catch (IOException e) {
+                Log.w("Shell " + mId + " is dead", e);
+                mProcess.destroy();
+                onDeath();
+                throw e;
+            }
+        }
+
+        private void write(String text) throws IOException {
+            mInput.write(text);
+            mInput.flush();
+        }
+
+        void kill() {
+            mKilled = true;
+            // null if the session is evicted before its start
+            ShellEngine.Reader reader = mReader;
+            if (reader != null) {
+                reader.stop();
+            }
+            mProcess.destroy();
+            onDeath();
+        }
+
+        public void onEnd() {
+            onDeath();
+        }
+
+        private void onDeath() {
+            Command current;
+            synchronized (ShellSessions.this) {
+                mDead = true;
+                current = mCurrent;
+                mCurrent = null;
+                if (mSessions.get(mId) == this) {
+                    mSessions.remove(mId);
+                }
+            }
+            if (current != null) {
+                current.finish(-1, mKilled);
+            }
+        }
+
+        /**
+         * Passes the output to the running command until the line of its sentinel.
+         * The new line printed before the sentinel is not output: a line of stdout is passed without its new line,
+         * the new line is added in front of the next line of the same command. The complete lines of stderr
+         * are passed at once, its last line when the sentinel is read.
+         */
+        public void onOutput(String out, String err) {
+            mOut.append(out);
+            mErr.append(err);
+            Command command;
+            synchronized (ShellSessions.this) {
+                command = mCurrent;
+            }
+
+            StringBuilder text = new StringBuilder();
+            String exitCode = null;
+            int start = 0;
+            int end;
+            while ((end = mOut.indexOf("\n", start)) != -1) {
+                String line = mOut.substring(start, end);
+                start = end + 1;
+                if (command != null && line.startsWith(command.mSentinel)) {
+                    exitCode = line.substring(command.mSentinel.length());
+                    mHeldNewLine = false;
+                    // the output of no command, after the sentinel, is dropped
+                    start = mOut.length();
+                    break;
+                }
+                if (mHeldNewLine) {
+                    text.append('\n');
+                }
+                text.append(line);
+                mHeldNewLine = true;
+            }
+            mOut.delete(0, start);
+            // a long line is passed in pieces, it can't be a sentinel
+            if (mOut.length() >= MAX_LINE_CHARS) {
+                if (mHeldNewLine) {
+                    text.append('\n');
+                    mHeldNewLine = false;
+                }
+                text.append(mOut);
+                mOut.setLength(0);
+            }
+
+            int errEnd = exitCode != null ? mErr.length() : mErr.lastIndexOf("\n") + 1;
+            if (errEnd == 0 && mErr.length() >= MAX_LINE_CHARS) {
+                errEnd = mErr.length();
+            }
+            if (errEnd > 0) {
+                // the lines of the two streams are not mixed
+                boolean ended = text.length() > 0 ? text.charAt(text.length() - 1) == '\n' : mLineEnded;
+                if (mHeldNewLine || !ended) {
+                    text.append('\n');
+                }
+                mHeldNewLine = false;
+                text.append(mErr, 0, errEnd);
+                mErr.delete(0, errEnd);
+            }
+
+            if (command != null && text.length() > 0) {
+                command.mOutput.append(text.toString());
+                mLineEnded = text.charAt(text.length() - 1) == '\n' && !mHeldNewLine;
+            }
+            if (exitCode != null) {
+                mLineEnded = true;
+                complete(command, exitCode);
+            }
+        }
+
+        private void complete(Command command, String exitCode) {
+            synchronized (ShellSessions.this) {
+                if (mCurrent == command) {
+                    mCurrent = null;
+                }
+                mLastUsed = System.currentTimeMillis();
+            }
+            int code;
+            try {
+                code = Integer.parseInt(exitCode.trim());
+            } catch (NumberFormatException e) {
+                code = -1;
+            }
+            command.finish(code, false);
+        }
+    }
+}
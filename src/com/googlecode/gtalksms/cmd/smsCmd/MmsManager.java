@@ -65,7 +65,7 @@ public class MmsManager {
         ArrayList<Mms> allMms = new ArrayList<Mms>();
         
         // Looking for the last unread MMS
-        Cursor c = _context.getContentResolver().query(uri, null, "m_type in (" + MMS_TYPE_RECEIVED + "," + MMS_TYPE_SENT + ")", null, SORT_ORDER);
+        Cursor c = Tools.query(_context.getContentResolver(), uri, null, "m_type in (" + MMS_TYPE_RECEIVED + "," + MMS_TYPE_SENT + ")", null, SORT_ORDER);
         if (c != null) {
             try {
                 if (c.getCount() > 0) {
@@ -100,7 +100,7 @@ public class MmsManager {
 
     private void fillMms(int id, Mms mms) {
         // Read the content of the MMS
-        Cursor cPart = _context.getContentResolver().query(MMS_PART_CONTENT_URI, null, "mid = " + id, null, null);
+        Cursor cPart = Tools.query(_context.getContentResolver(), MMS_PART_CONTENT_URI, null, "mid = " + id, null, null);
         if (cPart.moveToFirst()) {
             do {
                 // Dump all fields into the logs
@@ -181,7 +181,7 @@ public class MmsManager {
         String selectionAdd = "msg_id = " + id + " and type = " + mmsType;
         String uriStr = MessageFormat.format("content://mms/{0}/addr", id);
         Uri uriAddress = Uri.parse(uriStr);
-        Cursor cAdd = _context.getContentResolver().query(uriAddress, null, selectionAdd, null, null);
+        Cursor cAdd = Tools.query(_context.getContentResolver(), uriAddress, null, selectionAdd, null, null);
 
         if (cAdd.moveToFirst()) {
             do {
@@ -0,0 +1,198 @@
+package com.googlecode.gtalksms.cmd.smsCmd;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import com.googlecode.gtalksms.databases.SmsIndexHelper;
+import com.googlecode.gtalksms.tools.Histogram;
+import com.googlecode.gtalksms.tools.Log;
+import com.googlecode.gtalksms.tools.Metrics;
+import com.googlecode.gtalksms.tools.Tools;
+
+/**
+ * Keeps the SMS full text index in sync with content://sms, on a background thread.
+ * The first sync imports all the SMS by pages, the next ones only the SMS added since
+ * (the ids of the provider grow) and remove the deleted ones.
+ * A sync is requested when the provider notifies a change, when a SMS is received and when one is sent,
+ * the requests are coalesced.
+ */
+public class SmsIndexer {
+    private static final Uri SMS_CONTENT_URI = Uri.parse("content://sms");
+    private static final int PAGE_SIZE = 500;
+    private static final long SYNC_DELAY_MS = 1000;
+
+    private static final Histogram sSyncTime = Metrics.histogram("sms.index.sync");
+
+    private static SmsIndexer sSmsIndexer;
+
+    private final ContentResolver mResolver;
+    private final SmsIndexHelper mIndex;
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private ContentObserver mObserver;
+    // true once the index has been synced since the start, until then the searches use the provider
+    private volatile boolean mReady;
+
+    private SmsIndexer(Context ctx) {
+        mResolver = ctx.getContentResolver();
+        mIndex = SmsIndexHelper.getSmsIndexHelper(ctx);
+    }
+
+    public static synchronized SmsIndexer getInstance(Context ctx) {
+        if (sSmsIndexer == null) {
+            sSmsIndexer = new SmsIndexer(ctx.getApplicationContext());
+        }
+        return sSmsIndexer;
+    }
+
+    /**
+     * Requests a sync if the indexer is started, e.g. when a SMS is received
+     */
+    public static void notifySmsChanged() {
+        SmsIndexer indexer;
+        synchronized (SmsIndexer.class) {
+            indexer = sSmsIndexer;
+        }
+        if (indexer != null) {
+            indexer.requestSync();
+        }
+    }
+
+    /**
+     * Starts the background thread, syncs the index and watches the provider
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new HandlerThread("SmsIndexer", android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mObserver = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                requestSync();
+            }
+        };
+        mResolver.registerContentObserver(SMS_CONTENT_URI, true, mObserver);
+        mHandler.post(mSync);
+    }
+
+    public synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+        mResolver.unregisterContentObserver(mObserver);
+        mHandler.removeCallbacks(mSync);
+        mThread.quit();
+        mThread = null;
+        mHandler = null;
+        mObserver = null;
+        mReady = false;
+    }
+
+    /**
+     * Schedules a sync, the requests received meanwhile are merged
+     */
+    public synchronized void requestSync() {
+        if (mHandler != null) {
+            mHandler.removeCallbacks(mSync);
+            mHandler.postDelayed(mSync, SYNC_DELAY_MS);
+        }
+    }
+
+    /**
+     * @return true if the index is complete and can answer the searches
+     */
+    public boolean isReady() {
+        return mReady;
+    }
+
+    private final Runnable mSync = new Runnable() {
+        public void run() {
+            long start = Metrics.start();
+            try {
+                long maxId = importNewSms();
+                if (removeDeletedSms(maxId) > 0) {
+                    // the provider reuses the ids of the deleted newest SMS
+                    importNewSms();
+                }
+                mReady = true;
+            } catch (Exception e) {
+                Log.e("Failed to sync the SMS index", e);
+            } finally {
+                Metrics.recordSince(sSyncTime, start);
+            }
+        }
+    };
+
+    /**
+     * Imports the SMS newer than the last indexed one, by pages so an interrupted import continues from there.
+     * The last indexed one is imported again: the provider gives its id to the next SMS if it's deleted.
+     * @return the highest indexed id
+     */
+    private long importNewSms() {
+        long maxId = mIndex.getMaxId();
+        int count;
+        do {
+            Cursor c = Tools.query(mResolver, SMS_CONTENT_URI, SmsIndexHelper.PROVIDER_COLUMNS,
+                    "_id >= ?", new String[] { String.valueOf(maxId) }, "_id ASC LIMIT " + PAGE_SIZE);
+            if (c == null) {
+                break;
+            }
+            try {
+                count = c.getCount();
+                if (count > 0) {
+                    maxId = mIndex.importSms(c);
+                }
+            } finally {
+                c.close();
+            }
+        } while (count == PAGE_SIZE);
+        return maxId;
+    }
+
+    /**
+     * Removes the indexed SMS that are no longer in the provider, the ids are only compared when the counts differ
+     * @return the number of removed SMS
+     */
+    private int removeDeletedSms(long maxId) {
+        Cursor c = Tools.query(mResolver, SMS_CONTENT_URI, new String[] { "_id" },
+                "_id <= ?", new String[] { String.valueOf(maxId) }, "_id ASC");
+        if (c == null) {
+            return 0;
+        }
+        try {
+            if (c.getCount() == mIndex.getCount()) {
+                return 0;
+            }
+            // both lists are sorted, the indexed ids missing in the provider are deleted
+            long[] ids = mIndex.getIds();
+            long[] deleted = new long[ids.length];
+            int count = 0;
+            int i = 0;
+            while (c.moveToNext()) {
+                long id = c.getLong(0);
+                while (i < ids.length && ids[i] < id) {
+                    deleted[count++] = ids[i++];
+                }
+                if (i < ids.length && ids[i] == id) {
+                    ++i;
+                }
+            }
+            while (i < ids.length) {
+                deleted[count++] = ids[i++];
+            }
+            mIndex.deleteSms(deleted, count);
+            Log.d("SMS index: " + count + " deleted SMS removed");
+            return count;
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -1,7 +1,9 @@
 package com.googlecode.gtalksms.cmd.smsCmd;
 
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import android.content.ContentResolver;
@@ -17,14 +19,15 @@ import com.googlecode.gtalksms.R;
 import com.googlecode.gtalksms.SettingsManager;
 import com.googlecode.gtalksms.data.contacts.ContactsManager;
 import com.googlecode.gtalksms.data.phone.Phone;
-import com.googlecode.gtalksms.tools.StringFmt;
+import com.googlecode.gtalksms.databases.SmsIndex;
+import com.googlecode.gtalksms.databases.SmsIndexHelper;
 import com.googlecode.gtalksms.tools.Tools;
 
 public class SmsManager {
     private final Context _context;
     private final SettingsManager _settings;
+    private final SmsIndexer _indexer;
     
-    private static final Uri THREADS_CONTENT_URI = Uri.parse("content://mms-sms/threadID");
     private static final Uri SMS_CONTENT_URI = Uri.parse("content://sms");
     private static final Uri SMS_INBOX_CONTENT_URI = Uri.withAppendedPath(SMS_CONTENT_URI, "inbox");
     private static final Uri SMS_SENTBOX_CONTENT_URI = Uri.withAppendedPath(SMS_CONTENT_URI, "sent");
@@ -35,6 +38,7 @@ public class SmsManager {
     public SmsManager(SettingsManager settings, Context baseContext) {
         _settings = settings;
         _context = baseContext;
+        _indexer = SmsIndexer.getInstance(baseContext);
         Log.initialize(_settings);
     }
 
@@ -42,21 +46,73 @@ public class SmsManager {
         return getSms(phones, null);
     }
 
+    /**
+     * Returns the last SMS exchanged with the given phones, sorted by ascending date.
+     * The provider is queried twice: once to resolve all the thread ids of the phones
+     * and once to fetch the messages of these threads.
+     * The smsNumber setting limits the SMS of all the threads together, not of each thread.
+     * When searching, the SMS index answers instead of the provider if it's ready,
+     * the results are then sorted by relevance.
+     */
     public ArrayList<Sms> getSms(ArrayList<Phone> phones, String search) {
-        ArrayList<Sms> res = new ArrayList<Sms>();
+        ArrayList<String> threadIds = getThreadIds(phones);
+        if (threadIds.size() == 0) {
+            return new ArrayList<Sms>();
+        }
+        if (search != null && _indexer.isReady()) {
+            return searchIndex(search, threadIds);
+        }
 
-        for (Phone phone: phones) {
-            Cursor c = _context.getContentResolver().query(THREADS_CONTENT_URI.buildUpon().appendQueryParameter("recipient", phone.getCleanNumber()).build(), null, null, null, null);
-            if (c != null) {
-                for (boolean hasData = c.moveToFirst(); hasData; hasData = c.moveToNext()) {
-                    res.addAll(getSmsByThreadId(Tools.getInt(c, "_id"), search));
+        ArrayList<String> args = new ArrayList<String>(threadIds);
+        StringBuilder where = new StringBuilder("thread_id IN (");
+        appendPlaceholders(where, threadIds.size());
+        where.append(")");
+        if (search != null) {
+            where.append(" AND body LIKE ?");
+            args.add("%" + search + "%");
+        }
+        return getAllSms(where.toString(), args.toArray(new String[args.size()]));
+    }
+
+    /**
+     * Resolves the distinct thread ids of all the given phones in a single query.
+     * Unlike content://mms-sms/threadID, it doesn't create the missing threads.
+     */
+    private ArrayList<String> getThreadIds(ArrayList<Phone> phones) {
+        ArrayList<String> res = new ArrayList<String>();
+        if (phones.size() == 0) {
+            return res;
+        }
+
+        String[] args = new String[phones.size()];
+        StringBuilder where = new StringBuilder();
+        for (int i = 0; i < args.length; ++i) {
+            if (i > 0) {
+                where.append(" OR ");
+            }
+            where.append("PHONE_NUMBERS_EQUAL(address, ?)");
+            args[i] = phones.get(i).getCleanNumber();
+        }
+
+        Set<String> threadIds = new HashSet<String>();
+        Cursor c = Tools.query(_context.getContentResolver(), SMS_CONTENT_URI, new String[] { "thread_id" }, where.toString(), args, null);
+        if (c != null) {
+            for (boolean hasData = c.moveToFirst(); hasData; hasData = c.moveToNext()) {
+                String threadId = c.getString(0);
+                if (threadId != null && threadIds.add(threadId)) {
+                    res.add(threadId);
                 }
-                c.close();
             }
+            c.close();
         }
-        
         return res;
     }
+
+    private static void appendPlaceholders(StringBuilder sb, int count) {
+        for (int i = 0; i < count; ++i) {
+            sb.append(i == 0 ? "?" : ",?");
+        }
+    }
     
 //    private ArrayList<Sms> getSmsMmsByThreadId(int threadId) {
 //        ArrayList<Sms> res = new ArrayList<Sms>();
@@ -77,37 +133,57 @@ public class SmsManager {
 //        return res;
 //    }
 
-    private ArrayList<Sms> getSmsByThreadId(int threadId, String search) {
-        String where = "thread_id = " + threadId;
-        if (search != null) {
-            where += " and body LIKE '%" + StringFmt.encodeSQL(search) + "%'";
-        }
-        return getAllSms(where);
-    }
-
     public ArrayList<Sms> getLastUnreadSms() {
-        return getAllSms("read = 0");
+        return getAllSms("read = 0", null);
     }
     
     public ArrayList<Sms> getLastSms() {
-        return getAllSms(null);
+        return getAllSms(null, null);
     }
     
     public ArrayList<Sms> getLastSms(String search) {
-        return getAllSms("body LIKE '%" + StringFmt.encodeSQL(search) + "%'");
+        if (_indexer.isReady()) {
+            return searchIndex(search, new ArrayList<String>());
+        }
+        return getAllSms("body LIKE ?", new String[] { "%" + search + "%" });
+    }
+
+    /**
+     * Returns the SMS of the threads containing all the terms of the search, the most relevant first
+     * @param threadIds the threads to search, all of them if empty
+     */
+    private ArrayList<Sms> searchIndex(String search, List<String> threadIds) {
+        List<SmsIndex.Hit> hits = SmsIndexHelper.getSmsIndexHelper(_context).search(search, threadIds, _settings.smsNumber);
+        ArrayList<Sms> res = new ArrayList<Sms>(hits.size());
+        String receiver = _context.getString(R.string.chat_me);
+        for (SmsIndex.Hit hit : hits) {
+            boolean isSent = hit.getType() == 2;
+            String sender = ContactsManager.getContactName(_context, hit.getAddress());
+
+            Sms sms = new Sms(hit.getAddress(), hit.getBody(), new Date(hit.getDate()), isSent ? sender : receiver);
+            sms.setSender(isSent ? receiver : sender);
+            res.add(sms);
+        }
+        return res;
     }
     
-    private ArrayList<Sms> getAllSms(String where) {
+    /**
+     * Returns the last SMS matching the selection, sorted by ascending date.
+     * The provider returns the newest first to apply the limit, so the cursor
+     * is walked backward instead of sorting the list afterwards.
+     */
+    private ArrayList<Sms> getAllSms(String where, String[] whereArgs) {
         ArrayList<Sms> res = new ArrayList<Sms>();
 
-        Cursor c = _context.getContentResolver().query(SMS_CONTENT_URI, COLUMNS, where, null, SORT_ORDER_LIMIT + _settings.smsNumber);
+        Cursor c = Tools.query(_context.getContentResolver(), SMS_CONTENT_URI, COLUMNS, where, whereArgs, SORT_ORDER_LIMIT + _settings.smsNumber);
         if (c != null) {
-            for (boolean hasData = c.moveToFirst(); hasData; hasData = c.moveToNext()) {
+            String receiver = _context.getString(R.string.chat_me);
+            res.ensureCapacity(c.getCount());
+            for (boolean hasData = c.moveToLast(); hasData; hasData = c.moveToPrevious()) {
                 boolean isSent = Tools.getInt(c, "type") == 2;
                 String address = Tools.getString(c, "address");
                 
                 String sender = ContactsManager.getContactName(_context, address);
-                String receiver = _context.getString(R.string.chat_me);
                 
                 Sms sms = new Sms(address,  Tools.getString(c, "body"),  Tools.getDateMilliSeconds(c, "date"), isSent ? sender : receiver);
                 sms.setSender(isSent ? receiver : sender);
@@ -174,7 +250,7 @@ public class SmsManager {
         int result = 0;
 
         ContentResolver cr = _context.getContentResolver();
-        Cursor c = cr.query(deleteUri, new String[] { "thread_id" }, where, null, null);
+        Cursor c = Tools.query(cr, deleteUri, new String[] { "thread_id" }, where, null, null);
         try {
             Set<String> threads = new HashSet<String>();
             
@@ -200,7 +276,7 @@ public class SmsManager {
         int result = 0;
 
         ContentResolver cr = _context.getContentResolver();
-        Cursor c = cr.query(deleteUri, new String[] { "_id" }, where, null, null);
+        Cursor c = Tools.query(cr, deleteUri, new String[] { "_id" }, where, null, null);
         try {
             while (c.moveToNext()) {
                 // Delete the SMS
@@ -233,7 +309,7 @@ public class SmsManager {
         int result = 0;
 
         ContentResolver cr = _context.getContentResolver();
-        Cursor c = cr.query(deleteUri, new String[] { "_id" }, null, null, SORT_ORDER);
+        Cursor c = Tools.query(cr, deleteUri, new String[] { "_id" }, null, null, SORT_ORDER);
         try {
             for (int i = 0 ; i < number && c.moveToNext() ; ++i) {
                 // Delete the SMS
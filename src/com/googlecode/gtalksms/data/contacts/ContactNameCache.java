@@ -0,0 +1,139 @@
+package com.googlecode.gtalksms.data.contacts;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.PhoneLookup;
+
+import com.googlecode.gtalksms.data.phone.Phone;
+import com.googlecode.gtalksms.tools.Log;
+import com.googlecode.gtalksms.tools.Tools;
+
+/**
+ * Process wide LRU cache of phone number -> contact display name.
+ * Unknown numbers are cached too (negative entries) so that listing
+ * SMS from non-contacts doesn't query the provider for every row.
+ * The whole cache is dropped as soon as the contacts provider notifies a change.
+ */
+public class ContactNameCache {
+    private static final int MAX_ENTRIES = 256;
+    // marker for numbers without a contact, null can't be stored as it means "not cached"
+    private static final String UNKNOWN = new String("");
+
+    private static ContactNameCache sContactNameCache;
+
+    /**
+     * Source of the display names, the default implementation queries PhoneLookup
+     */
+    public interface NameLookup {
+        /** @return the display name or null if the number doesn't belong to a contact */
+        String lookup(String phoneNumber);
+    }
+
+    private final Map<String, String> mNames;
+    private final NameLookup mLookup;
+    // incremented by clear(), a name looked up before a clear may be stale and is not cached
+    private long mGeneration;
+    private long mHits;
+    private long mMisses;
+
+    ContactNameCache(NameLookup lookup, final int maxEntries) {
+        mLookup = lookup;
+        mNames = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public static synchronized ContactNameCache getContactNameCache(Context ctx) {
+        if (sContactNameCache == null) {
+            final ContentResolver resolver = ctx.getApplicationContext().getContentResolver();
+            sContactNameCache = new ContactNameCache(new NameLookup() {
+                public String lookup(String phoneNumber) {
+                    String res = null;
+                    Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(phoneNumber));
+                    Cursor c = Tools.query(resolver, uri, new String[]{PhoneLookup.DISPLAY_NAME}, null, null, null);
+                    if (c != null) {
+                        if (c.moveToFirst()) {
+                            res = Tools.getString(c, PhoneLookup.DISPLAY_NAME);
+                        }
+                        c.close();
+                    }
+                    return res;
+                }
+            }, MAX_ENTRIES);
+
+            resolver.registerContentObserver(ContactsContract.AUTHORITY_URI, true, new ContentObserver(null) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    sContactNameCache.clear();
+                }
+            });
+        }
+        return sContactNameCache;
+    }
+
+    /**
+     * Returns the display name of the contact owning phoneNumber or null if there is none.
+     * Exceptions of the lookup are not cached and are forwarded to the caller.
+     */
+    public String getName(String phoneNumber) {
+        String key = Phone.cleanPhoneNumber(phoneNumber);
+        String res;
+        long generation;
+        synchronized (mNames) {
+            res = mNames.get(key);
+            if (res != null) {
+                mHits++;
+                return res == UNKNOWN ? null : res;
+            }
+            mMisses++;
+            generation = mGeneration;
+        }
+
+        // Query outside of the lock, two threads may resolve the same number but the result is identical
+        res = mLookup.lookup(phoneNumber);
+        synchronized (mNames) {
+            if (generation == mGeneration) {
+                mNames.put(key, res == null ? UNKNOWN : res);
+            }
+        }
+        return res;
+    }
+
+    public void clear() {
+        synchronized (mNames) {
+            Log.d("Contact name cache cleared, hits=" + mHits + " misses=" + mMisses + " size=" + mNames.size());
+            mNames.clear();
+            mGeneration++;
+        }
+    }
+
+    public long getHits() {
+        synchronized (mNames) {
+            return mHits;
+        }
+    }
+
+    public long getMisses() {
+        synchronized (mNames) {
+            return mMisses;
+        }
+    }
+
+    public int size() {
+        synchronized (mNames) {
+            return mNames.size();
+        }
+    }
+}
@@ -12,7 +12,6 @@ import android.net.Uri;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds;
 import android.provider.ContactsContract.Contacts;
-import android.provider.ContactsContract.PhoneLookup;
 import android.provider.ContactsContract.RawContacts;
 import android.text.TextUtils;
 
@@ -31,16 +30,7 @@ public class ContactsManager {
     public static String getContactNameOrNull(Context ctx, String phoneNumber) {
         String res = null;
         try {
-            ContentResolver resolver = ctx.getContentResolver();
-            Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(phoneNumber));
-            Cursor c = resolver.query(uri, new String[]{PhoneLookup.DISPLAY_NAME}, null, null, null);
-
-            if (c != null) {
-                if (c.moveToFirst()) {
-                    res = Tools.getString(c, CommonDataKinds.Phone.DISPLAY_NAME);
-                }
-                c.close();
-            }
+            res = ContactNameCache.getContactNameCache(ctx).getName(phoneNumber);
         } catch (Exception ex) {
             /* Ignore */
         }        
@@ -56,19 +46,11 @@ public class ContactsManager {
     	String res;
         if (phoneNumber != null) {
             try {
-                res = phoneNumber;
-                ContentResolver resolver = ctx.getContentResolver();
-                Uri uri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(phoneNumber));
-                Cursor c = resolver.query(uri, new String[]{PhoneLookup.DISPLAY_NAME}, null, null, null);
-    
-                if (c != null) {
-                    if (c.moveToFirst()) {
-                        res = Tools.getString(c, CommonDataKinds.Phone.DISPLAY_NAME);
-                        if (SettingsManager.getSettingsManager(ctx).displayContactNumber) {
-                            res += " " + Phone.cleanPhoneNumber(phoneNumber);
-                        }
-                    }
-                    c.close();
+                res = ContactNameCache.getContactNameCache(ctx).getName(phoneNumber);
+                if (res == null) {
+                    res = phoneNumber;
+                } else if (SettingsManager.getSettingsManager(ctx).displayContactNumber) {
+                    res += " " + Phone.cleanPhoneNumber(phoneNumber);
                 }
             } catch (Exception ex) {
               Log.e("getContactName error: Phone number = " + phoneNumber, ex);
@@ -88,7 +70,7 @@ public class ContactsManager {
         String res = null;
         
         ContentResolver resolver = ctx.getContentResolver();
-        Cursor c = resolver.query(RawContacts.CONTENT_URI,
+        Cursor c = Tools.query(resolver, RawContacts.CONTENT_URI,
                 new String[]{RawContacts.CONTACT_ID},
                 RawContacts._ID + "=?",
                 new String[]{String.valueOf(rawId)}, null);
@@ -101,7 +83,7 @@ public class ContactsManager {
             c.close();
         }
         
-        c = resolver.query(Contacts.CONTENT_URI,
+        c = Tools.query(resolver, Contacts.CONTENT_URI,
                 new String[]{Contacts.DISPLAY_NAME},
                 RawContacts._ID + "=?",
                 new String[]{String.valueOf(id)}, null);
@@ -144,7 +126,7 @@ public class ContactsManager {
         Uri contactUri = searchedName.equals("") ?
                 Contacts.CONTENT_URI :
                 Uri.withAppendedPath(Contacts.CONTENT_FILTER_URI, StringFmt.encodeSQL(searchedName));
-        Cursor c = resolver.query(contactUri, projection, null, null, sortOrder);
+        Cursor c = Tools.query(resolver, contactUri, projection, null, null, sortOrder);
         if (c != null) {
             for (boolean hasData = c.moveToFirst() ; hasData ; hasData = c.moveToNext()) {
                 Long id = Tools.getLong(c, Contacts._ID);
@@ -166,7 +148,7 @@ public class ContactsManager {
                 }
 
                 contact.ids.add(id);
-                Cursor c1 = resolver.query(RawContacts.CONTENT_URI, new String[]{RawContacts._ID},
+                Cursor c1 = Tools.query(resolver, RawContacts.CONTENT_URI, new String[]{RawContacts._ID},
                         RawContacts.CONTACT_ID + "=?", new String[]{String.valueOf(id)}, null);
                 if (c1 != null) {
                     for (boolean hasData1 = c1.moveToFirst() ; hasData1 ; hasData1 = c1.moveToNext()) {
@@ -192,7 +174,7 @@ public class ContactsManager {
             String where = ContactsContract.Data.CONTACT_ID + " IN (" + TextUtils.join(", ", ids) + ") AND " + ContactsContract.Data.MIMETYPE + " = ?"; 
             String[] whereParams = new String[]{ContactsContract.CommonDataKinds.StructuredPostal.CONTENT_ITEM_TYPE}; 
         
-            Cursor c = ctx.getContentResolver().query(ContactsContract.Data.CONTENT_URI, 
+            Cursor c = Tools.query(ctx.getContentResolver(), ContactsContract.Data.CONTENT_URI, 
                         null, where, whereParams, null); 
             if (c != null) {
                 while(c.moveToNext()) {
@@ -235,7 +217,7 @@ public class ContactsManager {
 
         if (ids.size() > 0) {
             String where =  ContactsContract.CommonDataKinds.Phone.CONTACT_ID + " IN (" + TextUtils.join(", ", ids) + ")";
-            Cursor c = ctx.getContentResolver().query(ContactsContract.CommonDataKinds.Email.CONTENT_URI, null, where, null, null); 
+            Cursor c = Tools.query(ctx.getContentResolver(), ContactsContract.CommonDataKinds.Email.CONTENT_URI, null, where, null, null); 
             if (c != null) {
                 while(c.moveToNext()) {
                     String label = Tools.getString(c, ContactsContract.CommonDataKinds.Email.LABEL);
@@ -269,7 +251,7 @@ public class ContactsManager {
         
         if (ids.size() > 0) {
             String where =  ContactsContract.CommonDataKinds.Phone.CONTACT_ID + " IN (" + TextUtils.join(", ", ids) + ")";
-            Cursor c = ctx.getContentResolver().query(ContactsContract.CommonDataKinds.Phone.CONTENT_URI, null, where, null, null);
+            Cursor c = Tools.query(ctx.getContentResolver(), ContactsContract.CommonDataKinds.Phone.CONTENT_URI, null, where, null, null);
             if (c != null) {
                 while (c.moveToNext()) {
                     String number = Tools.getString(c, CommonDataKinds.Phone.NUMBER);
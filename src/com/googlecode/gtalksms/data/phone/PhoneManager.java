@@ -40,7 +40,7 @@ public class PhoneManager {
         String[] projection = new String[] { CallLog.Calls.NUMBER, CallLog.Calls.TYPE, CallLog.Calls.DURATION, CallLog.Calls.DATE};
         String sortOrder = CallLog.Calls.DATE + " ASC";
 
-        Cursor c = resolver.query(CallLog.Calls.CONTENT_URI, projection, null, null, sortOrder);
+        Cursor c = Tools.query(resolver, CallLog.Calls.CONTENT_URI, projection, null, null, sortOrder);
         
         if (c != null) {
             for (boolean hasData = c.moveToFirst() ; hasData ; hasData = c.moveToNext()) {
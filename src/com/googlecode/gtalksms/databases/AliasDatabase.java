@@ -1,6 +1,5 @@
 package com.googlecode.gtalksms.databases;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 
@@ -12,65 +11,39 @@ import android.database.Cursor;
  *
  */
 class AliasDatabase extends Database {
-    
+    private static final String SQL_PUT = "INSERT OR REPLACE INTO " + DatabaseOpenHelper.ALIAS_TABLE_NAME
+            + " (aliasName, number, contactName) VALUES (?, ?, ?)";
+    private static final String SQL_GET_NUMBER = "SELECT number FROM " + DatabaseOpenHelper.ALIAS_TABLE_NAME
+            + " WHERE aliasName = ?";
+    private static final String SQL_GET_ALIAS = "SELECT aliasName, number, contactName FROM " + DatabaseOpenHelper.ALIAS_TABLE_NAME
+            + " WHERE aliasName = ?";
+
     public AliasDatabase(Context ctx) {
         super(ctx);
     }
 
     /**
-     * 
+     * Adds the alias or replaces the existing one
      * 
      * @param aliasName
      * @param number
      * @param contactName - the human readable name of the contact - may be null
      * @return true on success, otherwise false
      */
-    public static boolean addAlias(String aliasName, String number, String contactName) {
-        ContentValues values = composeValues(aliasName, number, contactName);
-        long ret = database.insert(DatabaseOpenHelper.ALIAS_TABLE_NAME, null, values);
-        return ret != -1;
-    }
-    
-    /**
-     * 
-     * @param aliasName
-     * @param number
-     * @param contactName
-     * @return true on success, otherwise false
-     */
-    public static boolean updateAlias(String aliasName, String number, String contactName) {
-        ContentValues values = composeValues(aliasName, number, contactName);
-        int ret = database.update(DatabaseOpenHelper.ALIAS_TABLE_NAME, values, "aliasName='" + aliasName + "'", null);
-        return ret == 1;
+    public static boolean putAlias(String aliasName, String number, String contactName) {
+        return executeInsert(SQL_PUT, aliasName, number, contactName) != -1;
     }
     
     public static boolean deleteAlias(String aliasName) {
-        int ret = database.delete(DatabaseOpenHelper.ALIAS_TABLE_NAME, "aliasName='" + aliasName + "'", null);
-        return ret == 1;
+        return delete(DatabaseOpenHelper.ALIAS_TABLE_NAME, "aliasName = ?", aliasName) == 1;
     }
     
+    /**
+     * @param aliasName
+     * @return the number or null if the alias doesn't exist
+     */
     public static String getNumber(String aliasName) {
-        Cursor c = databaseRO.query(DatabaseOpenHelper.ALIAS_TABLE_NAME, new String[] { "number" }, "aliasName='" + aliasName + "'", null, null , null, null);
-        if(c.getCount() == 1) {
-            c.moveToFirst();
-            String res = c.getString(0);
-            c.close();
-            return res;
-        } else { 
-            c.close();
-            return null;
-        }
-    }
-    
-    public static boolean containsAlias(String aliasName) {
-        
-        Cursor c = databaseRO.query(DatabaseOpenHelper.ALIAS_TABLE_NAME, new String[] { "number" }, "aliasName='" + aliasName + "'", null, null , null, null);
-        boolean ret = false;
-        if (c != null) {
-            ret = c.getCount() == 1;
-            c.close();
-        }
-        return ret;
+        return queryString(SQL_GET_NUMBER, aliasName);
     }
     
     public static String[][] getFullDatabase() {
@@ -92,33 +65,28 @@ class AliasDatabase extends Database {
         return res;
     }
     
+    /**
+     * @param aliasName
+     * @return { aliasName, number } or { aliasName, number, contactName }, null if the alias doesn't exist
+     */
     public static String[] getAlias(String aliasName) {
         String[] res = null;
-        Cursor c = databaseRO.query(DatabaseOpenHelper.ALIAS_TABLE_NAME, new String[] { "aliasName", "number", "contactName" }, "aliasName='" + aliasName + "'", null, null , null, null);
+        Cursor c = query(SQL_GET_ALIAS, aliasName);
         if (c != null) {
-            c.moveToFirst();
-            if(c.getString(2) == null) {
-                res = new String[2];
-                res[0] = c.getString(0);
-                res[1] = c.getString(1);
-            } else {
-                res = new String[3];
-                res[0] = c.getString(0);
-                res[1] = c.getString(1);
-                res[2] = c.getString(2);
+            if (c.moveToFirst()) {
+                if(c.getString(2) == null) {
+                    res = new String[2];
+                    res[0] = c.getString(0);
+                    res[1] = c.getString(1);
+                } else {
+                    res = new String[3];
+                    res[0] = c.getString(0);
+                    res[1] = c.getString(1);
+                    res[2] = c.getString(2);
+                }
             }
             c.close();
         }
         return res;       
     }
-    
-    private static ContentValues composeValues(String aliasName, String number, String contactName) {
-        ContentValues values = new ContentValues();
-        values.put("aliasName", aliasName);
-        values.put("number", number);
-        if (contactName != null) {
-            values.put("contactName", contactName);
-        }
-        return values;
-    }
 }
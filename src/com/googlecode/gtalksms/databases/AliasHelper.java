@@ -86,11 +86,7 @@ public class AliasHelper {
      * @return true if successful, otherwise false
      */
     public boolean deleteAlias(String aliasName) {
-        if(!aliasName.contains("'") && AliasDatabase.containsAlias(aliasName)) {
-            return AliasDatabase.deleteAlias(aliasName);
-        } else {
-            return false;
-        }
+        return AliasDatabase.deleteAlias(aliasName);
     }
     
     /**
@@ -100,18 +96,12 @@ public class AliasHelper {
      * @return the phone number, or the given alias if there is no number
      */
     public String convertAliasToNumber(String aliasName) {
-        if(!aliasName.contains("'") && AliasDatabase.containsAlias(aliasName)) {
-            String[] res = AliasDatabase.getAlias(aliasName); 
-            return res[1];
-        } 
-        return aliasName;
+        String number = AliasDatabase.getNumber(aliasName);
+        return number != null ? number : aliasName;
     }
     
     public String[] getAliasOrNull(String aliasName) {
-        if(!aliasName.contains("'") && AliasDatabase.containsAlias(aliasName)) {
-            return AliasDatabase.getAlias(aliasName);
-        } 
-        return null;
+        return AliasDatabase.getAlias(aliasName);
     }
     
     /**
@@ -128,10 +118,6 @@ public class AliasHelper {
     }
     
     private static void addOrUpdate(String aliasName, String number, String contactName) {
-       if(AliasDatabase.containsAlias(aliasName)) {
-           AliasDatabase.updateAlias(aliasName, number, contactName);
-       } else {
-           AliasDatabase.addAlias(aliasName, number, contactName);
-       }
+        AliasDatabase.putAlias(aliasName, number, contactName);
     }
 }
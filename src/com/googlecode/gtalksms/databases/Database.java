@@ -1,17 +1,170 @@
 package com.googlecode.gtalksms.databases;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
 
+/**
+ * Base class of the database backends.
+ * Holds the shared connection and a small data access layer: compiled statements
+ * are cached by SQL text, all the values are bound (no SQL built by concatenation)
+ * and every statement is reported to the StatementTimer.
+ */
 abstract class Database {
     static SQLiteDatabase database;
     static SQLiteDatabase databaseRO;
 
+    // compiled statements by SQL text, a statement must be locked while it's bound and executed
+    private static final Map<String, SQLiteStatement> sStatements = new HashMap<String, SQLiteStatement>();
+
     Database(Context ctx) {
-        if (database == null) {
-            DatabaseOpenHelper helper = new DatabaseOpenHelper(ctx);
-            database = helper.getWritableDatabase();
-            databaseRO = helper.getReadableDatabase();
+        synchronized (Database.class) {
+            if (database == null) {
+                DatabaseOpenHelper helper = new DatabaseOpenHelper(ctx);
+                database = helper.getWritableDatabase();
+                databaseRO = helper.getReadableDatabase();
+            }
+        }
+    }
+
+    private static SQLiteStatement getStatement(String sql) {
+        synchronized (sStatements) {
+            SQLiteStatement statement = sStatements.get(sql);
+            if (statement == null) {
+                statement = database.compileStatement(sql);
+                sStatements.put(sql, statement);
+            }
+            return statement;
+        }
+    }
+
+    private static void bind(SQLiteStatement statement, Object[] args) {
+        statement.clearBindings();
+        for (int i = 0; i < args.length; ++i) {
+            Object arg = args[i];
+            if (arg == null) {
+                statement.bindNull(i + 1);
+            } else if (arg instanceof Number) {
+                statement.bindLong(i + 1, ((Number) arg).longValue());
+            } else {
+                statement.bindString(i + 1, arg.toString());
+            }
+        }
+    }
+
+    /**
+     * Executes an INSERT (or INSERT OR REPLACE) statement
+     * @return the row ID of the inserted row or -1 on failure
+     */
+    static long executeInsert(String sql, Object... args) {
+        SQLiteStatement statement = getStatement(sql);
+        long start = StatementTimer.start();
+        try {
+            synchronized (statement) {
+                bind(statement, args);
+                return statement.executeInsert();
+            }
+        } finally {
+            StatementTimer.stop(sql, start);
+        }
+    }
+
+    /**
+     * Executes an UPDATE or DELETE statement, no result is returned
+     */
+    static void execute(String sql, Object... args) {
+        SQLiteStatement statement = getStatement(sql);
+        long start = StatementTimer.start();
+        try {
+            synchronized (statement) {
+                bind(statement, args);
+                statement.execute();
+            }
+        } finally {
+            StatementTimer.stop(sql, start);
+        }
+    }
+
+    /**
+     * Returns the first column of the first row
+     * @return the value or null if there is no row
+     */
+    static String queryString(String sql, Object... args) {
+        SQLiteStatement statement = getStatement(sql);
+        long start = StatementTimer.start();
+        try {
+            synchronized (statement) {
+                bind(statement, args);
+                return statement.simpleQueryForString();
+            }
+        } catch (SQLiteDoneException e) {
+            return null;
+        } finally {
+            StatementTimer.stop(sql, start);
+        }
+    }
+
+    /**
+     * Returns the first column of the first row as a number
+     * @return the value or defaultValue if there is no row
+     */
+    static long queryLong(String sql, long defaultValue, Object... args) {
+        SQLiteStatement statement = getStatement(sql);
+        long start = StatementTimer.start();
+        try {
+            synchronized (statement) {
+                bind(statement, args);
+                return statement.simpleQueryForLong();
+            }
+        } catch (SQLiteDoneException e) {
+            return defaultValue;
+        } finally {
+            StatementTimer.stop(sql, start);
+        }
+    }
+
+    /**
+     * Runs a query returning several columns or rows, the caller must close the cursor
+     */
+    static Cursor query(String sql, String... args) {
+        long start = StatementTimer.start();
+        try {
+            return databaseRO.rawQuery(sql, args);
+        } finally {
+            StatementTimer.stop(sql, start);
+        }
+    }
+
+    /**
+     * Deletes the matching rows
+     * @return the number of deleted rows
+     */
+    static int delete(String table, String where, String... args) {
+        long start = StatementTimer.start();
+        try {
+            return database.delete(table, where, args);
+        } finally {
+            if (start != 0) {
+                StatementTimer.stop("DELETE FROM " + table + " WHERE " + where, start);
+            }
+        }
+    }
+
+    /**
+     * Runs the batch in a single transaction, it's rolled back if the batch throws
+     */
+    static void runInTransaction(Runnable batch) {
+        database.beginTransaction();
+        try {
+            batch.run();
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
         }
     }
 }
@@ -2,6 +2,7 @@ package com.googlecode.gtalksms.databases;
 
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 
 import com.googlecode.gtalksms.tools.Log;
@@ -9,7 +10,7 @@ import com.googlecode.gtalksms.tools.Log;
 class DatabaseOpenHelper extends SQLiteOpenHelper {
     
     /* general database version gtalksms uses */
-    private static final int DATABASE_VERSION = 6;
+    private static final int DATABASE_VERSION = 8;
     
     /* information for the alias database */
     public static final String ALIAS_TABLE_NAME = "alias";
@@ -56,6 +57,29 @@ class DatabaseOpenHelper extends SQLiteOpenHelper {
             "date INTEGER NOT NULL, " +
             "PRIMARY KEY(smsID)" +
         ")";
+
+    /* manifests of the interrupted file transfers */
+    public static final String TRANSFER_TABLE_NAME = "transfer";
+    private static final String TRANSFER_TABLE_CREATE =
+        "CREATE TABLE " + TRANSFER_TABLE_NAME + " (" +
+            "id TEXT NOT NULL, " +
+            "peer TEXT NOT NULL, " +
+            "path TEXT NOT NULL, " +
+            "size INTEGER NOT NULL, " +
+            "chunkSize INTEGER NOT NULL, " +
+            "outgoing INTEGER NOT NULL, " +
+            "PRIMARY KEY(id)" +
+        ")";
+
+    /* SHA-256 of the chunks received, by transfer */
+    public static final String TRANSFER_CHUNK_TABLE_NAME = "transfer_chunk";
+    private static final String TRANSFER_CHUNK_TABLE_CREATE =
+        "CREATE TABLE " + TRANSFER_CHUNK_TABLE_NAME + " (" +
+            "transferId TEXT NOT NULL, " +
+            "idx INTEGER NOT NULL, " +
+            "sha256 TEXT NOT NULL, " +
+            "PRIMARY KEY(transferId, idx)" +
+        ")";
     
     DatabaseOpenHelper(Context context) {
         // I made a small mistake here, the database is now called "alias"
@@ -70,6 +94,9 @@ class DatabaseOpenHelper extends SQLiteOpenHelper {
         db.execSQL(KV_TABLE_CREATE);
         db.execSQL(MUC_TABLE_CREATE);
         db.execSQL(SMS_TABLE_CREATE);
+        createSmsIndex(db);
+        db.execSQL(TRANSFER_TABLE_CREATE);
+        db.execSQL(TRANSFER_CHUNK_TABLE_CREATE);
     }
 
     @Override
@@ -95,6 +122,15 @@ class DatabaseOpenHelper extends SQLiteOpenHelper {
             dropTable(db, MUC_TABLE_NAME);
             db.execSQL(MUC_TABLE_CREATE);
         }
+        if (oldVersion < 7) {
+            Log.w("Upgrading SMS index database from " + oldVersion + " to " + newVersion);
+            createSmsIndex(db);
+        }
+        if (oldVersion < 8) {
+            Log.w("Upgrading transfer database from " + oldVersion + " to " + newVersion);
+            db.execSQL(TRANSFER_TABLE_CREATE);
+            db.execSQL(TRANSFER_CHUNK_TABLE_CREATE);
+        }
     }
 
     @Override
@@ -105,10 +141,28 @@ class DatabaseOpenHelper extends SQLiteOpenHelper {
         dropTable(db, ALIAS_TABLE_NAME);
         dropTable(db, MUC_TABLE_NAME);
         dropTable(db, SMS_TABLE_NAME);
+        dropTable(db, SmsIndex.TEXT_TABLE_NAME);
+        dropTable(db, SmsIndex.META_TABLE_NAME);
+        dropTable(db, TRANSFER_TABLE_NAME);
+        dropTable(db, TRANSFER_CHUNK_TABLE_NAME);
 
         onCreate(db);
     }
 
+    /**
+     * Creates the tables of the SMS full text index, with FTS3 if the SQLite of the device has no FTS4
+     * @param db
+     */
+    private void createSmsIndex(SQLiteDatabase db) {
+        db.execSQL(SmsIndex.META_TABLE_CREATE);
+        try {
+            db.execSQL(SmsIndex.TEXT_TABLE_CREATE_FTS4);
+        } catch (SQLiteException e) {
+            Log.w("FTS4 not supported, creating the SMS index with FTS3");
+            db.execSQL(SmsIndex.TEXT_TABLE_CREATE_FTS3);
+        }
+    }
+
     /**
      * Drop the table using the specified db connection
      * @param db
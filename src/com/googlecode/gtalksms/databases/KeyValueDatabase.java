@@ -1,6 +1,5 @@
 package com.googlecode.gtalksms.databases;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 
@@ -12,47 +11,31 @@ import android.database.Cursor;
  *
  */
 class KeyValueDatabase extends Database {
+    private static final String SQL_PUT = "INSERT OR REPLACE INTO " + DatabaseOpenHelper.KV_TABLE_NAME
+            + " (key, value) VALUES (?, ?)";
+    private static final String SQL_GET_VALUE = "SELECT value FROM " + DatabaseOpenHelper.KV_TABLE_NAME
+            + " WHERE key = ?";
     
     public KeyValueDatabase(Context ctx) {
         super(ctx);
     }
     
-    public static boolean addKey(String key, String value) {
-        ContentValues values = composeValues(key, value);
-        long ret = database.insert(DatabaseOpenHelper.KV_TABLE_NAME, null, values);
-        return ret != -1;
-    }
-    
-    public static boolean updateKey(String key, String value) {
-        ContentValues values = composeValues(key, value);
-        int ret = database.update(DatabaseOpenHelper.KV_TABLE_NAME, values, "key='" + key + "'", null);
-        return ret == 1;
+    /**
+     * Adds the key or replaces its value
+     */
+    public static boolean putKey(String key, String value) {
+        return executeInsert(SQL_PUT, key, value) != -1;
     }
     
     public static boolean deleteKey(String key) {
-        int ret = database.delete(DatabaseOpenHelper.KV_TABLE_NAME, "key='" + key + "'", null);
-        return ret == 1;
+        return delete(DatabaseOpenHelper.KV_TABLE_NAME, "key = ?", key) == 1;
     }
     
+    /**
+     * @return the value or null if the key doesn't exist
+     */
     public static String getValue(String key) {
-        Cursor c = databaseRO.query(DatabaseOpenHelper.KV_TABLE_NAME, new String[] { "value" }, "key='" + key + "'", null, null , null, null);
-        if(c.getCount() == 1) {
-            c.moveToFirst();
-            String res = c.getString(0);
-            c.close();
-            return res;
-        } else { 
-            c.close();
-            return null;
-        }
-    }
-    
-    public static boolean containsKey(String key) {
-        
-        Cursor c = databaseRO.query(DatabaseOpenHelper.KV_TABLE_NAME, new String[] { "value" }, "key='" + key + "'", null, null , null, null);
-        boolean ret = c.getCount() == 1;
-        c.close();
-        return ret;
+        return queryString(SQL_GET_VALUE, key);
     }
     
     public static String[][] getFullDatabase() {
@@ -68,11 +51,4 @@ class KeyValueDatabase extends Database {
         c.close();
         return res;
     }
-
-    private static ContentValues composeValues(String key, String value) {
-        ContentValues values = new ContentValues();
-        values.put("key", key);
-        values.put("value", value);
-        return values;
-    }
 }
@@ -37,36 +37,33 @@ public class KeyValueHelper {
     }
     
     public boolean addKey(String key, String value) {
-        if (key.contains("'") || value.contains("'"))
-            return false;
-        
-        addOrUpdate(key, value);
-        return true;
+        return KeyValueDatabase.putKey(key, value);
+    }
+    
+    /**
+     * Sets several keys in a single transaction
+     * @param keyValues key1, value1, key2, value2...
+     */
+    public void addKeys(final String... keyValues) {
+        KeyValueDatabase.runInTransaction(new Runnable() {
+            public void run() {
+                for (int i = 0; i + 1 < keyValues.length; i += 2) {
+                    KeyValueDatabase.putKey(keyValues[i], keyValues[i + 1]);
+                }
+            }
+        });
     }
     
     public boolean deleteKey(String key) {
-        if(!key.contains("'") && KeyValueDatabase.containsKey(key)) {
-            return KeyValueDatabase.deleteKey(key);
-        } else {
-            return false;
-        }
+        return KeyValueDatabase.deleteKey(key);
     }
     
     public boolean containsKey(String key) {
-        if(!key.contains("'")) {
-            return KeyValueDatabase.containsKey(key);
-        } else {
-            return false;
-        }
-        
+        return KeyValueDatabase.getValue(key) != null;
     }
      
     public String getValue(String key) {
-        if (!key.contains("'")) {
-            return KeyValueDatabase.getValue(key);
-        } else {
-            return null;
-        }
+        return KeyValueDatabase.getValue(key);
     }
     
     public Integer getIntegerValue(String key) {
@@ -86,12 +83,4 @@ public class KeyValueHelper {
             res = null;
         return res;
     }
-    
-    private void addOrUpdate(String key, String value) {
-       if(KeyValueDatabase.containsKey(key)) {
-           KeyValueDatabase.updateKey(key, value);
-       } else {
-           KeyValueDatabase.addKey(key, value);
-       }
-    }
 }
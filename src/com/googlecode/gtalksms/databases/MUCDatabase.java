@@ -1,6 +1,5 @@
 package com.googlecode.gtalksms.databases;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 
@@ -12,47 +11,31 @@ import android.database.Cursor;
  *
  */
 class MUCDatabase extends Database {
+    private static final String SQL_PUT = "INSERT OR REPLACE INTO " + DatabaseOpenHelper.MUC_TABLE_NAME
+            + " (muc, number, type) VALUES (?, ?, ?)";
+    private static final String SQL_GET_NUMBER = "SELECT number FROM " + DatabaseOpenHelper.MUC_TABLE_NAME
+            + " WHERE muc = ?";
     
     public MUCDatabase(Context ctx) {
         super(ctx); 
     }
     
-    public static boolean addMUC(String muc, String number, int type) {
-        ContentValues numbers = composeValues(muc, number, type);
-        long ret = database.insert(DatabaseOpenHelper.MUC_TABLE_NAME, null, numbers);
-        return ret != -1;
-    }
-    
-    public static boolean updateMUC(String muc, String number, int type) {
-        ContentValues numbers = composeValues(muc, number, type);
-        int ret = database.update(DatabaseOpenHelper.MUC_TABLE_NAME, numbers, "muc='" + muc + "'", null);
-        return ret == 1;
+    /**
+     * Adds the MUC or replaces the existing one
+     */
+    public static boolean putMUC(String muc, String number, int type) {
+        return executeInsert(SQL_PUT, muc, number, type) != -1;
     }
     
     public static boolean deleteMUC(String muc) {
-        int ret = database.delete(DatabaseOpenHelper.MUC_TABLE_NAME, "muc='" + muc + "'", null);
-        return ret == 1;
+        return delete(DatabaseOpenHelper.MUC_TABLE_NAME, "muc = ?", muc) == 1;
     }
     
+    /**
+     * @return the number or null if the MUC doesn't exist
+     */
     public static String getNumber(String muc) {
-        Cursor c = databaseRO.query(DatabaseOpenHelper.MUC_TABLE_NAME, new String[] { "number" }, "muc='" + muc + "'", null, null , null, null);
-        if(c.getCount() == 1) {
-            c.moveToFirst();
-            String res = c.getString(0);
-            c.close();
-            return res;
-        } else { 
-            c.close();
-            return null;
-        }
-    }
-    
-    public static boolean containsMUC(String muc) {
-        
-        Cursor c = databaseRO.query(DatabaseOpenHelper.MUC_TABLE_NAME, new String[] { "number" }, "muc='" + muc + "'", null, null , null, null);
-        boolean ret = c.getCount() == 1;
-        c.close();
-        return ret;
+        return queryString(SQL_GET_NUMBER, muc);
     }
     
     public static String[][] getFullDatabase() {
@@ -69,12 +52,4 @@ class MUCDatabase extends Database {
         c.close();
         return res;
     }
-
-    private static ContentValues composeValues(String muc, String number, int type) {
-        ContentValues numbers = new ContentValues();
-        numbers.put("muc", muc);
-        numbers.put("number", number);
-        numbers.put("type", type);
-        return numbers;
-    }
 }
@@ -30,41 +30,20 @@ public class MUCHelper {
     }
     
     public boolean addMUC(String muc, String number, int type) {
-        if (muc.contains("'") || number.contains("'"))
-            return false;
-        
-        addOrUpdate(muc, number, type);
-        return true;
+        return MUCDatabase.putMUC(muc, number, type);
     }
     
     public boolean deleteMUC(String muc) {
-        if(!muc.contains("'") && MUCDatabase.containsMUC(muc)) {
-            return MUCDatabase.deleteMUC(muc);
-        } else {
-            return false;
-        }
+        return MUCDatabase.deleteMUC(muc);
     }
     
     public boolean containsMUC(String muc) {
-        if(!muc.contains("'")) {
-            return MUCDatabase.containsMUC(muc);
-        } else {
-            return false;
-        }
-        
+        return MUCDatabase.getNumber(muc) != null;
     }
 
     public String getNumber(String muc) {
-        if (!muc.contains("'")) {
-            String res = MUCDatabase.getNumber(muc);
-            if (res == null) {
-                return "";
-            } else {
-                return res;
-            }
-        } else {
-            return "";
-        }
+        String res = MUCDatabase.getNumber(muc);
+        return res == null ? "" : res;
     }
 
     public String[][] getAllMUC() {
@@ -74,12 +53,4 @@ public class MUCHelper {
         }
         return res;
     }
-
-    private void addOrUpdate(String muc, String number, int type) {
-        if (MUCDatabase.containsMUC(muc)) {
-            MUCDatabase.updateMUC(muc, number, type);
-        } else {
-            MUCDatabase.addMUC(muc, number, type);
-        }
-    }
 }
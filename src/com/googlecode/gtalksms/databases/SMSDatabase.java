@@ -2,7 +2,6 @@ package com.googlecode.gtalksms.databases;
 
 import com.googlecode.gtalksms.cmd.smsCmd.Sms;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 
@@ -15,31 +14,49 @@ import android.database.Cursor;
  */
 class SMSDatabase extends Database {
     private static final long OLD_SMS_THRESHOLD = 1000 * 60 * 60 * 24 * 5; // 5 days
+    private static final String SQL_PUT = "INSERT OR REPLACE INTO " + DatabaseOpenHelper.SMS_TABLE_NAME
+            + " (smsID, phoneNumber, name, shortenedMessage, answerTo, dIntents, sIntents, numParts, resSIntent, resDIntent, date)"
+            + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String SQL_CONTAINS = "SELECT COUNT(*) FROM " + DatabaseOpenHelper.SMS_TABLE_NAME
+            + " WHERE smsID = ?";
+    private static final String SQL_GET_SINTENTS = "SELECT sIntents FROM " + DatabaseOpenHelper.SMS_TABLE_NAME
+            + " WHERE smsID = ?";
+    private static final String SQL_GET_DINTENTS = "SELECT dIntents FROM " + DatabaseOpenHelper.SMS_TABLE_NAME
+            + " WHERE smsID = ?";
+    private static final String SQL_SET_SINTENTS = "UPDATE " + DatabaseOpenHelper.SMS_TABLE_NAME
+            + " SET sIntents = ? WHERE smsID = ?";
+    private static final String SQL_SET_DINTENTS = "UPDATE " + DatabaseOpenHelper.SMS_TABLE_NAME
+            + " SET dIntents = ? WHERE smsID = ?";
     
     public SMSDatabase(Context ctx) {
         super(ctx); 
     }
     
-    public static boolean addSMS(ContentValues values) {
-        long ret = database.insert(DatabaseOpenHelper.SMS_TABLE_NAME, null, values);
+    /**
+     * Adds the SMS or replaces the existing one with the same smsID
+     */
+    public static boolean putSMS(Sms sms) {
+        long ret = executeInsert(SQL_PUT, 
+                sms.getID(),
+                sms.getNumber(),
+                sms.getTo(),
+                sms.getShortenedMessage(),
+                sms.getAnswerTo() == null ? "unknown" : sms.getAnswerTo(),
+                sms.getDelIntents(),
+                sms.getSentIntents(),
+                sms.getNumParts(),
+                sms.getResSentIntent(),
+                sms.getResDelIntent(),
+                sms.getCreatedDate().getTime());
         return ret != -1;
     }
     
-    public static boolean updateSMS(ContentValues values, int smsID) {
-        int ret = database.update(DatabaseOpenHelper.SMS_TABLE_NAME, values, "smsID='" + smsID + "'", null);
-        return ret == 1;
-    }
-    
     public static boolean deleteSMS(int id) {
-        int ret = database.delete(DatabaseOpenHelper.SMS_TABLE_NAME, "smsID='" + id + "'", null);
-        return ret == 1;
+        return delete(DatabaseOpenHelper.SMS_TABLE_NAME, "smsID = ?", String.valueOf(id)) == 1;
     }    
     
     public static boolean containsSMS(int id) {        
-        Cursor c = databaseRO.query(DatabaseOpenHelper.SMS_TABLE_NAME, new String[] { "smsID" }, "smsID='" + id + "'", null, null , null, null);
-        boolean ret = c.getCount() == 1;
-        c.close();
-        return ret;
+        return queryLong(SQL_CONTAINS, 0, id) == 1;
     }
     
     public static Sms[] getFullDatabase() {
@@ -57,9 +74,9 @@ class SMSDatabase extends Database {
                     c.getString(4),
                     c.getString(5),
                     c.getString(6),
-                    c.getInt(7),
                     c.getInt(8),
-                    c.getLong(9));     
+                    c.getInt(9),
+                    c.getLong(10));     
             c.moveToNext();
         }
         c.close();
@@ -72,7 +89,7 @@ class SMSDatabase extends Database {
      */
     public static int deleteOldSMS() {
         long olderthan = System.currentTimeMillis() - OLD_SMS_THRESHOLD;
-        return database.delete(DatabaseOpenHelper.SMS_TABLE_NAME, "date < " + olderthan, null);
+        return delete(DatabaseOpenHelper.SMS_TABLE_NAME, "date < ?", String.valueOf(olderthan));
     }
     
     /**
@@ -81,26 +98,14 @@ class SMSDatabase extends Database {
      * @return the result if there was one, otherwise null
      */
     public static String getSentIntent(int smsID) {
-        String res = null;
-        Cursor c = databaseRO.query(DatabaseOpenHelper.SMS_TABLE_NAME, new String[] { "sIntents" }, "smsID=" + smsID, null, null, null, null);
-        if (c.moveToFirst()) {
-            res = c.getString(0);   
-        }        
-        c.close();
-        return res;
+        return queryString(SQL_GET_SINTENTS, smsID);
     }
 
-    public static boolean putSentIntent(int smsID, String string) {
-        boolean res = false;
-        if (containsSMS(smsID)) {
-            ContentValues value = new ContentValues();
-            value.put("sIntents", string);
-            int ret = (database.update(DatabaseOpenHelper.SMS_TABLE_NAME, value, "smsID=" + smsID, null));
-            if (ret == 1) {
-                res = true;
-            }
-        }
-        return res;
+    /**
+     * Updates the sent intents of the SMS, does nothing if it doesn't exist
+     */
+    public static void putSentIntent(int smsID, String string) {
+        execute(SQL_SET_SINTENTS, string, smsID);
     }
     
     /**
@@ -109,25 +114,13 @@ class SMSDatabase extends Database {
      * @return the result if there was one, otherwise null
      */
     public static String getDelIntent(int smsID) {
-        String res = null;
-        Cursor c = databaseRO.query(DatabaseOpenHelper.SMS_TABLE_NAME, new String[] { "sIntents" }, "smsID=" + smsID, null, null, null, null);
-        if (c.moveToFirst()) {
-            res = c.getString(0);   
-        }        
-        c.close();
-        return res;
+        return queryString(SQL_GET_DINTENTS, smsID);
     }
 
-    public static boolean putDelIntent(int smsID, String string) {
-        boolean res = false;
-        if (containsSMS(smsID)) {
-            ContentValues value = new ContentValues();
-            value.put("dIntents", string);
-            int ret = (database.update(DatabaseOpenHelper.SMS_TABLE_NAME, value, "smsID=" + smsID, null));
-            if (ret == 1) {
-                res = true;
-            }
-        }
-        return res;
+    /**
+     * Updates the delivered intents of the SMS, does nothing if it doesn't exist
+     */
+    public static void putDelIntent(int smsID, String string) {
+        execute(SQL_SET_DINTENTS, string, smsID);
     }
 }
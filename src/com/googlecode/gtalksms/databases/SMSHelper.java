@@ -3,7 +3,6 @@ package com.googlecode.gtalksms.databases;
 import com.googlecode.gtalksms.tools.Log;
 import com.googlecode.gtalksms.cmd.smsCmd.Sms;
 
-import android.content.ContentValues;
 import android.content.Context;
 
 /**
@@ -31,28 +30,11 @@ public class SMSHelper {
     }
     
     public boolean addSMS(Sms sms) {
-        int smsID = sms.getID();
-        ContentValues values = new ContentValues();
-        values.put("smsID", smsID);
-        values.put("phoneNumber", sms.getNumber());
-        values.put("name", sms.getTo().replace('\'', '\"'));
-        values.put("shortenedMessage", sms.getShortenedMessage().replace('\'', '\"'));
-        values.put("answerTo", sms.getAnswerTo() == null ? "unknown" : sms.getAnswerTo());
-        values.put("dIntents", sms.getDelIntents());
-        values.put("sIntents", sms.getSentIntents());
-        values.put("numParts", sms.getNumParts());
-        values.put("resSIntent", sms.getResSentIntent());
-        values.put("resDIntent", sms.getDelIntents());
-        values.put("date", sms.getCreatedDate().getTime());
-        return addOrUpdate(values, smsID);
+        return SMSDatabase.putSMS(sms);
     }
     
     public boolean deleteSMS(int id) {
-        if(SMSDatabase.containsSMS(id)) {
-            return SMSDatabase.deleteSMS(id);
-        } else {
-            return false;
-        }
+        return SMSDatabase.deleteSMS(id);
     }
     
     public boolean containsSMS(int smsID) {
@@ -67,14 +49,6 @@ public class SMSHelper {
         return SMSDatabase.getFullDatabase();
     }
     
-    private boolean addOrUpdate(ContentValues values, int smsID) {
-       if(SMSDatabase.containsSMS(smsID)) {
-           return SMSDatabase.updateSMS(values, smsID);
-       } else {
-           return SMSDatabase.addSMS(values);
-       }
-    }
-
     public void setSentIntentTrue(int smsID, int partNum) {
         String sentIntentStr = SMSDatabase.getSentIntent(smsID);
         if (sentIntentStr != null) {
@@ -82,7 +56,7 @@ public class SMSHelper {
             // OoB check, see issue 187
             if (partNum < sentIntent.length) {
                 sentIntent[partNum] = 'X';
-                SMSDatabase.putSentIntent(smsID, sentIntent.toString());
+                SMSDatabase.putSentIntent(smsID, new String(sentIntent));
             } else {
                 Log.e("SMSHelper.setSentIntent() OutOfBounds: " +
                         "partNum=" + partNum +
@@ -99,7 +73,7 @@ public class SMSHelper {
             // OoB check, see issue 208
             if (partNum < delIntent.length) {
                 delIntent[partNum] = 'X';
-                SMSDatabase.putDelIntent(smsID, delIntent.toString());
+                SMSDatabase.putDelIntent(smsID, new String(delIntent));
             } else {
                 Log.e("SMSHelper.setSentIntent() OutOfBounds: " +
                         "partNum=" + partNum +
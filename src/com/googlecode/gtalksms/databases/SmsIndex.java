@@ -0,0 +1,211 @@
+package com.googlecode.gtalksms.databases;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Schema, query building and ranking of the full text index of the SMS.
+ * The index is a copy of content://sms in our database: a FTS table of the bodies and addresses,
+ * whose docid is the _id of the provider, and a table of the other columns.
+ * It has no Android dependency, the benchmarks run the same SQL on a JVM SQLite.
+ */
+public class SmsIndex {
+    public static final String TEXT_TABLE_NAME = "sms_index";
+    public static final String META_TABLE_NAME = "sms_index_meta";
+
+    static final String TEXT_TABLE_CREATE_FTS4 =
+        "CREATE VIRTUAL TABLE " + TEXT_TABLE_NAME + " USING fts4(body, address)";
+    // Android 2.3 ships a SQLite without FTS4
+    static final String TEXT_TABLE_CREATE_FTS3 =
+        "CREATE VIRTUAL TABLE " + TEXT_TABLE_NAME + " USING fts3(body, address)";
+    static final String META_TABLE_CREATE =
+        "CREATE TABLE " + META_TABLE_NAME + " (" +
+            "smsId INTEGER NOT NULL, " +
+            "threadId INTEGER NOT NULL, " +
+            "address TEXT NOT NULL, " +
+            "date INTEGER NOT NULL, " +
+            "type INTEGER NOT NULL, " +
+            "PRIMARY KEY(smsId)" +
+        ")";
+
+    static final String SQL_PUT_TEXT = "INSERT OR REPLACE INTO " + TEXT_TABLE_NAME
+            + " (docid, body, address) VALUES (?, ?, ?)";
+    static final String SQL_PUT_META = "INSERT OR REPLACE INTO " + META_TABLE_NAME
+            + " (smsId, threadId, address, date, type) VALUES (?, ?, ?, ?, ?)";
+
+    // the matches are read from the newest, only the newest ones are ranked
+    static final int MAX_CANDIDATES = 1000;
+    // shorter terms are not searched as prefixes, they would expand to too many terms
+    static final int MIN_PREFIX_LENGTH = 3;
+    static final int MAX_TERMS = 8;
+    // weights of the columns of the FTS table
+    private static final double[] COLUMN_WEIGHTS = { 1.0, 0.5 };
+    private static final long DAY_MS = 24 * 60 * 60 * 1000L;
+
+    /**
+     * A matching SMS
+     */
+    public static class Hit {
+        private final long mId;
+        private final String mAddress;
+        private final String mBody;
+        private final long mDate;
+        private final int mType;
+        private double mScore;
+
+        public Hit(long id, String address, String body, long date, int type, double score) {
+            mId = id;
+            mAddress = address;
+            mBody = body;
+            mDate = date;
+            mType = type;
+            mScore = score;
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        public String getBody() {
+            return mBody;
+        }
+
+        public long getDate() {
+            return mDate;
+        }
+
+        /**
+         * @return the type of the provider, 1 for received and 2 for sent
+         */
+        public int getType() {
+            return mType;
+        }
+
+        public double getScore() {
+            return mScore;
+        }
+    }
+
+    private static final Comparator<Hit> BY_SCORE = new Comparator<Hit>() {
+        public int compare(Hit h1, Hit h2) {
+            if (h1.mScore != h2.mScore) {
+                return h1.mScore > h2.mScore ? -1 : 1;
+            }
+            return h1.mDate == h2.mDate ? 0 : (h1.mDate > h2.mDate ? -1 : 1);
+        }
+    };
+
+    /**
+     * Builds the MATCH expression of the searched text: all its terms, the long ones as prefixes.
+     * The characters that aren't part of the terms of the simple tokenizer are dropped,
+     * so the user can't inject the FTS operators and the quotes.
+     * @return the expression or null if there is no term to search
+     */
+    public static String toMatchExpression(String search) {
+        if (search == null) {
+            return null;
+        }
+        StringBuilder res = new StringBuilder();
+        int terms = 0;
+        int i = 0;
+        int len = search.length();
+        while (i < len && terms < MAX_TERMS) {
+            while (i < len && !isTokenChar(search.charAt(i))) {
+                ++i;
+            }
+            int start = i;
+            while (i < len && isTokenChar(search.charAt(i))) {
+                ++i;
+            }
+            if (i > start) {
+                if (terms++ > 0) {
+                    res.append(' ');
+                }
+                for (int j = start; j < i; ++j) {
+                    char c = search.charAt(j);
+                    res.append(c >= 'A' && c <= 'Z' ? (char) (c + 'a' - 'A') : c);
+                }
+                if (i - start >= MIN_PREFIX_LENGTH) {
+                    res.append('*');
+                }
+            }
+        }
+        return terms == 0 ? null : res.toString();
+    }
+
+    /**
+     * The simple tokenizer keeps the ASCII letters and digits, and all the non ASCII characters
+     */
+    private static boolean isTokenChar(char c) {
+        return c >= 0x80 || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+    }
+
+    /**
+     * @param threadCount the number of thread ids to filter on, 0 to search all the SMS
+     * @return the search query, its arguments are the MATCH expression then the thread ids
+     */
+    static String getSearchSql(int threadCount) {
+        StringBuilder sql = new StringBuilder();
+        sql.append("SELECT m.smsId, m.address, ").append(TEXT_TABLE_NAME).append(".body, m.date, m.type, matchinfo(")
+                .append(TEXT_TABLE_NAME).append(") FROM ").append(TEXT_TABLE_NAME)
+                .append(" JOIN ").append(META_TABLE_NAME).append(" m ON m.smsId = ").append(TEXT_TABLE_NAME).append(".docid")
+                .append(" WHERE ").append(TEXT_TABLE_NAME).append(" MATCH ?");
+        if (threadCount > 0) {
+            sql.append(" AND m.threadId IN (");
+            for (int i = 0; i < threadCount; ++i) {
+                sql.append(i == 0 ? "?" : ",?");
+            }
+            sql.append(")");
+        }
+        // the provider ids grow with the time, FTS walks the docids backward without sorting
+        sql.append(" ORDER BY ").append(TEXT_TABLE_NAME).append(".docid DESC LIMIT ").append(MAX_CANDIDATES);
+        return sql.toString();
+    }
+
+    /**
+     * Text relevance of a row from matchinfo() in the default "pcx" format: for each term and column,
+     * the hits of the row divided by the hits in all the rows, as the rank function of the SQLite documentation
+     */
+    public static double score(byte[] matchinfo) {
+        IntBuffer info = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+        int phraseCount = info.get(0);
+        int columnCount = info.get(1);
+        double score = 0;
+        for (int p = 0; p < phraseCount; ++p) {
+            for (int c = 0; c < columnCount; ++c) {
+                int offset = 2 + 3 * (p * columnCount + c);
+                int rowHits = info.get(offset);
+                int allHits = info.get(offset + 1);
+                if (rowHits > 0) {
+                    score += (c < COLUMN_WEIGHTS.length ? COLUMN_WEIGHTS[c] : 1.0) * rowHits / allHits;
+                }
+            }
+        }
+        return score;
+    }
+
+    /**
+     * Sorts the hits by relevance, the score of a SMS halves when it's one year old
+     * @return the best hits, at most limit
+     */
+    public static List<Hit> rank(List<Hit> hits, int limit, long now) {
+        for (Hit hit : hits) {
+            double ageDays = Math.max(0, now - hit.mDate) / (double) DAY_MS;
+            hit.mScore = hit.mScore / (1 + ageDays / 365);
+        }
+        Collections.sort(hits, BY_SCORE);
+        if (hits.size() > limit) {
+            return new ArrayList<Hit>(hits.subList(0, limit));
+        }
+        return hits;
+    }
+}
@@ -0,0 +1,86 @@
+package com.googlecode.gtalksms.databases;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.database.Cursor;
+
+/**
+ * Backend Class of the SMS full text index
+ */
+class SmsIndexDatabase extends Database {
+    private static final String SQL_MAX_ID = "SELECT COALESCE(MAX(smsId), 0) FROM " + SmsIndex.META_TABLE_NAME;
+    private static final String SQL_COUNT = "SELECT COUNT(*) FROM " + SmsIndex.META_TABLE_NAME;
+    private static final String SQL_IDS = "SELECT smsId FROM " + SmsIndex.META_TABLE_NAME + " ORDER BY smsId";
+
+    public SmsIndexDatabase(Context ctx) {
+        super(ctx);
+    }
+
+    /**
+     * Adds the SMS or replaces the one with the same id
+     */
+    public static void putSms(long id, long threadId, String address, long date, int type, String body) {
+        executeInsert(SmsIndex.SQL_PUT_META, id, threadId, address, date, type);
+        executeInsert(SmsIndex.SQL_PUT_TEXT, id, body, address);
+    }
+
+    public static void deleteSms(long id) {
+        String[] args = new String[] { String.valueOf(id) };
+        delete(SmsIndex.META_TABLE_NAME, "smsId = ?", args);
+        delete(SmsIndex.TEXT_TABLE_NAME, "docid = ?", args);
+    }
+
+    /**
+     * @return the highest indexed id, 0 if the index is empty
+     */
+    public static long getMaxId() {
+        return queryLong(SQL_MAX_ID, 0);
+    }
+
+    public static long getCount() {
+        return queryLong(SQL_COUNT, 0);
+    }
+
+    /**
+     * @return the indexed ids, in ascending order
+     */
+    public static long[] getIds() {
+        Cursor c = query(SQL_IDS);
+        try {
+            long[] res = new long[c.getCount()];
+            for (int i = 0; c.moveToNext(); ++i) {
+                res[i] = c.getLong(0);
+            }
+            return res;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * @param match the MATCH expression
+     * @param threadIds the threads to search, all of them if empty
+     * @return the newest matching SMS, not ranked yet
+     */
+    public static List<SmsIndex.Hit> search(String match, List<String> threadIds) {
+        String[] args = new String[threadIds.size() + 1];
+        args[0] = match;
+        for (int i = 0; i < threadIds.size(); ++i) {
+            args[i + 1] = threadIds.get(i);
+        }
+
+        Cursor c = query(SmsIndex.getSearchSql(threadIds.size()), args);
+        try {
+            List<SmsIndex.Hit> res = new ArrayList<SmsIndex.Hit>(c.getCount());
+            while (c.moveToNext()) {
+                res.add(new SmsIndex.Hit(c.getLong(0), c.getString(1), c.getString(2), c.getLong(3), c.getInt(4),
+                        SmsIndex.score(c.getBlob(5))));
+            }
+            return res;
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.googlecode.gtalksms.databases;
+
+import java.util.Collections;
+import java.util.List;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import com.googlecode.gtalksms.tools.Histogram;
+import com.googlecode.gtalksms.tools.Metrics;
+
+/**
+ * Middle-end helper of the SMS full text index. Imports the SMS read from content://sms and searches them.
+ */
+public class SmsIndexHelper {
+    /** The columns of content://sms to query for importSms() */
+    public static final String[] PROVIDER_COLUMNS = new String[] { "_id", "thread_id", "address", "date", "type", "body" };
+
+    private static final Histogram sSearchTime = Metrics.histogram("sms.index.search");
+    private static final Metrics.Counter sImportedCount = Metrics.counter("sms.index.imported");
+
+    private static SmsIndexHelper smsIndexHelper = null;
+
+    /**
+     * This constructor ensures that the database is setup correctly
+     * @param ctx
+     */
+    private SmsIndexHelper(Context ctx) {
+        new SmsIndexDatabase(ctx);
+    }
+
+    public static synchronized SmsIndexHelper getSmsIndexHelper(Context ctx) {
+        if (smsIndexHelper == null) {
+            smsIndexHelper = new SmsIndexHelper(ctx);
+        }
+        return smsIndexHelper;
+    }
+
+    /**
+     * Indexes all the rows of the cursor in a single transaction
+     * @param c a cursor of content://sms with the PROVIDER_COLUMNS
+     * @return the highest imported id, 0 if the cursor is empty
+     */
+    public long importSms(final Cursor c) {
+        final long[] maxId = new long[1];
+        Database.runInTransaction(new Runnable() {
+            public void run() {
+                while (c.moveToNext()) {
+                    long id = c.getLong(0);
+                    String address = c.getString(2);
+                    String body = c.getString(5);
+                    SmsIndexDatabase.putSms(id, c.getLong(1), address == null ? "" : address, c.getLong(3), c.getInt(4),
+                            body == null ? "" : body);
+                    maxId[0] = Math.max(maxId[0], id);
+                }
+            }
+        });
+        sImportedCount.add(c.getCount());
+        return maxId[0];
+    }
+
+    /**
+     * Removes the SMS in a single transaction
+     * @param ids the ids of the SMS
+     * @param count the number of ids to read from the array
+     */
+    public void deleteSms(final long[] ids, final int count) {
+        Database.runInTransaction(new Runnable() {
+            public void run() {
+                for (int i = 0; i < count; ++i) {
+                    SmsIndexDatabase.deleteSms(ids[i]);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the highest indexed id, the import continues from there
+     */
+    public long getMaxId() {
+        return SmsIndexDatabase.getMaxId();
+    }
+
+    public long getCount() {
+        return SmsIndexDatabase.getCount();
+    }
+
+    /**
+     * @return the indexed ids, in ascending order
+     */
+    public long[] getIds() {
+        return SmsIndexDatabase.getIds();
+    }
+
+    /**
+     * Searches the SMS containing all the terms of the text
+     * @param search the searched text
+     * @param threadIds the threads to search, all of them if empty
+     * @param limit the maximum number of results
+     * @return the matching SMS, the most relevant first
+     */
+    public List<SmsIndex.Hit> search(String search, List<String> threadIds, int limit) {
+        String match = SmsIndex.toMatchExpression(search);
+        if (match == null) {
+            return Collections.emptyList();
+        }
+        long start = Metrics.start();
+        try {
+            return SmsIndex.rank(SmsIndexDatabase.search(match, threadIds), limit, System.currentTimeMillis());
+        } finally {
+            Metrics.recordSince(sSearchTime, start);
+        }
+    }
+}
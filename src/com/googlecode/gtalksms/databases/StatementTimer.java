@@ -0,0 +1,40 @@
+package com.googlecode.gtalksms.databases;
+
+/**
+ * Per-statement timing hook of the databases.
+ * The clock is only read when a listener is set.
+ */
+public final class StatementTimer {
+
+    public interface Listener {
+        /**
+         * Called after each statement, on the calling thread
+         * @param sql the SQL text, values are never included
+         * @param durationNs
+         */
+        void onStatement(String sql, long durationNs);
+    }
+
+    private static volatile Listener sListener;
+
+    private StatementTimer() {
+    }
+
+    /**
+     * @param listener the new listener, null disables the timing
+     */
+    public static void setListener(Listener listener) {
+        sListener = listener;
+    }
+
+    static long start() {
+        return sListener == null ? 0 : System.nanoTime();
+    }
+
+    static void stop(String sql, long start) {
+        Listener listener = sListener;
+        if (listener != null && start != 0) {
+            listener.onStatement(sql, System.nanoTime() - start);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.googlecode.gtalksms.databases;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import com.googlecode.gtalksms.xmpp.TransferManifest;
+
+/**
+ * Backend Class of the file transfer manifests
+ */
+class TransferDatabase extends Database {
+    private static final String SQL_PUT = "INSERT OR REPLACE INTO " + DatabaseOpenHelper.TRANSFER_TABLE_NAME
+            + " (id, peer, path, size, chunkSize, outgoing) VALUES (?, ?, ?, ?, ?, ?)";
+    private static final String SQL_PUT_CHUNK = "INSERT OR REPLACE INTO " + DatabaseOpenHelper.TRANSFER_CHUNK_TABLE_NAME
+            + " (transferId, idx, sha256) VALUES (?, ?, ?)";
+    private static final String SQL_GET = "SELECT id, peer, path, size, chunkSize, outgoing FROM "
+            + DatabaseOpenHelper.TRANSFER_TABLE_NAME + " WHERE id = ?";
+    private static final String SQL_GET_OUTGOING = "SELECT id, peer, path, size, chunkSize, outgoing FROM "
+            + DatabaseOpenHelper.TRANSFER_TABLE_NAME + " WHERE outgoing = 1";
+    private static final String SQL_GET_CHUNKS = "SELECT sha256 FROM " + DatabaseOpenHelper.TRANSFER_CHUNK_TABLE_NAME
+            + " WHERE transferId = ? ORDER BY idx";
+
+    public TransferDatabase(Context ctx) {
+        super(ctx);
+    }
+
+    /**
+     * Adds the transfer or replaces the one with the same id, its chunks are removed
+     */
+    public static void putTransfer(TransferManifest manifest) {
+        executeInsert(SQL_PUT, manifest.getId(), manifest.getPeer(), manifest.getPath(), manifest.getSize(),
+                manifest.getChunkSize(), manifest.isOutgoing() ? 1 : 0);
+        deleteChunks(manifest.getId(), 0);
+    }
+
+    public static void putChunk(String id, int index, String sha256) {
+        executeInsert(SQL_PUT_CHUNK, id, index, sha256);
+    }
+
+    /**
+     * Removes the chunks of the transfer from index from
+     */
+    public static void deleteChunks(String id, int from) {
+        delete(DatabaseOpenHelper.TRANSFER_CHUNK_TABLE_NAME, "transferId = ? AND idx >= ?", id, String.valueOf(from));
+    }
+
+    public static void deleteTransfer(String id) {
+        delete(DatabaseOpenHelper.TRANSFER_TABLE_NAME, "id = ?", id);
+        deleteChunks(id, 0);
+    }
+
+    /**
+     * @return the transfer with its chunks or null if it doesn't exist
+     */
+    public static TransferManifest getTransfer(String id) {
+        List<TransferManifest> res = getTransfers(SQL_GET, id);
+        if (res.isEmpty()) {
+            return null;
+        }
+        TransferManifest manifest = res.get(0);
+        Cursor c = query(SQL_GET_CHUNKS, id);
+        try {
+            while (c.moveToNext()) {
+                manifest.addChunkHash(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+        return manifest;
+    }
+
+    /**
+     * @return the outgoing transfers, without chunks
+     */
+    public static List<TransferManifest> getOutgoingTransfers() {
+        return getTransfers(SQL_GET_OUTGOING);
+    }
+
+    private static List<TransferManifest> getTransfers(String sql, String... args) {
+        Cursor c = query(sql, args);
+        try {
+            List<TransferManifest> res = new ArrayList<TransferManifest>(c.getCount());
+            while (c.moveToNext()) {
+                res.add(new TransferManifest(c.getString(0), c.getString(1), c.getString(2), c.getLong(3), c.getInt(4),
+                        c.getInt(5) == 1));
+            }
+            return res;
+        } finally {
+            c.close();
+        }
+    }
+}
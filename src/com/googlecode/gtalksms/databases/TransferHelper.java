@@ -0,0 +1,61 @@
+package com.googlecode.gtalksms.databases;
+
+import java.util.List;
+
+import android.content.Context;
+
+import com.googlecode.gtalksms.xmpp.TransferManifest;
+
+/**
+ * Middle-end helper of the file transfer manifests, the store of the resumable transfers
+ */
+public class TransferHelper implements TransferManifest.Store {
+    private static TransferHelper transferHelper = null;
+
+    /**
+     * This constructor ensures that the database is setup correctly
+     * @param ctx
+     */
+    private TransferHelper(Context ctx) {
+        new TransferDatabase(ctx);
+    }
+
+    public static synchronized TransferHelper getTransferHelper(Context ctx) {
+        if (transferHelper == null) {
+            transferHelper = new TransferHelper(ctx);
+        }
+        return transferHelper;
+    }
+
+    public TransferManifest load(String id) {
+        return TransferDatabase.getTransfer(id);
+    }
+
+    public List<TransferManifest> loadOutgoing() {
+        return TransferDatabase.getOutgoingTransfers();
+    }
+
+    public void save(final TransferManifest manifest) {
+        Database.runInTransaction(new Runnable() {
+            public void run() {
+                TransferDatabase.putTransfer(manifest);
+            }
+        });
+    }
+
+    public void addChunk(String id, int index, String sha256) {
+        TransferDatabase.putChunk(id, index, sha256);
+    }
+
+    public void truncate(String id, int count) {
+        TransferDatabase.deleteChunks(id, count);
+    }
+
+    public void delete(final String id) {
+        Database.runInTransaction(new Runnable() {
+            public void run() {
+                TransferDatabase.deleteTransfer(id);
+            }
+        });
+    }
+}
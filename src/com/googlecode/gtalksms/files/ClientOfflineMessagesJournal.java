@@ -0,0 +1,486 @@
+package com.googlecode.gtalksms.files;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smackx.xhtmlim.XHTMLManager;
+
+import com.googlecode.gtalksms.tools.Log;
+
+/**
+ * Append-only journal of the messages waiting for a connection.
+ *
+ * Messages are appended to segment files as CRC checked records:
+ * [int payload length][int crc32 of payload][payload]
+ * The position of the first not yet acknowledged record is stored in a separate commit file,
+ * segments entirely before this position are deleted by compact().
+ * A record truncated by a crash is dropped when the journal is opened.
+ */
+public class ClientOfflineMessagesJournal {
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String COMMIT_FILE = "commit";
+    private static final String COMMIT_TMP_FILE = "commit.tmp";
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+    private static final long MAX_SEGMENT_SIZE = 256 * 1024;
+    // number of single appends between two fsync
+    private static final int SYNC_INTERVAL = 64;
+    // number of replayed records between two commits
+    private static final int REPLAY_BATCH = 100;
+
+    /**
+     * Receives the replayed messages in the order they were appended
+     */
+    public interface ReplayHandler {
+        /**
+         * @return true if the message is handled and can be removed from the journal,
+         * false to stop the replay and keep this message and the following ones
+         */
+        boolean replay(Message msg);
+    }
+
+    private final File mDir;
+    private final List<Long> mSegments = new ArrayList<Long>();
+    private FileOutputStream mActiveStream;
+    private long mActiveSize;
+    private int mUnsynced;
+    private long mCommitSegment;
+    private long mCommitOffset;
+
+    public ClientOfflineMessagesJournal(File dir) throws IOException {
+        mDir = dir;
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            throw new IOException("Unable to create " + mDir);
+        }
+
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        mSegments.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        Log.w("Ignoring unknown journal file " + name);
+                    }
+                }
+            }
+        }
+        Collections.sort(mSegments);
+        if (mSegments.size() == 0) {
+            mSegments.add(0L);
+        }
+
+        readCommit();
+        long active = getActiveSegment();
+        mActiveSize = recover(active);
+        if (mCommitSegment == active && mCommitOffset > mActiveSize) {
+            mCommitOffset = mActiveSize;
+        }
+        mActiveStream = new FileOutputStream(getSegmentFile(active), true);
+    }
+
+    /**
+     * Appends a single message, the journal is synced every SYNC_INTERVAL messages
+     */
+    public synchronized void append(Message msg) throws IOException {
+        writeOrTruncate(Collections.singletonList(msg));
+        if (++mUnsynced >= SYNC_INTERVAL) {
+            sync();
+        }
+    }
+
+    /**
+     * Appends the messages and syncs the journal once for the whole batch
+     */
+    public synchronized void append(List<Message> msgs) throws IOException {
+        writeOrTruncate(msgs);
+        sync();
+    }
+
+    public synchronized void sync() throws IOException {
+        mActiveStream.getFD().sync();
+        mUnsynced = 0;
+    }
+
+    /**
+     * Replays the pending messages newer than minDate, older ones are dropped.
+     * The commit offset is advanced every REPLAY_BATCH messages and at the end of the replay.
+     *
+     * @return the number of messages successfully replayed
+     */
+    public synchronized int replay(ReplayHandler handler, Date minDate) throws IOException {
+        int replayed = 0;
+        int uncommitted = 0;
+        boolean stopped = false;
+
+        for (int i = mSegments.indexOf(mCommitSegment); i >= 0 && i < mSegments.size() && !stopped; ++i) {
+            long segment = mSegments.get(i);
+            long offset = segment == mCommitSegment ? mCommitOffset : 0;
+            long end = segment == getActiveSegment() ? mActiveSize : Long.MAX_VALUE;
+
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(getSegmentFile(segment))));
+            try {
+                skipFully(dis, offset);
+                byte[] payload;
+                while (offset < end && (payload = readRecord(dis)) != null) {
+                    long time;
+                    Message msg;
+                    try {
+                        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+                        time = in.readLong();
+                        msg = readMessage(in);
+                    } catch (Exception e) {
+                        Log.w("Dropping unreadable offline message", e);
+                        time = Long.MAX_VALUE;
+                        msg = null;
+                    }
+                    if (msg != null && time >= minDate.getTime()) {
+                        if (!handler.replay(msg)) {
+                            stopped = true;
+                            break;
+                        }
+                        ++replayed;
+                    }
+
+                    offset += HEADER_SIZE + payload.length;
+                    mCommitSegment = segment;
+                    mCommitOffset = offset;
+                    if (++uncommitted >= REPLAY_BATCH) {
+                        writeCommit();
+                        uncommitted = 0;
+                    }
+                }
+            } finally {
+                dis.close();
+            }
+
+            // Corrupted or fully consumed segment, go on with the next one
+            if (!stopped && i + 1 < mSegments.size()) {
+                mCommitSegment = mSegments.get(i + 1);
+                mCommitOffset = 0;
+            }
+        }
+        writeCommit();
+        compact();
+        return replayed;
+    }
+
+    /**
+     * Deletes the segments entirely before the commit offset.
+     * When every message is acknowledged, the active segment is recycled too.
+     */
+    public synchronized void compact() throws IOException {
+        while (mSegments.size() > 1 && mSegments.get(0) < mCommitSegment) {
+            deleteSegment(mSegments.remove(0));
+        }
+
+        long active = getActiveSegment();
+        if (mActiveSize > 0 && mCommitSegment == active && mCommitOffset >= mActiveSize) {
+            roll();
+            deleteSegment(mSegments.remove(0));
+            mCommitSegment = getActiveSegment();
+            mCommitOffset = 0;
+            writeCommit();
+        }
+    }
+
+    /**
+     * Drops the segments not written since the given date, the way
+     * DateFile.deleteDatefilesOlderThan() does for the other date files
+     */
+    public synchronized void deleteOlderThan(Date date) throws IOException {
+        while (mSegments.size() > 1 && getSegmentFile(mSegments.get(0)).lastModified() < date.getTime()) {
+            deleteSegment(mSegments.remove(0));
+        }
+        if (mSegments.get(0) > mCommitSegment) {
+            mCommitSegment = mSegments.get(0);
+            mCommitOffset = 0;
+            writeCommit();
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        return mCommitSegment == getActiveSegment() && mCommitOffset >= mActiveSize;
+    }
+
+    /**
+     * @return the size in bytes of the records not yet replayed
+     */
+    public synchronized long getPendingSize() {
+        long res = 0;
+        long active = getActiveSegment();
+        for (long segment : mSegments) {
+            if (segment >= mCommitSegment) {
+                res += segment == active ? mActiveSize : getSegmentFile(segment).length();
+            }
+        }
+        return Math.max(0, res - mCommitOffset);
+    }
+
+    public synchronized void close() throws IOException {
+        sync();
+        mActiveStream.close();
+    }
+
+    /**
+     * Writes the messages, on failure the active segment is truncated after its last complete record:
+     * a partial record would hide the records appended after it.
+     * The records already written to the previous segments by a batch rolling the segment are kept.
+     */
+    private void writeOrTruncate(List<Message> msgs) throws IOException {
+        try {
+            write(msgs);
+        } catch (IOException e) {
+            try {
+                mActiveStream.getChannel().truncate(mActiveSize);
+            } catch (IOException e2) {
+                // the next records go to a new segment, the replay of this one stops at the partial record
+                Log.e("Unable to truncate the offline journal segment " + getActiveSegment(), e2);
+                roll();
+            }
+            throw e;
+        }
+    }
+
+    private void write(List<Message> msgs) throws IOException {
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        long time = System.currentTimeMillis();
+        for (Message msg : msgs) {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(payload);
+            out.writeLong(time);
+            writeMessage(out, msg);
+            out.flush();
+
+            byte[] bytes = payload.toByteArray();
+            if (bytes.length > MAX_RECORD_SIZE) {
+                throw new IOException("Message too big for the offline journal: " + bytes.length + " bytes");
+            }
+
+            if (mActiveSize + batch.size() > 0 && mActiveSize + batch.size() + HEADER_SIZE + bytes.length > MAX_SEGMENT_SIZE) {
+                flushBatch(batch);
+                roll();
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            DataOutputStream header = new DataOutputStream(batch);
+            header.writeInt(bytes.length);
+            header.writeInt((int) crc.getValue());
+            header.write(bytes);
+            header.flush();
+        }
+        flushBatch(batch);
+    }
+
+    private void flushBatch(ByteArrayOutputStream batch) throws IOException {
+        if (batch.size() > 0) {
+            batch.writeTo(mActiveStream);
+            mActiveSize += batch.size();
+            batch.reset();
+        }
+    }
+
+    private void roll() throws IOException {
+        mActiveStream.getFD().sync();
+        mActiveStream.close();
+        long next = getActiveSegment() + 1;
+        mSegments.add(next);
+        mActiveStream = new FileOutputStream(getSegmentFile(next), true);
+        mActiveSize = 0;
+        mUnsynced = 0;
+    }
+
+    /**
+     * Scans the segment and truncates it after the last valid record
+     * @return the valid size of the segment
+     */
+    private long recover(long segment) throws IOException {
+        File f = getSegmentFile(segment);
+        if (!f.exists()) {
+            return 0;
+        }
+
+        long valid = 0;
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        try {
+            byte[] payload;
+            while ((payload = readRecord(dis)) != null) {
+                valid += HEADER_SIZE + payload.length;
+            }
+        } finally {
+            dis.close();
+        }
+
+        if (valid < f.length()) {
+            Log.w("Truncating offline journal segment " + f.getName() + " from " + f.length() + " to " + valid + " bytes");
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            try {
+                raf.setLength(valid);
+                raf.getFD().sync();
+            } finally {
+                raf.close();
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * @return the payload of the next record, null at the end of the segment or on a partial or corrupted record
+     */
+    private static byte[] readRecord(DataInputStream dis) throws IOException {
+        int length;
+        int crc;
+        try {
+            length = dis.readInt();
+            crc = dis.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 0 || length > MAX_RECORD_SIZE) {
+            return null;
+        }
+
+        byte[] payload = new byte[length];
+        try {
+            dis.readFully(payload);
+        } catch (EOFException e) {
+            return null;
+        }
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(payload);
+        return (int) crc32.getValue() == crc ? payload : null;
+    }
+
+    private static void writeMessage(DataOutputStream out, Message msg) throws IOException {
+        writeString(out, msg.getTo());
+        out.writeUTF(msg.getType().name());
+        writeString(out, msg.getBody());
+        List<String> bodies = XHTMLManager.getBodies(msg);
+        if (bodies == null) {
+            out.writeInt(0);
+        } else {
+            out.writeInt(bodies.size());
+            for (String body : bodies) {
+                writeString(out, body);
+            }
+        }
+    }
+
+    private static Message readMessage(DataInputStream in) throws IOException {
+        Message msg = new Message(readString(in), Message.Type.valueOf(in.readUTF()));
+        msg.setBody(readString(in));
+        int xhtmlBodies = in.readInt();
+        for (int i = 0; i < xhtmlBodies; ++i) {
+            XHTMLManager.addBody(msg, readString(in));
+        }
+        return msg;
+    }
+
+    // writeUTF() is limited to 64KB, the bodies can be longer
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = s.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private void readCommit() {
+        mCommitSegment = mSegments.get(0);
+        mCommitOffset = 0;
+
+        File f = new File(mDir, COMMIT_FILE);
+        if (!f.exists()) {
+            return;
+        }
+        try {
+            DataInputStream dis = new DataInputStream(new FileInputStream(f));
+            try {
+                long segment = dis.readLong();
+                long offset = dis.readLong();
+                if (mSegments.contains(segment)) {
+                    mCommitSegment = segment;
+                    mCommitOffset = offset;
+                }
+            } finally {
+                dis.close();
+            }
+        } catch (IOException e) {
+            // Replaying some messages twice is better than losing them
+            Log.w("Unable to read the offline journal commit offset", e);
+        }
+    }
+
+    private void writeCommit() throws IOException {
+        File tmp = new File(mDir, COMMIT_TMP_FILE);
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream dos = new DataOutputStream(fos);
+            dos.writeLong(mCommitSegment);
+            dos.writeLong(mCommitOffset);
+            dos.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        if (!tmp.renameTo(new File(mDir, COMMIT_FILE))) {
+            throw new IOException("Unable to write the offline journal commit offset");
+        }
+    }
+
+    private void deleteSegment(long segment) {
+        File f = getSegmentFile(segment);
+        if (f.exists() && !f.delete()) {
+            Log.w("Unable to delete offline journal segment " + f.getName());
+        }
+    }
+
+    private long getActiveSegment() {
+        return mSegments.get(mSegments.size() - 1);
+    }
+
+    private File getSegmentFile(long segment) {
+        return new File(mDir, segment + SEGMENT_SUFFIX);
+    }
+
+    private static void skipFully(InputStream is, long count) throws IOException {
+        while (count > 0) {
+            long skipped = is.skip(count);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            count -= skipped;
+        }
+    }
+}
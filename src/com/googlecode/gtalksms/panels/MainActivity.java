@@ -43,7 +43,7 @@ import com.googlecode.gtalksms.panels.tabs.ConnectionTabFragment;
 import com.googlecode.gtalksms.panels.tabs.HelpTabFragment;
 import com.googlecode.gtalksms.tools.StringFmt;
 import com.googlecode.gtalksms.tools.Tools;
-import com.googlecode.gtalksms.xmpp.XmppFriend;
+import com.googlecode.gtalksms.xmpp.XmppBuddies;
 
 import com.google.android.gms.ads.*;
 
@@ -113,14 +113,11 @@ public class MainActivity extends SherlockFragmentActivity {
     private final BroadcastReceiver mXmppreceiver = new BroadcastReceiver() {
         public void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
-            if (action.equals(MainService.ACTION_XMPP_PRESENCE_CHANGED)) {
-                int stateInt = intent.getIntExtra("state", XmppFriend.OFFLINE);
-                String userId = intent.getStringExtra("userid");
-                String userFullId = intent.getStringExtra("fullid");
-                String name = intent.getStringExtra("name");
-                String status = intent.getStringExtra("status");
+            if (action.equals(MainService.ACTION_XMPP_ROSTER_CHANGED)) {
+                long version = intent.getLongExtra("version", 0);
+                String[] userIds = intent.getStringArrayExtra("userids");
 
-                mBuddiesTabFragment.updateBuddy(userId, userFullId, name, status, stateInt);
+                mBuddiesTabFragment.updateRoster(XmppBuddies.getSnapshot(), version, userIds);
             } else if (action.equals(MainService.ACTION_XMPP_CONNECTION_CHANGED)) {
                 updateStatus(intent.getIntExtra("new_state", 0), intent.getStringExtra("current_action"));
             }
@@ -133,7 +130,7 @@ public class MainActivity extends SherlockFragmentActivity {
             LocalBinder binder = (LocalBinder) service;
             MainService mainService = binder.getService();
             mMainService = mainService;
-            mMainService.updateBuddies();
+            mBuddiesTabFragment.updateRoster(XmppBuddies.getSnapshot());
             updateStatus(mMainService.getConnectionStatus(), mMainService.getConnectionStatusAction());
             mConnectionStatusTabFragment.setMainService(mainService);
         }
@@ -251,7 +248,7 @@ public class MainActivity extends SherlockFragmentActivity {
         super.onStart();
 
         Log.d("MainActivity: onSart()");
-        IntentFilter intentFilter = new IntentFilter(MainService.ACTION_XMPP_PRESENCE_CHANGED);
+        IntentFilter intentFilter = new IntentFilter(MainService.ACTION_XMPP_ROSTER_CHANGED);
         intentFilter.addAction(MainService.ACTION_XMPP_CONNECTION_CHANGED);
         registerReceiver(mXmppreceiver, intentFilter);
         bindService(new Intent(this, MainService.class), mMainServiceConnection, Context.BIND_AUTO_CREATE);
@@ -3,6 +3,7 @@ package com.googlecode.gtalksms.panels.tabs;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.TreeMap;
 
 import android.app.Activity;
@@ -34,6 +35,7 @@ import com.actionbarsherlock.app.SherlockFragment;
 import com.googlecode.gtalksms.R;
 import com.googlecode.gtalksms.SettingsManager;
 import com.googlecode.gtalksms.panels.tools.AutoClickEditorActionListener;
+import com.googlecode.gtalksms.xmpp.RosterSnapshot;
 import com.googlecode.gtalksms.xmpp.XmppBuddies;
 import com.googlecode.gtalksms.xmpp.XmppFriend;
 
@@ -44,6 +46,7 @@ public class BuddiesTabFragment extends SherlockFragment {
     private BuddyAdapter mCurrentBuddyAdapter;
     private final ArrayList<Buddy> mAdapterArray = new ArrayList<Buddy>();
     private final TreeMap<String, Buddy> mFriends = new TreeMap<String, Buddy>();
+    private long mRosterVersion;
     private SettingsManager mSettingsMgr;
 
     @Override
@@ -87,37 +90,62 @@ public class BuddiesTabFragment extends SherlockFragment {
         return view;
     }
 
-    public void updateBuddy(String userId, String userFullId, String name, String statusMsg, int state) {
-        if (userId == null) {
-            return;
+    /**
+     * Reloads all the buddies from the roster snapshot
+     */
+    public void updateRoster(RosterSnapshot snapshot) {
+        mFriends.clear();
+        mAdapterArray.clear();
+        for (XmppFriend friend : snapshot.getFriends()) {
+            updateBuddy(friend.mId, friend);
         }
+        mRosterVersion = snapshot.getVersion();
 
-        Buddy buddy;
-        if (!mFriends.containsKey(userId)) {
-            buddy = new Buddy(userId, name, statusMsg, state);
-            mFriends.put(userId, buddy);
-            mAdapterArray.add(buddy);
-        } else {
-            buddy = mFriends.get(userId);
-        }
+        updateBuddiesList();
+    }
 
-        if (state == XmppFriend.OFFLINE) {
-            buddy.removeLocation(userFullId);
-            state = buddy.getFirstState(state);
-        } else if (userFullId != null) {
-            buddy.addOrUpdateLocation(userFullId, statusMsg, state);
+    /**
+     * Updates the buddies changed by the given roster version, or all of them if a version has been missed
+     */
+    public void updateRoster(RosterSnapshot snapshot, long version, String[] userIds) {
+        if (version <= mRosterVersion) {
+            // already loaded with a newer snapshot
+            return;
         }
-
-        if (name != null) {
-            buddy.setName(name);
+        if (version != mRosterVersion + 1 || userIds == null) {
+            updateRoster(snapshot);
+            return;
         }
 
-        buddy.setStatusMsg(statusMsg);
-        buddy.setState(state);
+        for (String userId : userIds) {
+            updateBuddy(userId, snapshot.get(userId));
+        }
+        mRosterVersion = version;
 
         updateBuddiesList();
     }
 
+    private void updateBuddy(String userId, XmppFriend friend) {
+        Buddy buddy = mFriends.get(userId);
+        if (friend == null) {
+            if (buddy != null) {
+                mFriends.remove(userId);
+                mAdapterArray.remove(buddy);
+            }
+            return;
+        }
+
+        if (buddy == null) {
+            buddy = new Buddy(userId, friend.mName, friend.mStatus, friend.mState);
+            mFriends.put(userId, buddy);
+            mAdapterArray.add(buddy);
+        }
+        buddy.setName(friend.mName);
+        buddy.setStatusMsg(friend.mStatus);
+        buddy.setState(friend.mState);
+        buddy.setLocations(friend.mLocations);
+    }
+
     private void updateBuddiesList() {
         if (mCurrentBuddyAdapter != null) {
             mCurrentBuddyAdapter.notifyDataSetChanged();
@@ -200,21 +228,11 @@ public class BuddiesTabFragment extends SherlockFragment {
             mState = val;
         }
 
-        public void addOrUpdateLocation(String fullId, String statusMsg, int state) {
-            mLocations.put(fullId, new Location(fullId, statusMsg, state));
-        }
-
-        public void removeLocation(String fullId) {
-            if (fullId != null) {
-                mLocations.remove(fullId);
-            }
-        }
-
-        public int getFirstState(int state) {
-            if (mLocations.isEmpty()) {
-                return state;
+        public void setLocations(Map<String, XmppFriend> locations) {
+            mLocations.clear();
+            for (XmppFriend location : locations.values()) {
+                mLocations.put(location.mId, new Location(location.mId, location.mStatus, location.mState));
             }
-            return mLocations.get(mLocations.firstKey()).State;
         }
 
         public TreeMap<String, Location> getLocations() {
@@ -10,6 +10,7 @@ import android.net.NetworkInfo;
 import com.googlecode.gtalksms.MainService;
 import com.googlecode.gtalksms.tools.Log;
 import com.googlecode.gtalksms.tools.Tools;
+import com.googlecode.gtalksms.xmpp.XmppLocalS5BProxyManager;
 
 public class NetworkConnectivityReceiver extends BroadcastReceiver {
 
@@ -23,6 +24,8 @@ public class NetworkConnectivityReceiver extends BroadcastReceiver {
             Log.e("Connectivity Manager is null!");
             return;
         }
+        // the addresses of the interfaces may have changed
+        XmppLocalS5BProxyManager.invalidateLocalAddresses();
         
         for (NetworkInfo network : cm.getAllNetworkInfo()) {
             Log.d("available=" + (network.isAvailable()?1:0)
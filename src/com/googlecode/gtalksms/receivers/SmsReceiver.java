@@ -12,6 +12,7 @@ import android.telephony.SmsMessage;
 import com.googlecode.gtalksms.tools.Log;
 import com.googlecode.gtalksms.MainService;
 import com.googlecode.gtalksms.SettingsManager;
+import com.googlecode.gtalksms.cmd.smsCmd.SmsIndexer;
 import com.googlecode.gtalksms.tools.Tools;
 
 
@@ -24,6 +25,8 @@ public class SmsReceiver extends BroadcastReceiver {
         if (msg == null) {
             // unable to retrieve SMS
         } else if (MainService.IsRunning) {
+            // the SMS is added to the index once the provider has stored it
+            SmsIndexer.notifySmsChanged();
             // send all SMS via XMPP by sender
             for (String sender : msg.keySet()) {
                 Intent svcintent = Tools.newSvcIntent(context, MainService.ACTION_SMS_RECEIVED, msg.get(sender), null);
@@ -1,5 +1,8 @@
 package com.googlecode.gtalksms.tools;
 
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import android.annotation.TargetApi;
 import android.database.Cursor;
 import android.os.Build;
@@ -9,6 +12,10 @@ import com.googlecode.gtalksms.SettingsManager;
 public class Log {
     private static SettingsManager sSettingsMgr;
     private static String sAppPackage = "com.googlecode.gtalksms.";
+    private static final LogBuffer sBuffer = new LogBuffer(LogBuffer.DEFAULT_CAPACITY);
+    // 0 disables the caller tagging, otherwise 1 call out of N is tagged
+    private static volatile int sCallerSampling = 0;
+    private static final AtomicInteger sCallCount = new AtomicInteger();
 
     /**
      * Initialize the settings manager
@@ -18,6 +25,22 @@ public class Log {
         sSettingsMgr = settingsMgr;
     }
 
+    /**
+     * Enables the [Class@Method:line] prefix for 1 log call out of rate.
+     * Walking the stack is expensive, so it's disabled by default (rate = 0)
+     * @param rate
+     */
+    public static void setCallerSampling(int rate) {
+        sCallerSampling = Math.max(0, rate);
+    }
+
+    /**
+     * @return the in-process buffer holding the last log records
+     */
+    public static LogBuffer getBuffer() {
+        return sBuffer;
+    }
+
     /**
      * @return True if the settings manager is set and debug logs are enabled, False otherwise
      */
@@ -26,10 +49,14 @@ public class Log {
     }
 
     /**
-     * Returns the caller information from the stack trace
-     * @return [Class@Method:line] string or empty
+     * Returns the caller information from the stack trace, if this call is sampled
+     * @return [Class@Method:line] string or null
      */
     private static String caller() {
+        int rate = sCallerSampling;
+        if (rate == 0 || sCallCount.incrementAndGet() % rate != 0) {
+            return null;
+        }
         try
         {
             StackTraceElement[] stack = Thread.currentThread().getStackTrace();
@@ -41,56 +68,90 @@ public class Log {
             }
         }
         catch (Exception e) {}
-        return "";
+        return null;
     }
 
     /**
-     * Format the log
-     * @param msg
-     * @return
+     * Stores the record in the buffer and returns the message for the system log
      */
-    private static String f(String msg) {
-        return caller() + msg;
+    private static String f(char level, String msg, Throwable e) {
+        String caller = caller();
+        sBuffer.add(level, caller, msg, e);
+        return caller == null ? msg : caller + msg;
+    }
+
+    /**
+     * Formats the message of the lazy overloads, only called if the level is logged
+     */
+    private static String format(String fmt, Object[] args) {
+        try {
+            return String.format(Locale.US, fmt, args);
+        } catch (RuntimeException e) {
+            return fmt;
+        }
     }
 
     public static void d(String msg) {
         if (canLog()) {
-            android.util.Log.d(Tools.LOG_TAG, f(msg));
+            android.util.Log.d(Tools.LOG_TAG, f('D', msg, null));
         }
     }
 
     public static void d(String msg, Exception e) {
         if (canLog()) {
-            android.util.Log.d(Tools.LOG_TAG, f(msg), e);
+            android.util.Log.d(Tools.LOG_TAG, f('D', msg, e), e);
+        }
+    }
+
+    /**
+     * Logs String.format(fmt, args), the message is neither built nor formatted if debug logs are disabled
+     */
+    public static void d(String fmt, Object... args) {
+        if (canLog()) {
+            android.util.Log.d(Tools.LOG_TAG, f('D', format(fmt, args), null));
         }
     }
 
     public static void i(String msg) {
         if (canLog()) {
-            android.util.Log.i(Tools.LOG_TAG, f(msg));
+            android.util.Log.i(Tools.LOG_TAG, f('I', msg, null));
         }
     }
     
     public static void i(String msg, Exception e) {
         if (canLog()) {
-            android.util.Log.i(Tools.LOG_TAG, f(msg), e);
+            android.util.Log.i(Tools.LOG_TAG, f('I', msg, e), e);
+        }
+    }
+
+    public static void i(String fmt, Object... args) {
+        if (canLog()) {
+            android.util.Log.i(Tools.LOG_TAG, f('I', format(fmt, args), null));
         }
     }
 
     public static void e(String msg) {
-        android.util.Log.e(Tools.LOG_TAG, f(msg));
+        android.util.Log.e(Tools.LOG_TAG, f('E', msg, null));
     }
     
     public static void e(String msg, Exception e) {
-        android.util.Log.e(Tools.LOG_TAG, f(msg), e);
+        android.util.Log.e(Tools.LOG_TAG, f('E', msg, e), e);
+    }
+
+    public static void e(String fmt, Object... args) {
+        android.util.Log.e(Tools.LOG_TAG, f('E', format(fmt, args), null));
     }
 
     public static void w(String msg) {
-        android.util.Log.w(Tools.LOG_TAG, f(msg));
+        android.util.Log.w(Tools.LOG_TAG, f('W', msg, null));
     }
 
     public static void w(String msg, Exception e) {
-        android.util.Log.w(Tools.LOG_TAG, f(msg), e);
+        android.util.Log.w(Tools.LOG_TAG, f('W', msg, e), e);
+    }
+
+    public static void w(String fmt, Object... args) {
+        android.util.Log.w(Tools.LOG_TAG, f('W', format(fmt, args), null));
     }
 
     @TargetApi(Build.VERSION_CODES.HONEYCOMB)
@@ -0,0 +1,124 @@
+package com.googlecode.gtalksms.tools;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed capacity in-process ring buffer of log records.
+ * Writers never block: a record gets a sequence number and overwrites the oldest slot.
+ * The text line is only built when the record is read.
+ */
+public class LogBuffer {
+    public static final int DEFAULT_CAPACITY = 2048;
+
+    public static class Record {
+        final long mSeq;
+        final char mLevel;
+        final long mTime;
+        final String mThread;
+        final String mCaller;
+        final String mMsg;
+        final Throwable mThrowable;
+
+        Record(long seq, char level, String caller, String msg, Throwable throwable) {
+            mSeq = seq;
+            mLevel = level;
+            mTime = System.currentTimeMillis();
+            mThread = Thread.currentThread().getName();
+            mCaller = caller;
+            mMsg = msg;
+            mThrowable = throwable;
+        }
+
+        public char getLevel() {
+            return mLevel;
+        }
+
+        public long getTime() {
+            return mTime;
+        }
+
+        public String getThread() {
+            return mThread;
+        }
+
+        public String getMessage() {
+            return mMsg;
+        }
+
+        /**
+         * Formats the record the way "logcat -v time" does
+         */
+        public String format(SimpleDateFormat dateFormat) {
+            StringBuilder sb = new StringBuilder(mMsg == null ? 64 : mMsg.length() + 64);
+            sb.append(dateFormat.format(new Date(mTime)));
+            sb.append(' ').append(mLevel).append('/').append(mThread).append(": ");
+            if (mCaller != null) {
+                sb.append(mCaller);
+            }
+            sb.append(mMsg);
+            if (mThrowable != null) {
+                sb.append(" - ").append(mThrowable.toString());
+            }
+            return sb.toString();
+        }
+    }
+
+    private final AtomicReferenceArray<Record> mSlots;
+    private final AtomicLong mNextSeq = new AtomicLong();
+    private final int mCapacity;
+
+    public LogBuffer(int capacity) {
+        mCapacity = capacity;
+        mSlots = new AtomicReferenceArray<Record>(capacity);
+    }
+
+    public void add(char level, String caller, String msg, Throwable throwable) {
+        long seq = mNextSeq.getAndIncrement();
+        mSlots.set((int) (seq % mCapacity), new Record(seq, level, caller, msg, throwable));
+    }
+
+    /**
+     * Returns the last records, oldest first.
+     * Records overwritten while reading are skipped.
+     */
+    public List<Record> tail(int count) {
+        long last = mNextSeq.get() - 1;
+        long first = Math.max(0, Math.max(last - count + 1, last - mCapacity + 1));
+        List<Record> res = new ArrayList<Record>((int) Math.max(0, last - first + 1));
+        for (long seq = first; seq <= last; ++seq) {
+            Record r = mSlots.get((int) (seq % mCapacity));
+            if (r != null && r.mSeq == seq) {
+                res.add(r);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Returns the last records formatted as text lines
+     */
+    public String tailAsString(int count, String lineSeparator) {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        StringBuilder sb = new StringBuilder();
+        for (Record r : tail(count)) {
+            sb.append(r.format(dateFormat)).append(lineSeparator);
+        }
+        return sb.toString();
+    }
+
+    public void clear() {
+        for (int i = 0; i < mCapacity; ++i) {
+            mSlots.set(i, null);
+        }
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+}
@@ -4,6 +4,7 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -38,13 +39,38 @@ public class Logs {
         mStop = true;
     }
     
+    /**
+     * Returns the last maxLength log lines of the application.
+     * They are read from the in-process log buffer unless specific logcat tags are requested.
+     * With the context, the crashes (AndroidRuntime) still come from logcat as they
+     * happened in a previous process.
+     */
     public String getLogs(Context ctx, int maxLength){
+        if (mTags.equals("")) {
+            final StringBuilder log = new StringBuilder();
+            log.append(LINE_SEPARATOR);
+            if (mIncludeContext) {
+                log.append(getLogcat(Arrays.asList("-v", "time", "AndroidRuntime:E", "*:S"), maxLength));
+                log.append(LINE_SEPARATOR);
+            }
+            log.append(Log.getBuffer().tailAsString(maxLength, LINE_SEPARATOR));
+            return mStop ? "" : addContext(ctx, log);
+        }
         return getLogs(ctx, maxLength, Arrays.asList("-v", "time", "AndroidRuntime:E", "gtalksms:V", "*:S", mTags));
     }
     
     String getLogs(Context ctx, int maxLength, List<String> list){
         final StringBuilder log = new StringBuilder();
         log.append(LINE_SEPARATOR);
+        log.append(getLogcat(list, maxLength));
+        return mStop ? "" : addContext(ctx, log);
+    }
+
+    /**
+     * Returns the last maxLength lines of "logcat -d", only these lines are kept in memory
+     */
+    private String getLogcat(List<String> list, int maxLength) {
+        final StringBuilder log = new StringBuilder();
         try{
             ArrayList<String> commandLine = new ArrayList<String>();
             commandLine.add("logcat");//$NON-NLS-1$
@@ -57,24 +83,33 @@ public class Logs {
             BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(process.getInputStream()));
            
             String line;
-            ArrayList<String> lines = new ArrayList<String>();
+            ArrayDeque<String> lines = new ArrayDeque<String>();
             while ((line = bufferedReader.readLine()) != null){
                 if (mStop) {
+                    bufferedReader.close();
                     return "";
                 }
                 
+                // Truncate if necessary
+                if (lines.size() >= maxLength) {
+                    lines.poll();
+                }
                 lines.add(line);
             }
+            bufferedReader.close();
             
-            // Truncate if necessary
-            for (int i = Math.max(0, lines.size() - maxLength) ; i < lines.size() ; ++i) {
-                log.append(lines.get(i));
+            for (String l : lines) {
+                log.append(l);
                 log.append(LINE_SEPARATOR);
             }
         }
         catch (Exception e){
             Log.e("CollectLogTask.doInBackground failed", e);
         }
+        return log.toString();
+    }
+
+    private String addContext(Context ctx, StringBuilder log) {
         if (mIncludeContext) {
             log.insert(0, LINE_SEPARATOR);
             log.insert(0, LINE_SEPARATOR);
@@ -0,0 +1,137 @@
+package com.googlecode.gtalksms.tools;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide registry of the runtime metrics: counters, gauges and latency histograms.
+ * Metrics are created on first use and looked up by name, callers on hot paths should
+ * keep the returned instance. Latencies are recorded in microseconds.
+ */
+public class Metrics {
+
+    public static class Counter {
+        private final AtomicLong mValue = new AtomicLong();
+
+        public void inc() {
+            mValue.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            mValue.addAndGet(delta);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+
+        void reset() {
+            mValue.set(0);
+        }
+    }
+
+    /**
+     * Value read when the snapshot is taken, e.g. a queue size
+     */
+    public interface Gauge {
+        long getValue();
+    }
+
+    private static final ConcurrentHashMap<String, Counter> sCounters = new ConcurrentHashMap<String, Counter>();
+    private static final ConcurrentHashMap<String, Histogram> sHistograms = new ConcurrentHashMap<String, Histogram>();
+    private static final ConcurrentHashMap<String, Gauge> sGauges = new ConcurrentHashMap<String, Gauge>();
+    private static volatile long sResetTime = System.currentTimeMillis();
+
+    public static Counter counter(String name) {
+        Counter res = sCounters.get(name);
+        if (res == null) {
+            Counter c = new Counter();
+            res = sCounters.putIfAbsent(name, c);
+            if (res == null) {
+                res = c;
+            }
+        }
+        return res;
+    }
+
+    public static Histogram histogram(String name) {
+        Histogram res = sHistograms.get(name);
+        if (res == null) {
+            Histogram h = new Histogram();
+            res = sHistograms.putIfAbsent(name, h);
+            if (res == null) {
+                res = h;
+            }
+        }
+        return res;
+    }
+
+    public static void registerGauge(String name, Gauge gauge) {
+        sGauges.put(name, gauge);
+    }
+
+    public static void unregisterGauge(String name) {
+        sGauges.remove(name);
+    }
+
+    /**
+     * @return the start time for a latency measure, to give to {@link #recordSince}
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the time elapsed since start in the histogram, in microseconds
+     */
+    public static void recordSince(Histogram histogram, long start) {
+        histogram.record((System.nanoTime() - start) / 1000);
+    }
+
+    /**
+     * Clears the counters and histograms, gauges are left as they reflect a current state
+     */
+    public static void reset() {
+        for (Counter c : sCounters.values()) {
+            c.reset();
+        }
+        for (Histogram h : sHistograms.values()) {
+            h.reset();
+        }
+        sResetTime = System.currentTimeMillis();
+    }
+
+    public static long getResetTime() {
+        return sResetTime;
+    }
+
+    public static Map<String, Long> getCounters() {
+        Map<String, Long> res = new TreeMap<String, Long>();
+        for (Map.Entry<String, Counter> e : sCounters.entrySet()) {
+            res.put(e.getKey(), e.getValue().get());
+        }
+        return res;
+    }
+
+    public static Map<String, Long> getGauges() {
+        Map<String, Long> res = new TreeMap<String, Long>();
+        for (Map.Entry<String, Gauge> e : sGauges.entrySet()) {
+            try {
+                res.put(e.getKey(), e.getValue().getValue());
+            } catch (Exception ex) {
+                Log.w("Failed to read gauge " + e.getKey(), ex);
+            }
+        }
+        return res;
+    }
+
+    public static Map<String, Histogram.Snapshot> getHistograms() {
+        Map<String, Histogram.Snapshot> res = new TreeMap<String, Histogram.Snapshot>();
+        for (Map.Entry<String, Histogram> e : sHistograms.entrySet()) {
+            res.put(e.getKey(), e.getValue().snapshot());
+        }
+        return res;
+    }
+}
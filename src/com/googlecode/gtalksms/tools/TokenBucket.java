@@ -0,0 +1,44 @@
+package com.googlecode.gtalksms.tools;
+
+/**
+ * Token bucket rate limiter: tokens are refilled at a constant rate up to the burst size,
+ * each action takes one token.
+ * The caller decides how to wait, tryAcquire() only says for how long.
+ */
+public class TokenBucket {
+    private final double mTokensPerMs;
+    private final double mBurst;
+
+    private double mTokens;
+    private long mLastRefill;
+
+    /**
+     * @param ratePerSecond the sustained rate
+     * @param burst the number of actions allowed at once after an idle period
+     */
+    public TokenBucket(double ratePerSecond, int burst) {
+        mTokensPerMs = ratePerSecond / 1000;
+        mBurst = burst;
+        mTokens = burst;
+        mLastRefill = -1;
+    }
+
+    /**
+     * Takes a token if there is one
+     * @param now the current time in ms, from a monotonic clock
+     * @return 0 if a token has been taken, otherwise the delay in ms before the next one
+     */
+    public synchronized long tryAcquire(long now) {
+        if (mLastRefill < 0) {
+            mLastRefill = now;
+        } else if (now > mLastRefill) {
+            mTokens = Math.min(mBurst, mTokens + (now - mLastRefill) * mTokensPerMs);
+            mLastRefill = now;
+        }
+        if (mTokens >= 1) {
+            mTokens -= 1;
+            return 0;
+        }
+        return (long) Math.ceil((1 - mTokens) / mTokensPerMs);
+    }
+}
@@ -14,6 +14,7 @@ import java.util.Date;
 import java.util.List;
 
 import android.content.ComponentName;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageInfo;
@@ -109,6 +110,18 @@ public class Tools {
     public static Date getDateMilliSeconds(Cursor c, String col) {
         return new Date(Long.parseLong(Tools.getString(c, col)));
     }
+
+    /**
+     * ContentResolver.query() timed in the "provider.<authority>" histogram
+     */
+    public static Cursor query(ContentResolver resolver, Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        long start = Metrics.start();
+        try {
+            return resolver.query(uri, projection, selection, selectionArgs, sortOrder);
+        } finally {
+            Metrics.recordSince(Metrics.histogram("provider." + uri.getAuthority()), start);
+        }
+    }
     
     public static void setLocale(SettingsManager setting, Context context) {
 
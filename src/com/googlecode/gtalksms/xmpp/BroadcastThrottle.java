@@ -0,0 +1,66 @@
+package com.googlecode.gtalksms.xmpp;
+
+/**
+ * Runs an action at most once per interval: the requests received meanwhile are coalesced in a single
+ * delayed run, e.g. the presences of the whole roster after a reconnection are broadcast in a few intents.
+ */
+public class BroadcastThrottle {
+
+    /**
+     * Runs the action later, a Handler of the service for example
+     */
+    public interface Scheduler {
+        /**
+         * @return false if the action won't run
+         */
+        boolean postDelayed(Runnable action, long delayMs);
+    }
+
+    private final long mIntervalMs;
+    private final Runnable mAction;
+    private final Scheduler mScheduler;
+    private final ReconnectBackoff.Clock mClock;
+    private boolean mScheduled;
+    private long mLastRun;
+
+    private final Runnable mRunnable = new Runnable() {
+        public void run() {
+            synchronized (BroadcastThrottle.this) {
+                mScheduled = false;
+                mLastRun = mClock.now();
+            }
+            mAction.run();
+        }
+    };
+
+    public BroadcastThrottle(long intervalMs, Runnable action, Scheduler scheduler) {
+        this(intervalMs, action, scheduler, ReconnectBackoff.SYSTEM_CLOCK);
+    }
+
+    public BroadcastThrottle(long intervalMs, Runnable action, Scheduler scheduler, ReconnectBackoff.Clock clock) {
+        mIntervalMs = intervalMs;
+        mAction = action;
+        mScheduler = scheduler;
+        mClock = clock;
+        mLastRun = clock.now() - intervalMs;
+    }
+
+    /**
+     * Runs the action once the interval since its last run has elapsed, at once if it has,
+     * nothing more if a run is already scheduled
+     */
+    public synchronized void schedule() {
+        if (mScheduled) {
+            return;
+        }
+        long delay = Math.max(0, mLastRun + mIntervalMs - mClock.now());
+        mScheduled = mScheduler.postDelayed(mRunnable, delay);
+    }
+
+    /**
+     * Forgets the scheduled run, dropped with the previous scheduler
+     */
+    public synchronized void reset() {
+        mScheduled = false;
+    }
+}
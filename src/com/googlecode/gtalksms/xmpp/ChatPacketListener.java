@@ -7,11 +7,15 @@ import org.jivesoftware.smack.packet.Packet;
 import android.content.Context;
 
 import com.googlecode.gtalksms.tools.Log;
+import com.googlecode.gtalksms.tools.Metrics;
 import com.googlecode.gtalksms.MainService;
 import com.googlecode.gtalksms.SettingsManager;
 import com.googlecode.gtalksms.tools.Tools;
 
 public class ChatPacketListener implements PacketListener {
+	private static final Metrics.Counter sReceived = Metrics.counter("xmpp.received");
+	private static final Metrics.Counter sIgnored = Metrics.counter("xmpp.received.ignored");
+
 	private final SettingsManager mSettings;
 	private final Context mCtx;
 
@@ -25,11 +29,13 @@ public class ChatPacketListener implements PacketListener {
 		String from = message.getFrom();
 
 		if (mSettings.cameFromNotifiedAddress(from) && message.getBody() != null) {
+			sReceived.inc();
 			Log.d("XMPP packet received - sending Intent: " + MainService.ACTION_XMPP_MESSAGE_RECEIVED);
 			// Acquire a WakeLock just before we are about to send the intent
 			MainService.maybeAcquireWakeLock();
 			Tools.startSvcXMPPMsg(mCtx, message.getBody(), from);
 		} else {
+			sIgnored.inc();
 			if (!mSettings.cameFromNotifiedAddress(from)) {
 				Log.i("XMPP packet received - but from address \"" + from.toLowerCase()
 	                + "\" does not match notification address \""
@@ -0,0 +1,105 @@
+package com.googlecode.gtalksms.xmpp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+
+/**
+ * Writes a received file to its partial file and records the SHA-256 of each completed chunk in the manifest.
+ *
+ * The hashes are recorded as soon as the chunk is written, without waiting for the disk: a chunk lost
+ * by a crash doesn't match its hash when the transfer is resumed, the transfer continues before it.
+ */
+public class ChunkedFileOutputStream extends OutputStream {
+    private final RandomAccessFile mFile;
+    private final TransferManifest mManifest;
+    private final TransferManifest.Store mStore;
+    private final MessageDigest mDigest = TransferManifest.newDigest();
+    private final long mOffset;
+    private long mPosition;
+    // bytes of the current chunk already written
+    private int mChunkFill;
+
+    private ChunkedFileOutputStream(File file, TransferManifest manifest, TransferManifest.Store store) throws IOException {
+        mManifest = manifest;
+        mStore = store;
+        mOffset = manifest.getCompletedLength();
+        mPosition = mOffset;
+        mFile = new RandomAccessFile(file, "rw");
+        try {
+            mFile.setLength(mOffset);
+            mFile.seek(mOffset);
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the partial file of a received file
+     * @param file the partial file, renamed by the caller once the transfer is completed
+     * @param id the id of the transfer, see TransferManifest.getId()
+     * @param peer the JID of the sender
+     * @param size the size of the file
+     * @param resume true to continue after the last valid chunk of the previous transfer, false to start over
+     */
+    public static ChunkedFileOutputStream open(File file, String id, String peer, long size, int chunkSize,
+            boolean resume, TransferManifest.Store store) throws IOException {
+        TransferManifest manifest = resume ? store.load(id) : null;
+        if (manifest != null && manifest.getSize() == size && manifest.getPath().equals(file.getAbsolutePath())) {
+            store.truncate(id, manifest.verify(file));
+        } else {
+            manifest = new TransferManifest(id, peer, file.getAbsolutePath(), size, chunkSize, false);
+            store.save(manifest);
+        }
+        return new ChunkedFileOutputStream(file, manifest, store);
+    }
+
+    /**
+     * @return the number of bytes kept from the previous transfer, the sender starts there
+     */
+    public long getOffset() {
+        return mOffset;
+    }
+
+    public TransferManifest getManifest() {
+        return mManifest;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        int chunkSize = mManifest.getChunkSize();
+        while (len > 0) {
+            int count = Math.min(len, chunkSize - mChunkFill);
+            mFile.write(b, off, count);
+            mDigest.update(b, off, count);
+            mChunkFill += count;
+            mPosition += count;
+            off += count;
+            len -= count;
+            // the last chunk of the file is shorter
+            if (mChunkFill == chunkSize || mPosition == mManifest.getSize()) {
+                completeChunk();
+            }
+        }
+    }
+
+    private void completeChunk() {
+        String hash = TransferManifest.toHex(mDigest.digest());
+        mStore.addChunk(mManifest.getId(), mManifest.getChunkCount(), hash);
+        mManifest.addChunkHash(hash);
+        mChunkFill = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+}
@@ -1,39 +1,48 @@
 package com.googlecode.gtalksms.xmpp;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 
 import org.jivesoftware.smack.XMPPConnection;
-import org.jivesoftware.smack.XMPPException;
 import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smackx.muc.MultiUserChat;
 
 import com.googlecode.gtalksms.XmppManager;
 import com.googlecode.gtalksms.files.ClientOfflineMessagesDateFile;
-import com.googlecode.gtalksms.files.DateFile;
+import com.googlecode.gtalksms.files.ClientOfflineMessagesJournal;
+import com.googlecode.gtalksms.tools.Log;
+import com.googlecode.gtalksms.tools.Metrics;
 
 import android.content.Context;
 
 public class ClientOfflineMessages {
-    private static final String DIRECTORY = "clientOfflineMessagesData";
-    private static File sDirFile;
+    private static final String LEGACY_DIRECTORY = "clientOfflineMessagesData";
+    private static final String DIRECTORY = "clientOfflineMessagesJournal";
+    private static ClientOfflineMessagesJournal sJournal;
     private static XmppMuc sXmppMuc;
     private static XMPPConnection sXMPPConnection;
 
     private static ClientOfflineMessages sClientOfflineMessages;
     
     private ClientOfflineMessages(Context ctx) {
-        sDirFile = new File(ctx.getFilesDir(), DIRECTORY);
-        if (!sDirFile.exists()) {
-            sDirFile.mkdir();
+        try {
+            sJournal = new ClientOfflineMessagesJournal(new File(ctx.getFilesDir(), DIRECTORY));
+        } catch (IOException e) {
+            Log.e("Unable to open the offline messages journal", e);
         }
         sXmppMuc = XmppMuc.getInstance(ctx);
+        importLegacyFiles(new File(ctx.getFilesDir(), LEGACY_DIRECTORY));
         cleanUp();
+        Metrics.registerGauge("offline.pending_bytes", new Metrics.Gauge() {
+            public long getValue() {
+                return sJournal == null ? 0 : sJournal.getPendingSize();
+            }
+        });
     }
 
     public static ClientOfflineMessages getInstance(Context ctx) {
@@ -54,31 +63,42 @@ public class ClientOfflineMessages {
     }
     
     private static void sendOfflineMessages() {
-        List<ClientOfflineMessagesDateFile> files = getDateFiles();
-        for (ClientOfflineMessagesDateFile f : files) {
-            try {
-                Message msg = f.getMessage();
-                MultiUserChat muc = sXmppMuc.getRoomViaRoomName(msg.getTo());
-                if (muc == null) {
-                    sXMPPConnection.sendPacket(msg);
-                } else {
-                    muc.sendMessage(msg);
+        if (sJournal == null) {
+            return;
+        }
+        try {
+            int count = sJournal.replay(new ClientOfflineMessagesJournal.ReplayHandler() {
+                public boolean replay(Message msg) {
+                    try {
+                        MultiUserChat muc = sXmppMuc.getRoomViaRoomName(msg.getTo());
+                        if (muc == null) {
+                            sXMPPConnection.sendPacket(msg);
+                        } else {
+                            muc.sendMessage(msg);
+                        }
+                        return true;
+                    } catch (Exception e) {
+                        // keep the message and the following ones for the next connection
+                        Log.w("Unable to send offline message", e);
+                        return false;
+                    }
                 }
-            } catch (FileNotFoundException e) {                
-            } catch (IOException e) {
-            } catch (Exception e) {
-                // don't delete the file here
-                continue;
+            }, getMinDate());
+            if (count > 0) {
+                Metrics.counter("offline.replayed").add(count);
+                Log.i("Sent " + count + " offline messages");
             }
-            f.delete();
+        } catch (IOException e) {
+            Log.e("Unable to replay the offline messages journal", e);
         }
     }
     
     public boolean addOfflineMessage(Message msg) {
-        ClientOfflineMessagesDateFile file;
+        if (sJournal == null) {
+            return false;
+        }
         try {
-            file = ClientOfflineMessagesDateFile.construct(sDirFile);
-            file.setMessage(msg);
+            sJournal.append(msg);
         } catch (IOException e) {
             return false;
         } 
@@ -86,24 +106,62 @@ public class ClientOfflineMessages {
     }
     
     private static void cleanUp() {
-        List<ClientOfflineMessagesDateFile> datefiles = getDateFiles();
-        
+        if (sJournal == null) {
+            return;
+        }
+        try {
+            sJournal.deleteOlderThan(getMinDate());
+            sJournal.compact();
+        } catch (IOException e) {
+            Log.w("Unable to clean the offline messages journal", e);
+        }
+    }
+
+    private static Date getMinDate() {
         Calendar cal = Calendar.getInstance();
         cal.add(Calendar.DATE, -7);
-        Date date = cal.getTime();
-        
-        DateFile.deleteDatefilesOlderThan(datefiles, date);
+        return cal.getTime();
     }
     
-    private static List<ClientOfflineMessagesDateFile> getDateFiles() {
-        File[] files = sDirFile.listFiles();
+    /**
+     * Moves the messages queued as one file per message by the previous versions into the journal
+     */
+    private static void importLegacyFiles(File dir) {
+        File[] files = dir.listFiles();
+        // without journal the files are kept, they are imported by the next start
+        if (files == null || sJournal == null) {
+            return;
+        }
+
         List<ClientOfflineMessagesDateFile> dateFiles = new ArrayList<ClientOfflineMessagesDateFile>();
         for (File f : files) {
             try {
-                ClientOfflineMessagesDateFile df = ClientOfflineMessagesDateFile.reconstruct(f);
-                dateFiles.add(df);
+                dateFiles.add(ClientOfflineMessagesDateFile.reconstruct(f));
             } catch (NumberFormatException e) {} 
         }
-        return dateFiles;
+        Collections.sort(dateFiles);
+
+        Date minDate = getMinDate();
+        List<Message> messages = new ArrayList<Message>();
+        for (ClientOfflineMessagesDateFile f : dateFiles) {
+            try {
+                if (f.lastModified() >= minDate.getTime()) {
+                    messages.add(f.getMessage());
+                }
+            } catch (IOException e) {}
+        }
+
+        try {
+            if (messages.size() > 0) {
+                sJournal.append(messages);
+            }
+        } catch (IOException e) {
+            Log.e("Unable to import the offline messages", e);
+            return;
+        }
+        for (File f : files) {
+            f.delete();
+        }
+        dir.delete();
     }
 }
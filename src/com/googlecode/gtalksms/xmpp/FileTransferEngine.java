@@ -0,0 +1,417 @@
+package com.googlecode.gtalksms.xmpp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.googlecode.gtalksms.tools.Histogram;
+import com.googlecode.gtalksms.tools.Log;
+import com.googlecode.gtalksms.tools.Metrics;
+
+/**
+ * Runs the file transfers on a bounded pool of worker threads.
+ *
+ * A transfer negotiates its streams on a worker (the blocking Smack calls), then the worker
+ * copies the bytes and reports the progress from the byte count, nobody polls the status.
+ * At most maxPerPeer transfers of a peer run at once, the next ones wait in the queue of the peer
+ * without holding a worker.
+ * A transfer whose streams haven't moved any byte for the inactivity timeout is failed:
+ * a watchdog thread closes its streams, which unblocks the worker.
+ */
+public class FileTransferEngine {
+    public static final int DEFAULT_THREADS = 4;
+    public static final int DEFAULT_MAX_PER_PEER = 2;
+    private static final long KEEP_ALIVE_SEC = 60;
+    public static final long DEFAULT_INACTIVITY_TIMEOUT_MS = 60 * 1000;
+    static final int BUFFER_SIZE = 16 * 1024;
+    // number of progress reports of a transfer with a known size
+    static final int PROGRESS_STEPS = 10;
+    // bytes between the progress reports when the size is unknown
+    static final long PROGRESS_UNKNOWN_SIZE_STEP = 1024 * 1024;
+
+    private static final Metrics.Counter sBytesCount = Metrics.counter("xmpp.transfer.bytes");
+    private static final Metrics.Counter sFailedCount = Metrics.counter("xmpp.transfer.failed");
+    private static final Metrics.Counter sTimedOutCount = Metrics.counter("xmpp.transfer.timedout");
+    private static final Histogram sTransferTime = Metrics.histogram("xmpp.transfer.time");
+
+    /**
+     * Opens the streams of a transfer, the calls may block during the negotiation
+     */
+    public interface Streams {
+        InputStream openInput() throws Exception;
+
+        OutputStream openOutput() throws Exception;
+    }
+
+    /**
+     * Streams of a transfer resumed after an interruption: during openInput() the two ends agree on an offset,
+     * the input starts there and the output continues the partial file
+     */
+    public interface ResumableStreams extends Streams {
+        /** @return the number of bytes transferred before, known once openInput() has returned */
+        long getOffset();
+    }
+
+    /**
+     * Events of a transfer, called from its worker thread
+     */
+    public interface Listener {
+        /** The streams are open, the bytes start flowing */
+        void onStarted(Task task);
+
+        void onProgress(Task task);
+
+        void onCompleted(Task task);
+
+        /** The streams may not be open, the destination may be partially written */
+        void onFailed(Task task, Exception e);
+    }
+
+    /**
+     * Context of a transfer, it replaces the state shared by all the transfers
+     */
+    public static class Task {
+        private final String mPeer;
+        private final String mName;
+        private final long mSize;
+        private final Streams mStreams;
+        private final Listener mListener;
+        private volatile long mTransferred;
+        // time of the last byte copied, in ms, checked by the watchdog
+        private volatile long mLastActivity;
+        private volatile boolean mTimedOut;
+        private volatile InputStream mInput;
+        private volatile OutputStream mOutput;
+
+        /**
+         * @param peer the JID of the other end, its transfers are limited to maxPerPeer at once
+         * @param name the name of the file
+         * @param size the size in bytes or -1 if unknown
+         */
+        public Task(String peer, String name, long size, Streams streams, Listener listener) {
+            mPeer = peer;
+            mName = name;
+            mSize = size;
+            mStreams = streams;
+            mListener = listener;
+        }
+
+        public String getPeer() {
+            return mPeer;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+
+        public long getTransferred() {
+            return mTransferred;
+        }
+
+        /**
+         * @return the progress between 0 and 100, or -1 if the size is unknown
+         */
+        public int getPercent() {
+            return mSize > 0 ? (int) Math.min(100, mTransferred * 100 / mSize) : -1;
+        }
+    }
+
+    private final ThreadPoolExecutor mPool;
+    private final long mInactivityTimeout;
+    private volatile int mMaxPerPeer;
+    // transfers waiting for a slot, by peer
+    private final Map<String, ArrayDeque<Task>> mWaiting = new HashMap<String, ArrayDeque<Task>>();
+    // number of running transfers, by peer
+    private final Map<String, Integer> mRunning = new HashMap<String, Integer>();
+    // transfers copying their bytes, watched by mWatchdog
+    private final Set<Task> mCopying = new HashSet<Task>();
+    private Thread mWatchdog;
+
+    public FileTransferEngine() {
+        this(DEFAULT_THREADS, DEFAULT_MAX_PER_PEER);
+    }
+
+    /**
+     * @param threads the maximum number of transfers running at once
+     * @param maxPerPeer the maximum number of transfers of a peer running at once
+     */
+    public FileTransferEngine(int threads, int maxPerPeer) {
+        this(threads, maxPerPeer, DEFAULT_INACTIVITY_TIMEOUT_MS);
+    }
+
+    /**
+     * @param threads the maximum number of transfers running at once
+     * @param maxPerPeer the maximum number of transfers of a peer running at once
+     * @param inactivityTimeoutMs how long the streams of a transfer may stay without moving any byte
+     */
+    public FileTransferEngine(int threads, int maxPerPeer, long inactivityTimeoutMs) {
+        mMaxPerPeer = maxPerPeer;
+        mInactivityTimeout = inactivityTimeoutMs;
+        mPool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SEC, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "GTalkSMS.FileTransfer-" + mCount.getAndIncrement());
+                // we don't want a transfer to block the shutdown
+                t.setDaemon(true);
+                t.setPriority(Thread.NORM_PRIORITY - 1);
+                return t;
+            }
+        });
+        mPool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Changes the number of transfers of a peer running at once, for the transfers started from now
+     */
+    public void setMaxPerPeer(int maxPerPeer) {
+        mMaxPerPeer = maxPerPeer;
+        synchronized (this) {
+            for (String peer : mWaiting.keySet().toArray(new String[mWaiting.size()])) {
+                scheduleNext(peer);
+            }
+        }
+    }
+
+    /**
+     * Queues the transfer, it starts when a worker and a slot of its peer are free
+     */
+    public synchronized void submit(Task task) {
+        if (mPool.isShutdown()) {
+            Log.w("FileTransferEngine is shut down, dropping transfer of " + task.mName);
+            return;
+        }
+        ArrayDeque<Task> queue = mWaiting.get(task.mPeer);
+        if (queue == null) {
+            queue = new ArrayDeque<Task>();
+            mWaiting.put(task.mPeer, queue);
+        }
+        queue.add(task);
+        scheduleNext(task.mPeer);
+    }
+
+    /**
+     * @return the number of transfers running or waiting
+     */
+    public synchronized int getPendingCount() {
+        int res = 0;
+        for (Integer running : mRunning.values()) {
+            res += running;
+        }
+        for (ArrayDeque<Task> queue : mWaiting.values()) {
+            res += queue.size();
+        }
+        return res;
+    }
+
+    /**
+     * Drops the waiting transfers and interrupts the running ones
+     */
+    public synchronized void shutdown() {
+        mWaiting.clear();
+        mPool.shutdownNow();
+    }
+
+    /**
+     * Starts the waiting transfers of the peer while it has free slots, called with the lock held
+     */
+    private void scheduleNext(String peer) {
+        ArrayDeque<Task> queue = mWaiting.get(peer);
+        Integer running = mRunning.get(peer);
+        int count = running == null ? 0 : running;
+        while (queue != null && !queue.isEmpty() && count < mMaxPerPeer) {
+            final Task task = queue.poll();
+            ++count;
+            mPool.execute(new Runnable() {
+                public void run() {
+                    try {
+                        transfer(task);
+                    } finally {
+                        release(task.mPeer);
+                    }
+                }
+            });
+        }
+        if (queue != null && queue.isEmpty()) {
+            mWaiting.remove(peer);
+        }
+        if (count > 0) {
+            mRunning.put(peer, count);
+        }
+    }
+
+    private synchronized void release(String peer) {
+        Integer running = mRunning.get(peer);
+        if (running == null || running <= 1) {
+            mRunning.remove(peer);
+        } else {
+            mRunning.put(peer, running - 1);
+        }
+        if (!mPool.isShutdown()) {
+            scheduleNext(peer);
+        }
+    }
+
+    private void transfer(Task task) {
+        long start = Metrics.start();
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = task.mStreams.openInput();
+            out = task.mStreams.openOutput();
+            long offset = 0;
+            if (task.mStreams instanceof ResumableStreams) {
+                offset = ((ResumableStreams) task.mStreams).getOffset();
+                task.mTransferred = offset;
+            }
+            task.mInput = in;
+            task.mOutput = out;
+            watch(task);
+            task.mListener.onStarted(task);
+            copy(task, in, out, offset);
+            out.flush();
+            // the close of a bytestream ends the transfer, its errors are errors of the transfer
+            out.close();
+            out = null;
+            unwatch(task);
+            Metrics.recordSince(sTransferTime, start);
+            task.mListener.onCompleted(task);
+        } catch (Exception e) {
+            unwatch(task);
+            if (task.mTimedOut) {
+                // the error of the streams closed by the watchdog
+                sTimedOutCount.inc();
+                e = new SocketTimeoutException("No data transferred for " + mInactivityTimeout + "ms");
+            }
+            sFailedCount.inc();
+            Log.w("Transfer of " + task.mName + " with " + task.mPeer + " failed after " + task.mTransferred + " bytes", e);
+            task.mListener.onFailed(task, e);
+        } finally {
+            close(in);
+            close(out);
+        }
+    }
+
+    /**
+     * Watches the inactivity of the transfer, starts the watchdog if needed
+     */
+    private void watch(Task task) {
+        task.mLastActivity = now();
+        synchronized (mCopying) {
+            mCopying.add(task);
+            if (mWatchdog == null) {
+                mWatchdog = new Thread(mCheckInactivity, "GTalkSMS.FileTransferWatchdog");
+                mWatchdog.setDaemon(true);
+                mWatchdog.start();
+            }
+        }
+    }
+
+    private void unwatch(Task task) {
+        synchronized (mCopying) {
+            mCopying.remove(task);
+        }
+    }
+
+    /**
+     * Closes the streams of the inactive transfers, runs while transfers are copying
+     */
+    private final Runnable mCheckInactivity = new Runnable() {
+        public void run() {
+            // the timeout is detected with a delay of at most a quarter of it
+            long period = Math.max(1, mInactivityTimeout / 4);
+            while (true) {
+                List<Task> inactive = new ArrayList<Task>();
+                synchronized (mCopying) {
+                    if (mCopying.isEmpty()) {
+                        mWatchdog = null;
+                        return;
+                    }
+                    long now = now();
+                    for (Task task : mCopying) {
+                        if (now - task.mLastActivity >= mInactivityTimeout) {
+                            inactive.add(task);
+                        }
+                    }
+                    mCopying.removeAll(inactive);
+                }
+                for (Task task : inactive) {
+                    Log.w("Transfer of " + task.mName + " with " + task.mPeer + " inactive for " + mInactivityTimeout + "ms, closing it");
+                    task.mTimedOut = true;
+                    close(task.mInput);
+                    close(task.mOutput);
+                }
+                try {
+                    Thread.sleep(period);
+                } catch (InterruptedException e) {
+                    synchronized (mCopying) {
+                        mWatchdog = null;
+                    }
+                    return;
+                }
+            }
+        }
+    };
+
+    /**
+     * @param offset the number of bytes transferred before, the input starts after them
+     */
+    private static void copy(Task task, InputStream in, OutputStream out, long offset) throws IOException {
+        long step = task.mSize > 0 ? Math.max(1, task.mSize / PROGRESS_STEPS) : PROGRESS_UNKNOWN_SIZE_STEP;
+        long nextProgress = (offset / step + 1) * step;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long transferred = offset;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+            transferred += read;
+            task.mTransferred = transferred;
+            task.mLastActivity = now();
+            sBytesCount.add(read);
+            if (transferred >= nextProgress) {
+                nextProgress = (transferred / step + 1) * step;
+                task.mListener.onProgress(task);
+            }
+        }
+        if (task.mTimedOut) {
+            // some streams return the end of stream once closed
+            throw new IOException("Closed after " + transferred + " bytes");
+        }
+        if (task.mSize > 0 && transferred != task.mSize) {
+            throw new IOException("Stream closed after " + transferred + " of " + task.mSize + " bytes");
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    private static void close(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // already failed or completed
+            }
+        }
+    }
+}
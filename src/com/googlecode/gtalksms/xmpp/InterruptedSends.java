@@ -0,0 +1,116 @@
+package com.googlecode.gtalksms.xmpp;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The sends of XmppFileManager to resume on the next connection.
+ *
+ * A send interrupted after the recipient has accepted the file is kept in the store until it completes,
+ * its manifest survives a restart of the service. The sends still in the engine are counted by file:
+ * an interrupted send is only taken once the attempts of its file have ended, it is never sent twice at once.
+ */
+class InterruptedSends {
+    private final TransferManifest.Store mStore;
+    // the interrupted sends not taken yet, by manifest id, loaded from the store on first use
+    private Map<String, TransferManifest> mInterrupted;
+    // number of sends in the engine, by manifest id
+    private final Map<String, Integer> mPending = new HashMap<String, Integer>();
+
+    InterruptedSends(TransferManifest.Store store) {
+        mStore = store;
+    }
+
+    /**
+     * @param to the full JID of the recipient
+     * @return the manifest of the send of the file, the same id for each send of the file to the recipient
+     */
+    static TransferManifest newManifest(File file, String to) {
+        String path = file.getAbsolutePath();
+        long size = file.length();
+        return new TransferManifest(TransferManifest.getId(to, path, size, true), to, path, size,
+                TransferManifest.DEFAULT_CHUNK_SIZE, true);
+    }
+
+    /**
+     * The send is queued in the engine
+     */
+    synchronized void submitted(TransferManifest manifest) {
+        Integer count = mPending.get(manifest.getId());
+        mPending.put(manifest.getId(), count == null ? 1 : count + 1);
+    }
+
+    /**
+     * The recipient has accepted the file, from now the send is resumed if interrupted
+     */
+    synchronized void started(TransferManifest manifest) {
+        getInterrupted().put(manifest.getId(), manifest);
+        mStore.save(manifest);
+    }
+
+    synchronized void completed(TransferManifest manifest) {
+        removePending(manifest);
+        forget(manifest);
+    }
+
+    /**
+     * @param resume false for a send that never started or that was refused: it is forgotten,
+     *               unless another send of the file is still in the engine
+     */
+    synchronized void failed(TransferManifest manifest, boolean resume) {
+        removePending(manifest);
+        if (!resume && !mPending.containsKey(manifest.getId())) {
+            forget(manifest);
+        }
+    }
+
+    /**
+     * Takes the interrupted sends to start again: the ones still in the engine are left for later,
+     * the ones whose file has changed or disappeared are forgotten.
+     * A send taken is kept in the store until its next attempt completes or fails before its start.
+     */
+    synchronized List<TransferManifest> take() {
+        List<TransferManifest> res = new ArrayList<TransferManifest>();
+        for (Iterator<TransferManifest> it = getInterrupted().values().iterator(); it.hasNext(); ) {
+            TransferManifest manifest = it.next();
+            if (mPending.containsKey(manifest.getId())) {
+                continue;
+            }
+            it.remove();
+            if (new File(manifest.getPath()).length() == manifest.getSize()) {
+                res.add(manifest);
+            } else {
+                mStore.delete(manifest.getId());
+            }
+        }
+        return res;
+    }
+
+    private Map<String, TransferManifest> getInterrupted() {
+        if (mInterrupted == null) {
+            mInterrupted = new HashMap<String, TransferManifest>();
+            for (TransferManifest manifest : mStore.loadOutgoing()) {
+                mInterrupted.put(manifest.getId(), manifest);
+            }
+        }
+        return mInterrupted;
+    }
+
+    private void forget(TransferManifest manifest) {
+        getInterrupted().remove(manifest.getId());
+        mStore.delete(manifest.getId());
+    }
+
+    private void removePending(TransferManifest manifest) {
+        Integer count = mPending.get(manifest.getId());
+        if (count == null || count <= 1) {
+            mPending.remove(manifest.getId());
+        } else {
+            mPending.put(manifest.getId(), count - 1);
+        }
+    }
+}
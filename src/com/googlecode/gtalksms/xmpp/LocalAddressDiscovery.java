@@ -0,0 +1,235 @@
+package com.googlecode.gtalksms.xmpp;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * Finds the local addresses to advertise as SOCKS5 bytestream hosts, the ones a peer can connect to first.
+ *
+ * Every interface up is considered, the addresses are ranked by the type of their link (WiFi and Ethernet,
+ * then tethering, VPN and mobile data), IPv4 first, then by their reachability: a global address is reachable
+ * from anywhere, a private one only from the same LAN or VPN. The addresses a peer can't reach (loopback, link-local,
+ * carrier-grade NAT, private addresses of the mobile network) are not advertised, each one would cost
+ * a connection timeout to the peer before it tries the next host.
+ *
+ * The result is cached for the connectivity state, NetworkConnectivityReceiver invalidates it.
+ */
+public class LocalAddressDiscovery {
+    public static final int MAX_ADDRESSES = 4;
+
+    // link types, in the order of preference
+    public static final int LINK_LAN = 0;
+    public static final int LINK_TETHER = 1;
+    public static final int LINK_VPN = 2;
+    public static final int LINK_MOBILE = 3;
+    public static final int LINK_OTHER = 4;
+
+    // reachability of an address, in the order of preference
+    static final int REACH_GLOBAL = 0;
+    static final int REACH_PRIVATE = 1;
+    static final int REACH_NONE = -1;
+
+    // interface name prefixes of the link types, as named by the Android kernels
+    private static final String[] LAN_PREFIXES = { "wlan", "eth", "en" };
+    private static final String[] TETHER_PREFIXES = { "ap", "softap", "swlan", "rndis", "usb", "bt-pan", "bnep" };
+    private static final String[] VPN_PREFIXES = { "tun", "tap", "ppp", "ipsec", "wg" };
+    private static final String[] MOBILE_PREFIXES = { "rmnet", "ccmni", "pdp", "wwan", "rev_rmnet", "v4-rmnet", "clat", "seth" };
+
+    /**
+     * A network interface and its addresses
+     */
+    public static class Interface {
+        private final String mName;
+        private final boolean mUp;
+        private final boolean mLoopback;
+        private final List<InetAddress> mAddresses;
+
+        public Interface(String name, boolean up, boolean loopback, List<InetAddress> addresses) {
+            mName = name;
+            mUp = up;
+            mLoopback = loopback;
+            mAddresses = addresses;
+        }
+
+        public String getName() {
+            return mName;
+        }
+    }
+
+    /**
+     * Enumerates the network interfaces
+     */
+    public interface Source {
+        List<Interface> getInterfaces() throws SocketException;
+    }
+
+    /** The interfaces of the system */
+    public static final Source SYSTEM_SOURCE = new Source() {
+        public List<Interface> getInterfaces() throws SocketException {
+            List<Interface> res = new ArrayList<Interface>();
+            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+            // null if the device has no interface at all
+            if (interfaces != null) {
+                for (NetworkInterface ni : Collections.list(interfaces)) {
+                    res.add(new Interface(ni.getName(), ni.isUp(), ni.isLoopback(), Collections.list(ni.getInetAddresses())));
+                }
+            }
+            return res;
+        }
+    };
+
+    private final Source mSource;
+    private String mState;
+    private List<String> mAddresses;
+
+    public LocalAddressDiscovery(Source source) {
+        mSource = source;
+    }
+
+    /**
+     * @param state the connectivity state, the cached addresses are returned while it doesn't change
+     * @return the addresses to advertise, the best first, at most MAX_ADDRESSES
+     */
+    public synchronized List<String> getAddresses(String state) {
+        if (mAddresses == null || !state.equals(mState)) {
+            List<Interface> interfaces;
+            try {
+                interfaces = mSource.getInterfaces();
+            } catch (SocketException e) {
+                interfaces = Collections.emptyList();
+            }
+            mAddresses = rank(interfaces);
+            mState = state;
+        }
+        return mAddresses;
+    }
+
+    /**
+     * Forgets the cached addresses, the connectivity or the addresses of a network changed
+     */
+    public synchronized void invalidate() {
+        mAddresses = null;
+    }
+
+    /**
+     * @return the reachable addresses of the interfaces up, the best first, at most MAX_ADDRESSES
+     */
+    public static List<String> rank(List<Interface> interfaces) {
+        List<Candidate> candidates = new ArrayList<Candidate>();
+        for (Interface ni : interfaces) {
+            if (!ni.mUp || ni.mLoopback) {
+                continue;
+            }
+            int link = getLinkType(ni.mName);
+            for (InetAddress address : ni.mAddresses) {
+                int reach = getReachability(address, link);
+                if (reach != REACH_NONE) {
+                    candidates.add(new Candidate(toString(address), link, reach, address instanceof Inet4Address));
+                }
+            }
+        }
+        // stable, the interfaces of the same rank keep the system order
+        Collections.sort(candidates, new Comparator<Candidate>() {
+            public int compare(Candidate a, Candidate b) {
+                if (a.mLink != b.mLink) {
+                    return a.mLink - b.mLink;
+                }
+                // IPv4 first, some clients have no IPv6 and the routers often filter it
+                if (a.mIPv4 != b.mIPv4) {
+                    return a.mIPv4 ? -1 : 1;
+                }
+                return a.mReach - b.mReach;
+            }
+        });
+
+        List<String> res = new ArrayList<String>();
+        for (Candidate c : candidates) {
+            if (res.size() == MAX_ADDRESSES) {
+                break;
+            }
+            if (!res.contains(c.mAddress)) {
+                res.add(c.mAddress);
+            }
+        }
+        return res;
+    }
+
+    static int getLinkType(String name) {
+        // tethering before LAN, "swlan" and "ap" are not WiFi clients
+        if (startsWith(name, TETHER_PREFIXES)) {
+            return LINK_TETHER;
+        } else if (startsWith(name, LAN_PREFIXES)) {
+            return LINK_LAN;
+        } else if (startsWith(name, VPN_PREFIXES)) {
+            return LINK_VPN;
+        } else if (startsWith(name, MOBILE_PREFIXES)) {
+            return LINK_MOBILE;
+        }
+        return LINK_OTHER;
+    }
+
+    /**
+     * @return the reachability of the address from a peer, REACH_NONE if the peer can't connect to it
+     */
+    static int getReachability(InetAddress address, int link) {
+        if (address.isAnyLocalAddress() || address.isLoopbackAddress() || address.isLinkLocalAddress()
+                || address.isMulticastAddress()) {
+            return REACH_NONE;
+        }
+        byte[] b = address.getAddress();
+        boolean isPrivate;
+        if (address instanceof Inet6Address) {
+            // unique local addresses fc00::/7, the deprecated site-local ones
+            isPrivate = (b[0] & 0xFE) == 0xFC || address.isSiteLocalAddress();
+        } else {
+            // carrier-grade NAT 100.64.0.0/10, never reachable from the peer
+            if ((b[0] & 0xFF) == 100 && (b[1] & 0xC0) == 64) {
+                return REACH_NONE;
+            }
+            isPrivate = address.isSiteLocalAddress();
+        }
+        if (!isPrivate) {
+            return REACH_GLOBAL;
+        }
+        // the private addresses of the mobile networks are behind the NAT of the operator
+        return link == LINK_MOBILE || link == LINK_OTHER ? REACH_NONE : REACH_PRIVATE;
+    }
+
+    private static boolean startsWith(String name, String[] prefixes) {
+        for (String prefix : prefixes) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String toString(InetAddress address) {
+        String res = address.getHostAddress();
+        // no scope id "%wlan0", it's meaningless to the peer
+        int scope = res.indexOf('%');
+        return scope == -1 ? res : res.substring(0, scope);
+    }
+
+    private static class Candidate {
+        final String mAddress;
+        final int mLink;
+        final int mReach;
+        final boolean mIPv4;
+
+        Candidate(String address, int link, int reach, boolean ipv4) {
+            mAddress = address;
+            mLink = link;
+            mReach = reach;
+            mIPv4 = ipv4;
+        }
+    }
+}
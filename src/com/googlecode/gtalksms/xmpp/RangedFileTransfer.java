@@ -0,0 +1,368 @@
+package com.googlecode.gtalksms.xmpp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.PacketCollector;
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.SmackException.NotConnectedException;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.filter.AndFilter;
+import org.jivesoftware.smack.filter.IQTypeFilter;
+import org.jivesoftware.smack.filter.PacketTypeFilter;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.XMPPError;
+import org.jivesoftware.smack.provider.ProviderManager;
+import org.jivesoftware.smackx.bytestreams.BytestreamListener;
+import org.jivesoftware.smackx.bytestreams.BytestreamManager;
+import org.jivesoftware.smackx.bytestreams.BytestreamRequest;
+import org.jivesoftware.smackx.bytestreams.BytestreamSession;
+import org.jivesoftware.smackx.bytestreams.ibb.InBandBytestreamManager;
+import org.jivesoftware.smackx.bytestreams.ibb.InBandBytestreamSession;
+import org.jivesoftware.smackx.bytestreams.socks5.Socks5BytestreamManager;
+import org.jivesoftware.smackx.filetransfer.FileTransferNegotiator;
+import org.jivesoftware.smackx.si.packet.StreamInitiation;
+import org.jivesoftware.smackx.xdata.Form;
+import org.jivesoftware.smackx.xdata.FormField;
+import org.jivesoftware.smackx.xdata.packet.DataForm;
+
+import com.googlecode.gtalksms.tools.Log;
+
+/**
+ * Negotiates the file transfers of XEP-0096 on a connection, with their range: the receiver of an interrupted
+ * file answers the offer with the number of bytes it already has, the sender continues from there.
+ *
+ * The offers and their answers go through RangedStreamInitiation instead of the FileTransferManager of Smack,
+ * which can't send or read an offset. The bytes go through the bytestreams of Smack: SOCKS5 first,
+ * in-band if it fails, with the session id of the offer.
+ */
+public class RangedFileTransfer {
+    // like OutgoingFileTransfer, the recipient may have to accept the file by hand
+    public static final long DEFAULT_RESPONSE_TIMEOUT_MS = 60 * 1000;
+    // the sender opens the bytestream as soon as it has the answer
+    public static final long DEFAULT_BYTESTREAM_TIMEOUT_MS = 30 * 1000;
+    private static final String STREAM_METHOD = "stream-method";
+
+    /**
+     * Receives the file offers, called from the Smack listener thread
+     */
+    public interface OfferListener {
+        void onOffer(Offer offer);
+    }
+
+    private final XMPPConnection mConnection;
+    // the bytestreams expected by the accepted offers, by session id
+    private final Map<String, BlockingQueue<BytestreamRequest>> mRequests =
+            new ConcurrentHashMap<String, BlockingQueue<BytestreamRequest>>();
+
+    /**
+     * Registers the provider of the ranges and listens to the offers and the bytestreams of the connection
+     */
+    public RangedFileTransfer(XMPPConnection connection, final OfferListener listener) {
+        mConnection = connection;
+        // replaces the provider of Smack, loaded once the connection exists
+        ProviderManager.addIQProvider(RangedStreamInitiation.ELEMENT, RangedStreamInitiation.NAMESPACE,
+                new RangedStreamInitiation.Provider());
+        // announces the file transfers and their bytestreams
+        FileTransferNegotiator.getInstanceFor(connection);
+
+        connection.addPacketListener(new PacketListener() {
+            public void processPacket(Packet packet) {
+                listener.onOffer(new Offer((RangedStreamInitiation) packet));
+            }
+        }, new AndFilter(new PacketTypeFilter(RangedStreamInitiation.class), new IQTypeFilter(IQ.Type.SET)));
+
+        BytestreamListener requests = new BytestreamListener() {
+            public void incomingBytestreamRequest(BytestreamRequest request) {
+                BlockingQueue<BytestreamRequest> queue = mRequests.get(request.getSessionID());
+                if (queue != null) {
+                    queue.add(request);
+                    return;
+                }
+                // not the bytestream of an accepted offer
+                rejectRequest(request);
+            }
+        };
+        Socks5BytestreamManager.getBytestreamManager(connection).addIncomingBytestreamListener(requests);
+        InBandBytestreamManager.getByteStreamManager(connection).addIncomingBytestreamListener(requests);
+    }
+
+    /**
+     * Offers the file and opens the bytestream once the recipient has accepted it, blocks until then
+     * @param to the full JID of the recipient
+     * @param desc the description shown to the recipient
+     * @return the offset asked by the recipient and the bytestream of the rest of the file
+     * @throws XMPPException.XMPPErrorException if the recipient declined the file, see isRefused()
+     */
+    public Accepted offer(String to, String name, long size, String desc, long timeoutMs) throws Exception {
+        RangedStreamInitiation offer = new RangedStreamInitiation();
+        offer.setType(IQ.Type.SET);
+        offer.setTo(to);
+        offer.setSessionID(FileTransferNegotiator.getInstanceFor(mConnection).getNextStreamID());
+        offer.setMimeType(URLConnection.guessContentTypeFromName(name));
+        StreamInitiation.File file = new StreamInitiation.File(name, size);
+        file.setDesc(desc);
+        file.setRanged(true);
+        offer.setFile(file);
+        offer.setFeatureNegotiationForm(newStreamMethodForm(Form.TYPE_FORM, getSupportedStreamMethods()));
+
+        PacketCollector collector = mConnection.createPacketCollectorAndSend(offer);
+        Packet packet = collector.nextResultOrThrow(timeoutMs);
+        if (!(packet instanceof RangedStreamInitiation)) {
+            throw new IOException("Unexpected answer of " + to + " to the offer of " + name);
+        }
+        RangedStreamInitiation answer = (RangedStreamInitiation) packet;
+        long offset = answer.getOffset();
+        if (offset < 0 || offset > size) {
+            throw new IOException("Invalid offset " + offset + " of " + to + " for " + name + " of " + size + " bytes");
+        } else if (answer.getLength() >= 0 && offset + answer.getLength() != size) {
+            // the transfer always ends with the file
+            throw new IOException("Unsupported range of " + answer.getLength() + " bytes asked by " + to + " for " + name);
+        }
+
+        List<String> methods = selectStreamMethods(getStreamMethods(answer.getFeatureNegotiationForm(), false));
+        Exception failure = new IOException("No supported stream method in the answer of " + to);
+        for (String method : methods) {
+            try {
+                BytestreamSession session = getBytestreamManager(method).establishSession(to, offer.getSessionID());
+                return new Accepted(offset, getOutputStream(session));
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                Log.w("Cannot open the bytestream " + method + " to " + to, e);
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * @return true if the exception of offer() is the refusal of the recipient
+     */
+    public static boolean isRefused(Exception e) {
+        return e instanceof XMPPException.XMPPErrorException && XMPPError.Condition.forbidden.toString()
+                .equals(((XMPPException.XMPPErrorException) e).getXMPPError().getCondition());
+    }
+
+    /**
+     * An offer accepted by its recipient
+     */
+    public static class Accepted {
+        private final long mOffset;
+        private final OutputStream mOutput;
+
+        Accepted(long offset, OutputStream output) {
+            mOffset = offset;
+            mOutput = output;
+        }
+
+        /**
+         * @return the number of bytes the recipient already has, the file is sent from there
+         */
+        public long getOffset() {
+            return mOffset;
+        }
+
+        /**
+         * @return the bytestream, its close ends the transfer
+         */
+        public OutputStream getOutputStream() {
+            return mOutput;
+        }
+    }
+
+    /**
+     * A file offered by a sender, answered once by reject() or accept()
+     */
+    public class Offer {
+        private final RangedStreamInitiation mRequest;
+
+        Offer(RangedStreamInitiation request) {
+            mRequest = request;
+        }
+
+        /**
+         * @return the full JID of the sender
+         */
+        public String getFrom() {
+            return mRequest.getFrom();
+        }
+
+        public String getName() {
+            return mRequest.getFile() == null ? null : mRequest.getFile().getName();
+        }
+
+        public long getSize() {
+            return mRequest.getFile() == null ? -1 : mRequest.getFile().getSize();
+        }
+
+        /**
+         * @return true if the sender can start after an offset, the file can be resumed
+         */
+        public boolean isRanged() {
+            return mRequest.getFile() != null && mRequest.getFile().isRanged();
+        }
+
+        public void reject() throws NotConnectedException {
+            mConnection.sendPacket(IQ.createErrorResponse(mRequest,
+                    new XMPPError(XMPPError.Condition.forbidden, "Offer Declined")));
+        }
+
+        /**
+         * Accepts the file from the offset and waits for the sender to open the bytestream
+         * @param offset the number of bytes already received, ignored if the offer is not ranged
+         * @return the bytes of the file after the offset, its close ends the bytestream
+         */
+        public InputStream accept(long offset, long timeoutMs) throws Exception {
+            List<String> methods = selectStreamMethods(getStreamMethods(mRequest.getFeatureNegotiationForm(), true));
+            if (methods.isEmpty()) {
+                mConnection.sendPacket(IQ.createErrorResponse(mRequest,
+                        new XMPPError(XMPPError.Condition.bad_request, "No valid streams")));
+                throw new IOException("No supported stream method in the offer of " + getFrom());
+            }
+            RangedStreamInitiation answer = new RangedStreamInitiation();
+            answer.setType(IQ.Type.RESULT);
+            answer.setPacketID(mRequest.getPacketID());
+            answer.setTo(mRequest.getFrom());
+            if (isRanged()) {
+                answer.setOffset(offset);
+            }
+            // all the methods, the sender falls back to the next one if the first fails
+            answer.setFeatureNegotiationForm(newStreamMethodForm(Form.TYPE_SUBMIT, methods));
+
+            String sessionID = mRequest.getSessionID();
+            BlockingQueue<BytestreamRequest> queue = new LinkedBlockingQueue<BytestreamRequest>();
+            mRequests.put(sessionID, queue);
+            try {
+                mConnection.sendPacket(answer);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+                Exception failure = null;
+                while (true) {
+                    BytestreamRequest request = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (request == null) {
+                        IOException e = new IOException("No bytestream opened by " + getFrom() + " for " + getName());
+                        if (failure != null) {
+                            e.initCause(failure);
+                        }
+                        throw e;
+                    } else if (!getFrom().equals(request.getFrom())) {
+                        rejectRequest(request);
+                        continue;
+                    }
+                    try {
+                        return getInputStream(request.accept());
+                    } catch (InterruptedException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        Log.w("Cannot accept the bytestream of " + getFrom() + " for " + getName(), e);
+                        failure = e;
+                    }
+                }
+            } finally {
+                mRequests.remove(sessionID);
+            }
+        }
+    }
+
+    /**
+     * @return the supported stream methods, the preferred first
+     */
+    static List<String> getSupportedStreamMethods() {
+        List<String> res = new ArrayList<String>();
+        if (!FileTransferNegotiator.IBB_ONLY) {
+            res.add(Socks5BytestreamManager.NAMESPACE);
+        }
+        res.add(InBandBytestreamManager.NAMESPACE);
+        return res;
+    }
+
+    /**
+     * @return the supported methods among the ones of the peer, the preferred first
+     */
+    static List<String> selectStreamMethods(List<String> methods) {
+        List<String> res = getSupportedStreamMethods();
+        res.retainAll(methods);
+        return res;
+    }
+
+    /**
+     * @param options true for the options of an offer, false for the values of an answer
+     */
+    static List<String> getStreamMethods(DataForm form, boolean options) {
+        List<String> res = new ArrayList<String>();
+        if (form == null) {
+            return res;
+        }
+        for (FormField field : form.getFields()) {
+            if (!STREAM_METHOD.equals(field.getVariable())) {
+                continue;
+            }
+            if (options) {
+                for (FormField.Option option : field.getOptions()) {
+                    res.add(option.getValue());
+                }
+            } else {
+                res.addAll(field.getValues());
+            }
+        }
+        return res;
+    }
+
+    static DataForm newStreamMethodForm(String type, List<String> methods) {
+        DataForm form = new DataForm(type);
+        FormField field = new FormField(STREAM_METHOD);
+        if (Form.TYPE_FORM.equals(type)) {
+            field.setType(FormField.TYPE_LIST_SINGLE);
+            for (String method : methods) {
+                field.addOption(new FormField.Option(method));
+            }
+        } else {
+            field.addValues(methods);
+        }
+        form.addField(field);
+        return form;
+    }
+
+    private BytestreamManager getBytestreamManager(String method) {
+        if (Socks5BytestreamManager.NAMESPACE.equals(method)) {
+            return Socks5BytestreamManager.getBytestreamManager(mConnection);
+        }
+        return InBandBytestreamManager.getByteStreamManager(mConnection);
+    }
+
+    /**
+     * The close of a stream closes the whole session, like the negotiators of Smack
+     */
+    private static InputStream getInputStream(BytestreamSession session) throws IOException {
+        if (session instanceof InBandBytestreamSession) {
+            ((InBandBytestreamSession) session).setCloseBothStreamsEnabled(true);
+        }
+        return session.getInputStream();
+    }
+
+    private static OutputStream getOutputStream(BytestreamSession session) throws IOException {
+        if (session instanceof InBandBytestreamSession) {
+            ((InBandBytestreamSession) session).setCloseBothStreamsEnabled(true);
+        }
+        return session.getOutputStream();
+    }
+
+    private static void rejectRequest(BytestreamRequest request) {
+        try {
+            request.reject();
+        } catch (NotConnectedException e) {
+            // the sender times out
+        }
+    }
+}
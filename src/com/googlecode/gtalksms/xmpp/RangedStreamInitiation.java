@@ -0,0 +1,157 @@
+package com.googlecode.gtalksms.xmpp;
+
+import java.util.Date;
+
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.provider.IQProvider;
+import org.jivesoftware.smack.util.XmppDateTime;
+import org.jivesoftware.smackx.si.packet.StreamInitiation;
+import org.jivesoftware.smackx.xdata.packet.DataForm;
+import org.jivesoftware.smackx.xdata.provider.DataFormProvider;
+import org.xmlpull.v1.XmlPullParser;
+
+import com.googlecode.gtalksms.tools.Log;
+
+/**
+ * A stream initiation of the file transfer profile with the range of XEP-0096.
+ *
+ * The StreamInitiation of Smack 4.0 only keeps the "ranged" flag of an offer and its provider drops
+ * the offset of the answer, the transfer of a file can't continue where it was interrupted.
+ * The Provider is registered instead of the one of Smack, the offers and their answers keep their offset.
+ */
+public class RangedStreamInitiation extends StreamInitiation {
+    public static final String ELEMENT = "si";
+    public static final String NAMESPACE = "http://jabber.org/protocol/si";
+    static final String FILE_TRANSFER_NAMESPACE = "http://jabber.org/protocol/si/profile/file-transfer";
+    static final String FEATURE_NAMESPACE = "http://jabber.org/protocol/feature-neg";
+
+    private long mOffset;
+    private long mLength = -1;
+
+    /**
+     * @return the number of bytes the receiver already has, the sender starts after them
+     */
+    public long getOffset() {
+        return mOffset;
+    }
+
+    public void setOffset(long offset) {
+        mOffset = offset;
+    }
+
+    /**
+     * @return the number of bytes to send from the offset, -1 for the rest of the file
+     */
+    public long getLength() {
+        return mLength;
+    }
+
+    public void setLength(long length) {
+        mLength = length;
+    }
+
+    /**
+     * The answer of Smack has no file element, the range of an accepted offer is added to it
+     */
+    @Override
+    public String getChildElementXML() {
+        if (getType() != IQ.Type.RESULT || (mOffset <= 0 && mLength < 0)) {
+            return super.getChildElementXML();
+        }
+        StringBuilder buf = new StringBuilder();
+        buf.append("<si xmlns=\"").append(NAMESPACE).append("\">");
+        buf.append("<file xmlns=\"").append(FILE_TRANSFER_NAMESPACE).append("\"><range");
+        if (mOffset > 0) {
+            buf.append(" offset=\"").append(mOffset).append('"');
+        }
+        if (mLength >= 0) {
+            buf.append(" length=\"").append(mLength).append('"');
+        }
+        buf.append("/></file>");
+        DataForm form = getFeatureNegotiationForm();
+        if (form != null) {
+            buf.append("<feature xmlns=\"").append(FEATURE_NAMESPACE).append("\">");
+            buf.append(form.toXML());
+            buf.append("</feature>");
+        }
+        buf.append("</si>");
+        return buf.toString();
+    }
+
+    /**
+     * Parses the stream initiations like the provider of Smack, with the offset and the length of the range
+     */
+    public static class Provider implements IQProvider {
+        private final DataFormProvider mDataFormProvider = new DataFormProvider();
+
+        public IQ parseIQ(XmlPullParser parser) throws Exception {
+            RangedStreamInitiation initiation = new RangedStreamInitiation();
+            initiation.setSessionID(parser.getAttributeValue("", "id"));
+            initiation.setMimeType(parser.getAttributeValue("", "mime-type"));
+
+            String name = null;
+            String size = null;
+            String hash = null;
+            String date = null;
+            String desc = null;
+            boolean ranged = false;
+            boolean done = false;
+            while (!done) {
+                int eventType = parser.next();
+                String elementName = parser.getName();
+                if (eventType == XmlPullParser.START_TAG) {
+                    if (elementName.equals("file")) {
+                        name = parser.getAttributeValue("", "name");
+                        size = parser.getAttributeValue("", "size");
+                        hash = parser.getAttributeValue("", "hash");
+                        date = parser.getAttributeValue("", "date");
+                    } else if (elementName.equals("desc")) {
+                        desc = parser.nextText();
+                    } else if (elementName.equals("range")) {
+                        ranged = true;
+                        initiation.setOffset(parseLong(parser.getAttributeValue("", "offset"), 0));
+                        initiation.setLength(parseLong(parser.getAttributeValue("", "length"), -1));
+                    } else if (elementName.equals(DataForm.ELEMENT) && DataForm.NAMESPACE.equals(parser.getNamespace())) {
+                        initiation.setFeatureNegotiationForm((DataForm) mDataFormProvider.parseExtension(parser));
+                    }
+                } else if (eventType == XmlPullParser.END_TAG) {
+                    if (elementName.equals(ELEMENT)) {
+                        done = true;
+                    } else if (elementName.equals("file") && name != null) {
+                        // the answer of an accepted offer may have a file element with only the range
+                        File file = new File(name, parseLong(size, 0));
+                        file.setHash(hash);
+                        file.setDate(parseDate(date));
+                        file.setDesc(desc);
+                        file.setRanged(ranged);
+                        initiation.setFile(file);
+                    }
+                }
+            }
+            return initiation;
+        }
+
+        private static long parseLong(String value, long defaultValue) {
+            if (value == null || value.trim().length() == 0) {
+                return defaultValue;
+            }
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                Log.w("Invalid number in a stream initiation: " + value);
+                return defaultValue;
+            }
+        }
+
+        private static Date parseDate(String date) {
+            if (date != null) {
+                try {
+                    return XmppDateTime.parseDate(date);
+                } catch (Exception e) {
+                    Log.w("Invalid date in a stream initiation: " + date);
+                }
+            }
+            return new Date();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.googlecode.gtalksms.xmpp;
+
+import java.util.Random;
+
+import android.os.SystemClock;
+
+/**
+ * Delays between the reconnection attempts: capped exponential backoff with decorrelated jitter,
+ * each delay is drawn between the base delay and 3 times the previous one.
+ * The jitter keeps the devices of a server from retrying all at once after an outage.
+ *
+ * A connection lost before it was up for the stable period doesn't bring the delays back to the base delay,
+ * a flapping link keeps backing off instead of reconnecting every few seconds.
+ */
+public class ReconnectBackoff {
+    public static final long DEFAULT_BASE_DELAY = 2000;
+    public static final long DEFAULT_MAX_DELAY = 1000 * 60 * 5;
+    public static final long DEFAULT_STABLE_PERIOD = 1000 * 60;
+
+    /**
+     * Source of the time in ms, monotonic
+     */
+    public interface Clock {
+        long now();
+    }
+
+    static final Clock SYSTEM_CLOCK = new Clock() {
+        public long now() {
+            return SystemClock.elapsedRealtime();
+        }
+    };
+
+    private final long mBaseDelay;
+    private final long mMaxDelay;
+    private final long mStablePeriod;
+    private final Random mRandom;
+    private final Clock mClock;
+
+    private long mLastDelay;
+    private int mAttempt;
+    // 0 while disconnected
+    private long mConnectedAt;
+
+    public ReconnectBackoff() {
+        this(DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY, DEFAULT_STABLE_PERIOD, new Random(), SYSTEM_CLOCK);
+    }
+
+    public ReconnectBackoff(long baseDelay, long maxDelay, long stablePeriod, Random random, Clock clock) {
+        mBaseDelay = baseDelay;
+        mMaxDelay = maxDelay;
+        mStablePeriod = stablePeriod;
+        mRandom = random;
+        mClock = clock;
+        mLastDelay = baseDelay;
+    }
+
+    /**
+     * @return the delay in ms before the next attempt
+     */
+    public synchronized long nextDelay() {
+        if (mConnectedAt != 0) {
+            if (mClock.now() - mConnectedAt >= mStablePeriod) {
+                mLastDelay = mBaseDelay;
+            }
+            mConnectedAt = 0;
+        }
+        long upper = Math.min(mMaxDelay, mLastDelay * 3);
+        long delay = upper <= mBaseDelay ? upper : mBaseDelay + (long) (mRandom.nextDouble() * (upper - mBaseDelay));
+        mLastDelay = delay;
+        mAttempt++;
+        return delay;
+    }
+
+    /**
+     * The network came back: the next delay starts again from the base delay,
+     * the attempt count is kept
+     */
+    public synchronized void onNetworkAvailable() {
+        mLastDelay = mBaseDelay;
+    }
+
+    /**
+     * The connection is established: the attempt count is reset,
+     * the delays are only reset if the connection stays up for the stable period
+     */
+    public synchronized void onConnected() {
+        mAttempt = 0;
+        mConnectedAt = Math.max(1, mClock.now());
+    }
+
+    /**
+     * The connection was closed on purpose
+     */
+    public synchronized void reset() {
+        mLastDelay = mBaseDelay;
+        mAttempt = 0;
+        mConnectedAt = 0;
+    }
+
+    /**
+     * @return the number of attempts scheduled since the last connection
+     */
+    public synchronized int getAttempt() {
+        return mAttempt;
+    }
+}
@@ -0,0 +1,167 @@
+package com.googlecode.gtalksms.xmpp;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.jivesoftware.smack.util.StringUtils;
+
+/**
+ * Immutable and versioned view of the roster: the friends by bare JID, with their presence by resource.
+ * The snapshots are published by a Builder updated from the roster and presence events,
+ * each one knows the JIDs changed since the previous version so the consumers only update those.
+ */
+public class RosterSnapshot {
+    public static final RosterSnapshot EMPTY = new RosterSnapshot(0, new HashMap<String, XmppFriend>(), new String[0]);
+
+    private final long mVersion;
+    private final Map<String, XmppFriend> mFriends;
+    private final String[] mChangedIds;
+
+    private RosterSnapshot(long version, Map<String, XmppFriend> friends, String[] changedIds) {
+        mVersion = version;
+        mFriends = Collections.unmodifiableMap(friends);
+        mChangedIds = changedIds;
+    }
+
+    public long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * @return the friend with the given bare JID or null if he's not in the roster
+     */
+    public XmppFriend get(String userId) {
+        return mFriends.get(userId);
+    }
+
+    public Collection<XmppFriend> getFriends() {
+        return mFriends.values();
+    }
+
+    public int size() {
+        return mFriends.size();
+    }
+
+    /**
+     * @return the bare JIDs added, updated or removed since the previous version
+     */
+    public String[] getChangedIds() {
+        return mChangedIds.clone();
+    }
+
+    /**
+     * Mutable roster state, the changes are accumulated until the next publish()
+     */
+    public static class Builder {
+        private static class Entry {
+            String mName;
+            String mStatus = "";
+            final TreeMap<String, XmppFriend> mLocations = new TreeMap<String, XmppFriend>();
+        }
+
+        private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+        private final LinkedHashSet<String> mChanged = new LinkedHashSet<String>();
+        private RosterSnapshot mSnapshot = EMPTY;
+
+        /**
+         * Removes all the entries, e.g. before loading the roster of a new connection
+         */
+        public synchronized void clear() {
+            mChanged.addAll(mEntries.keySet());
+            mEntries.clear();
+        }
+
+        public synchronized void setEntry(String userId, String name) {
+            Entry e = mEntries.get(userId);
+            if (e == null) {
+                e = new Entry();
+                mEntries.put(userId, e);
+            } else if (name == null ? e.mName == null : name.equals(e.mName)) {
+                return;
+            }
+            e.mName = name;
+            mChanged.add(userId);
+        }
+
+        public synchronized void removeEntry(String userId) {
+            if (mEntries.remove(userId) != null) {
+                mChanged.add(userId);
+            }
+        }
+
+        /**
+         * Updates the presence of a resource, an offline presence without resource clears all the resources
+         */
+        public synchronized void setPresence(String fullId, int state, String status) {
+            String userId = StringUtils.parseBareAddress(fullId);
+            if (status == null) {
+                status = "";
+            }
+            Entry e = mEntries.get(userId);
+            if (e == null) {
+                e = new Entry();
+                mEntries.put(userId, e);
+            }
+            if (state == XmppFriend.OFFLINE) {
+                if (fullId.equals(userId)) {
+                    e.mLocations.clear();
+                } else {
+                    e.mLocations.remove(fullId);
+                }
+            } else {
+                XmppFriend location = e.mLocations.get(fullId);
+                if (location != null && location.mState == state && location.mStatus.equals(status) && e.mStatus.equals(status)) {
+                    return;
+                }
+                e.mLocations.put(fullId, new XmppFriend(fullId, null, status, state));
+            }
+            e.mStatus = status;
+            mChanged.add(userId);
+        }
+
+        public synchronized boolean hasChanges() {
+            return !mChanged.isEmpty();
+        }
+
+        /**
+         * @return a new snapshot with the changes since the last call, or the current one if nothing changed
+         */
+        public synchronized RosterSnapshot publish() {
+            if (mChanged.isEmpty()) {
+                return mSnapshot;
+            }
+            HashMap<String, XmppFriend> friends = new HashMap<String, XmppFriend>(mSnapshot.mFriends);
+            for (String userId : mChanged) {
+                Entry e = mEntries.get(userId);
+                if (e == null) {
+                    friends.remove(userId);
+                } else {
+                    friends.put(userId, toFriend(userId, e));
+                }
+            }
+            String[] changedIds = mChanged.toArray(new String[mChanged.size()]);
+            mChanged.clear();
+            mSnapshot = new RosterSnapshot(mSnapshot.mVersion + 1, friends, changedIds);
+            return mSnapshot;
+        }
+
+        public synchronized RosterSnapshot getSnapshot() {
+            return mSnapshot;
+        }
+
+        /**
+         * The state of a friend is the one of his first resource, offline without resource
+         */
+        private static XmppFriend toFriend(String userId, Entry e) {
+            if (e.mLocations.isEmpty()) {
+                return new XmppFriend(userId, e.mName, e.mStatus, XmppFriend.OFFLINE, Collections.<String, XmppFriend>emptyMap());
+            }
+            XmppFriend first = e.mLocations.firstEntry().getValue();
+            return new XmppFriend(userId, e.mName, first.mStatus, first.mState, new TreeMap<String, XmppFriend>(e.mLocations));
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.googlecode.gtalksms.xmpp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.KeyManagementException;
+import java.security.SecureRandom;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLContextSpi;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+
+import com.googlecode.gtalksms.tools.Histogram;
+import com.googlecode.gtalksms.tools.Metrics;
+
+/**
+ * SSLContext measuring the TLS handshakes of the client sockets it creates.
+ * The sessions are cached by the wrapped context (by peer host and port), so a context
+ * kept across the reconnections lets the server resume the previous session
+ * instead of doing a full handshake.
+ */
+public class TimedSSLContext extends SSLContext {
+    private static final Histogram sHandshakeTime = Metrics.histogram("tls.handshake");
+    private static final Metrics.Counter sResumedCount = Metrics.counter("tls.handshake.resumed");
+    private static final Metrics.Counter sFullCount = Metrics.counter("tls.handshake.full");
+
+    public TimedSSLContext(SSLContext delegate) {
+        super(new Spi(delegate), delegate.getProvider(), delegate.getProtocol());
+    }
+
+    private static class Spi extends SSLContextSpi {
+        private final SSLContext mDelegate;
+
+        Spi(SSLContext delegate) {
+            mDelegate = delegate;
+        }
+
+        @Override
+        protected void engineInit(KeyManager[] km, TrustManager[] tm, SecureRandom sr) throws KeyManagementException {
+            mDelegate.init(km, tm, sr);
+        }
+
+        @Override
+        protected SSLSocketFactory engineGetSocketFactory() {
+            return new TimedSocketFactory(mDelegate.getSocketFactory());
+        }
+
+        @Override
+        protected SSLServerSocketFactory engineGetServerSocketFactory() {
+            return mDelegate.getServerSocketFactory();
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine() {
+            return mDelegate.createSSLEngine();
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine(String host, int port) {
+            return mDelegate.createSSLEngine(host, port);
+        }
+
+        @Override
+        protected SSLSessionContext engineGetServerSessionContext() {
+            return mDelegate.getServerSessionContext();
+        }
+
+        @Override
+        protected SSLSessionContext engineGetClientSessionContext() {
+            return mDelegate.getClientSessionContext();
+        }
+    }
+
+    private static class TimedSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory mDelegate;
+
+        TimedSocketFactory(SSLSocketFactory delegate) {
+            mDelegate = delegate;
+        }
+
+        /**
+         * The handshake starts when the socket is created (Smack calls startHandshake() right away),
+         * a session created before that has been resumed
+         */
+        private static Socket timed(Socket socket) {
+            if (socket instanceof SSLSocket) {
+                final long start = Metrics.start();
+                final long startTime = System.currentTimeMillis();
+                ((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+                    public void handshakeCompleted(HandshakeCompletedEvent event) {
+                        Metrics.recordSince(sHandshakeTime, start);
+                        if (event.getSession().getCreationTime() < startTime) {
+                            sResumedCount.inc();
+                        } else {
+                            sFullCount.inc();
+                        }
+                        event.getSocket().removeHandshakeCompletedListener(this);
+                    }
+                });
+            }
+            return socket;
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+            return timed(mDelegate.createSocket(s, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return timed(mDelegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return timed(mDelegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return timed(mDelegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return timed(mDelegate.createSocket(address, port, localAddress, localPort));
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return mDelegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return mDelegate.getSupportedCipherSuites();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.googlecode.gtalksms.xmpp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Persisted state of a file transfer, to resume it after a reconnection.
+ * For a received file it holds the SHA-256 of each chunk written so far: on resume the chunks on disk
+ * are checked against them and the transfer continues after the last valid one.
+ */
+public class TransferManifest {
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+    /**
+     * Storage of the manifests, the app database
+     */
+    public interface Store {
+        /** @return the manifest or null if there is none */
+        TransferManifest load(String id);
+
+        List<TransferManifest> loadOutgoing();
+
+        /** Creates or replaces the manifest, without its chunks */
+        void save(TransferManifest manifest);
+
+        void addChunk(String id, int index, String sha256);
+
+        /** Removes the chunks from index count */
+        void truncate(String id, int count);
+
+        void delete(String id);
+    }
+
+    private final String mId;
+    private final String mPeer;
+    private final String mPath;
+    private final long mSize;
+    private final int mChunkSize;
+    private final boolean mOutgoing;
+    private final List<String> mHashes = new ArrayList<String>();
+
+    /**
+     * @param peer the JID of the other end
+     * @param path the file sent, or the partial file received
+     */
+    public TransferManifest(String id, String peer, String path, long size, int chunkSize, boolean outgoing) {
+        mId = id;
+        mPeer = peer;
+        mPath = path;
+        mSize = size;
+        mChunkSize = chunkSize;
+        mOutgoing = outgoing;
+    }
+
+    /**
+     * @return the id of the transfer of the file from (or to) the peer, the same when the file is sent again
+     */
+    public static String getId(String peer, String name, long size, boolean outgoing) {
+        return (outgoing ? "out|" : "in|") + peer + "|" + name + "|" + size;
+    }
+
+    public String getId() {
+        return mId;
+    }
+
+    public String getPeer() {
+        return mPeer;
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    public long getSize() {
+        return mSize;
+    }
+
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
+    public boolean isOutgoing() {
+        return mOutgoing;
+    }
+
+    public int getChunkCount() {
+        return mHashes.size();
+    }
+
+    public String getChunkHash(int index) {
+        return mHashes.get(index);
+    }
+
+    /**
+     * Adds the hash of the next chunk, used when loading the manifest
+     */
+    public void addChunkHash(String sha256) {
+        mHashes.add(sha256);
+    }
+
+    /**
+     * @return the number of bytes covered by the recorded chunks, the transfer continues from there
+     */
+    public long getCompletedLength() {
+        return Math.min(mSize, (long) mHashes.size() * mChunkSize);
+    }
+
+    /**
+     * Checks the chunks of the file against the recorded hashes, the chunks after the first invalid one are forgotten
+     * @return the number of valid chunks
+     */
+    public int verify(File file) throws IOException {
+        int valid = 0;
+        if (file.exists()) {
+            MessageDigest digest = newDigest();
+            byte[] buffer = new byte[mChunkSize];
+            InputStream in = new FileInputStream(file);
+            try {
+                while (valid < mHashes.size()) {
+                    int expected = (int) Math.min(mChunkSize, mSize - (long) valid * mChunkSize);
+                    if (readFully(in, buffer, expected) != expected) {
+                        break;
+                    }
+                    digest.update(buffer, 0, expected);
+                    if (!toHex(digest.digest()).equals(mHashes.get(valid))) {
+                        break;
+                    }
+                    ++valid;
+                }
+            } finally {
+                in.close();
+            }
+        }
+        while (mHashes.size() > valid) {
+            mHashes.remove(mHashes.size() - 1);
+        }
+        return valid;
+    }
+
+    private static int readFully(InputStream in, byte[] buffer, int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            int read = in.read(buffer, total, len - total);
+            if (read == -1) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // mandatory in all the JREs
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] res = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            res[2 * i] = Character.forDigit((bytes[i] >> 4) & 0xF, 16);
+            res[2 * i + 1] = Character.forDigit(bytes[i] & 0xF, 16);
+        }
+        return new String(res);
+    }
+}
@@ -1,6 +1,5 @@
 package com.googlecode.gtalksms.xmpp;
 
-import java.util.ArrayList;
 import java.util.Collection;
 
 import org.jivesoftware.smack.Roster;
@@ -17,19 +16,40 @@ import org.jivesoftware.smack.util.StringUtils;
 
 import android.content.Context;
 import android.content.Intent;
+import android.os.Handler;
 
 import com.googlecode.gtalksms.tools.Log;
+import com.googlecode.gtalksms.tools.Metrics;
 import com.googlecode.gtalksms.MainService;
 import com.googlecode.gtalksms.SettingsManager;
 import com.googlecode.gtalksms.XmppManager;
 
 public class XmppBuddies implements RosterListener {
+    // the roster changes are broadcast at most once per interval
+    private static final long MIN_BROADCAST_INTERVAL_MS = 500;
     
     private static Context sContext;
     private static XMPPConnection sConnection;
     private static XmppBuddies sXmppBuddies;
     private static SettingsManager sSettings;
     private static Roster sRoster;
+    private static final RosterSnapshot.Builder sRosterBuilder = new RosterSnapshot.Builder();
+    private static volatile RosterSnapshot sSnapshot = RosterSnapshot.EMPTY;
+
+    private final Metrics.Counter mBroadcastCount = Metrics.counter("roster.broadcasts");
+    private final Metrics.Counter mPresenceCount = Metrics.counter("roster.presences");
+    private volatile Handler mHandler;
+
+    private final BroadcastThrottle mBroadcastThrottle = new BroadcastThrottle(MIN_BROADCAST_INTERVAL_MS, new Runnable() {
+        public void run() {
+            broadcastChanges();
+        }
+    }, new BroadcastThrottle.Scheduler() {
+        public boolean postDelayed(Runnable action, long delayMs) {
+            Handler handler = mHandler;
+            return handler != null && handler.postDelayed(action, delayMs);
+        }
+    });
     
     private XmppBuddies(Context context) {
         sContext = context;
@@ -38,6 +58,8 @@ public class XmppBuddies implements RosterListener {
     }
 
 	public void registerListener(XmppManager xmppMgr) {
+		mHandler = new Handler(MainService.getServiceLooper());
+		mBroadcastThrottle.reset();
 		XmppConnectionChangeListener listener = new XmppConnectionChangeListener() {
 			public void newConnection(XMPPConnection connection) {
 				sConnection = connection;
@@ -70,7 +92,6 @@ public class XmppBuddies implements RosterListener {
             if (!sRoster.contains(userID)) {
                 try {
                     sRoster.createEntry(userID, StringUtils.parseBareAddress(userID), null);
-                    retrieveFriendList();
                 } catch (Exception e) {
                     System.err.println("Error in adding friend " + e.getMessage());
                 }
@@ -128,91 +149,69 @@ public class XmppBuddies implements RosterListener {
     }
     
     /**
-     * retrieves the current xmpp rooster
-     * and sends a broadcast ACTION_XMPP_PRESENCE_CHANGED
-     * for every friend
-     * does nothing if we are offline
-     * 
-     * @return
+     * @return the last roster snapshot broadcast with ACTION_XMPP_ROSTER_CHANGED
      */
-    public ArrayList<XmppFriend> retrieveFriendList() {
-        
-        ArrayList<XmppFriend> friends = new ArrayList<XmppFriend>();
+    public static RosterSnapshot getSnapshot() {
+        return sSnapshot;
+    }
 
+    /**
+     * reloads the roster snapshot from the current xmpp rooster
+     * and broadcasts the changes
+     * does nothing if we are offline
+     */
+    public void retrieveFriendList() {
         if (sConnection != null && sConnection.isAuthenticated()) {
             try {
-                String userID;
-                String status;
                 Roster roster = sConnection.getRoster();
 
-                for (RosterEntry r : roster.getEntries()) {
-                    userID = r.getUser();
-                    status = retrieveStatusMessage(userID);
-                    friends.add(new XmppFriend(userID, r.getName(), status, retrieveState(userID)));
+                synchronized (sRosterBuilder) {
+                    sRosterBuilder.clear();
+                    for (RosterEntry r : roster.getEntries()) {
+                        sRosterBuilder.setEntry(r.getUser(), r.getName());
+                        for (Presence presence : roster.getPresences(r.getUser())) {
+                            setPresence(presence);
+                        }
+                    }
                 }
-
-                sendFriendList(friends);
+                scheduleBroadcast();
             } catch (Exception ex) {
                 Log.w("Failed to retrieve Xmpp Friend list", ex);
             }
         }
-        
-        return friends;
     }
-    
+
     /**
-     * sends an XMPP_PRESENCE_CHANGED intent for every known xmpp rooster item (friend)
-     * with the actual status information
-     * 
-     * @param list
+     * Publishes the roster changes in a new snapshot and sends a single
+     * ACTION_XMPP_ROSTER_CHANGED intent with the changed JIDs
      */
-    void sendFriendList(ArrayList<XmppFriend> list) {
-        
-        for (XmppFriend xmppFriend : list) {
-            Intent intent = new Intent(MainService.ACTION_XMPP_PRESENCE_CHANGED);
-            intent.putExtra("userid", xmppFriend.mId);
-            intent.putExtra("name", xmppFriend.mName == null ? xmppFriend.mId : xmppFriend.mName);
-            intent.putExtra("status", xmppFriend.mStatus);
-            intent.putExtra("state", xmppFriend.mState);
-            sContext.sendBroadcast(intent);
+    private void broadcastChanges() {
+        if (!sRosterBuilder.hasChanges()) {
+            return;
         }
+        RosterSnapshot snapshot = sRosterBuilder.publish();
+        sSnapshot = snapshot;
+
+        Intent intent = new Intent(MainService.ACTION_XMPP_ROSTER_CHANGED);
+        intent.putExtra("version", snapshot.getVersion());
+        intent.putExtra("userids", snapshot.getChangedIds());
+        sContext.sendBroadcast(intent);
+        mBroadcastCount.inc();
     }
-    
+
     /**
-     * returns the status message for a given bare or full JID
-     * 
-     * @param userID
-     * @return
+     * The broadcast is delayed to coalesce the changes received meanwhile,
+     * e.g. the presences of the whole roster after a reconnection
      */
-    String retrieveStatusMessage(String userID) {
-        String userStatus; // default return value
-
-        try {
-            userStatus = sConnection.getRoster().getPresence(userID).getStatus();
-        } catch (NullPointerException e) {
-            Log.e("Invalid connection or user in retrieveStatus() - NPE", e);
-            userStatus = "";
-        }
-        // Server may set their status to null; we want empty string
-        if (userStatus == null) {
-            userStatus = "";
-        }
-
-        return userStatus;
+    private void scheduleBroadcast() {
+        mBroadcastThrottle.schedule();
     }
 
-    int retrieveState(String userID) {
-        int userState = XmppFriend.OFFLINE; // default return value
-        Presence userFromServer;
-
-        try {
-            userFromServer = sConnection.getRoster().getPresence(userID);
-            userState = retrieveState(userFromServer.getMode(), userFromServer.isAvailable());
-        } catch (NullPointerException e) {
-            Log.e("retrieveState(): Invalid connection or user - NPE", e);
+    private void setPresence(Presence presence) {
+        String from = presence.getFrom();
+        if (from != null) {
+            sRosterBuilder.setPresence(from, retrieveState(presence.getMode(), presence.isAvailable()), presence.getStatus());
         }
-
-        return userState;
     }
     
     /**
@@ -241,14 +240,30 @@ public class XmppBuddies implements RosterListener {
 
     @Override
     public void entriesAdded(Collection<String> addresses) {
+        entriesUpdated(addresses);
     }
 
     @Override
     public void entriesDeleted(Collection<String> addresses) {
+        for (String address : addresses) {
+            sRosterBuilder.removeEntry(address);
+        }
+        scheduleBroadcast();
     }
 
     @Override
     public void entriesUpdated(Collection<String> addresses) {
+        Roster roster = sRoster;
+        if (roster == null) {
+            return;
+        }
+        for (String address : addresses) {
+            RosterEntry entry = roster.getEntry(address);
+            if (entry != null) {
+                sRosterBuilder.setEntry(address, entry.getName());
+            }
+        }
+        scheduleBroadcast();
     }
 
     // careful, this method does also get called by the SmackListener Thread
@@ -256,18 +271,15 @@ public class XmppBuddies implements RosterListener {
     public void presenceChanged(Presence presence) {
         String bareUserId = StringUtils.parseBareAddress(presence.getFrom());
         
-        Intent intent = new Intent(MainService.ACTION_XMPP_PRESENCE_CHANGED);
-        intent.putExtra("userid", bareUserId);
-        intent.putExtra("fullid", presence.getFrom());
-        intent.putExtra("state", retrieveState(presence.getMode(), presence.isAvailable()));
-        intent.putExtra("status", presence.getStatus());
-        sContext.sendBroadcast(intent);
+        mPresenceCount.inc();
+        setPresence(presence);
+        scheduleBroadcast();
         
         // TODO Make this a general intent action.NOTIFICATION_ADDRESS_AVAILABLE
         // and handle it for example within XmppPresenceStatus
         // if the notification address is/has become available, update the resource status string
         if (sSettings.getNotifiedAddresses().contains(bareUserId) && presence.isAvailable()) {
-            intent = new Intent(MainService.ACTION_COMMAND);
+            Intent intent = new Intent(MainService.ACTION_COMMAND);
             intent.setClass(sContext, MainService.class);
             intent.putExtra("cmd", "batt");
             intent.putExtra("args", "silent");
@@ -0,0 +1,155 @@
+package com.googlecode.gtalksms.xmpp;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLContext;
+
+import org.jivesoftware.smack.util.DNSUtil;
+import org.jivesoftware.smack.util.dns.HostAddress;
+
+import android.content.Context;
+
+import com.googlecode.gtalksms.tools.Log;
+
+import de.duenndns.ssl.MemorizingTrustManager;
+
+/**
+ * State kept across the reconnections to make them faster:
+ * - a single SSLContext, its client session cache lets the server resume the TLS session
+ * - the addresses of the XMPP server, resolved while we wait for the next attempt
+ *   (the SRV records are kept in the dnsjava cache, the host addresses here)
+ */
+public class XmppConnectionWarmup {
+    private static final int SESSION_CACHE_SIZE = 10;
+    private static final int SESSION_TIMEOUT_S = 60 * 60 * 24;
+    private static final long ADDRESS_TTL_MS = 1000 * 60 * 5;
+    private static final int KEEP_ALIVE_SEC = 30;
+
+    private static XmppConnectionWarmup sWarmup;
+
+    private static class CachedAddresses {
+        final InetAddress[] mAddresses;
+        final long mExpiry;
+
+        CachedAddresses(InetAddress[] addresses) {
+            mAddresses = addresses;
+            mExpiry = System.currentTimeMillis() + ADDRESS_TTL_MS;
+        }
+    }
+
+    private final Context mContext;
+    private final ConcurrentHashMap<String, CachedAddresses> mAddresses = new ConcurrentHashMap<String, CachedAddresses>();
+    private final AtomicBoolean mPrefetching = new AtomicBoolean();
+    // a single thread for the lookups, stopped while idle
+    private final ThreadPoolExecutor mResolver;
+    private SSLContext mSSLContext;
+
+    private XmppConnectionWarmup(Context ctx) {
+        mContext = ctx;
+        mResolver = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SEC, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "GTalkSMS.XmppWarmup");
+            }
+        });
+        mResolver.allowCoreThreadTimeOut(true);
+    }
+
+    public static XmppConnectionWarmup getInstance(Context ctx) {
+        if (sWarmup == null) {
+            sWarmup = new XmppConnectionWarmup(ctx);
+        }
+        return sWarmup;
+    }
+
+    /**
+     * @return the SSLContext shared by all the connections
+     */
+    public synchronized SSLContext getSSLContext() {
+        if (mSSLContext == null) {
+            try {
+                SSLContext sc = SSLContext.getInstance("TLS");
+                sc.init(null, MemorizingTrustManager.getInstanceList(mContext), new SecureRandom());
+                sc.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+                sc.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT_S);
+                mSSLContext = new TimedSSLContext(sc);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            } catch (KeyManagementException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return mSSLContext;
+    }
+
+    /**
+     * Resolves the server addresses in the background, does nothing if a lookup is running
+     * @param host the server host, or null to use the SRV records of the service
+     * @param serviceName the XMPP domain
+     */
+    public void prefetch(final String host, final String serviceName) {
+        if (!mPrefetching.compareAndSet(false, true)) {
+            return;
+        }
+        mResolver.execute(new Runnable() {
+            public void run() {
+                try {
+                    List<String> hosts = new ArrayList<String>();
+                    if (host != null) {
+                        hosts.add(host);
+                    } else {
+                        for (HostAddress address : DNSUtil.resolveXMPPDomain(serviceName)) {
+                            hosts.add(address.getFQDN());
+                        }
+                    }
+                    for (String h : hosts) {
+                        if (getCachedAddresses(h) == null) {
+                            mAddresses.put(h, new CachedAddresses(InetAddress.getAllByName(h)));
+                        }
+                    }
+                    Log.d("XmppConnectionWarmup resolved " + hosts);
+                } catch (UnknownHostException e) {
+                    Log.d("XmppConnectionWarmup failed to resolve " + e.getMessage());
+                } catch (Exception e) {
+                    Log.w("XmppConnectionWarmup failed to resolve the XMPP server", e);
+                } finally {
+                    mPrefetching.set(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the addresses resolved by prefetch() or null if they are unknown or expired
+     */
+    public InetAddress[] getCachedAddresses(String host) {
+        CachedAddresses cached = mAddresses.get(host);
+        if (cached == null) {
+            return null;
+        }
+        if (cached.mExpiry < System.currentTimeMillis()) {
+            mAddresses.remove(host);
+            return null;
+        }
+        return cached.mAddresses;
+    }
+
+    /**
+     * Forgets the resolved addresses, e.g. when the network has changed
+     */
+    public void clearAddresses() {
+        mAddresses.clear();
+    }
+}
@@ -1,16 +1,69 @@
 package com.googlecode.gtalksms.xmpp;
 
 import com.googlecode.gtalksms.XmppManager;
+import com.googlecode.gtalksms.tools.Metrics;
 
+import org.jivesoftware.smack.PacketInterceptor;
+import org.jivesoftware.smack.PacketListener;
 import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.filter.MessageTypeFilter;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.PacketExtension;
+import org.jivesoftware.smack.util.StringUtils;
 import org.jivesoftware.smackx.receipts.DeliveryReceiptManager;
+import org.jivesoftware.smackx.receipts.ReceiptReceivedListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Created by Florent on 14/11/13.
+ *
+ * Delivery receipts (XEP-0184) in both directions.
+ * The outgoing chat messages request a receipt, the ones sent to a contact known to answer them
+ * are kept until the receipt comes back so they can be sent again after a connection drop.
+ *
+ * The receipts come from the client of the contact, not from the server: a message without a receipt
+ * may have been delivered to a client that doesn't answer them. To limit the duplicates, only the
+ * messages to the contacts that both request receipts and have already sent one are kept.
  */
 public class XmppDeliveryReceipts {
+    private static final int MAX_UNACKED = 200;
+
     private static XmppDeliveryReceipts sXmppDeliveryReceipts;
 
+    private static class Unacked {
+        final Message mMessage;
+        final long mTime;
+
+        Unacked(Message message) {
+            mMessage = message;
+            mTime = System.currentTimeMillis();
+        }
+    }
+
+    // bare JIDs that have requested a receipt
+    private final Set<String> mReceiptRequesters = Collections.synchronizedSet(new HashSet<String>());
+    // bare JIDs that have sent a receipt
+    private final Set<String> mReceiptSenders = Collections.synchronizedSet(new HashSet<String>());
+    // sent messages waiting for their receipt, by packet ID, oldest first
+    private final LinkedHashMap<String, Unacked> mUnacked = new LinkedHashMap<String, Unacked>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Unacked> eldest) {
+            return size() > MAX_UNACKED;
+        }
+    };
+    private final Metrics.Counter mAckedCount = Metrics.counter("xmpp.acked");
+
     public static XmppDeliveryReceipts getInstance() {
         if (sXmppDeliveryReceipts == null) {
             sXmppDeliveryReceipts = new XmppDeliveryReceipts();
@@ -18,13 +71,97 @@ public class XmppDeliveryReceipts {
         return sXmppDeliveryReceipts;
     }
 
+    private XmppDeliveryReceipts() {
+        Metrics.registerGauge("xmpp.unacked", new Metrics.Gauge() {
+            public long getValue() {
+                synchronized (mUnacked) {
+                    return mUnacked.size();
+                }
+            }
+        });
+    }
+
     public void registerListener(XmppManager xmppMgr) {
         XmppConnectionChangeListener listener = new XmppConnectionChangeListener() {
             public void newConnection(XMPPConnection connection) {
                 final DeliveryReceiptManager drm = DeliveryReceiptManager.getInstanceFor(connection);
                 drm.enableAutoReceipts();
+                drm.addReceiptReceivedListener(new ReceiptReceivedListener() {
+                    public void onReceiptReceived(String fromJid, String toJid, String receiptId) {
+                        onReceipt(fromJid, receiptId);
+                    }
+                });
+                connection.addPacketListener(new PacketListener() {
+                    public void processPacket(Packet packet) {
+                        if (DeliveryReceiptManager.hasDeliveryReceiptRequest(packet)) {
+                            mReceiptRequesters.add(StringUtils.parseBareAddress(packet.getFrom()));
+                        }
+                    }
+                }, new MessageTypeFilter(Message.Type.chat));
+                connection.addPacketInterceptor(new PacketInterceptor() {
+                    public void interceptPacket(Packet packet) {
+                        onSend((Message) packet);
+                    }
+                }, new MessageTypeFilter(Message.Type.chat));
             }
         };
         xmppMgr.registerConnectionChangeListener(listener);
     }
-}
\ No newline at end of file
+
+    private void onSend(Message msg) {
+        if (msg.getBody() == null || msg.getTo() == null) {
+            return;
+        }
+        if (!DeliveryReceiptManager.hasDeliveryReceiptRequest(msg)) {
+            DeliveryReceiptManager.addDeliveryReceiptRequest(msg);
+        }
+        String to = StringUtils.parseBareAddress(msg.getTo());
+        if (mReceiptRequesters.contains(to) && mReceiptSenders.contains(to)) {
+            // the message object can be sent again to another recipient, keep a copy
+            synchronized (mUnacked) {
+                mUnacked.put(msg.getPacketID(), new Unacked(copy(msg)));
+            }
+        }
+    }
+
+    private void onReceipt(String fromJid, String receiptId) {
+        mReceiptSenders.add(StringUtils.parseBareAddress(fromJid));
+        synchronized (mUnacked) {
+            if (mUnacked.remove(receiptId) != null) {
+                mAckedCount.inc();
+            }
+        }
+    }
+
+    /**
+     * Returns and forgets the messages still waiting for their receipt.
+     * Older messages have most likely reached the server and wait for the recipient, they are dropped.
+     *
+     * @param windowMs only the messages sent during this last period are returned
+     */
+    public List<Message> takeUnacked(long windowMs) {
+        long minTime = System.currentTimeMillis() - windowMs;
+        List<Message> res = new ArrayList<Message>();
+        synchronized (mUnacked) {
+            for (Iterator<Unacked> it = mUnacked.values().iterator(); it.hasNext(); ) {
+                Unacked u = it.next();
+                if (u.mTime >= minTime) {
+                    res.add(u.mMessage);
+                }
+                it.remove();
+            }
+        }
+        return res;
+    }
+
+    private static Message copy(Message msg) {
+        Message res = new Message(msg.getTo(), msg.getType());
+        res.setPacketID(msg.getPacketID());
+        res.setBody(msg.getBody());
+        res.setThread(msg.getThread());
+        for (PacketExtension extension : msg.getExtensions()) {
+            res.addExtension(extension);
+        }
+        return res;
+    }
+}
@@ -1,13 +1,13 @@
 package com.googlecode.gtalksms.xmpp;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 import org.jivesoftware.smack.XMPPConnection;
-import org.jivesoftware.smackx.filetransfer.FileTransfer;
-import org.jivesoftware.smackx.filetransfer.FileTransferListener;
-import org.jivesoftware.smackx.filetransfer.FileTransferManager;
-import org.jivesoftware.smackx.filetransfer.FileTransferRequest;
-import org.jivesoftware.smackx.filetransfer.IncomingFileTransfer;
+import org.jivesoftware.smack.util.StringUtils;
 import org.jivesoftware.smackx.filetransfer.FileTransfer.Status;
 
 import android.app.DownloadManager;
@@ -19,20 +19,34 @@ import android.webkit.MimeTypeMap;
 import com.googlecode.gtalksms.R;
 import com.googlecode.gtalksms.SettingsManager;
 import com.googlecode.gtalksms.XmppManager;
+import com.googlecode.gtalksms.databases.TransferHelper;
 import com.googlecode.gtalksms.tools.Log;
 import com.googlecode.gtalksms.tools.Tools;
 
-public class XmppFileManager implements FileTransferListener {
-    private static final int MAX_CYCLES = 30;
+/**
+ * Receives the files sent by the notified addresses and sends the files requested by the "send" command.
+ * The transfers run on the FileTransferEngine, each one answers to its own peer.
+ *
+ * The offers are negotiated by RangedFileTransfer, with the range of XEP-0096:
+ * a file is received in a partial file with a manifest of the SHA-256 of its chunks, renamed once completed.
+ * When the sender offers it again, the chunks on disk are checked and the sender continues after the valid ones.
+ * The sends interrupted after their start are kept in the database by InterruptedSends and offered again
+ * on the next connection, the recipient tells where to continue.
+ */
+public class XmppFileManager implements RangedFileTransfer.OfferListener {
     private static final String DEFAULT_MIME_TYPE = "application/octet-stream";
     private static final String APP_DIR = Tools.APP_NAME;
+    private static final String PARTIAL_SUFFIX = ".part";
     
     private static XmppFileManager xmppFileManager;
     
     private final SettingsManager mSettings;
-    private XMPPConnection mConnection;
-    private FileTransferManager mFileTransferManager = null;
-    private String mAnswerTo;
+    private volatile XMPPConnection mConnection;
+    private volatile RangedFileTransfer mFileTransfer;
+    private final FileTransferEngine mEngine = new FileTransferEngine();
+    private final TransferHelper mTransfers;
+    // the sends interrupted after their start, sent again on the next connection
+    private final InterruptedSends mInterrupted;
     private final File mExternalFilesDir;
     private final File mLandingDir;
     private final Context mCtx;
@@ -40,6 +54,8 @@ public class XmppFileManager implements FileTransferListener {
     private XmppFileManager(Context context) {
         mSettings = SettingsManager.getSettingsManager(context);
         mCtx = context;
+        mTransfers = TransferHelper.getTransferHelper(context);
+        mInterrupted = new InterruptedSends(mTransfers);
         if (Build.VERSION.SDK_INT >= 8) {  // API Level >= 8 check
             mExternalFilesDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
         } else {
@@ -55,8 +71,8 @@ public class XmppFileManager implements FileTransferListener {
         XmppConnectionChangeListener listener = new XmppConnectionChangeListener() {
             public void newConnection(XMPPConnection connection) {
                 mConnection = connection;
-                mFileTransferManager = new FileTransferManager(mConnection);
-                mFileTransferManager.addFileTransferListener(XmppFileManager.this);
+                mFileTransfer = new RangedFileTransfer(connection, XmppFileManager.this);
+                resendInterruptedFiles();
             }            
         };
         xmppMgr.registerConnectionChangeListener(listener);
@@ -70,105 +86,234 @@ public class XmppFileManager implements FileTransferListener {
     }
    
     /**
-     * returns the FileTransferManager for the current connection
-     * 
-     * @return
+     * Called by the Smack listener thread, the transfer runs on the engine so the packets are still processed
      */
-    public FileTransferManager getFileTransferManager() {
-        return mFileTransferManager;
-    }
-
-    @Override
-    public void fileTransferRequest(FileTransferRequest request) {
-        File saveTo;
+    public void onOffer(final RangedFileTransfer.Offer offer) {
+        final String requestor = offer.getFrom();
         try {
-            mAnswerTo = request.getRequestor();  // set answerTo for replies and send()
-            if (!mSettings.cameFromNotifiedAddress(mAnswerTo)) {
-                send(R.string.chat_file_transfer_file_rejected, mAnswerTo);
-                request.reject();
+            if (!mSettings.cameFromNotifiedAddress(requestor)) {
+                send(requestor, R.string.chat_file_transfer_file_rejected, requestor);
+                offer.reject();
                 return;
             } else if (!Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
-                send(R.string.chat_file_transfer_file_not_mount);
-                request.reject();
+                send(requestor, R.string.chat_file_transfer_file_not_mount);
+                offer.reject();
                 return;
             } else if (!mLandingDir.isDirectory()) {
-                send(R.string.chat_file_transfer_not_dir, mLandingDir.getAbsolutePath());
-                request.reject();
+                send(requestor, R.string.chat_file_transfer_not_dir, mLandingDir.getAbsolutePath());
+                offer.reject();
+                return;
+            } else if (offer.getName() == null) {
+                offer.reject();
                 return;
             }
 
-            saveTo = new File(mLandingDir, request.getFileName());
+            // the name of the offer, without its directories
+            final File saveTo = new File(mLandingDir, new File(offer.getName()).getName());
             if (saveTo.exists()) {
-                send(R.string.chat_file_transfer_file_already_exists, saveTo.getAbsolutePath());
-                request.reject();
+                send(requestor, R.string.chat_file_transfer_file_already_exists, saveTo.getAbsolutePath());
+                offer.reject();
                 return;
             }
 
-            IncomingFileTransfer transfer = request.accept();
-            send(R.string.chat_file_transfer_file, saveTo.getName(), request.getFileSize() / 1024 + " KiB");
+            final File partial = new File(mLandingDir, saveTo.getName() + PARTIAL_SUFFIX);
+            final long size = offer.getSize();
+            // the same id when the sender offers the file again, from any of its resources
+            final String id = TransferManifest.getId(StringUtils.parseBareAddress(requestor), saveTo.getName(), size, false);
+            send(requestor, R.string.chat_file_transfer_file, saveTo.getName(), size / 1024 + " KiB");
 
-            transfer.recieveFile(saveTo);
-            send(R.string.chat_file_transfer_file, saveTo.getName(), transfer.getStatus());
-            double percents;
-            
-            // We allow 30s before that status go to in progress
-            int currentCycle = 0; 
-            while (!transfer.isDone()) {
-                if (transfer.getStatus() == Status.in_progress) {
-                    percents = ((int) (transfer.getProgress() * 10000)) / 100.0;
-                    // Maybe we could decouple this from the debugLog setting
-                    // But for now it's OK so
-                    if (mSettings.debugLog) {
-                        send(R.string.chat_file_transfer_file, saveTo.getName(), percents + "%");
+            FileTransferEngine.ResumableStreams streams = new FileTransferEngine.ResumableStreams() {
+                private ChunkedFileOutputStream mOut;
+
+                public InputStream openInput() throws Exception {
+                    // continues after the valid chunks of the partial file if the sender can start at an offset
+                    mOut = ChunkedFileOutputStream.open(partial, id, requestor, size, TransferManifest.DEFAULT_CHUNK_SIZE,
+                            offer.isRanged(), mTransfers);
+                    try {
+                        return offer.accept(mOut.getOffset(), RangedFileTransfer.DEFAULT_BYTESTREAM_TIMEOUT_MS);
+                    } catch (Exception e) {
+                        mOut.close();
+                        throw e;
+                    }
+                }
+
+                public OutputStream openOutput() throws Exception {
+                    return mOut;
+                }
+
+                public long getOffset() {
+                    return mOut.getOffset();
+                }
+            };
+            mEngine.submit(new FileTransferEngine.Task(requestor, saveTo.getName(), size, streams, new TransferListener() {
+                public void onCompleted(FileTransferEngine.Task task) {
+                    if (!partial.renameTo(saveTo)) {
+                        send(requestor, R.string.chat_file_transfer_error, "cannot rename " + partial.getAbsolutePath());
+                        return;
                     }
-                    if (percents == 0.0) {
-                        currentCycle++;
+                    mTransfers.delete(id);
+                    send(requestor, R.string.chat_file_transfer_file_complete, saveTo.getAbsolutePath());
+                    // downloadManager only works from API 12 or higher
+                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
+                        DownloadManager dm = (DownloadManager) mCtx.getSystemService(Context.DOWNLOAD_SERVICE);
+                        dm.addCompletedDownload(saveTo.getName(), "Received by " + Tools.APP_NAME + " from " + requestor, false, guessMimeType(saveTo), mLandingDir.getAbsolutePath(), saveTo.length(), true);
                     }
-                } else if (transfer.getStatus() == Status.error) {
-                    send(returnAndLogError(transfer));
-                    if (saveTo.exists()) {
-                        saveTo.delete();
+                }
+
+                public void onFailed(FileTransferEngine.Task task, Exception e) {
+                    super.onFailed(task, e);
+                    // the partial file is kept for the next offer of the file, unless the sender can't resume
+                    if (!offer.isRanged()) {
+                        mTransfers.delete(id);
+                        if (partial.exists() && !partial.delete()) {
+                            Log.w("Cannot delete the partial file " + partial.getAbsolutePath());
+                        }
                     }
-                    return;
-                // If we are not in progress state, increase the cycles count;
-                } else {
-                    currentCycle++;
                 }
-                if (currentCycle > MAX_CYCLES) {
-                    break;
+            }));
+        } catch (Exception ex) {
+            Log.e("Cannot receive the file because an error occurred during the process.", ex);
+            send(requestor, R.string.chat_file_transfer_error, ex.getMessage());
+        }
+    }
+
+    /**
+     * Sends the file, the progress and the result are reported to the recipient
+     * @param file the file to send
+     * @param to the full JID of the recipient
+     */
+    public void sendFile(final File file, final String to) {
+        final RangedFileTransfer fileTransfer = mFileTransfer;
+        if (fileTransfer == null) {
+            send(to, R.string.chat_file_transfer_not_connected);
+            return;
+        }
+        final XMPPConnection connection = mConnection;
+        final TransferManifest manifest = InterruptedSends.newManifest(file, to);
+        final long size = manifest.getSize();
+
+        FileTransferEngine.ResumableStreams streams = new FileTransferEngine.ResumableStreams() {
+            private RangedFileTransfer.Accepted mAccepted;
+
+            public InputStream openInput() throws Exception {
+                // returns once the recipient has accepted the file and the bytestream is negotiated
+                mAccepted = fileTransfer.offer(to, file.getName(), size, mCtx.getString(R.string.chat_file_sending, file.getAbsolutePath(), to),
+                        RangedFileTransfer.DEFAULT_RESPONSE_TIMEOUT_MS);
+                FileInputStream in = null;
+                try {
+                    in = new FileInputStream(file);
+                    // the recipient already has the bytes before the offset
+                    in.getChannel().position(mAccepted.getOffset());
+                    return in;
+                } catch (IOException e) {
+                    if (in != null) {
+                        in.close();
+                    }
+                    mAccepted.getOutputStream().close();
+                    throw e;
+                }
+            }
+
+            public OutputStream openOutput() throws Exception {
+                return mAccepted.getOutputStream();
+            }
+
+            public long getOffset() {
+                return mAccepted.getOffset();
+            }
+        };
+        send(to, R.string.chat_file_transfer_started, file.getAbsolutePath(), size / 1024);
+        mInterrupted.submitted(manifest);
+        mEngine.submit(new FileTransferEngine.Task(to, file.getName(), size, streams, new TransferListener() {
+            public void onStarted(FileTransferEngine.Task task) {
+                // the recipient has accepted the file, from now it is sent again if interrupted
+                mInterrupted.started(manifest);
+                super.onStarted(task);
+            }
+
+            public void onCompleted(FileTransferEngine.Task task) {
+                mInterrupted.completed(manifest);
+                send(to, R.string.chat_file_transfer_file, task.getName(), Status.complete);
+            }
+
+            public void onFailed(FileTransferEngine.Task task, Exception e) {
+                super.onFailed(task, e);
+                // a refused file or an unreachable peer is not sent again
+                mInterrupted.failed(manifest, isStarted());
+                if (isStarted()) {
+                    send(to, R.string.chat_file_transfer_interrupted, task.getName());
+                    XMPPConnection current = mConnection;
+                    if (current != connection && current != null && current.isConnected()) {
+                        // the new connection came while the transfer was failing
+                        resendInterruptedFiles();
+                    }
                 }
-                Thread.sleep(1000);
             }
-            if (transfer.getStatus().equals(Status.complete)) {
-                send(R.string.chat_file_transfer_file_complete, saveTo.getAbsolutePath());
-               // downloadManager only works from API 12 or higher
-               if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
-                   DownloadManager dm = (DownloadManager) mCtx.getSystemService(Context.DOWNLOAD_SERVICE);
-                   dm.addCompletedDownload(saveTo.getName(), "Received by " + Tools.APP_NAME + " from " + mAnswerTo, false, guessMimeType(saveTo), mLandingDir.getAbsolutePath(), saveTo.length(), true);
-               }
+        }));
+    }
+
+    /**
+     * Sends again the files whose transfer was interrupted by the loss of the previous connection
+     * or by the end of the service, the ones still in the engine are sent again once they have failed
+     */
+    private void resendInterruptedFiles() {
+        for (TransferManifest manifest : mInterrupted.take()) {
+            Log.i("Sending again " + manifest.getPath() + " to " + manifest.getPeer());
+            sendFile(new File(manifest.getPath()), manifest.getPeer());
+        }
+    }
+
+    /**
+     * Reports the events of a transfer to its peer
+     */
+    private abstract class TransferListener implements FileTransferEngine.Listener {
+        private volatile boolean mStarted;
+
+        /**
+         * @return true if the streams were open, the failure is an interruption
+         */
+        boolean isStarted() {
+            return mStarted;
+        }
+
+        public void onStarted(FileTransferEngine.Task task) {
+            mStarted = true;
+            if (task.getTransferred() > 0) {
+                send(task.getPeer(), R.string.chat_file_transfer_resumed, task.getName(), task.getTransferred() / 1024);
             } else {
-                send(returnAndLogError(transfer));
+                send(task.getPeer(), R.string.chat_file_transfer_file, task.getName(), Status.in_progress);
+            }
+        }
+
+        public void onProgress(FileTransferEngine.Task task) {
+            // Maybe we could decouple this from the debugLog setting
+            // But for now it's OK so
+            if (mSettings.debugLog) {
+                send(task.getPeer(), R.string.chat_file_transfer_file, task.getName(), task.getPercent() + "%");
+            }
+        }
+
+        public void onFailed(FileTransferEngine.Task task, Exception e) {
+            if (RangedFileTransfer.isRefused(e)) {
+                send(task.getPeer(), R.string.chat_file_transfer_refused);
+            } else {
+                Tools.send(returnAndLogError(e, !mStarted), task.getPeer(), mCtx);
             }
-        } catch (Exception ex) {
-            Log.e("Cannot send the file because an error occurred during the process.", ex);
-            send(R.string.chat_file_transfer_error, ex.getMessage());
         }
     }
 
-    public XmppMsg returnAndLogError(FileTransfer transfer) {
+    /**
+     * @param e the exception of the transfer, already logged by the engine
+     * @param negotiating true if the transfer failed before the streams were open
+     */
+    public XmppMsg returnAndLogError(Exception e, boolean negotiating) {
         XmppMsg message = new XmppMsg();
         message.appendBoldLine(mCtx.getString(R.string.chat_file_transfer_error_msg));
-        if (transfer.getError() != null) {
-            message.appendLine(transfer.getError().getMessage());
-            Log.w(transfer.getError().getMessage());
+        if (e != null && e.getMessage() != null) {
+            message.appendLine(e.getMessage());
         }
-        if (transfer.getException() != null) {
-            message.appendLine(transfer.getException().getMessage());
-            Log.w(transfer.getException().getMessage(), transfer.getException());
-        }
-        if (transfer.getStatus() == Status.negotiating_stream) {
+        if (negotiating) {
             message.appendLine(mCtx.getString(R.string.chat_file_transfer_error_stream));
-            Log.w("Negotiating stream failed");
         }
         return message;
     }
@@ -177,16 +322,8 @@ public class XmppFileManager implements FileTransferListener {
         return mLandingDir;
     }   
     
-    private void send(String msg) {
-        Tools.send(msg, mAnswerTo, mCtx);
-    }
-    
-    private void send(XmppMsg msg) {
-        Tools.send(msg, mAnswerTo, mCtx);
-    }
-    
-    private void send(int id, Object... args) {
-        send(mCtx.getString(id, args));
+    private void send(String to, int id, Object... args) {
+        Tools.send(mCtx.getString(id, args), to, mCtx);
     }
     
     private static String guessMimeType(File f) {       
@@ -1,5 +1,8 @@
 package com.googlecode.gtalksms.xmpp;
 
+import java.util.Collections;
+import java.util.Map;
+
 import com.googlecode.gtalksms.tools.Log;
 
 public class XmppFriend {
@@ -15,12 +18,19 @@ public class XmppFriend {
     public final String mName;
     public final String mStatus;
     public final int mState;
+    // the presence of each resource by full JID
+    public final Map<String, XmppFriend> mLocations;
 
     public XmppFriend(String userID, String username, String retrieveStatus, int retrieveState) {
+        this(userID, username, retrieveStatus, retrieveState, Collections.<String, XmppFriend>emptyMap());
+    }
+
+    public XmppFriend(String userID, String username, String retrieveStatus, int retrieveState, Map<String, XmppFriend> locations) {
         mId = userID;
         mName = username;
         mStatus = retrieveStatus;
         mState = retrieveState;
+        mLocations = Collections.unmodifiableMap(locations);
     }
     
     public static String stateToString(int state) {
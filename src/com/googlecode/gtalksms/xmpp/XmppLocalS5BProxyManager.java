@@ -1,6 +1,5 @@
 package com.googlecode.gtalksms.xmpp;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import org.jivesoftware.smack.XMPPConnection;
@@ -8,22 +7,23 @@ import org.jivesoftware.smackx.bytestreams.socks5.Socks5BytestreamManager;
 import org.jivesoftware.smackx.bytestreams.socks5.Socks5Proxy;
 
 import com.googlecode.gtalksms.XmppManager;
-import com.googlecode.gtalksms.tools.Tools;
+import com.googlecode.gtalksms.tools.Log;
 
 import android.content.Context;
-import android.net.wifi.WifiInfo;
-import android.net.wifi.WifiManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 
 public class XmppLocalS5BProxyManager {
     
     private static XmppLocalS5BProxyManager sS5BManager;
     
-    private final WifiManager mWifiManager;
+    private final ConnectivityManager mConnectivityManager;
     private final Socks5Proxy mProxy;
+    private final LocalAddressDiscovery mDiscovery = new LocalAddressDiscovery(LocalAddressDiscovery.SYSTEM_SOURCE);
     
     
     private XmppLocalS5BProxyManager(Context ctx) {
-        mWifiManager = (WifiManager) ctx.getSystemService(Context.WIFI_SERVICE);
+        mConnectivityManager = (ConnectivityManager) ctx.getSystemService(Context.CONNECTIVITY_SERVICE);
         mProxy = Socks5Proxy.getSocks5Proxy();
     }
     
@@ -34,10 +34,20 @@ public class XmppLocalS5BProxyManager {
         return sS5BManager; 
     }
 
+    /**
+     * Called by NetworkConnectivityReceiver, the local addresses are discovered again on the next connection
+     */
+    public static void invalidateLocalAddresses() {
+        XmppLocalS5BProxyManager manager = sS5BManager;
+        if (manager != null) {
+            manager.mDiscovery.invalidate();
+        }
+    }
+
     public void registerListener(XmppManager xmppMgr) {
         XmppConnectionChangeListener listener = new XmppConnectionChangeListener() {
             public void newConnection(XMPPConnection connection) {
-                maybeUpdateLocalIP();
+                updateLocalAddresses();
                 disableStreamHostPrioritization(connection);
             }            
         };
@@ -50,22 +60,21 @@ public class XmppLocalS5BProxyManager {
         s5bsm.setTargetResponseTimeout(30000);
     }
     
-    private void maybeUpdateLocalIP() {
-        WifiInfo info = mWifiManager.getConnectionInfo();
-        List<String> addresses = new ArrayList<String>();
-
-        if (info != null) {
-            // There is an active Wifi connection
-            String ip = Tools.ipIntToString(info.getIpAddress());
-            // Sometimes "0.0.0.0" gets returned
-            if (!ip.equals("0.0.0.0")) {
-                addresses.add(ip);
-            }
-
-        } 
-        // set an ip in case there is a Wifi Connection
-        // otherwise addresses will be empty and local S5B proxy
-        // will not be used
+    private void updateLocalAddresses() {
+        List<String> addresses = mDiscovery.getAddresses(getConnectivityState());
+        Log.d("Local SOCKS5 proxy addresses: " + addresses);
+        // without address the local S5B proxy will not be used
         mProxy.replaceLocalAddresses(addresses);
     }
+
+    /**
+     * @return the key of the cached addresses: the active network and its state
+     */
+    private String getConnectivityState() {
+        NetworkInfo network = mConnectivityManager == null ? null : mConnectivityManager.getActiveNetworkInfo();
+        if (network == null) {
+            return "none";
+        }
+        return network.getTypeName() + "/" + network.getSubtypeName() + "/" + network.getState();
+    }
 }
@@ -22,6 +22,11 @@ public class XmppMsg implements Parcelable {
     private XmppFont mMainFont;
     private final StringBuilder mMessage = new StringBuilder();
     private final ArrayList<XmppFont> mFonts = new ArrayList<XmppFont>();
+
+    // Rendered forms, computed on demand and reset by every mutation
+    private String mTxt;
+    private String mFmtTxt;
+    private XHTMLText mXHTMLText;
     
     public XmppMsg() {
         mMainFont = DEFAULT_FONT;
@@ -45,6 +50,7 @@ public class XmppMsg implements Parcelable {
     }
     
     public void clear() {
+        invalidate();
         mMainFont = DEFAULT_FONT;
         mMessage.setLength(0);
         mFonts.clear();
@@ -59,11 +65,13 @@ public class XmppMsg implements Parcelable {
     }
     
     public void setFont(XmppFont font) {
+        invalidate();
         mMessage.append(FONT_BEGIN);
         mFonts.add(font);
     }
 
     public void append(String msg) {
+        invalidate();
         mMessage.append(msg);
     }
     
@@ -72,6 +80,7 @@ public class XmppMsg implements Parcelable {
     }
 
     public void appendLine(String msg) {
+        invalidate();
         mMessage.append(msg);
         newLine();
     }
@@ -81,32 +90,39 @@ public class XmppMsg implements Parcelable {
     }
 
     public void insertLineBegin(String msg) {
+        invalidate();
         mMessage.insert(0, msg + Tools.LineSep);
     }
 
     public void appendBold(String msg) {
+        invalidate();
         mMessage.append(makeBold(msg));
     }
 
     public void appendBoldItalic(String msg) {
+        invalidate();
         mMessage.append(makeBold(makeItalic(msg)));
     }
     
     public void appendBoldLine(String msg) {
+        invalidate();
         mMessage.append(makeBold(msg));
         newLine();
     }
     
     public void appendItalic(String msg) {
+        invalidate();
         mMessage.append(makeItalic(msg));
     }
     
     public void appendItalicLine(String msg) {
+        invalidate();
         mMessage.append(makeItalic(msg));
         newLine();
     }
     
     public void newLine() {
+        invalidate();
         mMessage.append(Tools.LineSep);
     }
     
@@ -123,50 +139,144 @@ public class XmppMsg implements Parcelable {
     }
     
     public XmppMsg append(XmppMsg input) {
+        invalidate();
         mMessage.append(input.mMessage);
         mFonts.addAll(input.mFonts);
         return this;
     }
+
+    /**
+     * @return a copy of the message, to be queued while this one is cleared and reused
+     */
+    public XmppMsg copy() {
+        return new XmppMsg(mMainFont).append(this);
+    }
+
+    public boolean hasSameFont(XmppMsg other) {
+        return mMainFont == other.mMainFont;
+    }
+
+    public int length() {
+        return mMessage.length();
+    }
+
+    public boolean endsWithNewLine() {
+        return mMessage.length() >= Tools.LineSep.length()
+                && mMessage.lastIndexOf(Tools.LineSep) == mMessage.length() - Tools.LineSep.length();
+    }
     
     public String generateTxt() {
-        String message = removeLastNewline(mMessage.toString());
-        return message
-                    .replaceAll(FONT_BEGIN, "")
-                    .replaceAll(BOLD_BEGIN, "")
-                    .replaceAll(BOLD_END, "")
-                    .replaceAll(ITALIC_BEGIN, "")
-                    .replaceAll(ITALIC_END, "");
+        if (mTxt == null) {
+            mTxt = generateTxt(false);
+        }
+        return mTxt;
     }
 
     public String generateFmtTxt() {
-        String message = removeLastNewline(mMessage.toString());
-        return message
-                    .replaceAll(FONT_BEGIN, "")
-                    .replaceAll(BOLD_BEGIN, " *")
-                    .replaceAll(BOLD_END, "* ")
-                    .replaceAll(ITALIC_BEGIN, " _")
-                    .replaceAll(ITALIC_END, "_ ");
+        if (mFmtTxt == null) {
+            mFmtTxt = generateTxt(true);
+        }
+        return mFmtTxt;
     }
     
     public XHTMLText generateXHTMLText() {
-        int pos;
-        String message = mMessage.toString();
-        message = removeLastNewline(message);
-        StringBuilder m = new StringBuilder(message); 
-        ArrayList<XmppFont> fonts = new ArrayList<XmppFont>(mFonts);
+        if (mXHTMLText == null) {
+            mXHTMLText = generateXHTML();
+        }
+        return mXHTMLText;
+    }
+
+    private void invalidate() {
+        mTxt = null;
+        mFmtTxt = null;
+        mXHTMLText = null;
+    }
+
+    /**
+     * Replaces the internal format tags in a single pass over the message,
+     * either by nothing or by their plain text equivalent (*bold* and _italic_)
+     */
+    private String generateTxt(boolean formatted) {
+        String message = removeLastNewline(mMessage.toString());
+        int len = message.length();
+        StringBuilder res = new StringBuilder(len);
+        int start = 0;
+        int i = 0;
+        while (i < len) {
+            String tag = message.charAt(i) == '#' ? getTagAt(message, i) : null;
+            if (tag == null) {
+                ++i;
+                continue;
+            }
+            res.append(message, start, i);
+            if (formatted) {
+                if (tag == BOLD_BEGIN) {
+                    res.append(" *");
+                } else if (tag == BOLD_END) {
+                    res.append("* ");
+                } else if (tag == ITALIC_BEGIN) {
+                    res.append(" _");
+                } else if (tag == ITALIC_END) {
+                    res.append("_ ");
+                }
+            }
+            i += tag.length();
+            start = i;
+        }
+        res.append(message, start, len);
+        return res.toString();
+    }
+
+    private XHTMLText generateXHTML() {
+        String message = removeLastNewline(mMessage.toString());
+        int fontIndex = 0;
         
         XHTMLText x = new XHTMLText(null, null);
         x.appendOpenParagraphTag(mMainFont.toString()); // open a paragraph with default font. When null, clients will fall back to their default font
         x.appendOpenSpanTag("");  // needed because we close span on fontbegin
-        while((pos = getTagPos(m)) != -1) {
-            procesTagAt(pos, x, m, fonts);
+
+        int len = message.length();
+        int start = 0;
+        int i = 0;
+        while (i < len) {
+            char c = message.charAt(i);
+            String tag = c == '\n' ? "\n" : c == '#' ? getTagAt(message, i) : null;
+            if (tag == null) {
+                ++i;
+                continue;
+            }
+            if (start < i) {
+                x.append(message.substring(start, i));
+            }
+            if (tag == BOLD_BEGIN) {
+                x.appendOpenSpanTag("font-weight:bold");
+            } else if (tag == BOLD_END) {
+                x.appendCloseSpanTag();
+            } else if (tag == ITALIC_BEGIN) {
+                x.appendOpenEmTag();
+            } else if (tag == ITALIC_END) {
+                x.appendCloseEmTag();
+            } else if (tag == FONT_BEGIN) {
+                //there is no font end tag, so just treat every fontbegin as the end of the previous font
+                x.appendCloseSpanTag();
+                if (fontIndex < mFonts.size()) {
+                    x.appendOpenSpanTag(mFonts.get(fontIndex++).toString());
+                } else {
+                    Log.e("XmppMsg.generateXhtml: Font tags doesn't match");
+                    x.appendOpenSpanTag("font:null");   
+                }
+            } else {
+                x.appendBrTag();
+            }
+            i += tag.length();
+            start = i;
+        }
+        if (start < len) {
+            x.append(message.substring(start));
         }
-        if(m.length() != 0) 
-            x.append(m.toString());
         x.appendCloseSpanTag();
         x.appendCloseParagraphTag();
         return x;
-        
     }
     
     public String toString() {
@@ -183,59 +293,25 @@ public class XmppMsg implements Parcelable {
     }
     
     /**
-     * Returns the smallest indexposition of a internal string format tag
+     * Returns the internal format tag starting at the given position
      * @param msg
-     * @return smallest indexposition, -1 if no more tags were found
+     * @param pos
+     * @return the tag constant (to be compared by reference), null if there is no tag at this position
      */
-    private static int getTagPos(StringBuilder msg) {
-        int newline = msg.indexOf("\n");
-        int boldbeg = msg.indexOf(BOLD_BEGIN);
-        int boldend = msg.indexOf(BOLD_END);
-        int italbeg = msg.indexOf(ITALIC_BEGIN);
-        int italend = msg.indexOf(ITALIC_END);
-        int fontbeg = msg.indexOf(FONT_BEGIN);  //there is no font end tag, so just treat every fontbegin as the end of the previous font
-        
-        //if all int's are -1 we found no tag
-        if(-1 == newline && -1 == boldbeg && -1 == boldend && -1 == italbeg && -1 == italend && -1 == fontbeg) {
-            return -1;
-        } else {
-            return Tools.getMinNonNeg(newline, boldbeg, boldend, italbeg, italend, fontbeg);
+    private static String getTagAt(String msg, int pos) {
+        // All tags are "##X...##", check the discriminating char before comparing the whole tag
+        if (pos + 2 >= msg.length() || msg.charAt(pos + 1) != '#') {
+            return null;
         }
-    }
-    
-    private static void procesTagAt(int i, XHTMLText x, StringBuilder msg, ArrayList<XmppFont> fonts) {
-        String s = msg.substring(0, i);
-        msg.delete(0, i);
-        x.append(s);
-        if (msg.indexOf("\n") == 0) {                   // newline
-            x.appendBrTag();
-            msg.delete(0, "\n".length());
-        } else if (msg.indexOf(BOLD_BEGIN) == 0) {       // bold
-            x.appendOpenSpanTag("font-weight:bold");  
-//            x.appendOpenStrongTag();
-            msg.delete(0, BOLD_BEGIN.length());
-        } else if (msg.indexOf(BOLD_END) == 0) {
-            x.appendCloseSpanTag();
-//            x.appendCloseStrongTag();
-            msg.delete(0, BOLD_END.length());
-        } else if (msg.indexOf(ITALIC_BEGIN) == 0) {     // italic
-//            x.appendOpenSpanTag("font-style:italic");
-            x.appendOpenEmTag();
-            msg.delete(0, ITALIC_BEGIN.length());
-        } else if (msg.indexOf(ITALIC_END) == 0) {
-//            x.appendCloseSpanTag();
-            x.appendCloseEmTag();
-            msg.delete(0, ITALIC_END.length());
-        } else if (msg.indexOf(FONT_BEGIN) == 0) {       // font
-            x.appendCloseSpanTag();
-            if (fonts.size() > 0) {
-                XmppFont font = fonts.remove(0);
-                x.appendOpenSpanTag(font.toString());
-            } else {
-                Log.e("XmppMsg.generateXhtml: Font tags doesn't match");
-                x.appendOpenSpanTag("font:null");   
-            }
-            msg.delete(0, FONT_BEGIN.length());
+        switch (msg.charAt(pos + 2)) {
+            case 'B':
+                return msg.startsWith(BOLD_BEGIN, pos) ? BOLD_BEGIN : msg.startsWith(BOLD_END, pos) ? BOLD_END : null;
+            case 'I':
+                return msg.startsWith(ITALIC_BEGIN, pos) ? ITALIC_BEGIN : msg.startsWith(ITALIC_END, pos) ? ITALIC_END : null;
+            case 'F':
+                return msg.startsWith(FONT_BEGIN, pos) ? FONT_BEGIN : null;
+            default:
+                return null;
         }
     }
     
@@ -2,14 +2,14 @@ package com.googlecode.gtalksms.xmpp;
 
 import java.text.Normalizer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jivesoftware.smack.SmackException;
 import org.jivesoftware.smack.XMPPConnection;
@@ -32,6 +32,8 @@ import com.googlecode.gtalksms.SettingsManager;
 import com.googlecode.gtalksms.XmppManager;
 import com.googlecode.gtalksms.data.contacts.ContactsManager;
 import com.googlecode.gtalksms.databases.MUCHelper;
+import com.googlecode.gtalksms.tools.Histogram;
+import com.googlecode.gtalksms.tools.Metrics;
 import com.googlecode.gtalksms.tools.Tools;
 
 public class XmppMuc {
@@ -43,11 +45,17 @@ public class XmppMuc {
     private static final int ROOM_START_TAG_LENGTH = ROOM_START_TAG.length();
     private static final int JOIN_TIMEOUT = 5000;
     private static final long REJOIN_ROOMS_SLEEP = 1000;
+    private static final int REJOIN_THREADS = 4;
+    // for each room, from the start of its rejoin
+    private static final long REJOIN_ROOM_TIMEOUT = 15000;
+
+    private static final Histogram sRejoinTime = Metrics.histogram("muc.rejoin");
+    private static final Metrics.Counter sRejoinedCount = Metrics.counter("muc.rejoin.rooms");
+    private static final Metrics.Counter sRejoinTimeoutCount = Metrics.counter("muc.rejoin.timeout");
 
     private static XmppMuc sXmppMuc;
     
-    private final Map<String, MultiUserChat> mRooms = new HashMap<String, MultiUserChat>();
-    private final Set<Integer> mRoomNumbers = new HashSet<Integer>();
+    private final XmppMucRegistry mRooms = new XmppMucRegistry();
     private final Context mCtx;
     private final SettingsManager mSettings;
     private XMPPConnection mConnection;
@@ -69,12 +77,11 @@ public class XmppMuc {
         XmppConnectionChangeListener listener = new XmppConnectionChangeListener() {
             public void newConnection(XMPPConnection connection) {
                 mConnection = connection;
-                // clear the roomNumbers and room ArrayList as we have a new connection
-                mRoomNumbers.clear();
+                // clear the rooms as we have a new connection
                 mRooms.clear();
 
                 // async rejoin rooms, since there is a delay for every room
-                Runnable rejoinRoomsRunnable = new RejoinRoomsRunnable();
+                Runnable rejoinRoomsRunnable = new RejoinRoomsRunnable(connection);
                 Thread t = new Thread(rejoinRoomsRunnable);
                 t.setDaemon(true);
                 t.start();
@@ -152,13 +159,11 @@ public class XmppMuc {
      */
     public MultiUserChat inviteRoom(String number, String contact, int mode) throws Exception {
         MultiUserChat muc;
-        if (!mRooms.containsKey(number)) {
+        if (!mRooms.containsNumber(number)) {
             Log.i("No existing chat room with " + contact + ". Creating a new one...");
             muc = createRoom(number, contact, mode);
-            mRooms.put(number, muc);
-
         } else {
-            muc = mRooms.get(number);
+            muc = mRooms.getByNumber(number);
             Log.i("Opening existing room for " + contact);
             if (muc != null) {
                 Collection<Occupant> occupants = muc.getParticipants();
@@ -194,7 +199,7 @@ public class XmppMuc {
      * @return true if the room exists and gtalksms is in it, otherwise false
      */
     public boolean roomExists(String number) {
-        return mRooms.containsKey(number);
+        return mRooms.containsNumber(number);
     }    
     
     /**
@@ -207,13 +212,7 @@ public class XmppMuc {
      * @return the room or null
      */
     public MultiUserChat getRoomViaRoomName(String roomName) {
-        Collection<MultiUserChat> mucSet = mRooms.values();
-        for(MultiUserChat muc : mucSet) {
-            if(muc.getRoom().equals(roomName)) {
-                return muc;
-            }
-        }
-        return null;
+        return mRooms.getByJid(roomName);
     }
     
     /**
@@ -228,16 +227,34 @@ public class XmppMuc {
     private MultiUserChat createRoom(String number, String name, int mode) throws Exception {
         MultiUserChat multiUserChat;
         Integer randomInt;
+
+        do {
+            randomInt = mRndGen.nextInt();
+        } while (!mRooms.reserveRoomNumber(randomInt));
+
+        boolean registered = false;
+        try {
+            multiUserChat = createRoom(number, name, mode, randomInt);
+            registered = true;
+        } finally {
+            if (!registered) {
+                mRooms.releaseRoomNumber(randomInt);
+            }
+        }
+        return multiUserChat;
+    }
+
+    /**
+     * Creates the room of a reserved room number, released by the caller if the creation fails
+     */
+    private MultiUserChat createRoom(String number, String name, int mode, Integer randomInt) throws Exception {
+        MultiUserChat multiUserChat;
  
         // With "@conference.jabber.org" messages are sent several times...
         // Jwchat seems to work fine and is the default
         final String roomJID;
         final String subjectInviteStr;
 
-        do {
-            randomInt = mRndGen.nextInt();
-        } while (mRoomNumbers.contains(randomInt));
-
         String normalizedName = name.replaceAll(" ", "_").replaceAll("[\\W]|�", "");
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
             normalizedName = Normalizer.normalize(normalizedName, Normalizer.Form.NFD).replaceAll("[^\\p{ASCII}]", "");
@@ -364,8 +381,7 @@ public class XmppMuc {
         if (mRooms.size() > 0) {
             Integer i = getRoomInt(muc.getRoom());
             String number = mMucHelper.getNumber(muc.getRoom());
-            mRoomNumbers.remove(i);
-            mRooms.remove(number);
+            mRooms.remove(number, i);
         }
     }
 
@@ -378,8 +394,7 @@ public class XmppMuc {
     private void registerRoom(MultiUserChat muc, String number, String name, Integer randomInt, int mode) {
         MUCPacketListener chatListener = new MUCPacketListener(number, muc, name, mode, mCtx);
         muc.addMessageListener(chatListener);
-        mRoomNumbers.add(randomInt);
-        mRooms.put(number, muc);
+        mRooms.put(number, randomInt, muc);
         mMucHelper.addMUC(muc.getRoom(), number, mode);
     }
     
@@ -387,13 +402,14 @@ public class XmppMuc {
      * Returns the RoomInfo if the room exits
      * Allows an simple check for existence of a room
      * 
+     * @param connection
      * @param room
      * @return the roomInfo or null
      */
-    private RoomInfo getRoomInfo(String room) {
+    private RoomInfo getRoomInfo(XMPPConnection connection, String room) {
         RoomInfo info;
         try {
-            info = MultiUserChat.getRoomInfo(mConnection, room);
+            info = MultiUserChat.getRoomInfo(connection, room);
         } catch (Exception e) {
             return null;
         }
@@ -430,99 +446,138 @@ public class XmppMuc {
     }
     
     private class RejoinRoomsRunnable implements Runnable {
+        private final XMPPConnection mRejoinConnection;
+
+        RejoinRoomsRunnable(XMPPConnection connection) {
+            mRejoinConnection = connection;
+        }
 
         @Override
         public void run() {
             rejoinRooms();
         }
         
+        /**
+         * Rejoins the rooms in parallel, the slow part being the round-trips
+         * with the server and the sleep waiting for the owners list
+         */
         private void rejoinRooms() {
             String[][] mucDB = mMucHelper.getAllMUC();
             if (mucDB == null)  {
                 return;
             }
 
-            for (String[] aMucDB : mucDB) {
-                if (!mConnection.isAuthenticated()) {
-                    return;
-                }
+            final int roomsToRejoin = mucDB.length;
+            final AtomicInteger rejoinedRooms = new AtomicInteger();
+            long timer = Metrics.start();
+            long start = System.currentTimeMillis();
 
-                Log.i("Trying to reconnect to the room with parameters: Muc=" + aMucDB[0] + ", Number=" + aMucDB[1] + ", Mode=" + aMucDB[2]);
-
-                RoomInfo info = getRoomInfo(aMucDB[0]);
-                // if info is not null, the room exists on the server, so lets check if we can reuse it
-                if (info != null) {
-                    MultiUserChat muc = new MultiUserChat(mConnection, aMucDB[0]);
-                    int mode = Integer.parseInt(aMucDB[2]);
-                    // Hardcoded room name for shell
-                    String name = mode == MODE_SMS ? ContactsManager.getContactName(mCtx, aMucDB[1]) : "Shell " + aMucDB[1];
-
-                    try {
-                        if (info.isPasswordProtected()) {
-                            muc.join(name, mSettings.roomPassword, mDiscussionHistory, JOIN_TIMEOUT);
-                        } else {
-                            muc.join(name, null, mDiscussionHistory, JOIN_TIMEOUT);
-
-                            // Openfire needs some time to collect the owners list
-                            try {
-                                Thread.sleep(REJOIN_ROOMS_SLEEP);
-                            } catch (InterruptedException e1) {
-                                /* Ignore */
-                            }
-                            // check here if we are still owner of these room, in case somebody has taken over ownership
-                            // sadly getOwners() throws sometimes a 403 on my openfire server
-                            try {
-                                if (!affiliateCheck(muc.getOwners())) {
-                                    Log.i("rejoinRooms: leaving " + muc.getRoom() + " because affiliateCheck failed");
-                                    leaveRoom(muc);
-                                    continue;
-                                }
-
-                                // TODO this shouldn't happen any more
-                                // catch the 403 that sometimes shows up and fall back to some easier check if the room
-                                // is still under our control
-                            } catch (XMPPException e) {
-                                Log.d("rejoinRooms: Exception, falling back", e);
-                                if (!(info.isMembersOnly() || info.isPasswordProtected())) {
-                                    Log.i("rejoinRooms: leaving " + muc.getRoom() + " because of membersOnly="
-                                        + info.isMembersOnly() + " passwordProtected=" + info.isPasswordProtected());
-                                    leaveRoom(muc);
-                                    continue;
-                                }
+            XmppMucRejoiner rejoiner = new XmppMucRejoiner(REJOIN_THREADS, REJOIN_ROOM_TIMEOUT);
+            try {
+                List<String[]> timedOut = rejoiner.run(Arrays.asList(mucDB), new XmppMucRejoiner.Rejoin<String[]>() {
+                    public void rejoin(String[] aMucDB) {
+                        try {
+                            if (mRejoinConnection.isAuthenticated()) {
+                                rejoinRoom(mRejoinConnection, aMucDB);
                             }
+                        } finally {
+                            sRejoinedCount.inc();
+                            int done = rejoinedRooms.incrementAndGet();
+                            Log.d("rejoinRooms: " + done + "/" + roomsToRejoin + " rooms processed");
                         }
-                        // looks like there is no one in the room
-                        if (info.getOccupantsCount() == 0) {
-                            Log.i("rejoinRooms: leaving " + muc.getRoom() + " because there is no one there");
-                            leaveRoom(muc);
-                            continue;
+                    }
+                });
+                for (String[] aMucDB : timedOut) {
+                    Log.w("rejoinRooms: timeout while rejoining " + aMucDB[0]);
+                    sRejoinTimeoutCount.inc();
+                }
+            } catch (InterruptedException e) {
+                Log.w("rejoinRooms: interrupted");
+                Thread.currentThread().interrupt();
+            }
+            Metrics.recordSince(sRejoinTime, timer);
+            Log.i("rejoinRooms: " + mRooms.size() + "/" + mucDB.length + " rooms rejoined in " + (System.currentTimeMillis() - start) + "ms");
+        }
+
+        private void rejoinRoom(XMPPConnection connection, String[] aMucDB) {
+            Log.i("Trying to reconnect to the room with parameters: Muc=" + aMucDB[0] + ", Number=" + aMucDB[1] + ", Mode=" + aMucDB[2]);
+
+            RoomInfo info = getRoomInfo(connection, aMucDB[0]);
+            // if info is not null, the room exists on the server, so lets check if we can reuse it
+            if (info != null) {
+                MultiUserChat muc = new MultiUserChat(connection, aMucDB[0]);
+                int mode = Integer.parseInt(aMucDB[2]);
+                // Hardcoded room name for shell
+                String name = mode == MODE_SMS ? ContactsManager.getContactName(mCtx, aMucDB[1]) : "Shell " + aMucDB[1];
+
+                try {
+                    if (info.isPasswordProtected()) {
+                        muc.join(name, mSettings.roomPassword, mDiscussionHistory, JOIN_TIMEOUT);
+                    } else {
+                        muc.join(name, null, mDiscussionHistory, JOIN_TIMEOUT);
+
+                        // Openfire needs some time to collect the owners list
+                        try {
+                            Thread.sleep(REJOIN_ROOMS_SLEEP);
+                        } catch (InterruptedException e1) {
+                            /* Ignore */
                         }
-                    } catch (Exception e) {
-                        Log.i("rejoinRooms: leaving " + muc.getRoom() + " because of XMMPException", e);
+                        // check here if we are still owner of these room, in case somebody has taken over ownership
+                        // sadly getOwners() throws sometimes a 403 on my openfire server
+                        try {
+                            if (!affiliateCheck(muc.getOwners())) {
+                                Log.i("rejoinRooms: leaving " + muc.getRoom() + " because affiliateCheck failed");
+                                leaveRoom(muc);
+                                return;
+                            }
 
-                        // TODO decide in which cases it would be the best to remove the room from the DB, because of a persistent error
-                        // and in which cases the error will not be permanent
-                        if (mConnection.isAuthenticated()) {
-                            try {
+                            // TODO this shouldn't happen any more
+                            // catch the 403 that sometimes shows up and fall back to some easier check if the room
+                            // is still under our control
+                        } catch (XMPPException e) {
+                            Log.d("rejoinRooms: Exception, falling back", e);
+                            if (!(info.isMembersOnly() || info.isPasswordProtected())) {
+                                Log.i("rejoinRooms: leaving " + muc.getRoom() + " because of membersOnly="
+                                    + info.isMembersOnly() + " passwordProtected=" + info.isPasswordProtected());
                                 leaveRoom(muc);
-                            } catch (SmackException.NotConnectedException e1) {
-                                Log.i("rejoinRooms: error when leaving " + muc.getRoom() + " because of Exception", e);
+                                return;
                             }
-                            continue;
-                        } else {
-                            break;
                         }
                     }
+                    // looks like there is no one in the room
+                    if (info.getOccupantsCount() == 0) {
+                        Log.i("rejoinRooms: leaving " + muc.getRoom() + " because there is no one there");
+                        leaveRoom(muc);
+                        return;
+                    }
+                } catch (Exception e) {
+                    Log.i("rejoinRooms: leaving " + muc.getRoom() + " because of XMMPException", e);
+
+                    // TODO decide in which cases it would be the best to remove the room from the DB, because of a persistent error
+                    // and in which cases the error will not be permanent
+                    if (connection.isAuthenticated()) {
+                        try {
+                            leaveRoom(muc);
+                        } catch (SmackException.NotConnectedException e1) {
+                            Log.i("rejoinRooms: error when leaving " + muc.getRoom() + " because of Exception", e);
+                        }
+                    }
+                    return;
+                }
 
-                    Log.i("Connected to the room '" + aMucDB[0]);
+                Log.i("Connected to the room '" + aMucDB[0]);
 
-                    // MUC has passed all tests and is fully usable
-                    registerRoom(muc, aMucDB[1], name, mode);
-                } else {
-                    Log.i("The room '" + aMucDB[0] + "'is no more available");
-                    mMucHelper.deleteMUC(aMucDB[0]);
+                if (connection != mConnection) {
+                    Log.i("rejoinRooms: connection changed, dropping " + aMucDB[0]);
+                    return;
                 }
+
+                // MUC has passed all tests and is fully usable
+                registerRoom(muc, aMucDB[1], name, mode);
+            } else {
+                Log.i("The room '" + aMucDB[0] + "'is no more available");
+                mMucHelper.deleteMUC(aMucDB[0]);
             }
         }
     }
-}
\ No newline at end of file
+}
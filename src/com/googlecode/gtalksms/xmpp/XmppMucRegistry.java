@@ -0,0 +1,80 @@
+package com.googlecode.gtalksms.xmpp;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jivesoftware.smackx.muc.MultiUserChat;
+
+/**
+ * Thread-safe registry of the joined rooms.
+ * Rooms are indexed by phone number (or shell id) and by room JID.
+ * Lookups are lock-free, updates are serialized to keep the indexes consistent.
+ */
+class XmppMucRegistry {
+    private final ConcurrentHashMap<String, MultiUserChat> mByNumber = new ConcurrentHashMap<String, MultiUserChat>();
+    private final ConcurrentHashMap<String, MultiUserChat> mByJid = new ConcurrentHashMap<String, MultiUserChat>();
+    private final Set<Integer> mRoomNumbers = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+    synchronized void put(String number, Integer roomInt, MultiUserChat muc) {
+        remove(number);
+        mByNumber.put(number, muc);
+        mByJid.put(muc.getRoom().toLowerCase(), muc);
+        if (roomInt != null) {
+            mRoomNumbers.add(roomInt);
+        }
+    }
+
+    synchronized void remove(String number, Integer roomInt) {
+        remove(number);
+        if (roomInt != null) {
+            mRoomNumbers.remove(roomInt);
+        }
+    }
+
+    private void remove(String number) {
+        if (number == null) {
+            return;
+        }
+        MultiUserChat muc = mByNumber.remove(number);
+        if (muc != null) {
+            mByJid.remove(muc.getRoom().toLowerCase());
+        }
+    }
+
+    synchronized void clear() {
+        mByNumber.clear();
+        mByJid.clear();
+        mRoomNumbers.clear();
+    }
+
+    /**
+     * Reserves a room number, returns false if it's already used
+     */
+    boolean reserveRoomNumber(Integer roomInt) {
+        return mRoomNumbers.add(roomInt);
+    }
+
+    /**
+     * Releases a room number reserved for a room that couldn't be created
+     */
+    synchronized void releaseRoomNumber(Integer roomInt) {
+        mRoomNumbers.remove(roomInt);
+    }
+
+    MultiUserChat getByNumber(String number) {
+        return mByNumber.get(number);
+    }
+
+    MultiUserChat getByJid(String jid) {
+        return jid == null ? null : mByJid.get(jid.toLowerCase());
+    }
+
+    boolean containsNumber(String number) {
+        return mByNumber.containsKey(number);
+    }
+
+    int size() {
+        return mByNumber.size();
+    }
+}
@@ -0,0 +1,134 @@
+package com.googlecode.gtalksms.xmpp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.googlecode.gtalksms.tools.Log;
+
+/**
+ * Rejoins the MUC rooms on a bounded pool of threads, each room with its own timeout counted from the start
+ * of its rejoin: a room waiting for a thread is never timed out, whatever the number of rooms before it.
+ *
+ * A room still running at its timeout is reported as timed out and interrupted. A thread is added to the pool
+ * in its place, the rooms queued behind it keep all the threads even if it ignores the interrupt.
+ */
+class XmppMucRejoiner {
+
+    /**
+     * Rejoins a room, called from a thread of the pool
+     */
+    interface Rejoin<T> {
+        void rejoin(T room);
+    }
+
+    private final int mThreads;
+    private final long mTimeoutMs;
+
+    /**
+     * @param threads the number of rooms rejoined at once
+     * @param timeoutMs the time given to each room, from the start of its rejoin
+     */
+    XmppMucRejoiner(int threads, long timeoutMs) {
+        mThreads = threads;
+        mTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Rejoins the rooms, returns once each one has ended or timed out
+     * @return the rooms timed out
+     */
+    <T> List<T> run(List<T> rooms, final Rejoin<T> rejoin) throws InterruptedException {
+        final List<T> timedOut = Collections.synchronizedList(new ArrayList<T>());
+        if (rooms.isEmpty()) {
+            return timedOut;
+        }
+        int threads = Math.max(1, Math.min(mThreads, rooms.size()));
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), newThreadFactory("GTalkSMS.MucRejoin-"));
+        final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+                newThreadFactory("GTalkSMS.MucRejoinTimer-"));
+        final CountDownLatch done = new CountDownLatch(rooms.size());
+        try {
+            for (final T room : rooms) {
+                pool.execute(new Runnable() {
+                    // guards mEnded, the interrupt of the timeout can't reach the next room of the thread
+                    private final Object mLock = new Object();
+                    private boolean mEnded;
+
+                    public void run() {
+                        final Thread thread = Thread.currentThread();
+                        ScheduledFuture<?> timeout = timer.schedule(new Runnable() {
+                            public void run() {
+                                synchronized (mLock) {
+                                    if (mEnded) {
+                                        return;
+                                    }
+                                    mEnded = true;
+                                    timedOut.add(room);
+                                    addThread(pool);
+                                    thread.interrupt();
+                                }
+                                done.countDown();
+                            }
+                        }, mTimeoutMs, TimeUnit.MILLISECONDS);
+
+                        try {
+                            rejoin.rejoin(room);
+                        } catch (RuntimeException e) {
+                            Log.w("rejoinRooms: failed to rejoin a room", e);
+                        } finally {
+                            timeout.cancel(false);
+                            boolean countDown;
+                            synchronized (mLock) {
+                                countDown = !mEnded;
+                                mEnded = true;
+                            }
+                            if (countDown) {
+                                done.countDown();
+                            } else {
+                                // clears the interrupt of the timeout
+                                Thread.interrupted();
+                            }
+                        }
+                    }
+                });
+            }
+            done.await();
+        } finally {
+            // the timed out rooms ignoring the interrupt end on their own
+            pool.shutdown();
+            timer.shutdownNow();
+        }
+        return new ArrayList<T>(timedOut);
+    }
+
+    private static void addThread(ThreadPoolExecutor pool) {
+        synchronized (pool) {
+            // the maximum first, it can't be lower than the core size
+            pool.setMaximumPoolSize(pool.getMaximumPoolSize() + 1);
+            pool.setCorePoolSize(pool.getCorePoolSize() + 1);
+        }
+    }
+
+    private static ThreadFactory newThreadFactory(final String prefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, prefix + mCount.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+}
@@ -1,25 +1,71 @@
 package com.googlecode.gtalksms.xmpp;
 
 import com.googlecode.gtalksms.tools.Log;
+import com.googlecode.gtalksms.tools.Metrics;
 import com.googlecode.gtalksms.SettingsManager;
+import com.googlecode.gtalksms.XmppManager;
 
+import org.jivesoftware.smack.RosterListener;
 import org.jivesoftware.smack.SmackException;
 import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.XMPPException;
 import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.smack.packet.XMPPError;
 import org.jivesoftware.smack.util.StringUtils;
 import org.jivesoftware.smackx.address.MultipleRecipientManager;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Send a message to all resources not blacklisted
+ * The recipients are computed once from the roster presences and kept until a presence
+ * of a notified address, the roster or the settings change.
  * Created by Florent on 10/11/13.
  */
 public class XmppMultipleRecipientManager {
     private static SettingsManager sSettingsManager;
 
+    private static final Metrics.Counter sCacheHits = Metrics.counter("xmpp.recipients.hit");
+    private static final Metrics.Counter sCacheMisses = Metrics.counter("xmpp.recipients.miss");
+
+    /**
+     * Recipients computed for a roster generation and the settings of that time
+     */
+    static class Recipients {
+        final List<String> mAddresses;
+        final int mGeneration;
+        final String mNotifiedAddresses;
+        final String mBlockedResourcePrefixes;
+
+        Recipients(List<String> addresses, int generation, String notifiedAddresses, String blockedResourcePrefixes) {
+            mAddresses = Collections.unmodifiableList(addresses);
+            mGeneration = generation;
+            mNotifiedAddresses = notifiedAddresses;
+            mBlockedResourcePrefixes = blockedResourcePrefixes;
+        }
+
+        boolean isValid(int generation, String notifiedAddresses, String blockedResourcePrefixes) {
+            return mGeneration == generation && equals(mNotifiedAddresses, notifiedAddresses) && equals(mBlockedResourcePrefixes, blockedResourcePrefixes);
+        }
+
+        private static boolean equals(String s1, String s2) {
+            return s1 == null ? s2 == null : s1.equals(s2);
+        }
+    }
+
+    // incremented when the cached recipients are obsolete
+    private static final AtomicInteger sGeneration = new AtomicInteger();
+    private static volatile Recipients sRecipients;
+    // set when the server has refused a multiple recipients message, reset by a new connection
+    private static volatile boolean sMultipleRecipientsUnsupported;
+
     /**
      * Set the setting manager.
      * To be called First
@@ -27,6 +73,47 @@ public class XmppMultipleRecipientManager {
      */
     public static void setSettingsManager(SettingsManager manager) { sSettingsManager = manager; }
 
+    /**
+     * Invalidates the recipients on each new connection and when the roster changes
+     * @param xmppMgr the XmppManager of the connections
+     */
+    public static void registerListener(XmppManager xmppMgr) {
+        XmppConnectionChangeListener listener = new XmppConnectionChangeListener() {
+            public void newConnection(XMPPConnection connection) {
+                sMultipleRecipientsUnsupported = false;
+                invalidate();
+                connection.getRoster().addRosterListener(new RosterListener() {
+                    public void entriesAdded(Collection<String> addresses) {
+                        invalidate();
+                    }
+
+                    public void entriesUpdated(Collection<String> addresses) {
+                        invalidate();
+                    }
+
+                    public void entriesDeleted(Collection<String> addresses) {
+                        invalidate();
+                    }
+
+                    public void presenceChanged(Presence presence) {
+                        String from = presence.getFrom();
+                        if (from != null && sSettingsManager.getNotifiedAddresses().contains(StringUtils.parseBareAddress(from))) {
+                            invalidate();
+                        }
+                    }
+                });
+            }
+        };
+        xmppMgr.registerConnectionChangeListener(listener);
+    }
+
+    /**
+     * Forgets the cached recipients, they are computed again by the next send
+     */
+    public static void invalidate() {
+        sGeneration.incrementAndGet();
+    }
+
     /**
      * Send a message to all resources not blacklisted
      * @param connection Xmpp connection
@@ -34,67 +121,167 @@ public class XmppMultipleRecipientManager {
      * @return True if succeeded, false otherwise
      */
     public static boolean send(XMPPConnection connection, Message msg) {
+        return send(connection, msg, getRecipients(connection));
+    }
 
-        List<String> toList = getAllowedNotifiedAddresses(connection);
-        toList = filterHangoutAddresses(toList);
+    /**
+     * Send a message to the recipients, one by one if the server has refused a multiple recipients message
+     * @return True if succeeded, false otherwise
+     */
+    static boolean send(XMPPConnection connection, Message msg, List<String> toList) {
 
         if (toList.size() > 0) {
+            if (sMultipleRecipientsUnsupported) {
+                return sendOneByOne(connection, msg, toList);
+            }
             try {
                 Log.d("Sending message to " + toList.size() + " recipients");
                 MultipleRecipientManager.send(connection, msg, toList, null, null);
-            } catch (Exception e) {
+            } catch (XMPPException.XMPPErrorException e) {
                 Log.d("Failed to send message using MultipleRecipientManager method. Sending messages one by one. Ex: " + e.getMessage());
-                for (String notifiedAddress : toList) {
-                    msg.setTo(notifiedAddress);
-                    try {
-                        connection.sendPacket(msg);
-                    } catch (SmackException.NotConnectedException ex) {
-                        Log.e("Send message error. Ex: " + ex.getMessage());
-                    }
+                if (isUnsupported(e.getXMPPError())) {
+                    sMultipleRecipientsUnsupported = true;
                 }
-                return false;
+                return sendOneByOne(connection, msg, toList);
+            } catch (Exception e) {
+                // not connected or no response, the next message tries again
+                Log.d("Failed to send message using MultipleRecipientManager method. Sending messages one by one. Ex: " + e.getMessage());
+                return sendOneByOne(connection, msg, toList);
             }
         }
 
         return true;
     }
 
+    /**
+     * @return true if the error of the server means that it doesn't handle the multiple recipients messages
+     */
+    static boolean isUnsupported(XMPPError error) {
+        return error != null && (XMPPError.Condition.feature_not_implemented.toString().equals(error.getCondition())
+                || XMPPError.Condition.service_unavailable.toString().equals(error.getCondition()));
+    }
+
+    static boolean isMultipleRecipientsUnsupported() {
+        return sMultipleRecipientsUnsupported;
+    }
+
+    private static boolean sendOneByOne(XMPPConnection connection, Message msg, List<String> toList) {
+        boolean res = true;
+        for (String notifiedAddress : toList) {
+            try {
+                connection.sendPacket(copy(msg, notifiedAddress));
+            } catch (SmackException.NotConnectedException ex) {
+                Log.e("Send message error. Ex: " + ex.getMessage());
+                res = false;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return a copy of the message for the recipient, the writer of the connection serializes the packets
+     * later and would see the recipient of the next one
+     */
+    private static Message copy(Message msg, String to) {
+        Message res = new Message(to, msg.getType());
+        res.setLanguage(msg.getLanguage());
+        for (Message.Body body : msg.getBodies()) {
+            res.addBody(body.getLanguage(), body.getMessage());
+        }
+        for (Message.Subject subject : msg.getSubjects()) {
+            res.addSubject(subject.getLanguage(), subject.getSubject());
+        }
+        res.setThread(msg.getThread());
+        res.addExtensions(msg.getExtensions());
+        return res;
+    }
+
+    /**
+     * @return the recipients of the messages without destination, from the cache if still valid
+     */
+    static List<String> getRecipients(XMPPConnection connection) {
+        // read before the presences, a presence received meanwhile makes the result obsolete
+        int generation = sGeneration.get();
+        List<String> toList = getCachedRecipients();
+        if (toList == null) {
+            List<Presence> presences = new ArrayList<Presence>();
+            for (String notifiedAddress : sSettingsManager.getNotifiedAddresses().getAll()) {
+                presences.addAll(connection.getRoster().getPresences(notifiedAddress));
+            }
+            toList = computeRecipients(presences, generation);
+        }
+        return toList;
+    }
+
+    /**
+     * @return the cached recipients or null if they are obsolete
+     */
+    static List<String> getCachedRecipients() {
+        Recipients recipients = sRecipients;
+        if (recipients != null && recipients.isValid(sGeneration.get(),
+                sSettingsManager.getNotifiedAddresses().get(), sSettingsManager.getBlockedResourcePrefixes().get())) {
+            sCacheHits.inc();
+            return recipients.mAddresses;
+        }
+        sCacheMisses.inc();
+        return null;
+    }
+
+    static int getGeneration() {
+        return sGeneration.get();
+    }
+
+    /**
+     * Computes and caches the recipients
+     * @param presences the presences of the notified addresses
+     * @param generation the generation read before the presences
+     */
+    static List<String> computeRecipients(List<Presence> presences, int generation) {
+        String notifiedAddresses = sSettingsManager.getNotifiedAddresses().get();
+        String blockedResourcePrefixes = sSettingsManager.getBlockedResourcePrefixes().get();
+
+        List<String> toList = getAllowedAddresses(presences, sSettingsManager.getBlockedResourcePrefixes().getAll());
+        toList = filterHangoutAddresses(toList);
+
+        Recipients recipients = new Recipients(toList, generation, notifiedAddresses, blockedResourcePrefixes);
+        sRecipients = recipients;
+        return recipients.mAddresses;
+    }
+
     /**
      * Looking for JIDs not blacklisted in the settings
-     * @param connection Used to retrieved connected resources
+     * @param presences the presences of the notified addresses
+     * @param blockedResourcePrefixes the blacklisted resource prefixes
      * @return the list of allowed resources
      */
-    private static List<String> getAllowedNotifiedAddresses(XMPPConnection connection) {
-        List<String> toList = new LinkedList<String>();
-        List<String> toListWithEmptyResources = new LinkedList<String>();
+    static List<String> getAllowedAddresses(List<Presence> presences, String[] blockedResourcePrefixes) {
+        List<String> toList = new ArrayList<String>();
+        List<String> toListWithEmptyResources = new ArrayList<String>();
 
         // Removing blacklisted resources for notified addresses
-        for (String notifiedAddress : sSettingsManager.getNotifiedAddresses().getAll()) {
-            List<Presence> presences = connection.getRoster().getPresences(notifiedAddress);
-            for (Presence p : presences) {
-                String toPresence = p.getFrom();
-                String toResource = StringUtils.parseResource(toPresence);
-                // Don't send messages to GTalk Android devices
-                // It would be nice if there was a better way to detect
-                // an Android gTalk XMPP client, but currently there is none
-                if (toResource != null && !toResource.equals("")) {
-                    boolean found = false;
-                    for (String blockedResourcePrefix : sSettingsManager.getBlockedResourcePrefixes().getAll()) {
-                        if (toResource.startsWith(blockedResourcePrefix)) {
-                            found = true;
-                            break;
-                        }
-                    }
-                    if (!found) {
-                        Log.d("Sending message to " + toPresence);
-                        toList.add(toPresence);
-                    } else {
-                        Log.d("Message not sent to " + toPresence + " because resource is blacklisted");
+        for (Presence p : presences) {
+            String toPresence = p.getFrom();
+            String toResource = StringUtils.parseResource(toPresence);
+            // Don't send messages to GTalk Android devices
+            // It would be nice if there was a better way to detect
+            // an Android gTalk XMPP client, but currently there is none
+            if (toResource != null && !toResource.equals("")) {
+                boolean found = false;
+                for (String blockedResourcePrefix : blockedResourcePrefixes) {
+                    if (toResource.startsWith(blockedResourcePrefix)) {
+                        found = true;
+                        break;
                     }
+                }
+                if (!found) {
+                    Log.d("Sending message to " + toPresence);
+                    toList.add(toPresence);
                 } else {
-                    Log.d("Message not sent to " + toPresence + " because resource is empty");
-                    toListWithEmptyResources.add(toPresence);
+                    Log.d("Message not sent to " + toPresence + " because resource is blacklisted");
                 }
+            } else {
+                Log.d("Message not sent to " + toPresence + " because resource is empty");
+                toListWithEmptyResources.add(toPresence);
             }
         }
 
@@ -110,8 +297,8 @@ public class XmppMultipleRecipientManager {
      * @param toList list of allowed JIDs
      * @return list of JIDs (all except hangout) and Bare Address (for hangout)
      */
-    private static List<String> filterHangoutAddresses(List<String> toList) {
-        List<String> results = new LinkedList<String>();
+    static List<String> filterHangoutAddresses(List<String> toList) {
+        Set<String> results = new LinkedHashSet<String>();
 
         Log.d("Looking for hangout addresses");
         for (String notifiedAddress : toList) {
@@ -119,20 +306,18 @@ public class XmppMultipleRecipientManager {
             if (toResource.toLowerCase().startsWith("messaging")) {
                 Log.d("Hangout address detected: " + notifiedAddress);
                 String bareAddress = StringUtils.parseBareAddress(notifiedAddress);
-                if (!results.contains(bareAddress)) {
-                    results.add(bareAddress);
+                if (results.add(bareAddress)) {
                     Log.d("Sending message to " + bareAddress);
                 }
             }
         }
 
         for (String notifiedAddress : toList) {
-            String bareAddress = StringUtils.parseBareAddress(notifiedAddress);
-            if (!results.contains(bareAddress)) {
+            if (!results.contains(StringUtils.parseBareAddress(notifiedAddress))) {
                 results.add(notifiedAddress);
             }
         }
 
-        return results;
+        return new ArrayList<String>(results);
     }
 }
@@ -0,0 +1,311 @@
+package com.googlecode.gtalksms.xmpp;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.os.PowerManager;
+
+import com.googlecode.gtalksms.tools.Histogram;
+import com.googlecode.gtalksms.tools.Log;
+import com.googlecode.gtalksms.tools.Metrics;
+import com.googlecode.gtalksms.tools.TokenBucket;
+
+/**
+ * Pipeline of the outgoing messages: the callers queue their messages and return,
+ * a single thread sends them, in order for each recipient.
+ * - each recipient has a bounded queue, offer() waits for room then fails (backpressure),
+ *   add() exceeds the bound for the notifications that can neither wait nor be dropped
+ * - the adjacent messages of a recipient queued within COALESCE_WINDOW_MS are sent
+ *   as a single message, up to MAX_COALESCED_LENGTH characters
+ * - the sent messages are paced by a token bucket to stay under the rate limits of the servers
+ * A wake lock is held from the first queued message until the queues are empty and the last message is sent,
+ * the pacing and the coalescing delays don't let the CPU sleep with queued notifications.
+ */
+public class XmppOutbox {
+    public static final int DEFAULT_CAPACITY = 256;
+    public static final double DEFAULT_RATE_PER_SECOND = 5;
+    public static final int DEFAULT_BURST = 10;
+    static final long COALESCE_WINDOW_MS = 100;
+    static final int MAX_COALESCED_LENGTH = 4000;
+    // queue of the messages without destination, sent to the notified addresses
+    private static final String DEFAULT_RECIPIENT = "";
+
+    private static final Metrics.Counter sCoalescedCount = Metrics.counter("xmpp.outbox.coalesced");
+    private static final Metrics.Counter sRejectedCount = Metrics.counter("xmpp.outbox.rejected");
+    private static final Metrics.Counter sOverflowCount = Metrics.counter("xmpp.outbox.overflow");
+    private static final Histogram sWaitTime = Metrics.histogram("xmpp.outbox.wait");
+
+    /**
+     * Sends the messages taken from the queues
+     */
+    public interface Transport {
+        /**
+         * @return false if the messages are only stored for later, they aren't paced
+         */
+        boolean isConnected();
+
+        void send(XmppMsg msg, String to);
+    }
+
+    private static class Pending {
+        final XmppMsg mMsg;
+        final boolean mSeparate;
+        final long mTime;
+
+        Pending(XmppMsg msg, boolean separate, long time) {
+            mMsg = msg;
+            mSeparate = separate;
+            mTime = time;
+        }
+    }
+
+    private final Transport mTransport;
+    private final int mCapacity;
+    private final TokenBucket mBucket;
+    // queues by recipient, in the order they are served
+    private final LinkedHashMap<String, ArrayDeque<Pending>> mQueues = new LinkedHashMap<String, ArrayDeque<Pending>>();
+    private int mPendingCount;
+    private Thread mThread;
+    private final PowerManager.WakeLock mWakeLock;
+    // true from the first queued message until the last one is sent
+    private boolean mBusy;
+
+    /**
+     * @param wakeLock held while messages are queued or sent, may be null
+     */
+    public XmppOutbox(Transport transport, PowerManager.WakeLock wakeLock) {
+        this(transport, DEFAULT_CAPACITY, new TokenBucket(DEFAULT_RATE_PER_SECOND, DEFAULT_BURST), wakeLock);
+    }
+
+    /**
+     * @param wakeLock held while messages are queued or sent, may be null
+     */
+    public XmppOutbox(Transport transport, int capacity, TokenBucket bucket, PowerManager.WakeLock wakeLock) {
+        mTransport = transport;
+        mCapacity = capacity;
+        mBucket = bucket;
+        mWakeLock = wakeLock;
+        if (mWakeLock != null) {
+            mWakeLock.setReferenceCounted(true);
+        }
+    }
+
+    /**
+     * Queues a copy of the message
+     * @param msg the message, it can be reused by the caller
+     * @param to the recipient, null for the notified addresses
+     * @param separate true if the message must not be merged with the adjacent ones
+     * @param timeoutMs how long to wait when the queue of the recipient is full
+     * @return false if the queue is still full after the timeout, the message is dropped
+     */
+    public boolean offer(XmppMsg msg, String to, boolean separate, long timeoutMs) {
+        String key = to == null ? DEFAULT_RECIPIENT : to;
+        long deadline = now() + timeoutMs;
+        synchronized (this) {
+            ArrayDeque<Pending> queue = mQueues.get(key);
+            while (queue != null && queue.size() >= mCapacity) {
+                long wait = deadline - now();
+                if (wait <= 0) {
+                    sRejectedCount.inc();
+                    Log.w("XmppOutbox queue full, message to " + key + " dropped");
+                    return false;
+                }
+                try {
+                    wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    sRejectedCount.inc();
+                    return false;
+                }
+                queue = mQueues.get(key);
+            }
+            enqueue(key, msg, separate);
+        }
+        return true;
+    }
+
+    /**
+     * Queues a copy of the message without waiting, even if the queue of the recipient is full
+     * @param msg the message, it can be reused by the caller
+     * @param to the recipient, null for the notified addresses
+     * @param separate true if the message must not be merged with the adjacent ones
+     */
+    public synchronized void add(XmppMsg msg, String to, boolean separate) {
+        String key = to == null ? DEFAULT_RECIPIENT : to;
+        ArrayDeque<Pending> queue = mQueues.get(key);
+        if (queue != null && queue.size() >= mCapacity) {
+            sOverflowCount.inc();
+        }
+        enqueue(key, msg, separate);
+    }
+
+    /**
+     * Adds a copy of the message to the queue of the recipient, called with the lock held
+     */
+    private void enqueue(String key, XmppMsg msg, boolean separate) {
+        ArrayDeque<Pending> queue = mQueues.get(key);
+        if (queue == null) {
+            queue = new ArrayDeque<Pending>();
+            mQueues.put(key, queue);
+        }
+        queue.add(new Pending(msg.copy(), separate, now()));
+        mPendingCount++;
+        if (!mBusy) {
+            mBusy = true;
+            if (mWakeLock != null) {
+                mWakeLock.acquire();
+            }
+        }
+        if (mThread == null) {
+            mThread = new Thread(mSender, "XmppOutbox");
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return the number of queued messages
+     */
+    public synchronized int getPendingCount() {
+        return mPendingCount;
+    }
+
+    private final Runnable mSender = new Runnable() {
+        public void run() {
+            try {
+                while (true) {
+                    String key;
+                    XmppMsg msg;
+                    synchronized (XmppOutbox.this) {
+                        key = waitForReadyQueue();
+                        msg = takeMessage(key);
+                    }
+                    try {
+                        mTransport.send(msg, key.equals(DEFAULT_RECIPIENT) ? null : key);
+                    } catch (Exception e) {
+                        Log.e("XmppOutbox failed to send a message to " + key, e);
+                    }
+                    synchronized (XmppOutbox.this) {
+                        if (mPendingCount == 0) {
+                            releaseWakeLock();
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Log.d("XmppOutbox interrupted");
+            } finally {
+                synchronized (XmppOutbox.this) {
+                    mThread = null;
+                    releaseWakeLock();
+                }
+            }
+        }
+    };
+
+    /**
+     * Releases the wake lock if it is held, called with the lock held
+     */
+    private void releaseWakeLock() {
+        if (mBusy) {
+            mBusy = false;
+            if (mWakeLock != null) {
+                mWakeLock.release();
+            }
+        }
+    }
+
+    /**
+     * Waits for a queue ready to send and a token, called with the lock held
+     * @return the key of the queue
+     */
+    private String waitForReadyQueue() throws InterruptedException {
+        while (true) {
+            long now = now();
+            long wait = Long.MAX_VALUE;
+            String key = null;
+            for (Map.Entry<String, ArrayDeque<Pending>> entry : mQueues.entrySet()) {
+                long delay = getReadyDelay(entry.getValue(), now);
+                if (delay == 0) {
+                    key = entry.getKey();
+                    break;
+                }
+                wait = Math.min(wait, delay);
+            }
+            if (key != null) {
+                long delay = mTransport.isConnected() ? mBucket.tryAcquire(now) : 0;
+                if (delay == 0) {
+                    return key;
+                }
+                wait = delay;
+            }
+            if (wait == Long.MAX_VALUE) {
+                wait();
+            } else {
+                wait(wait);
+            }
+        }
+    }
+
+    /**
+     * A queue is ready when its first message can't be merged with more messages:
+     * separate, followed by a message that can't be merged, long enough or queued since COALESCE_WINDOW_MS
+     * @return 0 if the queue is ready, otherwise the delay before it is
+     */
+    private static long getReadyDelay(ArrayDeque<Pending> queue, long now) {
+        Pending first = queue.peekFirst();
+        if (first.mSeparate) {
+            return 0;
+        }
+        int length = 0;
+        for (Pending p : queue) {
+            if (p.mSeparate || !p.mMsg.hasSameFont(first.mMsg)) {
+                return 0;
+            }
+            length += p.mMsg.length();
+            if (length >= MAX_COALESCED_LENGTH) {
+                return 0;
+            }
+        }
+        return Math.max(0, first.mTime + COALESCE_WINDOW_MS - now);
+    }
+
+    /**
+     * Takes the first message of the queue merged with the following ones, called with the lock held
+     */
+    private XmppMsg takeMessage(String key) {
+        ArrayDeque<Pending> queue = mQueues.remove(key);
+        Pending first = queue.pollFirst();
+        XmppMsg msg = first.mMsg;
+        int count = 1;
+        if (!first.mSeparate) {
+            for (Iterator<Pending> it = queue.iterator(); it.hasNext(); ) {
+                Pending p = it.next();
+                if (p.mSeparate || !p.mMsg.hasSameFont(msg) || msg.length() + p.mMsg.length() > MAX_COALESCED_LENGTH) {
+                    break;
+                }
+                if (!msg.endsWithNewLine()) {
+                    msg.newLine();
+                }
+                msg.append(p.mMsg);
+                it.remove();
+                count++;
+            }
+        }
+        // served last among the recipients having queued messages
+        if (!queue.isEmpty()) {
+            mQueues.put(key, queue);
+        }
+        mPendingCount -= count;
+        sCoalescedCount.add(count - 1);
+        sWaitTime.record((now() - first.mTime) * 1000);
+        notifyAll();
+        return msg;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+}
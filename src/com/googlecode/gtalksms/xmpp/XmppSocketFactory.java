@@ -2,26 +2,58 @@ package com.googlecode.gtalksms.xmpp;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 
 import javax.net.SocketFactory;
 
 public class XmppSocketFactory extends SocketFactory {
+    public static final int DEFAULT_CONNECT_TIMEOUT = 1000 * 15;
+
     private static final SocketFactory defaultFactory = SocketFactory.getDefault();
-    
-    private Socket socket;    
+
+    private final XmppConnectionWarmup mWarmup;
+    private final int mConnectTimeout;
+    private Socket socket;
+
+    public XmppSocketFactory() {
+        this(null);
+    }
+
+    /**
+     * @param warmup the addresses resolved in advance are tried first, can be null
+     */
+    public XmppSocketFactory(XmppConnectionWarmup warmup) {
+        this(warmup, DEFAULT_CONNECT_TIMEOUT);
+    }
+
+    /**
+     * @param warmup the addresses resolved in advance are tried first, can be null
+     * @param connectTimeout in ms, for each address tried
+     */
+    public XmppSocketFactory(XmppConnectionWarmup warmup, int connectTimeout) {
+        mWarmup = warmup;
+        mConnectTimeout = connectTimeout;
+    }
+
     @Override
     public Socket createSocket(String arg0, int arg1) throws IOException {
-        socket = defaultFactory.createSocket(arg0, arg1);
-        setSockOpt(socket);
-        return socket;
+        InetAddress[] addresses = mWarmup == null ? null : mWarmup.getCachedAddresses(arg0);
+        if (addresses != null) {
+            for (InetAddress address : addresses) {
+                try {
+                    return createSocket(address, arg1);
+                } catch (IOException e) {
+                    // the prefetched address may be stale, try the next one
+                }
+            }
+        }
+        return connect(new InetSocketAddress(arg0, arg1));
     }
 
     @Override
     public Socket createSocket(InetAddress host, int port) throws IOException {
-        socket = defaultFactory.createSocket(host, port);
-        setSockOpt(socket);
-        return socket;
+        return connect(new InetSocketAddress(host, port));
     }
 
     @Override
@@ -40,6 +72,23 @@ public class XmppSocketFactory extends SocketFactory {
         return socket;
     }
 
+    /**
+     * Connects with the timeout, an unreachable address fails after it
+     * instead of the minutes of the system TCP timeout
+     */
+    private Socket connect(InetSocketAddress address) throws IOException {
+        Socket s = defaultFactory.createSocket();
+        try {
+            s.connect(address, mConnectTimeout);
+            setSockOpt(s);
+        } catch (IOException e) {
+            s.close();
+            throw e;
+        }
+        socket = s;
+        return s;
+    }
+
     private static void setSockOpt(Socket socket) throws IOException {
         socket.setKeepAlive(false);
         // Set sockek timeout to2 hours, should be more then the ping interval